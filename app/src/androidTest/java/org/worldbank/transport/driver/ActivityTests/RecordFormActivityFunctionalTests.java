@@ -20,6 +20,7 @@ import com.azavea.androidvalidatedforms.controllers.SelectionController;
 import org.worldbank.transport.driver.R;
 import org.worldbank.transport.driver.activities.RecordFormActivity;
 import org.worldbank.transport.driver.activities.RecordFormItemActivity;
+import org.worldbank.transport.driver.schemas.SchemaClassLoader;
 import org.worldbank.transport.driver.staticmodels.DriverApp;
 import org.worldbank.transport.driver.utilities.RecordFormSectionManager;
 
@@ -28,8 +29,6 @@ import java.util.ArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
-import it.necst.grabnrun.SecureDexClassLoader;
-
 
 /**
  * Functional tests for dynamically created form.
@@ -230,7 +229,7 @@ public class RecordFormActivityFunctionalTests extends ActivityInstrumentationTe
             assertNotNull(vehicleField);
             assertNotNull(personField);
 
-            SecureDexClassLoader classLoader = DriverApp.getSchemaClassLoader();
+            SchemaClassLoader classLoader = DriverApp.getSchemaClassLoader();
             assertNotNull(classLoader);
             Class vehicleClass = classLoader.loadClass(RecordFormSectionManager.MODEL_PACKAGE + "مركبةVehicle");
             Object testVehicleOne = vehicleClass.newInstance();
@@ -0,0 +1,110 @@
+package org.worldbank.transport.driver.DatastoreTests;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.jsonschema2pojo.media.SerializableMedia;
+import org.worldbank.transport.driver.TestModels.TestPerson;
+import org.worldbank.transport.driver.datastore.DriverSchemaSerializer;
+import org.worldbank.transport.driver.datastore.GsonSetDeserializer;
+
+import java.util.Set;
+
+/**
+ * Compare record read and write throughput when building a new Gson for each record,
+ * as the serializer used to, and when reusing the cached Gson.
+ */
+public class DriverSchemaSerializerBenchmarkTests extends AndroidTestCase {
+
+    private static final String LOG_LABEL = "SerializerBenchmark";
+
+    private static final int RECORD_COUNT = 2000;
+
+    TestPerson person;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        DriverSchemaSerializer.clearCache();
+
+        person = new TestPerson();
+        person.Name = "Big Bird";
+        person.Age = "6";
+        person.LicenseNumber = "1234567";
+        person.Vehicle = "a3c1ef52-5e13-4ab3-8f73-d6c5a1d2ea7b";
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DriverSchemaSerializer.clearCache();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testCachedGsonThroughput() {
+        String json = DriverSchemaSerializer.serializeRecordForStorage(person, TestPerson.class);
+        assertNotNull("Failed to serialize record", json);
+
+        // new Gson for each record
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            buildGson().toJson(person, TestPerson.class);
+        }
+        long uncachedWrite = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            buildGson().fromJson(json, TestPerson.class);
+        }
+        long uncachedRead = SystemClock.elapsedRealtime() - start;
+
+        // cached Gson
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            DriverSchemaSerializer.serializeRecordForStorage(person, TestPerson.class);
+        }
+        long cachedWrite = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        TestPerson readPerson = null;
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            readPerson = (TestPerson) DriverSchemaSerializer.readRecord(json, TestPerson.class);
+        }
+        long cachedRead = SystemClock.elapsedRealtime() - start;
+
+        assertNotNull("Failed to read record", readPerson);
+        assertEquals("Record did not round-trip", person.Name, readPerson.Name);
+
+        Log.i(LOG_LABEL, "Throughput for " + RECORD_COUNT + " records, in records/sec (new Gson vs. cached):");
+        Log.i(LOG_LABEL, "write: " + perSecond(uncachedWrite) + " vs. " + perSecond(cachedWrite));
+        Log.i(LOG_LABEL, "read: " + perSecond(uncachedRead) + " vs. " + perSecond(cachedRead));
+    }
+
+    @LargeTest
+    public void testClearCache() {
+        Gson storageGson = DriverSchemaSerializer.getStorageGson();
+        assertSame("Expected cached Gson to be reused", storageGson, DriverSchemaSerializer.getStorageGson());
+
+        DriverSchemaSerializer.clearCache();
+        assertNotSame("Expected new Gson after clearing cache", storageGson, DriverSchemaSerializer.getStorageGson());
+    }
+
+    /**
+     * Build a Gson the way the serializer did before caching.
+     */
+    private static Gson buildGson() {
+        GsonBuilder builder = new GsonBuilder();
+        builder.registerTypeAdapter(SerializableMedia.class, new SerializableMedia.SerializableMediaPathStringAdapter());
+        builder.registerTypeAdapter(Set.class, new GsonSetDeserializer());
+        return builder.create();
+    }
+
+    private static long perSecond(long elapsedMillis) {
+        return RECORD_COUNT * 1000L / Math.max(elapsedMillis, 1);
+    }
+}
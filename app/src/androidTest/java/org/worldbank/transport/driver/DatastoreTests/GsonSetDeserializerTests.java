@@ -0,0 +1,60 @@
+package org.worldbank.transport.driver.DatastoreTests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.SerializedName;
+
+import org.worldbank.transport.driver.TestModels.TestPerson.DriverError;
+import org.worldbank.transport.driver.TestModels.TestPerson.Injury;
+import org.worldbank.transport.driver.datastore.GsonSetDeserializer;
+
+import java.util.Set;
+
+/**
+ * Test reading sets of schema enums.
+ */
+public class GsonSetDeserializerTests extends AndroidTestCase {
+
+    public static class TestChecklist {
+        @SerializedName("Injuries")
+        public Set<Injury> injuries;
+
+        @SerializedName("Driver errors")
+        public Set<DriverError> driverErrors;
+    }
+
+    Gson gson;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        gson = new GsonBuilder().registerTypeAdapter(Set.class, new GsonSetDeserializer()).create();
+    }
+
+    @SmallTest
+    public void testReadEnumSets() {
+        // read twice, to use the lookup tables built on the first read
+        for (int i = 0; i < 2; i++) {
+            TestChecklist checklist = gson.fromJson("{\"Injuries\":[\"Not injured\",\"Minor\"]," +
+                    "\"Driver errors\":[\"Inattentive\"]}", TestChecklist.class);
+
+            assertEquals(2, checklist.injuries.size());
+            assertTrue(checklist.injuries.contains(Injury.NOT_INJURED));
+            assertTrue(checklist.injuries.contains(Injury.MINOR));
+            assertEquals("Set should keep stored order", Injury.NOT_INJURED,
+                    checklist.injuries.iterator().next());
+
+            assertEquals(1, checklist.driverErrors.size());
+            assertTrue(checklist.driverErrors.contains(DriverError.INATTENTIVE));
+        }
+    }
+
+    @SmallTest
+    public void testUnknownEnumValue() {
+        TestChecklist checklist = gson.fromJson("{\"Injuries\":[\"Minor\",\"Unknown\"]}", TestChecklist.class);
+        assertNull("Set with unknown value should not be read", checklist.injuries);
+    }
+}
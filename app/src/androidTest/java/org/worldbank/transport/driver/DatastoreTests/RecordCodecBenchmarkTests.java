@@ -0,0 +1,129 @@
+package org.worldbank.transport.driver.DatastoreTests;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.jsonschema2pojo.media.SerializableMedia;
+import org.worldbank.transport.driver.datastore.BinaryRecordCodec;
+import org.worldbank.transport.driver.datastore.DriverSchemaSerializer;
+import org.worldbank.transport.driver.datastore.JsonRecordCodec;
+import org.worldbank.transport.driver.datastore.RecordCodec;
+import org.worldbank.transport.driver.staticmodels.DriverApp;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compare stored size, encode time, and decode time of the record codecs,
+ * on records built from the bundled schema.
+ */
+public class RecordCodecBenchmarkTests extends AndroidTestCase {
+
+    private static final String LOG_LABEL = "RecordCodecBenchmark";
+
+    private static final int RECORD_COUNT = 500;
+
+    // number of items to add to each multiple section
+    private static final int SECTION_ITEMS = 3;
+
+    Class schemaClass;
+    Object record;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        schemaClass = DriverApp.getSchemaClass();
+        if (schemaClass == null) {
+            fail("Schema class not found");
+        }
+
+        record = buildSample(schemaClass, 0);
+    }
+
+    @LargeTest
+    public void testCodecs() throws IOException {
+        String json = DriverSchemaSerializer.serializeRecordForStorage(record, schemaClass);
+        assertNotNull("Failed to serialize record", json);
+
+        benchmark("JSON", new JsonRecordCodec(), json);
+        benchmark("binary", new BinaryRecordCodec(false), json);
+        benchmark("binary, deflated", new BinaryRecordCodec(true), json);
+    }
+
+    private void benchmark(String name, RecordCodec codec, String json) throws IOException {
+        byte[] encoded = null;
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            encoded = codec.encode(record, schemaClass);
+        }
+        long encodeTime = SystemClock.elapsedRealtime() - start;
+
+        Object decoded = null;
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            decoded = codec.decode(encoded, schemaClass);
+        }
+        long decodeTime = SystemClock.elapsedRealtime() - start;
+
+        assertEquals("Record did not round-trip through " + name + " codec", json,
+                DriverSchemaSerializer.serializeRecordForStorage(decoded, schemaClass));
+
+        Log.i(LOG_LABEL, name + ": " + encoded.length + " bytes per record; " + RECORD_COUNT +
+                " records encoded in " + encodeTime + " ms, decoded in " + decodeTime + " ms");
+    }
+
+    /**
+     * Build a record with every text field set, the first option of every enum field,
+     * two options of every checkbox field, and a few items in every multiple section.
+     */
+    private static Object buildSample(Class type, int depth) throws Exception {
+        Object sample = type.newInstance();
+
+        for (Field field : type.getFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+
+            Class fieldType = field.getType();
+            if (fieldType.equals(String.class)) {
+                field.set(sample, "Sample value for " + field.getName());
+            } else if (fieldType.isEnum()) {
+                field.set(sample, fieldType.getEnumConstants()[0]);
+            } else if (fieldType.equals(SerializableMedia.class)) {
+                SerializableMedia media = new SerializableMedia();
+                media.path = "/storage/emulated/0/Pictures/DRIVER/sample.jpg";
+                field.set(sample, media);
+            } else if (Collection.class.isAssignableFrom(fieldType)) {
+                Class elementType = (Class) ((ParameterizedType) field.getGenericType()).getActualTypeArguments()[0];
+                if (Set.class.isAssignableFrom(fieldType)) {
+                    Set<Object> set = new LinkedHashSet<>();
+                    Object[] constants = elementType.getEnumConstants();
+                    for (int i = 0; constants != null && i < constants.length && i < 2; i++) {
+                        set.add(constants[i]);
+                    }
+                    field.set(sample, set);
+                } else if (depth == 0) {
+                    List<Object> items = new ArrayList<>(SECTION_ITEMS);
+                    for (int i = 0; i < SECTION_ITEMS; i++) {
+                        items.add(buildSample(elementType, depth + 1));
+                    }
+                    field.set(sample, items);
+                }
+            } else if (depth == 0 && !fieldType.isPrimitive() && !fieldType.getName().startsWith("java.")) {
+                field.set(sample, buildSample(fieldType, depth + 1));
+            }
+        }
+
+        return sample;
+    }
+}
@@ -0,0 +1,214 @@
+package org.worldbank.transport.driver.DatastoreTests;
+
+import android.database.Cursor;
+import android.location.Location;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.datastore.RecordStorageProfile;
+import org.worldbank.transport.driver.datastore.StoredRecord;
+import org.worldbank.transport.driver.staticmodels.DriverConstantFields;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compare throughput of per-row and batched database operations on a file-based database,
+ * so that each transaction commit pays for syncing to storage as it does in the app.
+ */
+public class RecordDatabaseBenchmarkTests extends AndroidTestCase {
+
+    private static final String LOG_LABEL = "DatabaseBenchmark";
+    private static final String BENCHMARK_DATABASE_NAME = "driverdb-benchmark";
+
+    // roughly the size of a serialized record without images
+    private static final String RECORD_DATA;
+
+    static {
+        StringBuilder builder = new StringBuilder("{\"accidentDetails\": {\"Description\": \"");
+        for (int i = 0; i < 200; i++) {
+            builder.append("benchmark ");
+        }
+        builder.append("\"}}");
+        RECORD_DATA = builder.toString();
+    }
+
+    RecordDatabaseManager manager;
+    DriverConstantFields someConstants;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(BENCHMARK_DATABASE_NAME);
+        manager = new RecordDatabaseManager(getContext(), BENCHMARK_DATABASE_NAME);
+
+        someConstants = new DriverConstantFields();
+        someConstants.occurredFrom = new Date();
+        someConstants.location = new Location("");
+        someConstants.location.setLatitude(14.5);
+        someConstants.location.setLongitude(121.0);
+        someConstants.Weather = DriverConstantFields.WeatherEnum.RAIN;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        manager.close();
+        getContext().deleteDatabase(BENCHMARK_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testOneThousandRecords() {
+        compareThroughput(1000);
+    }
+
+    @LargeTest
+    public void testTenThousandRecords() {
+        compareThroughput(10000);
+    }
+
+    private void compareThroughput(int count) {
+        // per-row operations, each in its own transaction
+        long start = SystemClock.elapsedRealtime();
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = manager.addRecord("schema", RECORD_DATA, someConstants);
+        }
+        long perRowInsert = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (long id : ids) {
+            manager.updateRecord(RECORD_DATA, someConstants, id);
+        }
+        long perRowUpdate = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (long id : ids) {
+            manager.deleteRecord(id);
+        }
+        long perRowDelete = SystemClock.elapsedRealtime() - start;
+        assertRecordCount(0);
+
+        // batched operations, one transaction each
+        ArrayList<StoredRecord> newRecords = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            newRecords.add(new StoredRecord("schema", RECORD_DATA, someConstants));
+        }
+
+        start = SystemClock.elapsedRealtime();
+        ids = manager.addRecords(newRecords);
+        long batchInsert = SystemClock.elapsedRealtime() - start;
+        assertNotNull("Batch insert failed", ids);
+        assertEquals("Unexpected number of IDs returned from batch insert", count, ids.length);
+        assertRecordCount(count);
+
+        ArrayList<StoredRecord> updatedRecords = new ArrayList<>(count);
+        for (long id : ids) {
+            updatedRecords.add(new StoredRecord(id, RECORD_DATA, someConstants));
+        }
+
+        start = SystemClock.elapsedRealtime();
+        int updated = manager.updateRecords(updatedRecords);
+        long batchUpdate = SystemClock.elapsedRealtime() - start;
+        assertEquals("Unexpected number of records updated in batch", count, updated);
+
+        start = SystemClock.elapsedRealtime();
+        int deleted = manager.deleteRecords(ids);
+        long batchDelete = SystemClock.elapsedRealtime() - start;
+        assertEquals("Unexpected number of records deleted in batch", count, deleted);
+        assertRecordCount(0);
+
+        Log.i(LOG_LABEL, "Throughput for " + count + " records, in records/sec (per-row vs. batched):");
+        Log.i(LOG_LABEL, "insert: " + perSecond(count, perRowInsert) + " vs. " + perSecond(count, batchInsert));
+        Log.i(LOG_LABEL, "update: " + perSecond(count, perRowUpdate) + " vs. " + perSecond(count, batchUpdate));
+        Log.i(LOG_LABEL, "delete: " + perSecond(count, perRowDelete) + " vs. " + perSecond(count, batchDelete));
+    }
+
+    @LargeTest
+    public void testListQueryLatencyDuringUpload() throws InterruptedException {
+        manager.close();
+        long[] rollbackLatency = measureListLatencyDuringUpload(RecordStorageProfile.ROLLBACK_JOURNAL);
+        long[] walLatency = measureListLatencyDuringUpload(RecordStorageProfile.DEFAULT);
+
+        Log.i(LOG_LABEL, "List query latency during upload, in ms (rollback journal vs. WAL):");
+        Log.i(LOG_LABEL, "mean: " + rollbackLatency[0] + " vs. " + walLatency[0]);
+        Log.i(LOG_LABEL, "max: " + rollbackLatency[1] + " vs. " + walLatency[1]);
+
+        // re-open for tearDown
+        manager = new RecordDatabaseManager(getContext(), BENCHMARK_DATABASE_NAME);
+    }
+
+    /**
+     * Repeatedly query the record list, as RecordListActivity does, while another thread
+     * simulates an upload by adding and deleting records in batches.
+     *
+     * @param profile Storage settings to use for the database
+     * @return Mean and maximum list query time in milliseconds
+     */
+    private long[] measureListLatencyDuringUpload(RecordStorageProfile profile) throws InterruptedException {
+        final int seedCount = 2000;
+        final int queryCount = 200;
+
+        getContext().deleteDatabase(BENCHMARK_DATABASE_NAME);
+        final RecordDatabaseManager profiledManager = new RecordDatabaseManager(getContext(),
+                BENCHMARK_DATABASE_NAME, profile);
+
+        ArrayList<StoredRecord> newRecords = new ArrayList<>(seedCount);
+        for (int i = 0; i < seedCount; i++) {
+            newRecords.add(new StoredRecord("schema", RECORD_DATA, someConstants));
+        }
+        assertNotNull("Failed to seed records", profiledManager.addRecords(newRecords));
+
+        final ArrayList<StoredRecord> uploadBatch = new ArrayList<>(newRecords.subList(0, 25));
+        final AtomicBoolean uploading = new AtomicBoolean(true);
+        final AtomicInteger uploadBatches = new AtomicInteger(0);
+
+        Thread uploadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (uploading.get()) {
+                    long[] ids = profiledManager.addRecords(uploadBatch);
+                    if (ids != null) {
+                        profiledManager.deleteRecords(ids);
+                    }
+                    uploadBatches.incrementAndGet();
+                }
+            }
+        });
+        uploadThread.start();
+
+        long total = 0;
+        long max = 0;
+        for (int i = 0; i < queryCount; i++) {
+            long start = SystemClock.elapsedRealtime();
+            Cursor cursor = profiledManager.readAllRecords();
+            cursor.getCount(); // fills the cursor window
+            cursor.close();
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            total += elapsed;
+            max = Math.max(max, elapsed);
+        }
+
+        uploading.set(false);
+        uploadThread.join();
+        profiledManager.close();
+
+        assertTrue("Upload simulation did not run", uploadBatches.get() > 0);
+        return new long[] {total / queryCount, max};
+    }
+
+    private void assertRecordCount(int expected) {
+        Cursor cursor = manager.readAllRecords();
+        assertEquals("Unexpected number of records in database", expected, cursor.getCount());
+        cursor.close();
+    }
+
+    private static long perSecond(int count, long elapsedMillis) {
+        return count * 1000L / Math.max(elapsedMillis, 1);
+    }
+}
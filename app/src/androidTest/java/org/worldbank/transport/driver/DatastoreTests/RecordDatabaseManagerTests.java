@@ -1,16 +1,27 @@
 package org.worldbank.transport.driver.DatastoreTests;
 
 import android.database.Cursor;
+import android.location.Location;
 import android.test.AndroidTestCase;
 import android.test.mock.MockContext;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import org.worldbank.transport.driver.TestModels.TestPerson;
+import org.worldbank.transport.driver.datastore.BinaryRecordCodec;
 import org.worldbank.transport.driver.datastore.DriverRecordContract;
+import org.worldbank.transport.driver.datastore.DriverSchemaSerializer;
+import org.worldbank.transport.driver.datastore.MediaUploadState;
+import org.worldbank.transport.driver.datastore.RecordCodec;
 import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.datastore.RecordListItem;
+import org.worldbank.transport.driver.datastore.StoredRecord;
 import org.worldbank.transport.driver.staticmodels.DriverConstantFields;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 /**
  * Test the database manager in isolation.
@@ -42,6 +53,13 @@ public class RecordDatabaseManagerTests extends AndroidTestCase {
         assertEquals("Unexpected ID for added record", 1, id);
     }
 
+    @SmallTest
+    public void testGetRecordSchemaVersion() {
+        long id = manager.addRecord("someschema", "somedata", someConstants);
+        assertEquals("Unexpected schema for record", "someschema", manager.getRecordSchemaVersion(id));
+        assertNull("Should have no schema for missing record", manager.getRecordSchemaVersion(id + 1));
+    }
+
     @SmallTest
     public void testGetRecords() {
         long idThingOne = manager.addRecord("someschema", "someone", someConstants);
@@ -65,7 +83,7 @@ public class RecordDatabaseManagerTests extends AndroidTestCase {
 
     @MediumTest
     public void testGetAllRecords() {
-        manager.addRecord("schema", "I have data", someConstants);
+        long firstId = manager.addRecord("schema", "I have data", someConstants);
 
         // wait before adding second record, so their timestamps will differ
         try {
@@ -74,19 +92,241 @@ public class RecordDatabaseManagerTests extends AndroidTestCase {
             e.printStackTrace();
         }
 
-        manager.addRecord("schema", "me too", someConstants);
+        long secondId = manager.addRecord("schema", "me too", someConstants);
 
         Cursor cursor = manager.readAllRecords();
 
         assertEquals("Unexpected number of records found", 2, cursor.getCount());
 
+        // list does not read record data
+        assertEquals("Record data should not be read for list", -1,
+                cursor.getColumnIndex(DriverRecordContract.RecordEntry.COLUMN_DATA));
+
         cursor.moveToFirst();
-        int idx = cursor.getColumnIndex(DriverRecordContract.RecordEntry.COLUMN_DATA);
-        String foundData = cursor.getString(idx);
+        int idx = cursor.getColumnIndex(DriverRecordContract.RecordEntry._ID);
 
         // should have second record first, if results are sorted by date descending
-        assertEquals("Unexpected record data found as first record in set", "me too", foundData);
+        assertEquals("Unexpected record found as first record in set", secondId, cursor.getLong(idx));
+        cursor.moveToNext();
+        assertEquals("Unexpected record found as second record in set", firstId, cursor.getLong(idx));
+
+        cursor.close();
+    }
+
+    @SmallTest
+    public void testReadRecordListPages() {
+        // added in the same second, so the pages must be split on ID where entered_at ties
+        ArrayList<StoredRecord> newRecords = new ArrayList<>(7);
+        for (int i = 0; i < 7; i++) {
+            newRecords.add(new StoredRecord("someschema", "record" + i, someConstants));
+        }
+        long[] ids = manager.addRecords(newRecords);
+        assertNotNull("Batch insert failed", ids);
+        assertEquals("Unexpected record count", 7, manager.countRecords());
+
+        ArrayList<Long> listed = new ArrayList<>();
+        RecordListItem after = null;
+        List<RecordListItem> page;
+        int pages = 0;
+        do {
+            page = manager.readRecordListPage(after, 3);
+            for (RecordListItem item : page) {
+                listed.add(item.recordId);
+                assertNotNull("Missing entered at date for list", item.enteredAt);
+            }
+            if (!page.isEmpty()) {
+                after = page.get(page.size() - 1);
+            }
+            pages++;
+        } while (page.size() == 3);
+
+        assertEquals("Unexpected number of pages", 3, pages);
+        assertEquals("Unexpected number of records listed", 7, listed.size());
+
+        // newest first; with equal entered_at, highest ID first
+        for (int i = 0; i < 7; i++) {
+            assertEquals("Records listed out of order", ids[6 - i], (long) listed.get(i));
+        }
+    }
+
+    @SmallTest
+    public void testBatchRecordOperations() {
+        ArrayList<StoredRecord> newRecords = new ArrayList<>(2);
+        newRecords.add(new StoredRecord("someschema", "someone", someConstants));
+        newRecords.add(new StoredRecord("someschema", "sometwo", someConstants));
+
+        long[] ids = manager.addRecords(newRecords);
+        assertNotNull("Batch insert failed", ids);
+        assertEquals("Unexpected number of IDs for added records", 2, ids.length);
+        assertEquals("Did not get expected data for record", "sometwo", manager.getSerializedRecordWithId(ids[1]));
+
+        ArrayList<StoredRecord> updatedRecords = new ArrayList<>(1);
+        updatedRecords.add(new StoredRecord(ids[0], "something completely different", someConstants));
+        assertEquals("Unexpected number of updated records", 1, manager.updateRecords(updatedRecords));
+        assertEquals("Unexpected result for updated record", "something completely different",
+                manager.getSerializedRecordWithId(ids[0]));
+
+        assertEquals("Unexpected number of deleted records", 2, manager.deleteRecords(ids));
+        assertNull("Found record that should have been deleted", manager.getSerializedRecordWithId(ids[0]));
+    }
+
+    @SmallTest
+    public void testBinaryCodecRecord() throws IOException {
+        TestPerson person = new TestPerson();
+        person.Name = "Big Bird";
+        person.Hospital = "Sesame Street";
+
+        String json = DriverSchemaSerializer.serializeRecordForStorage(person, TestPerson.class);
+        byte[] encoded = new BinaryRecordCodec(true).encode(person, TestPerson.class);
+
+        long id = manager.addRecord("someschema", encoded, RecordCodec.BINARY, someConstants);
+        assertTrue("Failed to add binary record", id > -1);
+        assertEquals("Binary record should read back as JSON", json, manager.getSerializedRecordWithId(id));
+
+        // JSON records are still stored as text alongside
+        long jsonId = manager.addRecord("someschema", json.getBytes("UTF-8"), RecordCodec.JSON, someConstants);
+        assertEquals("Did not get expected data for record", json, manager.getSerializedRecordWithId(jsonId));
+
+        person.Name = "Oscar";
+        encoded = new BinaryRecordCodec(false).encode(person, TestPerson.class);
+        assertEquals("Unexpected number of updated records", 1,
+                manager.updateRecord(encoded, RecordCodec.BINARY, someConstants, id));
+        assertEquals("Updated binary record should read back as JSON",
+                DriverSchemaSerializer.serializeRecordForStorage(person, TestPerson.class),
+                manager.getSerializedRecordWithId(id));
+    }
+
+    @SmallTest
+    public void testMediaUploadState() {
+        assertNull("Found unexpected media upload", manager.getMediaUpload("abc123"));
+
+        MediaUploadState state = new MediaUploadState("abc123", 1000, "m1", 0);
+        assertTrue("Failed to save media upload", manager.saveMediaUpload(state));
+        assertTrue("Failed to save media upload progress", manager.saveMediaUpload(state.withOffset(400)));
+
+        MediaUploadState saved = manager.getMediaUpload("abc123");
+        assertNotNull("Media upload not saved", saved);
+        assertEquals("Unexpected media ID", "m1", saved.mediaId);
+        assertEquals("Upload progress not saved", 400, saved.offset);
+        assertFalse("Upload should not be complete", saved.isComplete());
+
+        // only completed uploads are forgotten
+        assertEquals("Incomplete media upload should be kept", 0, manager.pruneMediaUploads(-1));
+        manager.saveMediaUpload(saved.withOffset(1000));
+        assertTrue("Upload should be complete", manager.getMediaUpload("abc123").isComplete());
+        assertEquals("Recent media upload should be kept", 0, manager.pruneMediaUploads(30));
+        assertEquals("Completed media upload should be forgotten", 1, manager.pruneMediaUploads(-1));
+        assertNull("Media upload not forgotten", manager.getMediaUpload("abc123"));
+
+        manager.saveMediaUpload(state);
+        manager.deleteMediaUpload("abc123");
+        assertNull("Media upload not deleted", manager.getMediaUpload("abc123"));
+    }
+
+    @SmallTest
+    public void testUploadOutbox() {
+        DriverConstantFields located = new DriverConstantFields();
+        located.occurredFrom = new Date();
+        located.location = new Location("");
+        located.location.setLatitude(30);
+        located.location.setLongitude(30);
+        long waitingId = manager.addRecord("someschema", "waiting", located);
+        long freshId = manager.addRecord("someschema", "fresh", located);
+
+        long now = 1000000;
+        assertEquals("Records not yet tried should be due", 2, countDue(now));
+        assertEquals("No record should be waiting", -1, manager.getNextUploadAttemptTime());
+
+        assertTrue("Failed to note upload failure", manager.recordUploadFailed(waitingId, 2, now + 500, "Upload failed"));
+        assertEquals("Record waiting to retry should not be due", 1, countDue(now));
+        assertEquals("Unexpected next attempt time", now + 500, manager.getNextUploadAttemptTime());
+        assertEquals("Unexpected last error", "Upload failed", manager.getLastUploadError(waitingId));
+        assertNull("Record not tried should have no error", manager.getLastUploadError(freshId));
+
+        Cursor cursor = manager.readDueUploadableRecords(now + 500);
+        assertEquals("Record should be due once its wait has passed", 2, cursor.getCount());
+        int idColumn = cursor.getColumnIndex(DriverRecordContract.RecordEntry._ID);
+        int attemptsColumn = cursor.getColumnIndex(DriverRecordContract.UploadOutboxEntry.COLUMN_ATTEMPTS);
+        while (cursor.moveToNext()) {
+            int expected = cursor.getLong(idColumn) == waitingId ? 2 : 0;
+            assertEquals("Unexpected upload attempts", expected, cursor.getInt(attemptsColumn));
+        }
+        cursor.close();
+
+        // uploaded records leave the outbox with them
+        manager.deleteRecords(new long[] { waitingId });
+        assertEquals("Deleted record should leave the outbox", -1, manager.getNextUploadAttemptTime());
+        assertNull("Deleted record should leave the outbox", manager.getLastUploadError(waitingId));
+    }
+
+    @SmallTest
+    public void testUploadKeys() {
+        long id = manager.addRecord("someschema", "somedata", someConstants);
+        String key = readUploadKey(id);
+        assertNotNull("New record should have an upload key", key);
+        assertFalse("Records should not share upload keys",
+                key.equals(readUploadKey(manager.addRecord("someschema", "otherdata", someConstants))));
+
+        // a changed record is a new upload, so starts over
+        manager.recordUploadFailed(id, 3, 1000, "Upload failed");
+        manager.updateRecord("changed", someConstants, id);
+        assertFalse("Changed record should get a new upload key", key.equals(readUploadKey(id)));
+        assertNull("Changed record should leave the outbox", manager.getLastUploadError(id));
+    }
+
+    @SmallTest
+    public void testDeleteAcknowledgedRecords() {
+        long acknowledgedId = manager.addRecord("someschema", "acknowledged", someConstants);
+        long failedId = manager.addRecord("someschema", "failed", someConstants);
+        manager.recordUploadFailed(failedId, 1, 1000, "Upload failed");
+
+        assertEquals("Nothing should be acknowledged yet", 0, manager.deleteAcknowledgedRecords());
+        assertTrue("Failed to acknowledge upload", manager.acknowledgeUpload(acknowledgedId));
+        assertEquals("Acknowledged record should not wait to retry", 1000, manager.getNextUploadAttemptTime());
+
+        assertEquals("Acknowledged record should be deleted", 1, manager.deleteAcknowledgedRecords());
+        assertNull("Acknowledged record should be deleted", manager.getSerializedRecordWithId(acknowledgedId));
+        assertEquals("Failed record should be kept", "failed", manager.getSerializedRecordWithId(failedId));
+    }
+
+    @SmallTest
+    public void testAcknowledgedRecordNotEdited() {
+        long acknowledgedId = manager.addRecord("someschema", "acknowledged", someConstants);
+        long otherId = manager.addRecord("someschema", "other", someConstants);
+        String key = readUploadKey(acknowledgedId);
+        assertTrue("Failed to acknowledge upload", manager.acknowledgeUpload(acknowledgedId));
+
+        List<RecordListItem> page = manager.readRecordListPage(null, 10);
+        assertEquals("Acknowledged record should not be listed", 1, page.size());
+        assertEquals(otherId, page.get(0).recordId);
+
+        // changing it would send it again under a new key
+        assertEquals("Acknowledged record should not be updated", 0,
+                manager.updateRecord("changed", someConstants, acknowledgedId));
+        ArrayList<StoredRecord> records = new ArrayList<>();
+        records.add(new StoredRecord(acknowledgedId, "changed", someConstants));
+        assertEquals("Acknowledged record should not be updated", 0, manager.updateRecords(records));
+
+        assertEquals("Acknowledged record should keep its data", "acknowledged",
+                manager.getSerializedRecordWithId(acknowledgedId));
+        assertEquals("Acknowledged record should keep its upload key", key, readUploadKey(acknowledgedId));
+        assertEquals("Acknowledged record should still be deleted", 1, manager.deleteAcknowledgedRecords());
+    }
+
+    private String readUploadKey(long recordId) {
+        Cursor cursor = manager.getRecordByIdCursor(recordId);
+        try {
+            assertTrue("Record not found", cursor.moveToFirst());
+            return cursor.getString(cursor.getColumnIndex(DriverRecordContract.RecordEntry.COLUMN_UPLOAD_KEY));
+        } finally {
+            cursor.close();
+        }
+    }
 
+    private int countDue(long now) {
+        Cursor cursor = manager.readDueUploadableRecords(now);
+        int count = cursor.getCount();
         cursor.close();
+        return count;
     }
 }
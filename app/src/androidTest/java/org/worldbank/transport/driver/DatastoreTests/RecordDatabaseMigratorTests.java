@@ -0,0 +1,248 @@
+package org.worldbank.transport.driver.DatastoreTests;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.worldbank.transport.driver.datastore.DriverRecordContract;
+import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.datastore.RecordDatabaseMigration;
+import org.worldbank.transport.driver.datastore.RecordDatabaseMigrator;
+import org.worldbank.transport.driver.staticmodels.DriverConstantFields;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Test that migrations upgrade a database in place, keeping its records.
+ */
+public class RecordDatabaseMigratorTests extends AndroidTestCase {
+
+    private static final int RECORD_COUNT = 1200;
+    private static final int CHUNK_SIZE = 500;
+
+    private static final String TABLE = DriverRecordContract.RecordEntry.TABLE_NAME;
+
+    // records table as of database version 2
+    private static final String VERSION_TWO_TABLE_CREATE = "CREATE TABLE " + TABLE +
+            " (_id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+            "entered_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL, last_updated TIMESTAMP, " +
+            "schema_version TEXT NOT NULL, data TEXT NOT NULL, occurred_from TIMESTAMP NOT NULL, " +
+            "occurred_to TIMESTAMP NOT NULL, latitude DOUBLE, longitude DOUBLE, weather TEXT, light TEXT);";
+
+    SQLiteDatabase db;
+
+    /**
+     * Migration to version 3 that adds a column in the schema phase, then fills it in the data phase.
+     */
+    static class AddColumnMigration extends RecordDatabaseMigration {
+
+        AddColumnMigration() {
+            super(3);
+        }
+
+        @Override
+        public void upgradeSchema(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN migrated INTEGER");
+        }
+
+        @Override
+        public int countPendingRows(SQLiteDatabase db) {
+            return (int) DatabaseUtils.queryNumEntries(db, TABLE, "migrated IS NULL");
+        }
+
+        @Override
+        public int migrateChunk(SQLiteDatabase db, int chunkSize) {
+            SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE + " SET migrated = 1 WHERE _id IN " +
+                    "(SELECT _id FROM " + TABLE + " WHERE migrated IS NULL LIMIT " + chunkSize + ")");
+            try {
+                return statement.executeUpdateDelete();
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // in-memory database with the version 2 schema and some records
+        db = SQLiteDatabase.create(null);
+        db.execSQL(VERSION_TWO_TABLE_CREATE);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < RECORD_COUNT; i++) {
+                db.execSQL("INSERT INTO " + TABLE + " (schema_version, data, occurred_from, occurred_to) " +
+                        "VALUES ('someschema', 'record" + i + "', '2016-01-01 00:00:00', '2016-01-01 00:00:00')");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.setVersion(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testMigrationKeepsRecords() {
+        List<RecordDatabaseMigration> migrations = new ArrayList<>();
+        migrations.add(new AddColumnMigration());
+        RecordDatabaseMigrator migrator = new RecordDatabaseMigrator(migrations, CHUNK_SIZE);
+
+        upgrade(migrator, 2, 3);
+        assertEquals("Database version not upgraded", 3, db.getVersion());
+        assertEquals("Records lost in schema migration", RECORD_COUNT, DatabaseUtils.queryNumEntries(db, TABLE));
+        assertEquals("Unexpected number of records pending migration", RECORD_COUNT, migrator.countPendingRows(db));
+
+        final ArrayList<Integer> progress = new ArrayList<>();
+        int migrated = migrator.migrateData(db, new RecordDatabaseMigrator.MigrationProgressListener() {
+            @Override
+            public void migrationProgress(int migratedRows, int totalRows) {
+                assertEquals("Unexpected total rows reported", RECORD_COUNT, totalRows);
+                progress.add(migratedRows);
+            }
+        });
+
+        assertEquals("Unexpected number of records migrated", RECORD_COUNT, migrated);
+        assertEquals("Records not migrated in chunks", 3, progress.size());
+        assertEquals("Unexpected progress after last chunk", RECORD_COUNT, (int) progress.get(2));
+        assertEquals("Records left pending migration", 0, migrator.countPendingRows(db));
+        assertEquals("Records lost in data migration", RECORD_COUNT, DatabaseUtils.queryNumEntries(db, TABLE));
+        assertEquals("Record data changed in migration", "record0",
+                DatabaseUtils.stringForQuery(db, "SELECT data FROM " + TABLE + " ORDER BY _id LIMIT 1", null));
+
+        // nothing left to do on next start
+        assertEquals("Migrated records again", 0, migrator.migrateData(db, null));
+    }
+
+    @MediumTest
+    public void testUpgradeFromVersionTwo() {
+        final String databaseName = "driverdb-migration";
+        getContext().deleteDatabase(databaseName);
+
+        // one record that has coordinates and one that does not
+        SQLiteDatabase oldDb = SQLiteDatabase.openOrCreateDatabase(getContext().getDatabasePath(databaseName), null);
+        oldDb.execSQL(VERSION_TWO_TABLE_CREATE);
+        oldDb.execSQL("INSERT INTO " + TABLE + " (schema_version, data, occurred_from, occurred_to, latitude, longitude) " +
+                "VALUES ('someschema', 'located', '2016-01-01 00:00:00', '2016-01-01 00:00:00', 14.5, 121.0)");
+        oldDb.execSQL("INSERT INTO " + TABLE + " (schema_version, data, occurred_from, occurred_to) " +
+                "VALUES ('someschema', 'unlocated', '2016-01-01 00:00:00', '2016-01-01 00:00:00')");
+        oldDb.setVersion(2);
+        oldDb.close();
+
+        RecordDatabaseManager manager = new RecordDatabaseManager(getContext(), databaseName);
+        try {
+            Cursor cursor = manager.readAllRecords();
+            assertEquals("Records lost in upgrade", 2, cursor.getCount());
+            cursor.close();
+
+            // data is readable before it is moved to the payload table
+            assertTrue("Expected records pending migration", manager.hasPendingMigrations());
+            assertEquals("Unexpected data before migration", "located", manager.getSerializedRecordWithId(1));
+
+            // each of the two records is migrated once for uploadable, once for the payload table,
+            // and once for its upload key
+            assertEquals("Unexpected number of records migrated", 6, manager.migratePendingData(null));
+            assertFalse("Records left pending migration", manager.hasPendingMigrations());
+            assertEquals("Unexpected data after migration", "located", manager.getSerializedRecordWithId(1));
+            assertEquals("Unexpected data after migration", "unlocated", manager.getSerializedRecordWithId(2));
+
+            // new records are saved to the payload table, with the legacy column blank
+            long newId = manager.addRecord("someschema", "newdata", someConstants());
+            assertEquals("Unexpected data for new record", "newdata", manager.getSerializedRecordWithId(newId));
+            assertEquals("Record saved, but not readable after update", 1,
+                    manager.updateRecord("changed", someConstants(), newId));
+            assertEquals("Unexpected data for updated record", "changed", manager.getSerializedRecordWithId(newId));
+            assertTrue("Failed to delete record", manager.deleteRecord(newId));
+
+            SQLiteDatabase checkDb = SQLiteDatabase.openDatabase(getContext().getDatabasePath(databaseName).getPath(),
+                    null, SQLiteDatabase.OPEN_READONLY);
+            assertEquals("Legacy data column not blanked", 0,
+                    DatabaseUtils.queryNumEntries(checkDb, TABLE, "data <> ''"));
+            assertEquals("Payload not deleted with record", 2,
+                    DatabaseUtils.queryNumEntries(checkDb, DriverRecordContract.RecordPayloadEntry.TABLE_NAME));
+            checkDb.close();
+
+            assertEquals("Record without coordinates should not be uploadable", 1, manager.countUnuploadableRecords());
+            cursor = manager.readUploadableRecords();
+            assertTrue("Expected an uploadable record", cursor.moveToFirst());
+            assertEquals("Wrong record uploadable", "located",
+                    cursor.getString(cursor.getColumnIndex(DriverRecordContract.RecordEntry.COLUMN_DATA)));
+            assertFalse("Expected only one uploadable record", cursor.moveToNext());
+            cursor.close();
+        } finally {
+            manager.close();
+            getContext().deleteDatabase(databaseName);
+        }
+    }
+
+    @SmallTest
+    public void testSkipsAppliedMigrations() {
+        List<RecordDatabaseMigration> migrations = new ArrayList<>();
+        migrations.add(new AddColumnMigration());
+        RecordDatabaseMigrator migrator = new RecordDatabaseMigrator(migrations, CHUNK_SIZE);
+
+        // would fail adding a duplicate column if run
+        db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN migrated INTEGER");
+        upgrade(migrator, 3, 3);
+        assertEquals("Records lost", RECORD_COUNT, DatabaseUtils.queryNumEntries(db, TABLE));
+    }
+
+    @SmallTest
+    public void testFailedMigrationRollsBack() {
+        List<RecordDatabaseMigration> migrations = new ArrayList<>();
+        migrations.add(new AddColumnMigration());
+        migrations.add(new RecordDatabaseMigration(4) {
+            @Override
+            public void upgradeSchema(SQLiteDatabase db) {
+                db.execSQL("ALTER TABLE no_such_table ADD COLUMN broken INTEGER");
+            }
+        });
+        RecordDatabaseMigrator migrator = new RecordDatabaseMigrator(migrations, CHUNK_SIZE);
+
+        try {
+            upgrade(migrator, 2, 4);
+            fail("Expected failed migration to throw");
+        } catch (SQLiteException e) {
+            // expected
+        }
+
+        assertEquals("Database version changed by failed upgrade", 2, db.getVersion());
+        assertEquals("Records lost in failed upgrade", RECORD_COUNT, DatabaseUtils.queryNumEntries(db, TABLE));
+        Cursor columns = db.rawQuery("SELECT * FROM " + TABLE + " LIMIT 1", null);
+        assertEquals("First migration step not rolled back", -1, columns.getColumnIndex("migrated"));
+        columns.close();
+    }
+
+    private static DriverConstantFields someConstants() {
+        DriverConstantFields constants = new DriverConstantFields();
+        constants.occurredFrom = new Date();
+        return constants;
+    }
+
+    /**
+     * Upgrade the database the way SQLiteOpenHelper does, in a single transaction around onUpgrade.
+     */
+    private void upgrade(RecordDatabaseMigrator migrator, int oldVersion, int newVersion) {
+        db.beginTransaction();
+        try {
+            migrator.upgradeSchema(db, oldVersion, newVersion);
+            db.setVersion(newVersion);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.worldbank.transport.driver.DatastoreTests;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.location.Location;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.datastore.RecordListItem;
+import org.worldbank.transport.driver.datastore.RecordStorageProfile;
+import org.worldbank.transport.driver.staticmodels.DriverConstantFields;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Run EXPLAIN QUERY PLAN on every query the database manager issues, and fail if any of them
+ * reads the whole records table or sorts its results in a temporary table.
+ */
+public class RecordQueryPlanTests extends AndroidTestCase {
+
+    private static final String QUERY_PLAN_DATABASE_NAME = "driverdb-queryplan";
+
+    /**
+     * Cursor factory that records the SQL of each query made through it.
+     */
+    static class RecordingCursorFactory implements SQLiteDatabase.CursorFactory {
+
+        final List<String> queries = new ArrayList<>();
+
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+            // SQLiteQuery.toString returns "SQLiteQuery: " followed by the SQL
+            String description = query.toString();
+            synchronized (queries) {
+                queries.add(description.substring(description.indexOf(':') + 1).trim());
+            }
+            return new SQLiteCursor(masterQuery, editTable, query);
+        }
+    }
+
+    RecordDatabaseManager manager;
+    RecordingCursorFactory cursorFactory;
+    DriverConstantFields someConstants;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(QUERY_PLAN_DATABASE_NAME);
+        cursorFactory = new RecordingCursorFactory();
+        manager = new RecordDatabaseManager(getContext(), QUERY_PLAN_DATABASE_NAME,
+                RecordStorageProfile.DEFAULT, cursorFactory);
+
+        someConstants = new DriverConstantFields();
+        someConstants.occurredFrom = new Date();
+        someConstants.location = new Location("");
+        someConstants.location.setLatitude(14.5);
+        someConstants.location.setLongitude(121.0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        manager.close();
+        getContext().deleteDatabase(QUERY_PLAN_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testQueriesUseIndexes() {
+        long id = manager.addRecord("someschema", "somedata", someConstants);
+
+        // record without coordinates
+        DriverConstantFields noLocation = new DriverConstantFields();
+        noLocation.occurredFrom = new Date();
+        manager.addRecord("someschema", "otherdata", noLocation);
+        assertEquals("Record without coordinates should not be uploadable", 1, manager.countUnuploadableRecords());
+
+        // make each query the manager offers
+        manager.readAllRecords().close();
+        manager.readUploadableRecords().close();
+        manager.getRecordByIdCursor(id).close();
+        manager.getSerializedRecordWithId(id);
+        manager.getRecordById(id);
+        manager.getRecordSchemaVersion(id);
+        manager.readDueUploadableRecords(System.currentTimeMillis()).close();
+
+        // upload outbox and media uploads
+        manager.recordUploadFailed(id, 1, System.currentTimeMillis(), "failed");
+        manager.getNextUploadAttemptTime();
+        manager.getLastUploadError(id);
+        manager.getMediaUpload("0123456789abcdef");
+        manager.deleteAcknowledgedRecords();
+        List<RecordListItem> page = manager.readRecordListPage(null, 1);
+        manager.readRecordListPage(page.get(0), 1);
+
+        List<String> queries;
+        synchronized (cursorFactory.queries) {
+            queries = new ArrayList<>(cursorFactory.queries);
+        }
+        assertTrue("Expected to capture manager queries", queries.size() >= 12);
+
+        // explain on a separate connection, so the explain queries are not recorded
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(getContext().getDatabasePath(QUERY_PLAN_DATABASE_NAME).getPath(),
+                null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            for (String query : queries) {
+                assertQueryUsesIndex(db, query);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Check the query plan for a full table scan or a sort in a temporary table.
+     * Unbound parameters are treated as null, which does not change the plan.
+     *
+     * @param db Database to explain the query on
+     * @param query SQL of the query, with parameters
+     */
+    private void assertQueryUsesIndex(SQLiteDatabase db, String query) {
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+        try {
+            int detailColumn = plan.getColumnIndexOrThrow("detail");
+            StringBuilder planDescription = new StringBuilder();
+            while (plan.moveToNext()) {
+                planDescription.append(plan.getString(detailColumn)).append("; ");
+            }
+
+            String details = planDescription.toString();
+            // newer SQLite versions leave out the TABLE keyword
+            boolean fullScan = details.matches("(?s).*\\bSCAN (TABLE )?\\w+( AS \\w+)?;.*");
+            assertFalse("Query does a full table scan: " + query + "\nPlan: " + details, fullScan);
+            assertFalse("Query sorts in a temporary table: " + query + "\nPlan: " + details,
+                    details.contains("USE TEMP B-TREE"));
+        } finally {
+            plan.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.worldbank.transport.driver.DatastoreTests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+
+import org.jsonschema2pojo.media.SerializableMedia;
+import org.worldbank.transport.driver.datastore.RecordUploadWriter;
+import org.worldbank.transport.driver.staticmodels.DriverSchemaUpload;
+import org.worldbank.transport.driver.staticmodels.DriverUploadGeom;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test streaming stored records into upload requests.
+ */
+public class RecordUploadWriterTests extends AndroidTestCase {
+
+    public static class TestSection {
+        @SerializedName("Photo")
+        public SerializableMedia photo;
+
+        @SerializedName("Description")
+        public String description;
+    }
+
+    public static class TestRecord {
+        @SerializedName("Crash")
+        public TestSection crash;
+
+        @SerializedName("Photos")
+        public ArrayList<TestSection> photos;
+    }
+
+    File mediaFile;
+    byte[] mediaBytes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // larger than one read chunk, and not a multiple of three bytes
+        mediaBytes = new byte[10000];
+        new Random(1).nextBytes(mediaBytes);
+
+        mediaFile = new File(getContext().getCacheDir(), "upload_writer_test.jpg");
+        FileOutputStream outputStream = new FileOutputStream(mediaFile);
+        outputStream.write(mediaBytes);
+        outputStream.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mediaFile.delete();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testWriteRecord() throws IOException {
+        String path = mediaFile.getAbsolutePath();
+        String data = "{\"Crash\":{\"Photo\":\"" + path + "\",\"Description\":\"a <b> & c\",\"Count\":1.50}," +
+                "\"Photos\":[{\"Photo\":\"" + path + "\"},{\"Photo\":\"/no/such/file.jpg\"}]}";
+
+        DriverSchemaUpload upload = new DriverSchemaUpload();
+        upload.schemaVersion = "1111";
+        upload.geom = new DriverUploadGeom(30, 40);
+        upload.occurredFrom = "2016-02-05T12:00:00.000Z";
+        upload.createdAt = "2016-02-05 12:00:00";
+
+        StringWriter out = new StringWriter();
+        new RecordUploadWriter(TestRecord.class).writeRecord(out, data, upload);
+
+        JsonObject request = new JsonParser().parse(out.toString()).getAsJsonObject();
+        assertEquals("1111", request.get("schema").getAsString());
+        assertFalse("Null constant fields should be left out", request.has("weather"));
+
+        JsonArray coordinates = request.getAsJsonObject("geom").getAsJsonArray("coordinates");
+        assertEquals(40, coordinates.get(0).getAsDouble(), 0.0001);
+        assertEquals(30, coordinates.get(1).getAsDouble(), 0.0001);
+
+        JsonObject crash = request.getAsJsonObject("data").getAsJsonObject("Crash");
+        assertEquals("a <b> & c", crash.get("Description").getAsString());
+        assertEquals("Unknown field should be copied as stored", "1.50", crash.get("Count").getAsString());
+        assertMedia(crash.get("Photo").getAsString());
+
+        JsonArray photos = request.getAsJsonObject("data").getAsJsonArray("Photos");
+        assertMedia(photos.get(0).getAsJsonObject().get("Photo").getAsString());
+        assertFalse("Missing media should be left out", photos.get(1).getAsJsonObject().has("Photo"));
+    }
+
+    @SmallTest
+    public void testWriteMediaReferences() throws IOException {
+        String path = mediaFile.getAbsolutePath();
+        String data = "{\"Crash\":{\"Photo\":\"" + path + "\",\"Description\":\"" + path + "\"}," +
+                "\"Photos\":[{\"Photo\":\"" + path + "\"},{\"Photo\":\"/no/such/file.jpg\"}]}";
+        RecordUploadWriter uploadWriter = new RecordUploadWriter(TestRecord.class);
+
+        List<String> paths = uploadWriter.findMediaPaths(new JsonReader(new StringReader(data)));
+        assertEquals("Each readable media file should be found once", Collections.singletonList(path), paths);
+
+        DriverSchemaUpload upload = new DriverSchemaUpload();
+        upload.schemaVersion = "1111";
+        StringWriter out = new StringWriter();
+        uploadWriter.writeRecord(out, new JsonReader(new StringReader(data)), upload,
+                Collections.singletonMap(path, "media:m1"));
+
+        JsonObject record = new JsonParser().parse(out.toString()).getAsJsonObject().getAsJsonObject("data");
+        JsonObject crash = record.getAsJsonObject("Crash");
+        assertEquals("Uploaded media should be written as reference", "media:m1", crash.get("Photo").getAsString());
+        assertEquals("Only media fields should be replaced", path, crash.get("Description").getAsString());
+        assertEquals("Uploaded media should be written as reference", "media:m1",
+                record.getAsJsonArray("Photos").get(0).getAsJsonObject().get("Photo").getAsString());
+    }
+
+    private void assertMedia(String value) {
+        String prefix = "data:image/jpeg;base64,";
+        assertTrue("Media should be written as data URI", value.startsWith(prefix));
+        byte[] decoded = Base64.decode(value.substring(prefix.length()), Base64.DEFAULT);
+        assertTrue("Media should match file contents", Arrays.equals(mediaBytes, decoded));
+    }
+}
@@ -13,9 +13,30 @@ import java.net.URL;
 public class MockPostRecordsUrlBuilder implements PostRecordsTask.UploadRecordUrl {
 
     private MockWebServer server;
+    private boolean hasBatchEndpoint;
+    private boolean hasMediaEndpoint;
 
     public MockPostRecordsUrlBuilder(MockWebServer server) {
+        this(server, false);
+    }
+
+    /**
+     * @param hasBatchEndpoint If set, return a batch endpoint, so the task checks whether the
+     *                         server supports it; otherwise, upload records one at a time
+     */
+    public MockPostRecordsUrlBuilder(MockWebServer server, boolean hasBatchEndpoint) {
+        this(server, hasBatchEndpoint, false);
+    }
+
+    /**
+     * @param hasBatchEndpoint If set, return a batch endpoint
+     * @param hasMediaEndpoint If set, return a media endpoint, so the task checks whether the
+     *                         server supports it; otherwise, send media inline in records
+     */
+    public MockPostRecordsUrlBuilder(MockWebServer server, boolean hasBatchEndpoint, boolean hasMediaEndpoint) {
         this.server = server;
+        this.hasBatchEndpoint = hasBatchEndpoint;
+        this.hasMediaEndpoint = hasMediaEndpoint;
     }
 
     @Override
@@ -23,4 +44,20 @@ public class MockPostRecordsUrlBuilder implements PostRecordsTask.UploadRecordUr
         HttpUrl httpUrl = server.url("/mockrecords");
         return httpUrl.url();
     }
+
+    @Override
+    public URL batchRecordUrl(String serverUrl) {
+        if (!hasBatchEndpoint) {
+            return null;
+        }
+        return server.url("/mockrecords/batch").url();
+    }
+
+    @Override
+    public URL mediaUrl(String serverUrl) {
+        if (!hasMediaEndpoint) {
+            return null;
+        }
+        return server.url("/mockmedia/").url();
+    }
 }
@@ -0,0 +1,143 @@
+package org.worldbank.transport.driver.NetworkTests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.squareup.okhttp.internal.SslContextBuilder;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.worldbank.transport.driver.network.DriverHttpClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Check that connections made through the client are kept alive and reused.
+ */
+public class DriverHttpClientTests extends AndroidTestCase {
+
+    private static final int REQUEST_COUNT = 5;
+
+    // connections are pooled by hostname verifier too, so all must use the same one
+    private static final HostnameVerifier TEST_HOSTNAME_VERIFIER = new HostnameVerifier() {
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            return true;
+        }
+    };
+
+    MockWebServer server;
+    DriverHttpClient client;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        SSLContext sslContext = SslContextBuilder.localhost();
+        server = new MockWebServer();
+        server.useHttps(sslContext.getSocketFactory(), false);
+        client = new DriverHttpClient(sslContext.getSocketFactory());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        server.shutdown();
+        server = null;
+        client = null;
+    }
+
+    @MediumTest
+    public void testReleasedConnectionsReused() throws IOException, InterruptedException {
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            server.enqueue(new MockResponse().setResponseCode(201).setBody("{\"id\": " + i + "}"));
+        }
+        server.start();
+
+        DriverHttpClient.Session session = client.startSession();
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            HttpURLConnection urlConnection = post(server.url("/records").url());
+            assertEquals("Unexpected response code", 201, urlConnection.getResponseCode());
+            client.release(urlConnection);
+        }
+
+        assertEquals("Should have counted each request", REQUEST_COUNT, session.getRequestCount());
+        assertEquals("Should have made one TLS handshake", 1, session.getHandshakeCount());
+        assertRequestsShareConnection();
+    }
+
+    @MediumTest
+    public void testConnectionReusedAfterErrorResponse() throws IOException, InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(400).setBody("{\"detail\": \"bad request\"}"));
+        server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"results\": []}"));
+        server.start();
+
+        DriverHttpClient.Session session = client.startSession();
+
+        HttpURLConnection urlConnection = post(server.url("/records").url());
+        assertEquals("Unexpected response code", 400, urlConnection.getResponseCode());
+        client.release(urlConnection);
+
+        urlConnection = open(server.url("/schema").url());
+        assertEquals("Should have read response body", "{\"results\": []}", client.readResponse(urlConnection));
+
+        assertEquals("Should have made one TLS handshake", 1, session.getHandshakeCount());
+
+        server.takeRequest();
+        assertEquals("Second request should have reused the connection", 1, server.takeRequest().getSequenceNumber());
+    }
+
+    @MediumTest
+    public void testAbortedConnectionNotReused() throws IOException, InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(200).setBody("{}"));
+        server.enqueue(new MockResponse().setResponseCode(200).setBody("{}"));
+        server.start();
+
+        DriverHttpClient.Session session = client.startSession();
+
+        HttpURLConnection urlConnection = open(server.url("/schema").url());
+        assertEquals("Unexpected response code", 200, urlConnection.getResponseCode());
+        client.abort(urlConnection);
+
+        urlConnection = open(server.url("/schema").url());
+        client.readResponse(urlConnection);
+
+        assertEquals("Should have made a handshake for each connection", 2, session.getHandshakeCount());
+    }
+
+    private HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection urlConnection = client.openConnection(url);
+        ((HttpsURLConnection) urlConnection).setHostnameVerifier(TEST_HOSTNAME_VERIFIER);
+        return urlConnection;
+    }
+
+    private HttpURLConnection post(URL url) throws IOException {
+        HttpURLConnection urlConnection = open(url);
+        urlConnection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+        urlConnection.setDoOutput(true);
+        urlConnection.setChunkedStreamingMode(0);
+        OutputStream out = urlConnection.getOutputStream();
+        out.write("{\"foos\": 1}".getBytes("UTF-8"));
+        out.close();
+        return urlConnection;
+    }
+
+    /**
+     * Check that each request to the server was sent on the same connection as the one before.
+     */
+    private void assertRequestsShareConnection() throws InterruptedException {
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            RecordedRequest request = server.takeRequest();
+            assertEquals("Request should have reused the connection", i, request.getSequenceNumber());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.worldbank.transport.driver.NetworkTests;
+
+import android.test.AndroidTestCase;
+import android.test.mock.MockContext;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import org.worldbank.transport.driver.datastore.MediaUploadState;
+import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.network.DriverHttpClient;
+import org.worldbank.transport.driver.uploads.MediaUploader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test sending media files to the server in resumable chunks.
+ */
+public class MediaUploaderTests extends AndroidTestCase {
+
+    // not a whole number of chunks
+    private static final int MEDIA_SIZE = MediaUploader.CHUNK_SIZE * 5 / 2;
+
+    /**
+     * Stands in for the media endpoint, for a single upload.
+     */
+    public static class MediaServerDispatcher extends Dispatcher {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int startRequests = 0;
+        int chunkRequests = 0;
+        long mediaSize = -1;
+
+        // drop the connection without answering this chunk request, counting from 1
+        int dropChunk = -1;
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            if (request.getMethod().equals("OPTIONS")) {
+                return new MockResponse().setResponseCode(200);
+            }
+
+            if (request.getMethod().equals("POST") && request.getPath().equals("/mockmedia/")) {
+                startRequests++;
+                JsonObject body = new JsonParser().parse(request.getBody().readUtf8()).getAsJsonObject();
+                mediaSize = body.get("size").getAsLong();
+                return new MockResponse().setResponseCode(201)
+                        .setBody("{\"id\":\"m1\",\"offset\":" + received.size() + "}");
+            }
+
+            if (request.getMethod().equals("PUT") && request.getPath().equals("/mockmedia/m1/")) {
+                chunkRequests++;
+                if (chunkRequests == dropChunk) {
+                    return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+                }
+
+                long offset = Long.parseLong(request.getHeader(MediaUploader.UPLOAD_OFFSET_HEADER));
+                if (offset != received.size()) {
+                    return new MockResponse().setResponseCode(409)
+                            .setHeader(MediaUploader.UPLOAD_OFFSET_HEADER, received.size());
+                }
+
+                byte[] chunk = request.getBody().readByteArray();
+                received.write(chunk, 0, chunk.length);
+                return new MockResponse().setResponseCode(received.size() >= mediaSize ? 201 : 204)
+                        .setHeader(MediaUploader.UPLOAD_OFFSET_HEADER, received.size());
+            }
+
+            return new MockResponse().setResponseCode(404);
+        }
+    }
+
+    MockWebServer server;
+    MediaServerDispatcher dispatcher;
+    RecordDatabaseManager manager;
+    MediaUploader uploader;
+    File mediaFile;
+    byte[] mediaBytes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        dispatcher = new MediaServerDispatcher();
+        server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+        server.start();
+
+        manager = new RecordDatabaseManager(new MockContext(), true);
+        URL mediaUrl = server.url("/mockmedia/").url();
+        uploader = new MediaUploader(mediaUrl, "foo", new DriverHttpClient(null), manager);
+
+        mediaBytes = new byte[MEDIA_SIZE];
+        new Random(1).nextBytes(mediaBytes);
+        mediaFile = writeMediaFile("media_uploader_test.jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        mediaFile.delete();
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testChunkedUpload() {
+        String reference = uploader.upload(mediaFile.getAbsolutePath());
+
+        assertEquals("Unexpected media reference", MediaUploader.MEDIA_REFERENCE_PREFIX + "m1", reference);
+        assertEquals("Upload should be started once", 1, dispatcher.startRequests);
+        assertEquals("File should be sent in chunks", 3, dispatcher.chunkRequests);
+        assertTrue("Server should have the whole file", Arrays.equals(mediaBytes, dispatcher.received.toByteArray()));
+    }
+
+    @MediumTest
+    public void testResumeAfterDroppedChunk() throws InterruptedException, NoSuchAlgorithmException {
+        dispatcher.dropChunk = 2;
+
+        assertNull("Upload should fail on dropped connection", uploader.upload(mediaFile.getAbsolutePath()));
+
+        // first chunk was confirmed before the connection dropped
+        MediaUploadState state = manager.getMediaUpload(hashMedia());
+        assertNotNull("Upload progress should be saved", state);
+        assertEquals("Confirmed offset should be saved", MediaUploader.CHUNK_SIZE, state.offset);
+
+        int requestsBefore = server.getRequestCount();
+        String reference = uploader.upload(mediaFile.getAbsolutePath());
+        assertEquals("Resumed upload should succeed", MediaUploader.MEDIA_REFERENCE_PREFIX + "m1", reference);
+        assertEquals("Resumed upload should not start over", 1, dispatcher.startRequests);
+
+        // skip the requests made before resuming
+        for (int i = 0; i < requestsBefore; i++) {
+            server.takeRequest();
+        }
+        RecordedRequest resumed = server.takeRequest();
+        assertEquals("Should resume at confirmed offset", String.valueOf(MediaUploader.CHUNK_SIZE),
+                resumed.getHeader(MediaUploader.UPLOAD_OFFSET_HEADER));
+        assertTrue("Server should have the whole file", Arrays.equals(mediaBytes, dispatcher.received.toByteArray()));
+    }
+
+    @MediumTest
+    public void testSameContentUploadedOnce() throws IOException {
+        File copy = writeMediaFile("media_uploader_test_copy.jpg");
+        try {
+            String reference = uploader.upload(mediaFile.getAbsolutePath());
+            int requests = server.getRequestCount();
+
+            assertEquals("Copy should refer to the uploaded file", reference, uploader.upload(copy.getAbsolutePath()));
+            assertEquals("Copy should not be sent again", requests, server.getRequestCount());
+        } finally {
+            copy.delete();
+        }
+    }
+
+    private File writeMediaFile(String name) throws IOException {
+        File file = new File(getContext().getCacheDir(), name);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(mediaBytes);
+        outputStream.close();
+        return file;
+    }
+
+    /**
+     * @return Hex SHA-256 of the media file content
+     */
+    private String hashMedia() throws NoSuchAlgorithmException {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(mediaBytes)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,190 @@
+package org.worldbank.transport.driver.NetworkTests;
+
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.google.gson.annotations.SerializedName;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.jsonschema2pojo.media.SerializableMedia;
+import org.worldbank.transport.driver.datastore.RecordUploadWriter;
+import org.worldbank.transport.driver.network.DriverHttpClient;
+import org.worldbank.transport.driver.network.RequestBodyStream;
+import org.worldbank.transport.driver.staticmodels.DriverSchemaUpload;
+import org.worldbank.transport.driver.staticmodels.DriverUploadGeom;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Compare the bytes sent and the CPU time taken to upload records at different compression levels,
+ * for records of text only, and records with photos.
+ */
+public class RequestCompressionBenchmarkTests extends AndroidTestCase {
+
+    private static final String LOG_LABEL = "CompressionBenchmark";
+
+    private static final int RECORD_COUNT = 20;
+
+    // sections per record
+    private static final int VEHICLE_COUNT = 20;
+    private static final int PHOTO_COUNT = 3;
+
+    private static final int[] COMPRESSION_LEVELS = {
+            Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, DriverHttpClient.DEFAULT_COMPRESSION_LEVEL,
+            Deflater.BEST_COMPRESSION
+    };
+
+    public static class TestSection {
+        @SerializedName("Photo")
+        public SerializableMedia photo;
+
+        @SerializedName("Description")
+        public String description;
+    }
+
+    public static class TestRecord {
+        @SerializedName("Vehicles")
+        public TestSection[] vehicles;
+    }
+
+    MockWebServer server;
+    DriverHttpClient client;
+    File photoFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        server = new MockWebServer();
+        server.start();
+
+        client = new DriverHttpClient(null);
+
+        // camera-like photo: already compressed, so its base64 text compresses little
+        Bitmap bitmap = Bitmap.createBitmap(640, 480, Bitmap.Config.ARGB_8888);
+        Random random = new Random(1);
+        for (int y = 0; y < bitmap.getHeight(); y++) {
+            for (int x = 0; x < bitmap.getWidth(); x++) {
+                bitmap.setPixel(x, y, 0xFF000000 | random.nextInt(0xFFFFFF));
+            }
+        }
+        photoFile = new File(getContext().getCacheDir(), "compression_benchmark.jpg");
+        FileOutputStream outputStream = new FileOutputStream(photoFile);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 85, outputStream);
+        outputStream.close();
+        bitmap.recycle();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        photoFile.delete();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testTextRecords() throws IOException, InterruptedException {
+        long uncompressed = 0;
+        for (int level : COMPRESSION_LEVELS) {
+            long sent = benchmark("text", buildRecord(null), level);
+            if (level == Deflater.NO_COMPRESSION) {
+                uncompressed = sent;
+            } else {
+                assertTrue("Text records should be sent compressed", sent < uncompressed);
+            }
+        }
+    }
+
+    @LargeTest
+    public void testPhotoRecords() throws IOException, InterruptedException {
+        for (int level : COMPRESSION_LEVELS) {
+            benchmark("photo", buildRecord(photoFile.getAbsolutePath()), level);
+        }
+    }
+
+    /**
+     * Upload records at a compression level, log the average bytes sent and CPU time taken per record.
+     *
+     * @return Bytes sent per record
+     */
+    private long benchmark(String name, String data, int level) throws IOException, InterruptedException {
+        client.setCompressionLevel(level);
+        RecordUploadWriter uploadWriter = new RecordUploadWriter(TestRecord.class);
+        URL url = server.url("/records").url();
+
+        long bytesWritten = 0;
+        long bytesSent = 0;
+        boolean compressed = false;
+        long cpuTime = 0;
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            server.enqueue(new MockResponse().setResponseCode(201));
+
+            long start = Debug.threadCpuTimeNanos();
+            HttpURLConnection urlConnection = client.openConnection(url);
+            urlConnection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            urlConnection.setDoOutput(true);
+            urlConnection.setChunkedStreamingMode(0);
+
+            RequestBodyStream body = client.openRequestBody(urlConnection);
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new BufferedOutputStream(body), "UTF-8"));
+            uploadWriter.writeRecord(writer, data, buildUpload());
+            writer.close();
+
+            assertEquals("Unexpected response code", 201, urlConnection.getResponseCode());
+            client.release(urlConnection);
+            cpuTime += Debug.threadCpuTimeNanos() - start;
+
+            RecordedRequest request = server.takeRequest();
+            assertEquals("Server should have received the bytes sent", body.getBytesSent(), request.getBodySize());
+
+            bytesWritten += body.getBytesWritten();
+            bytesSent += body.getBytesSent();
+            compressed = body.isCompressed();
+        }
+
+        Log.i(LOG_LABEL, name + " records at level " + level + (compressed ? " (compressed)" : " (not compressed)") +
+                ": " + bytesSent / RECORD_COUNT + " bytes sent for " + bytesWritten / RECORD_COUNT +
+                " bytes per record, " + cpuTime / RECORD_COUNT / 1000 + " us CPU per record");
+
+        return bytesSent / RECORD_COUNT;
+    }
+
+    private static String buildRecord(String photoPath) {
+        StringBuilder data = new StringBuilder("{\"Vehicles\":[");
+        for (int i = 0; i < VEHICLE_COUNT; i++) {
+            if (i > 0) {
+                data.append(',');
+            }
+            data.append("{\"Description\":\"Vehicle ").append(i).append(" travelling north on the main road\"");
+            // photo on the first few vehicles
+            if (photoPath != null && i < PHOTO_COUNT) {
+                data.append(",\"Photo\":\"").append(photoPath).append('"');
+            }
+            data.append('}');
+        }
+        return data.append("]}").toString();
+    }
+
+    private static DriverSchemaUpload buildUpload() {
+        DriverSchemaUpload upload = new DriverSchemaUpload();
+        upload.schemaVersion = "1111";
+        upload.geom = new DriverUploadGeom(30, 40);
+        upload.occurredFrom = "2016-02-05T12:00:00.000Z";
+        upload.createdAt = "2016-02-05 12:00:00";
+        return upload;
+    }
+}
@@ -0,0 +1,169 @@
+package org.worldbank.transport.driver.NetworkTests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.worldbank.transport.driver.datastore.RecordUploadWriter;
+import org.worldbank.transport.driver.network.DriverHttpClient;
+import org.worldbank.transport.driver.staticmodels.DriverSchemaUpload;
+import org.worldbank.transport.driver.staticmodels.DriverUploadGeom;
+import org.worldbank.transport.driver.uploads.RecordBatchUpload;
+import org.worldbank.transport.driver.uploads.RecordUpload;
+import org.worldbank.transport.driver.uploads.RecordUploadOptions;
+import org.worldbank.transport.driver.uploads.RecordUploadStatus;
+import org.worldbank.transport.driver.uploads.StoredRecordSource;
+
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Test that request bodies are only compressed when turned on, and that records turned away
+ * for a compressed body are sent again uncompressed.
+ */
+public class RequestCompressionTests extends AndroidTestCase {
+
+    private static final String RECORD_DATA;
+    static {
+        // long and repetitive enough to be sent compressed
+        StringBuilder data = new StringBuilder("{\"Vehicles\":[");
+        for (int i = 0; i < 40; i++) {
+            if (i > 0) {
+                data.append(',');
+            }
+            data.append("{\"Description\":\"Vehicle ").append(i).append(" travelling north on the main road\"}");
+        }
+        RECORD_DATA = data.append("]}").toString();
+    }
+
+    public static class TestSection {
+        @SerializedName("Description")
+        public String description;
+    }
+
+    public static class TestRecord {
+        @SerializedName("Vehicles")
+        public TestSection[] vehicles;
+    }
+
+    /**
+     * Stands in for a Django server, which cannot parse a gzip request body.
+     */
+    private static class NoGzipDispatcher extends Dispatcher {
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            if ("gzip".equals(request.getHeader("Content-Encoding"))) {
+                return new MockResponse().setResponseCode(400).setBody("{\"detail\":\"JSON parse error\"}");
+            }
+            return new MockResponse().setResponseCode(201);
+        }
+    }
+
+    /**
+     * Opens the test record again, counting how often.
+     */
+    private static class TestRecordSource implements StoredRecordSource {
+        final AtomicInteger reopened = new AtomicInteger(0);
+
+        @Override
+        public JsonReader reopen(long recordId) {
+            reopened.incrementAndGet();
+            return new JsonReader(new StringReader(RECORD_DATA));
+        }
+    }
+
+    MockWebServer server;
+    DriverHttpClient client;
+    RecordUploadWriter uploadWriter;
+    TestRecordSource recordSource;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new MockWebServer();
+        server.setDispatcher(new NoGzipDispatcher());
+        server.start();
+
+        client = new DriverHttpClient(null);
+        uploadWriter = new RecordUploadWriter(TestRecord.class);
+        recordSource = new TestRecordSource();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testCompressionOffByDefault() {
+        assertEquals("Request bodies should not be compressed unless turned on",
+                Deflater.NO_COMPRESSION, client.getCompressionLevel());
+    }
+
+    @MediumTest
+    public void testRecordSentAgainUncompressed() throws InterruptedException {
+        client.setCompressionLevel(DriverHttpClient.DEFAULT_COMPRESSION_LEVEL);
+
+        RecordUploadOptions options = new RecordUploadOptions(server.url("/records").url(), "token", client)
+                .setRecordSource(recordSource);
+        RecordUpload upload = new RecordUpload(options, 1, buildUpload(),
+                new JsonReader(new StringReader(RECORD_DATA)), uploadWriter, null);
+        assertEquals("Record should be uploaded uncompressed", RecordUploadStatus.UPLOADED, upload.upload()[0]);
+
+        assertEquals("Record should be reopened once", 1, recordSource.reopened.get());
+        assertEquals("Record should be sent twice", 2, server.getRequestCount());
+        assertEquals("gzip", server.takeRequest().getHeader("Content-Encoding"));
+        assertNull("Record should be sent again uncompressed", server.takeRequest().getHeader("Content-Encoding"));
+        assertEquals("Compression should be turned off", Deflater.NO_COMPRESSION, client.getCompressionLevel());
+    }
+
+    @MediumTest
+    public void testBatchSentAgainUncompressed() throws InterruptedException {
+        client.setCompressionLevel(DriverHttpClient.DEFAULT_COMPRESSION_LEVEL);
+
+        RecordUploadOptions options = new RecordUploadOptions(server.url("/records").url(), "token", client)
+                .setBatchUrl(server.url("/records/batch").url())
+                .setRecordSource(recordSource);
+        RecordBatchUpload batch = new RecordBatchUpload(options);
+        batch.add(1, buildUpload(), new JsonReader(new StringReader(RECORD_DATA)), null, uploadWriter);
+        batch.add(2, buildUpload(), new JsonReader(new StringReader(RECORD_DATA)), null, uploadWriter);
+        RecordUploadStatus[] statuses = batch.upload();
+        assertEquals(RecordUploadStatus.UPLOADED, statuses[0]);
+        assertEquals(RecordUploadStatus.UPLOADED, statuses[1]);
+
+        assertEquals("Each record of the batch should be reopened once", 2, recordSource.reopened.get());
+        assertEquals("Batch should be sent twice", 2, server.getRequestCount());
+        assertEquals("gzip", server.takeRequest().getHeader("Content-Encoding"));
+        assertNull("Batch should be sent again uncompressed", server.takeRequest().getHeader("Content-Encoding"));
+    }
+
+    @MediumTest
+    public void testRecordWithoutSourceFails() {
+        client.setCompressionLevel(DriverHttpClient.DEFAULT_COMPRESSION_LEVEL);
+
+        RecordUploadOptions options = new RecordUploadOptions(server.url("/records").url(), "token", client);
+        RecordUpload upload = new RecordUpload(options, 1, buildUpload(),
+                new JsonReader(new StringReader(RECORD_DATA)), uploadWriter, null);
+        assertEquals("Record should fail this time", RecordUploadStatus.FAILED, upload.upload()[0]);
+        assertEquals("Compression should be turned off for the next time",
+                Deflater.NO_COMPRESSION, client.getCompressionLevel());
+    }
+
+    private static DriverSchemaUpload buildUpload() {
+        DriverSchemaUpload upload = new DriverSchemaUpload();
+        upload.schemaVersion = "1111";
+        upload.geom = new DriverUploadGeom(30, 40);
+        upload.occurredFrom = "2016-02-05T12:00:00.000Z";
+        upload.createdAt = "2016-02-05 12:00:00";
+        return upload;
+    }
+}
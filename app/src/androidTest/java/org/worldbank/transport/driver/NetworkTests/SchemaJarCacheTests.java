@@ -0,0 +1,242 @@
+package org.worldbank.transport.driver.NetworkTests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import org.apache.commons.io.FileUtils;
+import org.worldbank.transport.driver.network.DriverHttpClient;
+import org.worldbank.transport.driver.schemas.SchemaJarCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import okio.Buffer;
+
+/**
+ * Test caching schema jars, revalidating them, and resuming interrupted downloads.
+ */
+public class SchemaJarCacheTests extends AndroidTestCase {
+
+    private static final int JAR_SIZE = 64 * 1024;
+
+    private static final String SCHEMA_A = "a0000000-0000-0000-0000-000000000000";
+    private static final String SCHEMA_B = "b0000000-0000-0000-0000-000000000000";
+    private static final String SCHEMA_C = "c0000000-0000-0000-0000-000000000000";
+
+    /**
+     * Stands in for the jar endpoint, with an ETag per jar, conditional requests and ranges.
+     */
+    public static class JarServerDispatcher extends Dispatcher {
+        final HashMap<String, byte[]> jars = new HashMap<>();
+        long bytesSent = 0;
+        int notModified = 0;
+
+        // send only the first half of the next full response, then drop the connection
+        boolean interruptNext = false;
+
+        static String etag(String path) {
+            return "\"" + path.hashCode() + "\"";
+        }
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            byte[] jar = jars.get(request.getPath());
+            if (jar == null) {
+                return new MockResponse().setResponseCode(404);
+            }
+            String etag = etag(request.getPath());
+
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                notModified++;
+                return new MockResponse().setResponseCode(304).setHeader("ETag", etag);
+            }
+
+            String range = request.getHeader("Range");
+            if (range != null && etag.equals(request.getHeader("If-Range"))) {
+                int first = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                byte[] rest = Arrays.copyOfRange(jar, first, jar.length);
+                bytesSent += rest.length;
+                return new MockResponse().setResponseCode(206).setHeader("ETag", etag)
+                        .setHeader("Content-Range", "bytes " + first + "-" + (jar.length - 1) + "/" + jar.length)
+                        .setBody(new Buffer().write(rest));
+            }
+
+            if (interruptNext) {
+                interruptNext = false;
+                byte[] half = Arrays.copyOf(jar, jar.length / 2);
+                bytesSent += half.length;
+                return new MockResponse().setResponseCode(200).setHeader("ETag", etag)
+                        .setBody(new Buffer().write(half))
+                        .setHeader("Content-Length", jar.length)
+                        .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END);
+            }
+
+            bytesSent += jar.length;
+            return new MockResponse().setResponseCode(200).setHeader("ETag", etag)
+                    .setBody(new Buffer().write(jar));
+        }
+    }
+
+    MockWebServer server;
+    JarServerDispatcher dispatcher;
+    DriverHttpClient httpClient;
+    File cacheDirectory;
+    SchemaJarCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        dispatcher = new JarServerDispatcher();
+        Random random = new Random(1);
+        for (String schema : new String[] {SCHEMA_A, SCHEMA_B, SCHEMA_C}) {
+            byte[] jar = new byte[JAR_SIZE];
+            random.nextBytes(jar);
+            dispatcher.jars.put("/jars/" + schema + "/", jar);
+        }
+
+        server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+        server.start();
+
+        httpClient = new DriverHttpClient(null);
+        cacheDirectory = new File(getContext().getCacheDir(), "schema-jar-cache-tests");
+        FileUtils.deleteDirectory(cacheDirectory);
+        cache = new SchemaJarCache(cacheDirectory, 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        FileUtils.deleteDirectory(cacheDirectory);
+        super.tearDown();
+    }
+
+    private URL jarUrl(String schema) {
+        return server.url("/jars/" + schema + "/").url();
+    }
+
+    private byte[] serverJar(String schema) {
+        return dispatcher.jars.get("/jars/" + schema + "/");
+    }
+
+    private SchemaJarCache.Download download(String schema) throws IOException {
+        return cache.download(httpClient, jarUrl(schema), "foo", schema);
+    }
+
+    @MediumTest
+    public void testRevalidateCachedJar() throws IOException, InterruptedException {
+        SchemaJarCache.Download first = download(SCHEMA_A);
+        assertEquals(HttpURLConnection.HTTP_OK, first.responseCode);
+        assertEquals("Should receive whole jar", JAR_SIZE, first.bytesReceived);
+        assertTrue("Jar should be cached as sent", Arrays.equals(serverJar(SCHEMA_A),
+                FileUtils.readFileToByteArray(first.jar)));
+
+        SchemaJarCache.Download second = download(SCHEMA_A);
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, second.responseCode);
+        assertEquals("Unchanged jar should not be sent again", 0, second.bytesReceived);
+        assertEquals("Should use cached jar", first.jar, second.jar);
+        assertEquals("Server should send jar once", JAR_SIZE, dispatcher.bytesSent);
+        assertEquals("Server should confirm cached jar", 1, dispatcher.notModified);
+
+        RecordedRequest firstRequest = server.takeRequest();
+        assertEquals("Token should be sent", "Token foo", firstRequest.getHeader("Authorization"));
+        assertNull("First request should not be conditional", firstRequest.getHeader("If-None-Match"));
+        assertEquals("Second request should revalidate", JarServerDispatcher.etag("/jars/" + SCHEMA_A + "/"),
+                server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    @MediumTest
+    public void testResumeInterruptedDownload() throws IOException, InterruptedException {
+        dispatcher.interruptNext = true;
+        try {
+            download(SCHEMA_A);
+            fail("Interrupted download should throw");
+        } catch (IOException e) {
+            // expected
+        }
+        assertNull("Partial jar should not be usable", cache.getJar(SCHEMA_A));
+
+        SchemaJarCache.Download resumed = download(SCHEMA_A);
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, resumed.responseCode);
+        assertEquals("Should only receive the rest of the jar", JAR_SIZE - JAR_SIZE / 2, resumed.bytesReceived);
+        assertTrue("Resumed jar should match", Arrays.equals(serverJar(SCHEMA_A),
+                FileUtils.readFileToByteArray(resumed.jar)));
+        assertEquals("No bytes should be sent twice", JAR_SIZE, dispatcher.bytesSent);
+
+        server.takeRequest();
+        RecordedRequest resumeRequest = server.takeRequest();
+        assertEquals("Should resume where download stopped", "bytes=" + (JAR_SIZE / 2) + "-",
+                resumeRequest.getHeader("Range"));
+        assertEquals("Identity encoding needed for ranges", "identity", resumeRequest.getHeader("Accept-Encoding"));
+    }
+
+    @MediumTest
+    public void testKeepsRecentSchemas() throws IOException, InterruptedException {
+        File jarA = download(SCHEMA_A).jar;
+        Thread.sleep(10);
+        download(SCHEMA_B);
+
+        // switching back needs no request
+        int requests = server.getRequestCount();
+        assertEquals("Previous schema should be cached", jarA, cache.getJar(SCHEMA_A));
+        assertEquals("Cache lookup should not make requests", requests, server.getRequestCount());
+
+        // most recently used are kept
+        Thread.sleep(10);
+        cache.markUsed(SCHEMA_A);
+        Thread.sleep(10);
+        download(SCHEMA_C);
+        assertNotNull("Recently used schema should be kept", cache.getJar(SCHEMA_A));
+        assertNotNull("Newest schema should be kept", cache.getJar(SCHEMA_C));
+        assertNull("Least recently used schema should be removed", cache.getJar(SCHEMA_B));
+        assertEquals("Jar of removed schema should be deleted", 2, countJars());
+    }
+
+    @MediumTest
+    public void testSameJarStoredOnce() throws IOException {
+        dispatcher.jars.put("/jars/" + SCHEMA_B + "/", serverJar(SCHEMA_A));
+
+        File jarA = download(SCHEMA_A).jar;
+        File jarB = download(SCHEMA_B).jar;
+        assertEquals("Same content should share a file", jarA, jarB);
+        assertEquals("Should store one jar", 1, countJars());
+
+        cache.remove(SCHEMA_A);
+        assertTrue("Jar still used by other schema should be kept", jarB.exists());
+        assertEquals(jarB, cache.getJar(SCHEMA_B));
+    }
+
+    @MediumTest
+    public void testMissingJarNotCached() throws IOException {
+        SchemaJarCache.Download download = cache.download(httpClient, server.url("/jars/missing/").url(),
+                "foo", SCHEMA_A);
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, download.responseCode);
+        assertNull("Should have no jar", download.jar);
+        assertNull("Should cache nothing", cache.getJar(SCHEMA_A));
+    }
+
+    private int countJars() {
+        int count = 0;
+        File[] files = cacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".jar")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -2,22 +2,51 @@ package org.worldbank.transport.driver.TaskTests;
 
 import android.database.Cursor;
 import android.location.Location;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.annotations.SerializedName;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
 
+import org.jsonschema2pojo.media.SerializableMedia;
 import org.mockito.Mockito;
 import org.worldbank.transport.driver.MockPostRecordsUrlBuilder;
 import org.worldbank.transport.driver.activities.RecordListActivity;
+import org.worldbank.transport.driver.datastore.DriverRecordContract;
 import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.metrics.UploadMetrics;
+import org.worldbank.transport.driver.metrics.UploadMetricsStore;
+import org.worldbank.transport.driver.network.DriverHttpClient;
+import org.worldbank.transport.driver.schemas.SchemaClassLoader;
+import org.worldbank.transport.driver.schemas.SchemaRegistry;
 import org.worldbank.transport.driver.staticmodels.DriverConstantFields;
 import org.worldbank.transport.driver.staticmodels.DriverUserAuth;
 import org.worldbank.transport.driver.staticmodels.DriverUserInfo;
 import org.worldbank.transport.driver.tasks.PostRecordsTask;
+import org.worldbank.transport.driver.uploads.FixedUploadPolicy;
+import org.worldbank.transport.driver.uploads.RecordBatchUpload;
+import org.worldbank.transport.driver.uploads.RecordUpload;
+import org.worldbank.transport.driver.uploads.RecordUploadEngine;
+import org.worldbank.transport.driver.uploads.UploadPlan;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Unit test uploading records.
@@ -30,6 +59,21 @@ public class PostRecordsTaskTests extends AndroidTestCase {
     MockWebServer server;
     PostRecordsTask postRecordsTask;
     RecordDatabaseManager testDbManager;
+    DriverUserInfo userInfo;
+
+    private static final int UPLOAD_RECORD_COUNT = 12;
+    private static final int REQUEST_LATENCY_MS = 300;
+    private static final String TEST_MODEL_PACKAGE = "test.models.";
+
+    public static class EarlySchema {
+        @SerializedName("Photo")
+        public SerializableMedia photo;
+    }
+
+    public static class LateSchema {
+        @SerializedName("Picture")
+        public SerializableMedia picture;
+    }
 
     @Override
     protected void setUp() throws Exception {
@@ -38,7 +82,7 @@ public class PostRecordsTaskTests extends AndroidTestCase {
         mockActivity = Mockito.mock(RecordListActivity.class);
         server = new MockWebServer();
 
-        DriverUserInfo userInfo = new DriverUserInfo();
+        userInfo = new DriverUserInfo();
         DriverUserAuth auth = new DriverUserAuth();
         auth.token = "11111111111111111";
         userInfo.setUserToken(auth);
@@ -46,7 +90,8 @@ public class PostRecordsTaskTests extends AndroidTestCase {
         testDbManager = new RecordDatabaseManager(getContext(), true);
 
         PostRecordsTask.UploadRecordUrl uploadRecordUrl = new MockPostRecordsUrlBuilder(server);
-        postRecordsTask = new PostRecordsTask(mockActivity, userInfo, uploadRecordUrl, testDbManager);
+        postRecordsTask = new PostRecordsTask(mockActivity, userInfo, uploadRecordUrl, testDbManager,
+                new PostRecordsTask.Options());
     }
 
     @Override
@@ -91,4 +136,430 @@ public class PostRecordsTaskTests extends AndroidTestCase {
         cursor.close();
     }
 
+    @LargeTest
+    public void testConcurrentUploadThroughput() throws IOException {
+        server.setDispatcher(new LatencyDispatcher(201));
+        server.start();
+
+        long sequentialTime = timeUpload(1);
+        assertEquals("Should have posted every record", UPLOAD_RECORD_COUNT, server.getRequestCount());
+
+        long concurrentTime = timeUpload(RecordUploadEngine.DEFAULT_WORKERS);
+        assertEquals("Should have posted every record", 2 * UPLOAD_RECORD_COUNT, server.getRequestCount());
+
+        server.shutdown();
+
+        Log.i("PostRecordsTaskTests", "Uploaded " + UPLOAD_RECORD_COUNT + " records with " +
+                REQUEST_LATENCY_MS + " ms latency in " + sequentialTime + " ms with one worker; " +
+                concurrentTime + " ms with " + RecordUploadEngine.DEFAULT_WORKERS);
+
+        assertTrue("Concurrent upload should be at least twice as fast", concurrentTime * 2 < sequentialTime);
+    }
+
+    @MediumTest
+    public void testUploadStopsOnInvalidCredentials() throws IOException {
+        server.setDispatcher(new LatencyDispatcher(403));
+        server.start();
+
+        addUploadRecords();
+
+        PostRecordsTask.PostRecordsListener listener = Mockito.mock(PostRecordsTask.PostRecordsListener.class);
+        PostRecordsTask task = new PostRecordsTask(listener, userInfo, new MockPostRecordsUrlBuilder(server),
+                testDbManager, new PostRecordsTask.Options());
+        task.execute();
+
+        Mockito.verify(listener, Mockito.timeout(10000)).recordUploadFinished(UPLOAD_RECORD_COUNT);
+        Mockito.verify(listener, Mockito.times(1)).haveInvalidCredentials();
+        Mockito.verify(listener, Mockito.never()).uploadedOneRecord();
+
+        // only the uploads already running when the first was rejected reach the server
+        assertTrue("Should have stopped uploading after credentials rejected",
+                server.getRequestCount() <= RecordUploadEngine.DEFAULT_WORKERS);
+
+        server.shutdown();
+
+        Cursor cursor = testDbManager.readAllRecords();
+        assertEquals("Records should not have been deleted", UPLOAD_RECORD_COUNT, cursor.getCount());
+        cursor.close();
+    }
+
+    @MediumTest
+    public void testBatchUploadPartialSuccess() throws IOException, InterruptedException {
+        server.setDispatcher(new StandInServerDispatcher(true));
+        server.start();
+
+        addUploadRecords();
+
+        PostRecordsTask.PostRecordsListener listener = Mockito.mock(PostRecordsTask.PostRecordsListener.class);
+        PostRecordsTask task = new PostRecordsTask(listener, userInfo, new MockPostRecordsUrlBuilder(server, true),
+                testDbManager, new PostRecordsTask.Options());
+        task.execute();
+
+        // the stand-in server rejects one record
+        Mockito.verify(listener, Mockito.timeout(10000)).recordUploadFinished(1);
+        Mockito.verify(listener, Mockito.times(UPLOAD_RECORD_COUNT - 1)).uploadedOneRecord();
+
+        // support check, then two batches of records
+        assertEquals("Should have checked for batch support", "OPTIONS", server.takeRequest().getMethod());
+        assertEquals("Should have uploaded records in batches", 3, server.getRequestCount());
+
+        server.shutdown();
+
+        Cursor cursor = testDbManager.readAllRecords();
+        assertEquals("Only rejected record should remain in database", 1, cursor.getCount());
+        cursor.close();
+    }
+
+    @MediumTest
+    public void testBatchUploadFallback() throws IOException, InterruptedException {
+        server.setDispatcher(new StandInServerDispatcher(false));
+        server.start();
+
+        addUploadRecords();
+
+        PostRecordsTask.PostRecordsListener listener = Mockito.mock(PostRecordsTask.PostRecordsListener.class);
+        PostRecordsTask task = new PostRecordsTask(listener, userInfo, new MockPostRecordsUrlBuilder(server, true),
+                testDbManager, new PostRecordsTask.Options());
+        task.execute();
+
+        // records posted one at a time; the stand-in server accepts them all
+        Mockito.verify(listener, Mockito.timeout(10000)).recordUploadFinished(0);
+        Mockito.verify(listener, Mockito.times(UPLOAD_RECORD_COUNT)).uploadedOneRecord();
+
+        assertEquals("Should have checked for batch support", "OPTIONS", server.takeRequest().getMethod());
+        assertEquals("Should have uploaded records one at a time", UPLOAD_RECORD_COUNT + 1, server.getRequestCount());
+
+        server.shutdown();
+
+        Cursor cursor = testDbManager.readAllRecords();
+        assertEquals("Records should have been deleted from database", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    @MediumTest
+    public void testBatchRejectedAfterSupportCheck() throws IOException {
+        MisroutedBatchDispatcher dispatcher = new MisroutedBatchDispatcher();
+        server.setDispatcher(dispatcher);
+        server.start();
+
+        addUploadRecords();
+
+        PostRecordsTask.PostRecordsListener listener = Mockito.mock(PostRecordsTask.PostRecordsListener.class);
+        MockPostRecordsUrlBuilder urlBuilder = new MockPostRecordsUrlBuilder(server, true);
+        PostRecordsTask task = new PostRecordsTask(listener, userInfo, urlBuilder, testDbManager,
+                new PostRecordsTask.Options());
+        task.execute();
+
+        // records of the rejected batches are posted one at a time instead
+        Mockito.verify(listener, Mockito.timeout(10000)).recordUploadFinished(0);
+        Mockito.verify(listener, Mockito.times(UPLOAD_RECORD_COUNT)).uploadedOneRecord();
+        assertEquals("Should have posted every record on its own", UPLOAD_RECORD_COUNT, dispatcher.singlePosts.get());
+        assertTrue("Should have stopped sending batches once rejected", dispatcher.batchPosts.get() <= 2);
+        assertFalse("Batch endpoint should be marked missing",
+                RecordBatchUpload.isSupported(DriverHttpClient.getInstance(), urlBuilder.batchRecordUrl(null),
+                        userInfo.getUserToken()));
+
+        server.shutdown();
+
+        assertEquals("Records should have been deleted from database", 0, testDbManager.countRecords());
+    }
+
+    @MediumTest
+    public void testUploadKeySent() throws IOException, InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(201));
+        server.start();
+
+        addUploadRecords();
+        Cursor cursor = testDbManager.getRecordByIdCursor(1);
+        assertTrue("Record not found", cursor.moveToFirst());
+        String uploadKey = cursor.getString(cursor.getColumnIndex(DriverRecordContract.RecordEntry.COLUMN_UPLOAD_KEY));
+        cursor.close();
+
+        PostRecordsTask.PostRecordsListener listener = Mockito.mock(PostRecordsTask.PostRecordsListener.class);
+        PostRecordsTask task = new PostRecordsTask(listener, userInfo, new MockPostRecordsUrlBuilder(server), testDbManager,
+                new PostRecordsTask.Options());
+        task.execute(1L);
+        Mockito.verify(listener, Mockito.timeout(5000)).recordUploadFinished(0);
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("Upload key should be sent as a header", uploadKey,
+                request.getHeader(RecordUpload.IDEMPOTENCY_KEY_HEADER));
+        JsonObject body = new JsonParser().parse(request.getBody().readUtf8()).getAsJsonObject();
+        assertFalse("Upload key should only be in the body of batches", body.has("idempotency_key"));
+
+        server.shutdown();
+    }
+
+    @MediumTest
+    public void testUploadMetricsRecorded() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(201));
+        server.start();
+
+        addUploadRecords();
+        UploadMetricsStore.getInstance().clear();
+
+        PostRecordsTask.PostRecordsListener listener = Mockito.mock(PostRecordsTask.PostRecordsListener.class);
+        PostRecordsTask task = new PostRecordsTask(listener, userInfo, new MockPostRecordsUrlBuilder(server), testDbManager,
+                new PostRecordsTask.Options());
+        task.execute(1L);
+        Mockito.verify(listener, Mockito.timeout(5000)).recordUploadFinished(0);
+
+        assertEquals("Upload should be measured as one session", 1, UploadMetricsStore.getInstance().getSessions().size());
+        UploadMetrics metrics = UploadMetricsStore.getInstance().getSessions().get(0);
+        assertTrue("Session should be finished", metrics.getDurationMillis() >= 0);
+        assertEquals("Unexpected uploaded count", 1, metrics.getUploadedCount());
+        assertEquals("Unexpected request count", 1, metrics.getRequestCount());
+        assertEquals("Response code should be counted", Integer.valueOf(1), metrics.getResponseCodes().get(201));
+        assertTrue("Bytes sent should be measured", metrics.getTotalBytesSent() > 0);
+        assertEquals("Record write time should be measured", 1, metrics.getRecordWriteTime().getCount());
+        assertEquals("Time to first byte should be measured", 1, metrics.getFirstByteTime().getCount());
+        assertEquals("Delete should be measured", 1, metrics.getDeleteTime().getCount());
+
+        server.shutdown();
+    }
+
+    @MediumTest
+    public void testAcknowledgedRecordNotSentAgain() throws IOException {
+        server.start();
+
+        addUploadRecords();
+        // server accepted every record, but the app stopped before deleting them
+        for (long recordId = 1; recordId <= UPLOAD_RECORD_COUNT; recordId++) {
+            assertTrue("Failed to acknowledge upload", testDbManager.acknowledgeUpload(recordId));
+        }
+
+        PostRecordsTask.PostRecordsListener listener = Mockito.mock(PostRecordsTask.PostRecordsListener.class);
+        PostRecordsTask task = new PostRecordsTask(listener, userInfo, new MockPostRecordsUrlBuilder(server), testDbManager,
+                new PostRecordsTask.Options());
+        task.execute();
+
+        // nothing left to upload
+        Mockito.verify(listener, Mockito.timeout(5000)).recordUploadCancelled(Mockito.anyString());
+        assertEquals("Acknowledged records should not be sent again", 0, server.getRequestCount());
+        assertEquals("Acknowledged records should be deleted", 0, testDbManager.countRecords());
+
+        server.shutdown();
+    }
+
+    /**
+     * Upload a set of records, and return how long it took.
+     */
+    private long timeUpload(int workers) {
+        addUploadRecords();
+
+        PostRecordsTask.PostRecordsListener listener = Mockito.mock(PostRecordsTask.PostRecordsListener.class);
+        PostRecordsTask task = new PostRecordsTask(listener, userInfo, new MockPostRecordsUrlBuilder(server),
+                testDbManager, new PostRecordsTask.Options().setUploadPolicy(
+                        new FixedUploadPolicy(new UploadPlan(workers, UploadPlan.DEFAULT_BATCH_SIZE, true))));
+
+        long start = SystemClock.elapsedRealtime();
+        task.execute();
+        Mockito.verify(listener, Mockito.timeout(UPLOAD_RECORD_COUNT * REQUEST_LATENCY_MS * 3)).recordUploadFinished(0);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        Mockito.verify(listener, Mockito.times(UPLOAD_RECORD_COUNT)).uploadedOneRecord();
+
+        Cursor cursor = testDbManager.readAllRecords();
+        assertEquals("Records should have been deleted from database", 0, cursor.getCount());
+        cursor.close();
+
+        return elapsed;
+    }
+
+    @MediumTest
+    public void testMixedSchemaBacklogWithPhoto() throws IOException {
+        BodyCollectingDispatcher dispatcher = new BodyCollectingDispatcher();
+        server.setDispatcher(dispatcher);
+        server.start();
+
+        File photo = new File(getContext().getCacheDir(), "post_records_test.jpg");
+        FileOutputStream outputStream = new FileOutputStream(photo);
+        outputStream.write(new byte[] {1, 2, 3, 4, 5});
+        outputStream.close();
+        String path = photo.getAbsolutePath();
+
+        // the photo field was renamed between the schema the first record was entered with and the current one
+        SchemaRegistry schemaRegistry = new SchemaRegistry(new SchemaRegistry.SchemaSource() {
+            @Override
+            public SchemaClassLoader openSchema(String schemaVersion) {
+                return "early".equals(schemaVersion) ? schemaLoaderFor(EarlySchema.class) : null;
+            }
+
+            @Override
+            public void schemaUnloaded(String schemaVersion) {}
+        }, TEST_MODEL_PACKAGE, 2);
+        schemaRegistry.setCurrent("late", schemaLoaderFor(LateSchema.class), LateSchema.class);
+
+        DriverConstantFields constantFields = new DriverConstantFields();
+        constantFields.occurredFrom = new Date();
+        constantFields.location = new Location("");
+        constantFields.location.setLatitude(30);
+        constantFields.location.setLongitude(30);
+        testDbManager.addRecord("early", "{\"Photo\":\"" + path + "\"}", constantFields);
+        testDbManager.addRecord("late", "{\"Picture\":\"" + path + "\"}", constantFields);
+
+        PostRecordsTask.PostRecordsListener listener = Mockito.mock(PostRecordsTask.PostRecordsListener.class);
+        PostRecordsTask task = new PostRecordsTask(listener, userInfo, new MockPostRecordsUrlBuilder(server, true),
+                testDbManager, new PostRecordsTask.Options()
+                        .setUploadPolicy(new FixedUploadPolicy(new UploadPlan(1, UploadPlan.DEFAULT_BATCH_SIZE, true)))
+                        .setSchemaRegistry(schemaRegistry));
+        task.execute();
+
+        Mockito.verify(listener, Mockito.timeout(10000)).recordUploadFinished(0);
+        server.shutdown();
+        photo.delete();
+
+        List<JsonObject> records = dispatcher.getRecords();
+        assertEquals("Should have sent both records", 2, records.size());
+        for (JsonObject record : records) {
+            JsonObject data = record.getAsJsonObject("data");
+            String field = "early".equals(record.get("schema").getAsString()) ? "Photo" : "Picture";
+            assertTrue("Photo of schema " + record.get("schema") + " should be sent inline, not as its path",
+                    data.get(field).getAsString().startsWith("data:"));
+        }
+    }
+
+    private void addUploadRecords() {
+        for (int i = 0; i < UPLOAD_RECORD_COUNT; i++) {
+            DriverConstantFields constantFields = new DriverConstantFields();
+            constantFields.occurredFrom = new Date();
+            constantFields.location = new Location("");
+            constantFields.location.setLatitude(30);
+            constantFields.location.setLongitude(30);
+            testDbManager.addRecord("1111", "{\"foos\": " + i + "}", constantFields);
+        }
+    }
+
+    private static SchemaClassLoader schemaLoaderFor(final Class driverSchema) {
+        return new SchemaClassLoader() {
+            @Override
+            public Class<?> loadClass(String className) throws ClassNotFoundException {
+                if (className.equals(TEST_MODEL_PACKAGE + SchemaRegistry.DRIVER_SCHEMA_CLASS)) {
+                    return driverSchema;
+                }
+                throw new ClassNotFoundException(className);
+            }
+        };
+    }
+
+    /**
+     * Stands in for a server with the batch endpoint, keeping each record posted, alone or in a batch.
+     */
+    private static class BodyCollectingDispatcher extends Dispatcher {
+        private final List<JsonObject> records = Collections.synchronizedList(new ArrayList<JsonObject>());
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            if (request.getMethod().equals("OPTIONS")) {
+                return new MockResponse().setResponseCode(200);
+            }
+
+            JsonElement body = new JsonParser().parse(request.getBody().readUtf8());
+            if (body.isJsonArray()) {
+                for (JsonElement record : body.getAsJsonArray()) {
+                    records.add(record.getAsJsonObject());
+                }
+            } else {
+                records.add(body.getAsJsonObject());
+            }
+            return new MockResponse().setResponseCode(201);
+        }
+
+        List<JsonObject> getRecords() {
+            synchronized (records) {
+                return new ArrayList<>(records);
+            }
+        }
+    }
+
+    /**
+     * Stands in for the server record endpoints. Accepts every record but the one with data
+     * REJECTED_RECORD, or a batched record without an upload key, and has the batch endpoint only if set.
+     */
+    private static class StandInServerDispatcher extends Dispatcher {
+        private static final int REJECTED_RECORD = 1;
+
+        private final boolean hasBatchEndpoint;
+
+        StandInServerDispatcher(boolean hasBatchEndpoint) {
+            this.hasBatchEndpoint = hasBatchEndpoint;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            if (!request.getPath().startsWith("/mockrecords/batch")) {
+                return new MockResponse().setResponseCode(201);
+            }
+
+            if (!hasBatchEndpoint) {
+                return new MockResponse().setResponseCode(404);
+            }
+
+            if (request.getMethod().equals("OPTIONS")) {
+                return new MockResponse().setResponseCode(200);
+            }
+
+            // answer with a result for each record in the batch
+            JsonArray records = new JsonParser().parse(request.getBody().readUtf8()).getAsJsonArray();
+            JsonArray results = new JsonArray();
+            boolean allCreated = true;
+            for (JsonElement record : records) {
+                JsonObject result = new JsonObject();
+                // records in a batch must carry their upload keys
+                if (record.getAsJsonObject().getAsJsonObject("data").get("foos").getAsInt() == REJECTED_RECORD ||
+                        !record.getAsJsonObject().has("idempotency_key")) {
+                    result.addProperty("status", 400);
+                    allCreated = false;
+                } else {
+                    result.addProperty("status", 201);
+                }
+                results.add(result);
+            }
+
+            if (allCreated) {
+                return new MockResponse().setResponseCode(201);
+            }
+            return new MockResponse().setResponseCode(207).setBody(results.toString());
+        }
+    }
+
+    /**
+     * Stands in for a server where the batch endpoint path matches the route of a single record,
+     * as on Django REST framework: OPTIONS succeeds, but posting a batch is not allowed.
+     */
+    private static class MisroutedBatchDispatcher extends Dispatcher {
+        final AtomicInteger batchPosts = new AtomicInteger(0);
+        final AtomicInteger singlePosts = new AtomicInteger(0);
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            if (!request.getPath().startsWith("/mockrecords/batch")) {
+                singlePosts.incrementAndGet();
+                return new MockResponse().setResponseCode(201);
+            }
+
+            if (request.getMethod().equals("OPTIONS")) {
+                return new MockResponse().setResponseCode(200);
+            }
+            batchPosts.incrementAndGet();
+            return new MockResponse().setResponseCode(405);
+        }
+    }
+
+    /**
+     * Answers every request with the same response code, after a delay, as on a slow network.
+     */
+    private static class LatencyDispatcher extends Dispatcher {
+        private final int responseCode;
+
+        LatencyDispatcher(int responseCode) {
+            this.responseCode = responseCode;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            Thread.sleep(REQUEST_LATENCY_MS);
+            return new MockResponse().setResponseCode(responseCode);
+        }
+    }
 }
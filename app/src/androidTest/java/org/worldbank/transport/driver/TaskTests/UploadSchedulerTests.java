@@ -0,0 +1,237 @@
+package org.worldbank.transport.driver.TaskTests;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.worldbank.transport.driver.MockPostRecordsUrlBuilder;
+import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.staticmodels.DriverConstantFields;
+import org.worldbank.transport.driver.staticmodels.DriverUserAuth;
+import org.worldbank.transport.driver.staticmodels.DriverUserInfo;
+import org.worldbank.transport.driver.tasks.PostRecordsTask;
+import org.worldbank.transport.driver.uploads.Clock;
+import org.worldbank.transport.driver.uploads.FixedUploadPolicy;
+import org.worldbank.transport.driver.uploads.UploadBackoff;
+import org.worldbank.transport.driver.uploads.UploadPlan;
+import org.worldbank.transport.driver.uploads.UploadScheduler;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test uploading records in the background, and retrying them with backoff after they fail.
+ */
+public class UploadSchedulerTests extends AndroidTestCase {
+
+    private static final long BASE_DELAY_MS = 1000;
+    private static final long MAX_DELAY_MS = 8000;
+    private static final int RECORD_COUNT = 2;
+    private static final long TIMEOUT_MS = 10000;
+
+    /**
+     * Time that only moves when told to.
+     */
+    public static class FakeClock implements Clock {
+        private volatile long time = 1000000;
+
+        @Override
+        public long now() {
+            return time;
+        }
+
+        public void advance(long ms) {
+            time += ms;
+        }
+    }
+
+    /**
+     * Stands in for the record endpoint, answering every record with the same response code.
+     */
+    public static class StandInServerDispatcher extends Dispatcher {
+        volatile int responseCode = 500;
+        volatile int recordRequests = 0;
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            if (request.getMethod().equals("POST") && request.getPath().equals("/mockrecords")) {
+                recordRequests++;
+                return new MockResponse().setResponseCode(responseCode);
+            }
+            return new MockResponse().setResponseCode(404);
+        }
+    }
+
+    MockWebServer server;
+    StandInServerDispatcher dispatcher;
+    RecordDatabaseManager testDbManager;
+    FakeClock clock;
+    UploadBackoff backoff;
+    Handler handler;
+    UploadScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        dispatcher = new StandInServerDispatcher();
+        server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+        server.start();
+
+        final DriverUserInfo userInfo = new DriverUserInfo();
+        DriverUserAuth auth = new DriverUserAuth();
+        auth.token = "11111111111111111";
+        userInfo.setUserToken(auth);
+
+        testDbManager = new RecordDatabaseManager(getContext(), true);
+        clock = new FakeClock();
+        backoff = new UploadBackoff(clock, BASE_DELAY_MS, MAX_DELAY_MS, new Random(1));
+        handler = new Handler(Looper.getMainLooper());
+
+        scheduler = new UploadScheduler(getContext(), handler, clock, testDbManager,
+                new UploadScheduler.UploadTaskFactory() {
+                    @Override
+                    public PostRecordsTask createUploadTask(PostRecordsTask.PostRecordsListener listener) {
+                        return new PostRecordsTask(listener, userInfo, new MockPostRecordsUrlBuilder(server),
+                                testDbManager, new PostRecordsTask.Options()
+                                        .setBackoff(backoff)
+                                        .setDueOnly(true)
+                                        .setUploadPolicy(new FixedUploadPolicy(
+                                                new UploadPlan(1, UploadPlan.DEFAULT_BATCH_SIZE, true))));
+                    }
+                });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        scheduler.stop();
+        waitForIdle();
+        server.shutdown();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testBackoffDelays() {
+        assertEquals("Unexpected first delay", BASE_DELAY_MS, backoff.delay(1));
+        assertEquals("Delay should double", 2 * BASE_DELAY_MS, backoff.delay(2));
+        assertEquals("Delay should double", 4 * BASE_DELAY_MS, backoff.delay(3));
+        assertEquals("Delay should stop at the maximum", MAX_DELAY_MS, backoff.delay(10));
+        assertEquals("Delay should stop at the maximum", MAX_DELAY_MS, backoff.delay(Integer.MAX_VALUE));
+
+        for (int i = 0; i < 100; i++) {
+            long wait = backoff.nextAttemptTime(3) - clock.now();
+            assertTrue("Jittered delay should be at least half the delay", wait >= 2 * BASE_DELAY_MS);
+            assertTrue("Jittered delay should be at most the delay", wait <= 4 * BASE_DELAY_MS);
+        }
+    }
+
+    @LargeTest
+    public void testRetryWithBackoff() throws InterruptedException {
+        addUploadRecords();
+
+        scheduler.start();
+        waitForRequests(RECORD_COUNT);
+        assertEquals("Failed records should be kept", RECORD_COUNT, testDbManager.countRecords());
+
+        long nextAttempt = testDbManager.getNextUploadAttemptTime();
+        assertTrue("Should wait at least half the base delay", nextAttempt >= clock.now() + BASE_DELAY_MS / 2);
+        assertTrue("Should wait at most the base delay", nextAttempt <= clock.now() + BASE_DELAY_MS);
+        assertEquals("Should be scheduled for the next attempt", nextAttempt, scheduler.getScheduledTime());
+
+        // records waiting to retry are not sent early
+        scheduler.requestUpload();
+        waitForIdle();
+        assertEquals("Records should not be sent before they are due", RECORD_COUNT, dispatcher.recordRequests);
+
+        // scheduled upload fails again, and waits twice as long
+        clock.advance(BASE_DELAY_MS);
+        waitForRequests(2 * RECORD_COUNT);
+        nextAttempt = testDbManager.getNextUploadAttemptTime();
+        assertTrue("Should wait at least the base delay", nextAttempt >= clock.now() + BASE_DELAY_MS);
+        assertTrue("Should wait at most twice the base delay", nextAttempt <= clock.now() + 2 * BASE_DELAY_MS);
+
+        // server comes back; scheduled upload empties the outbox
+        dispatcher.responseCode = 201;
+        clock.advance(2 * BASE_DELAY_MS);
+        waitForRequests(3 * RECORD_COUNT);
+        assertEquals("Uploaded records should be deleted", 0, testDbManager.countRecords());
+        assertEquals("Nothing should be waiting to retry", -1, testDbManager.getNextUploadAttemptTime());
+        assertEquals("Nothing should be scheduled", -1, scheduler.getScheduledTime());
+    }
+
+    @MediumTest
+    public void testStopsOnInvalidCredentials() throws InterruptedException {
+        dispatcher.responseCode = 403;
+        addUploadRecords();
+
+        scheduler.start();
+        waitForRequests(1);
+        assertEquals("Rejected records should not wait to retry", -1, testDbManager.getNextUploadAttemptTime());
+
+        scheduler.requestUpload();
+        waitForIdle();
+        assertEquals("Should stop uploading after credentials rejected", 1, dispatcher.recordRequests);
+    }
+
+    private void addUploadRecords() {
+        DriverConstantFields constantFields = new DriverConstantFields();
+        constantFields.occurredFrom = new Date();
+        constantFields.location = new Location("");
+        constantFields.location.setLatitude(30);
+        constantFields.location.setLongitude(30);
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            testDbManager.addRecord("1111", "{\"foos\": " + i + "}", constantFields);
+        }
+    }
+
+    /**
+     * Wait until the server has had at least the given number of record requests, and the
+     * upload making them has finished.
+     */
+    private void waitForRequests(int count) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        while (dispatcher.recordRequests < count) {
+            assertTrue("Timed out waiting for " + count + " record requests", SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(50);
+        }
+        waitForIdle();
+    }
+
+    /**
+     * Wait until everything posted to the scheduler so far has run, and any upload it started has finished.
+     */
+    private void waitForIdle() throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        do {
+            // the handler runs in order, so once this has run, so has everything posted before it
+            final CountDownLatch latch = new CountDownLatch(1);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+            assertTrue("Scheduler handler did not run", latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            if (!scheduler.isUploading()) {
+                return;
+            }
+            SystemClock.sleep(50);
+        } while (SystemClock.uptimeMillis() < deadline);
+
+        fail("Timed out waiting for upload to finish");
+    }
+}
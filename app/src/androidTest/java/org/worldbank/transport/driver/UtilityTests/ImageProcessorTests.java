@@ -0,0 +1,147 @@
+package org.worldbank.transport.driver.UtilityTests;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import org.jsonschema2pojo.media.SerializableMedia;
+import org.worldbank.transport.driver.images.ImageProcessingProfile;
+import org.worldbank.transport.driver.images.ImageProcessor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Test downscaling and recompressing photos attached to records.
+ */
+public class ImageProcessorTests extends AndroidTestCase {
+
+    private static final int PHOTO_WIDTH = 3000;
+    private static final int PHOTO_HEIGHT = 2000;
+
+    public static class TestSection {
+        public SerializableMedia photo;
+        public String description;
+    }
+
+    public static class TestRecord {
+        public TestSection crash;
+        public ArrayList<TestSection> vehicles;
+    }
+
+    File photoFile;
+    ImageProcessor processor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // camera-like photo, with location and orientation metadata
+        Bitmap bitmap = Bitmap.createBitmap(PHOTO_WIDTH, PHOTO_HEIGHT, Bitmap.Config.ARGB_8888);
+        Random random = new Random(1);
+        for (int y = 0; y < PHOTO_HEIGHT; y += 10) {
+            for (int x = 0; x < PHOTO_WIDTH; x += 10) {
+                bitmap.setPixel(x, y, 0xFF000000 | random.nextInt(0xFFFFFF));
+            }
+        }
+        photoFile = new File(getContext().getCacheDir(), "image_processor_test.jpg");
+        FileOutputStream outputStream = new FileOutputStream(photoFile);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 95, outputStream);
+        outputStream.close();
+        bitmap.recycle();
+
+        ExifInterface exif = new ExifInterface(photoFile.getAbsolutePath());
+        exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_ROTATE_90));
+        exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE, "14/1,35/1,0/1");
+        exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE_REF, "N");
+        exif.saveAttributes();
+
+        processor = new ImageProcessor(getContext(), new ImageProcessingProfile(1600, 80, false));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        photoFile.delete();
+        File[] processed = processor.getOutputDirectory().listFiles();
+        if (processed != null) {
+            for (File file : processed) {
+                file.delete();
+            }
+        }
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testProcessPhoto() throws IOException {
+        String processedPath = processor.process(photoFile.getAbsolutePath());
+        assertNotNull("Photo not processed", processedPath);
+        File processed = new File(processedPath);
+        assertTrue("Processed photo should be smaller", processed.length() < photoFile.length());
+
+        // rotated upright, with the longer side scaled to the maximum
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(processedPath, options);
+        assertEquals("Unexpected processed photo height", 1600, options.outHeight);
+        assertEquals("Unexpected processed photo width", 1067, options.outWidth, 1);
+
+        ExifInterface exif = new ExifInterface(processedPath);
+        assertNull("Location should be stripped", exif.getAttribute(ExifInterface.TAG_GPS_LATITUDE));
+        assertEquals("Orientation should be applied to the pixels", ExifInterface.ORIENTATION_NORMAL,
+                exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL));
+
+        assertEquals("Processed photo should not be processed again", processedPath, processor.process(processedPath));
+
+        // photo taken into the app's storage is not kept
+        assertTrue("Original should be deleted", processor.deleteOriginal(photoFile.getAbsolutePath()));
+        assertFalse("Original should be deleted", photoFile.exists());
+    }
+
+    @MediumTest
+    public void testProcessSeveralPhotos() {
+        // second photo is decoded into the bitmap kept from the first, where supported
+        String first = processor.process(photoFile.getAbsolutePath());
+        String second = processor.process(photoFile.getAbsolutePath());
+        assertNotNull("First photo not processed", first);
+        assertNotNull("Second photo not processed", second);
+        assertFalse("Each photo should get its own file", first.equals(second));
+        assertEquals("Photos should be processed the same", new File(first).length(), new File(second).length());
+    }
+
+    @MediumTest
+    public void testKeepOriginal() {
+        ImageProcessor keepingProcessor = new ImageProcessor(getContext(), new ImageProcessingProfile(800, 70, true));
+        assertNotNull("Photo not processed", keepingProcessor.process(photoFile.getAbsolutePath()));
+        assertFalse("Original should be kept", keepingProcessor.deleteOriginal(photoFile.getAbsolutePath()));
+        assertTrue("Original should be kept", photoFile.exists());
+    }
+
+    @MediumTest
+    public void testProcessRecordMediaOnSave() {
+        // record saved before its photos were processed in the background
+        TestRecord record = new TestRecord();
+        record.crash = new TestSection();
+        record.crash.photo = new SerializableMedia();
+        record.crash.photo.path = photoFile.getAbsolutePath();
+        record.crash.description = photoFile.getAbsolutePath();
+        TestSection vehicle = new TestSection();
+        record.vehicles = new ArrayList<>();
+        record.vehicles.add(vehicle);
+
+        assertEquals("Photo should be processed", 1, processor.processRecordMedia(record));
+        String processedPath = record.crash.photo.path;
+        assertTrue("Record should refer to the processed photo",
+                processedPath.startsWith(processor.getOutputDirectory().getAbsolutePath()));
+        assertTrue("Processed photo should exist", new File(processedPath).exists());
+        assertFalse("Original should be deleted", photoFile.exists());
+        assertEquals("Other fields should be left as they are", photoFile.getAbsolutePath(), record.crash.description);
+
+        assertEquals("Processed photo should not be processed again", 0, processor.processRecordMedia(record));
+        assertEquals(processedPath, record.crash.photo.path);
+    }
+}
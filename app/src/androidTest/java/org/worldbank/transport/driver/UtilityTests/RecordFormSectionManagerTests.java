@@ -5,14 +5,14 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import org.worldbank.transport.driver.activities.RecordFormSectionActivity;
 import org.worldbank.transport.driver.activities.RecordItemListActivity;
+import org.worldbank.transport.driver.metrics.StartupTimings;
+import org.worldbank.transport.driver.schemas.SchemaClassLoader;
 import org.worldbank.transport.driver.staticmodels.DriverApp;
 import org.worldbank.transport.driver.utilities.RecordFormSectionManager;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 
-import it.necst.grabnrun.SecureDexClassLoader;
-
 /**
  * Unit tests form RecordFormSectionManager static methods
  *
@@ -35,7 +35,7 @@ public class RecordFormSectionManagerTests extends AndroidTestCase {
         super.setUp();
 
         Class driverClass = DriverApp.getSchemaClass();
-        SecureDexClassLoader modelClassLoader = DriverApp.getSchemaClassLoader();
+        SchemaClassLoader modelClassLoader = DriverApp.getSchemaClassLoader();
 
         if (driverClass == null) {
             fail("top level model class not found");
@@ -55,6 +55,25 @@ public class RecordFormSectionManagerTests extends AndroidTestCase {
         super.tearDown();
     }
 
+    @SmallTest
+    public void testSchemaReadyAfterStartup() {
+        // getting the schema class in setUp waits for it to load
+        DriverApp app = (DriverApp) DriverApp.getContext();
+        assertTrue("Schema should have finished loading", app.isSchemaReady());
+
+        final boolean[] loaded = {false};
+        app.whenSchemaReady(new DriverApp.SchemaReadyListener() {
+            @Override
+            public void schemaReady(boolean schemaLoaded) {
+                loaded[0] = schemaLoaded;
+            }
+        });
+        assertTrue("Listener should be called straight away once schema loaded", loaded[0]);
+
+        assertTrue("Schema load should be timed",
+                StartupTimings.getInstance().getPhases().containsKey(StartupTimings.PHASE_SCHEMA_LOAD));
+    }
+
     @SmallTest
     public void testGetActivityClassForSection() {
         // first section is Details
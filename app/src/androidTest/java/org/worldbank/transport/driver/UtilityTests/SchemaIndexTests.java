@@ -0,0 +1,131 @@
+package org.worldbank.transport.driver.UtilityTests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.jsonschema2pojo.annotations.FieldTypes;
+import org.worldbank.transport.driver.TestModels.TestPerson;
+import org.worldbank.transport.driver.staticmodels.DriverApp;
+import org.worldbank.transport.driver.staticmodels.DriverConstantFields;
+import org.worldbank.transport.driver.utilities.DriverUtilities;
+import org.worldbank.transport.driver.utilities.RecordFormSectionManager;
+import org.worldbank.transport.driver.utilities.SchemaIndex;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Test indexing the schema classes, and writing the index out and reading it back.
+ */
+public class SchemaIndexTests extends AndroidTestCase {
+
+    private static final String SCHEMA_VERSION = "test-schema-version";
+
+    Class driverClass;
+    File indexDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        driverClass = DriverApp.getSchemaClass();
+        indexDirectory = new File(getContext().getCacheDir(), "schema-index-tests");
+        deleteIndexDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteIndexDirectory();
+        super.tearDown();
+    }
+
+    private void deleteIndexDirectory() {
+        File[] files = indexDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        indexDirectory.delete();
+    }
+
+    @SmallTest
+    public void testBuildMatchesAnnotations() {
+        SchemaIndex index = SchemaIndex.build(SCHEMA_VERSION, driverClass, driverClass.getClassLoader());
+        assertTrue("Section order should match annotation",
+                Arrays.equals(DriverUtilities.readFieldOrder(driverClass), index.getSectionOrder()));
+
+        // first section holds one item; the second holds multiple
+        assertFalse("First section should not hold multiple items",
+                index.getSection(index.getSectionOrder()[0]).multiple);
+        assertTrue("Second section should hold multiple items",
+                index.getSection(index.getSectionOrder()[1]).multiple);
+
+        SchemaIndex.SectionInfo person = index.getSection("شخصPerson");
+        assertNotNull("Person section not indexed", person);
+        assertEquals("Unexpected class for person section",
+                RecordFormSectionManager.MODEL_PACKAGE + "شخصPerson", person.className);
+
+        Class personClass = RecordFormSectionManager.getSectionClass("شخصPerson");
+        assertTrue("Person field order should match annotation",
+                Arrays.equals(DriverUtilities.readFieldOrder(personClass), index.getClassInfo(personClass).fieldOrder));
+    }
+
+    @SmallTest
+    public void testReadClass() {
+        SchemaIndex.ClassInfo personInfo = SchemaIndex.readClass(TestPerson.class, TestPerson.class.getClassLoader());
+        assertEquals("Unexpected first ordered field", "Name", personInfo.fieldOrder[0]);
+
+        SchemaIndex.FieldInfo sex = null;
+        SchemaIndex.FieldInfo vehicle = null;
+        for (SchemaIndex.FieldInfo field : personInfo.fields) {
+            if (field.name.equals("Sex")) {
+                sex = field;
+            } else if (field.name.equals("Vehicle")) {
+                vehicle = field;
+            }
+        }
+
+        assertNotNull("Select list field not indexed", sex);
+        assertEquals(FieldTypes.selectlist, sex.fieldType);
+        assertEquals(TestPerson.Sex.class.getName(), sex.enumClassName);
+        assertEquals("Unexpected number of options", 2, sex.options.size());
+        assertEquals("MALE", sex.options.get(0).name);
+        assertEquals("Male", sex.options.get(0).label);
+
+        assertNotNull("Reference field not indexed", vehicle);
+        assertEquals(FieldTypes.reference, vehicle.fieldType);
+        assertEquals("Vehicle", vehicle.watchTarget);
+    }
+
+    @SmallTest
+    public void testSaveAndLoad() {
+        SchemaIndex index = SchemaIndex.build(SCHEMA_VERSION, driverClass, driverClass.getClassLoader());
+        assertTrue("Failed to write index", index.save(indexDirectory));
+
+        SchemaIndex loaded = SchemaIndex.load(indexDirectory, SCHEMA_VERSION);
+        assertNotNull("Failed to read index back", loaded);
+        assertEquals(SCHEMA_VERSION, loaded.getSchemaVersion());
+        assertTrue("Section order should be read back",
+                Arrays.equals(index.getSectionOrder(), loaded.getSectionOrder()));
+        assertEquals("Sections should be read back", index.getSection("شخصPerson").pluralTitle,
+                loaded.getSection("شخصPerson").pluralTitle);
+
+        assertNull("Should have no index for another schema", SchemaIndex.load(indexDirectory, "other-version"));
+
+        // writing the index for another schema replaces it
+        SchemaIndex other = SchemaIndex.build("other-version", driverClass, driverClass.getClassLoader());
+        assertTrue("Failed to write other index", other.save(indexDirectory));
+        assertNull("Index for old schema should be removed", SchemaIndex.load(indexDirectory, SCHEMA_VERSION));
+        assertEquals("Should only keep one index", 1, indexDirectory.listFiles().length);
+    }
+
+    @SmallTest
+    public void testClassNotInSchema() {
+        SchemaIndex index = SchemaIndex.build(SCHEMA_VERSION, driverClass, driverClass.getClassLoader());
+        SchemaIndex.ClassInfo constants = index.getClassInfo(DriverConstantFields.class);
+        assertTrue("Constant fields order should match annotation",
+                Arrays.equals(DriverUtilities.readFieldOrder(DriverConstantFields.class), constants.fieldOrder));
+        assertSame("Class not in schema should be read once", constants,
+                index.getClassInfo(DriverConstantFields.class));
+    }
+}
@@ -0,0 +1,134 @@
+package org.worldbank.transport.driver.UtilityTests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.worldbank.transport.driver.TestModels.TestPerson;
+import org.worldbank.transport.driver.schemas.SchemaClassLoader;
+import org.worldbank.transport.driver.schemas.SchemaRegistry;
+import org.worldbank.transport.driver.staticmodels.DriverConstantFields;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Test keeping the classes of earlier schemas loaded beside the current schema.
+ */
+public class SchemaRegistryTests extends AndroidTestCase {
+
+    private static final String MODEL_PACKAGE = "test.models.";
+
+    /**
+     * Stands in for schema jars, with a different top-level class for each schema.
+     */
+    static class FakeSchemaSource implements SchemaRegistry.SchemaSource {
+        final HashMap<String, Class> schemas = new HashMap<>();
+        final List<String> opened = new ArrayList<>();
+        final List<String> unloaded = new ArrayList<>();
+
+        @Override
+        public SchemaClassLoader openSchema(String schemaVersion) {
+            opened.add(schemaVersion);
+            return loaderFor(schemas.get(schemaVersion));
+        }
+
+        @Override
+        public void schemaUnloaded(String schemaVersion) {
+            unloaded.add(schemaVersion);
+        }
+
+        static SchemaClassLoader loaderFor(final Class driverSchema) {
+            if (driverSchema == null) {
+                return null;
+            }
+            return new SchemaClassLoader() {
+                @Override
+                public Class<?> loadClass(String className) throws ClassNotFoundException {
+                    if (className.equals(MODEL_PACKAGE + SchemaRegistry.DRIVER_SCHEMA_CLASS)) {
+                        return driverSchema;
+                    }
+                    throw new ClassNotFoundException(className);
+                }
+            };
+        }
+    }
+
+    FakeSchemaSource source;
+    SchemaRegistry registry;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        source = new FakeSchemaSource();
+        source.schemas.put("first", TestPerson.class);
+        source.schemas.put("second", DriverConstantFields.class);
+        source.schemas.put("third", String.class);
+        registry = new SchemaRegistry(source, MODEL_PACKAGE, 2);
+        registry.setCurrent("current", FakeSchemaSource.loaderFor(Object.class), Object.class);
+    }
+
+    @SmallTest
+    public void testCurrentSchema() {
+        assertEquals(Object.class, registry.getSchemaClass("current"));
+        assertTrue("Current schema should be loaded", registry.isLoaded("current"));
+        assertTrue("Current schema needs no opening", source.opened.isEmpty());
+    }
+
+    @SmallTest
+    public void testOpensEarlierSchemaOnce() {
+        assertEquals(TestPerson.class, registry.getSchemaClass("first"));
+        assertEquals(TestPerson.class, registry.getSchemaClass("first"));
+        assertEquals("Earlier schema should be opened once", 1, source.opened.size());
+        assertEquals("Current schema should be unchanged", Object.class, registry.getSchemaClass("current"));
+    }
+
+    @SmallTest
+    public void testUnavailableSchema() {
+        assertNull("Missing schema should not be found", registry.getSchemaClass("missing"));
+        assertNull(registry.getSchemaClass("missing"));
+        assertEquals("Missing schema should not be tried for every record", 1, source.opened.size());
+
+        // a new current schema may come with the jar
+        registry.setCurrent("newer", FakeSchemaSource.loaderFor(Object.class), Object.class);
+        registry.getSchemaClass("missing");
+        assertEquals("Missing schema should be tried again with new schema", 2, source.opened.size());
+    }
+
+    @SmallTest
+    public void testEvictsLeastRecentlyUsed() {
+        registry.getSchemaClass("first");
+        registry.getSchemaClass("second");
+        assertFalse("Only one earlier schema should be kept", registry.isLoaded("first"));
+        assertTrue(registry.isLoaded("second"));
+        assertTrue("Current schema should never be unloaded", registry.isLoaded("current"));
+        assertEquals("Unloaded schema should be reported", "first", source.unloaded.get(0));
+
+        // opened again when needed
+        assertEquals(TestPerson.class, registry.getSchemaClass("first"));
+        assertEquals(3, source.opened.size());
+    }
+
+    @SmallTest
+    public void testReplacedSchemaKept() {
+        registry.setCurrent("first", FakeSchemaSource.loaderFor(TestPerson.class), TestPerson.class);
+        assertTrue("Replaced schema should stay loaded for its records", registry.isLoaded("current"));
+        assertEquals(Object.class, registry.getSchemaClass("current"));
+        assertEquals(TestPerson.class, registry.getCurrent().driverSchema);
+        assertTrue("Neither schema should need opening", source.opened.isEmpty());
+
+        // switching back reuses the loaded classes
+        registry.setCurrent("current", registry.getSchema("current").classLoader, Object.class);
+        assertTrue(registry.isLoaded("first"));
+        assertEquals("current", registry.getCurrent().schemaVersion);
+    }
+
+    @SmallTest
+    public void testClear() {
+        registry.getSchemaClass("first");
+        registry.clear();
+        assertFalse("Earlier schema should be unloaded", registry.isLoaded("first"));
+        assertTrue("Current schema should be kept", registry.isLoaded("current"));
+        assertEquals(1, source.unloaded.size());
+    }
+}
@@ -0,0 +1,133 @@
+package org.worldbank.transport.driver.UtilityTests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.worldbank.transport.driver.metrics.Histogram;
+import org.worldbank.transport.driver.metrics.UploadMetrics;
+import org.worldbank.transport.driver.metrics.UploadMetricsStore;
+import org.worldbank.transport.driver.uploads.RecordUploadStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test measuring sync sessions for the diagnostics screen.
+ */
+public class UploadMetricsTests extends AndroidTestCase {
+
+    UploadMetricsStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        store = UploadMetricsStore.getInstance();
+        store.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.clear();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testHistogram() {
+        Histogram histogram = new Histogram("us");
+        assertEquals("Empty histogram should have no percentiles", 0, histogram.getPercentile(50));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals("Unexpected count", 100, histogram.getCount());
+        assertEquals("Unexpected minimum", 1, histogram.getMin());
+        assertEquals("Unexpected maximum", 100, histogram.getMax());
+        assertEquals("Unexpected mean", 50, histogram.getMean(), 1);
+
+        // percentiles are estimated to within a factor of two
+        long median = histogram.getPercentile(50);
+        assertTrue("Median estimate too low: " + median, median >= 50);
+        assertTrue("Median estimate too high: " + median, median <= 100);
+        assertEquals("Top percentile should be limited to the maximum", 100, histogram.getPercentile(100));
+    }
+
+    @SmallTest
+    public void testSessionMeasurements() {
+        UploadMetrics metrics = store.startSession();
+
+        // batch of four records, then a single record that got no response
+        metrics.recordRequest(4, TimeUnit.MILLISECONDS.toNanos(40), 4000, 1000, TimeUnit.MILLISECONDS.toNanos(100), 201);
+        metrics.recordRequest(1, TimeUnit.MILLISECONDS.toNanos(10), 1000, 300, 0, UploadMetrics.NO_RESPONSE);
+        for (int i = 0; i < 4; i++) {
+            metrics.recordResult(RecordUploadStatus.UPLOADED);
+        }
+        metrics.recordResult(RecordUploadStatus.FAILED);
+        metrics.recordDelete(4, TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals("Session should not be finished", -1, metrics.getDurationMillis());
+        metrics.finish(null);
+
+        assertTrue("Session should be finished", metrics.getDurationMillis() >= 0);
+        assertEquals("Unexpected request count", 2, metrics.getRequestCount());
+        assertEquals("Unexpected uploaded count", 4, metrics.getUploadedCount());
+        assertEquals("Unexpected failed count", 1, metrics.getFailedCount());
+        assertEquals("Unexpected bytes sent", 1300, metrics.getTotalBytesSent());
+        assertEquals("Batch should count for each of its records", 5, metrics.getRecordBytesSent().getCount());
+        assertEquals("Batch should be shared out over its records", 250, metrics.getRecordBytesSent().getMin());
+        assertEquals("Request without a response has no time to first byte", 1, metrics.getFirstByteTime().getCount());
+        assertEquals("Unexpected time to first byte", 100000, metrics.getFirstByteTime().getMax());
+        assertEquals("Request without a response should be counted", Integer.valueOf(1),
+                metrics.getResponseCodes().get(UploadMetrics.NO_RESPONSE));
+        assertEquals("Unknown TLS handshakes", -1, metrics.getTlsHandshakes());
+    }
+
+    @SmallTest
+    public void testStoreKeepsRecentSessions() {
+        UploadMetrics first = store.startSession();
+        for (int i = 0; i < UploadMetricsStore.MAX_SESSIONS; i++) {
+            store.startSession();
+        }
+
+        assertEquals("Store should keep a limited number of sessions", UploadMetricsStore.MAX_SESSIONS,
+                store.getSessions().size());
+        assertFalse("Oldest session should be dropped", store.getSessions().contains(first));
+
+        UploadMetrics latest = store.startSession();
+        assertSame("Most recent session should be first", latest, store.getSessions().get(0));
+    }
+
+    @SmallTest
+    public void testExportJson() throws IOException {
+        UploadMetrics metrics = store.startSession();
+        metrics.recordRequest(2, 2000000, 2048, 512, 3000000, 207);
+        metrics.recordResult(RecordUploadStatus.UPLOADED);
+        metrics.recordResult(RecordUploadStatus.FAILED);
+        metrics.finish(null);
+        store.startSession();
+
+        StringWriter writer = new StringWriter();
+        store.writeJson(writer);
+        JsonArray sessions = new JsonParser().parse(writer.toString()).getAsJsonArray();
+        assertEquals("Every session should be exported", 2, sessions.size());
+
+        JsonObject exported = sessions.get(1).getAsJsonObject();
+        assertEquals("Unexpected uploaded count", 1, exported.getAsJsonObject("records").get("uploaded").getAsInt());
+        JsonObject http = exported.getAsJsonObject("http");
+        assertEquals("Unexpected bytes sent", 512, http.get("bytes_sent").getAsLong());
+        assertEquals("Response code should be counted", 1, http.getAsJsonObject("response_codes").get("207").getAsInt());
+        assertEquals("Unexpected time to first byte", 3000,
+                exported.getAsJsonObject("first_byte_time").get("max").getAsLong());
+        assertEquals("Request should be kept", 1, exported.getAsJsonArray("requests").size());
+
+        File exportedFile = store.export(getContext().getCacheDir());
+        assertNotNull("Export failed", exportedFile);
+        assertTrue("Export should be written", exportedFile.length() > 0);
+        assertTrue("Failed to delete export", exportedFile.delete());
+    }
+}
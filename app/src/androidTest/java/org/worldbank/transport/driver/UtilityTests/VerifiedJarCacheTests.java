@@ -0,0 +1,186 @@
+package org.worldbank.transport.driver.UtilityTests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.worldbank.transport.driver.R;
+import org.worldbank.transport.driver.schemas.SchemaClassLoader;
+import org.worldbank.transport.driver.schemas.VerifiedJarCache;
+import org.worldbank.transport.driver.staticmodels.DriverApp;
+import org.worldbank.transport.driver.utilities.RecordFormSectionManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Test reopening schema jars verified before, and verifying them again once changed.
+ */
+public class VerifiedJarCacheTests extends AndroidTestCase {
+
+    /**
+     * Stands in for the certificate fetched from the certificate URL.
+     */
+    static class TestCertificateSource implements VerifiedJarCache.CertificateSource {
+        Certificate certificate;
+
+        @Override
+        public Certificate getCertificate(String certificateUrl) {
+            return certificate;
+        }
+    }
+
+    File testDirectory;
+    File jar;
+    String certificateUrl;
+    VerifiedJarCache cache;
+    TestCertificateSource certificateSource;
+    Certificate signingCertificate;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        testDirectory = new File(getContext().getCacheDir(), "verified-jar-cache-tests");
+        FileUtils.deleteDirectory(testDirectory);
+        assertTrue(testDirectory.mkdirs());
+
+        // use a copy of the backup schema jar, which is signed
+        jar = new File(testDirectory, DriverApp.BACKUP_JAR_NAME);
+        InputStream inputStream = getContext().getAssets().open(DriverApp.BACKUP_JAR_NAME);
+        OutputStream outputStream = new FileOutputStream(jar);
+        try {
+            IOUtils.copy(inputStream, outputStream);
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+            IOUtils.closeQuietly(outputStream);
+        }
+
+        certificateUrl = getContext().getString(R.string.signing_cert_pem_url);
+
+        // as if the certificate the jar is signed with had been fetched from the URL
+        signingCertificate = readSigningCertificate(jar);
+        certificateSource = new TestCertificateSource();
+        certificateSource.certificate = signingCertificate;
+        cache = new VerifiedJarCache(testDirectory, new File(testDirectory, "optimized"),
+                getContext().getClassLoader(), certificateSource, VerifiedJarCache.DEFAULT_MAX_AGE_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(testDirectory);
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testReopenVerifiedJar() throws ClassNotFoundException {
+        assertNull("Jar not yet verified should not be opened", cache.openVerified(jar, certificateUrl));
+
+        cache.recordVerified(jar, certificateUrl);
+        SchemaClassLoader loader = cache.openVerified(jar, certificateUrl);
+        assertNotNull("Verified jar should be opened", loader);
+        assertNotNull("Should load schema from verified jar",
+                loader.loadClass(RecordFormSectionManager.MODEL_PACKAGE + "DriverSchema"));
+
+        // record is kept for the next start
+        VerifiedJarCache restarted = new VerifiedJarCache(testDirectory, new File(testDirectory, "optimized"),
+                getContext().getClassLoader(), certificateSource, VerifiedJarCache.DEFAULT_MAX_AGE_MS);
+        assertNotNull("Verified jar should be opened after restart", restarted.openVerified(jar, certificateUrl));
+    }
+
+    @MediumTest
+    public void testChangedJarVerifiedAgain() throws IOException {
+        cache.recordVerified(jar, certificateUrl);
+
+        byte[] content = FileUtils.readFileToByteArray(jar);
+        content[content.length / 2] ^= 1;
+        FileUtils.writeByteArrayToFile(jar, content);
+        assertNull("Changed jar should be verified again", cache.openVerified(jar, certificateUrl));
+    }
+
+    @MediumTest
+    public void testChangedCertificateVerifiedAgain() {
+        cache.recordVerified(jar, certificateUrl);
+        assertNull("Jar should be verified against a new certificate",
+                cache.openVerified(jar, "https://example.com/other.pem"));
+        assertNull("Jar should stay forgotten", cache.openVerified(jar, certificateUrl));
+    }
+
+    @MediumTest
+    public void testCertificateReplacedAtSameUrl() throws Exception {
+        cache.recordVerified(jar, certificateUrl);
+
+        // any other certificate will do; use one of the platform's
+        KeyStore keyStore = KeyStore.getInstance("AndroidCAStore");
+        keyStore.load(null, null);
+        certificateSource.certificate = keyStore.getCertificate(keyStore.aliases().nextElement());
+        assertNull("Jar should be verified against the replaced certificate", cache.openVerified(jar, certificateUrl));
+
+        certificateSource.certificate = signingCertificate;
+        assertNull("Jar should stay forgotten", cache.openVerified(jar, certificateUrl));
+    }
+
+    @MediumTest
+    public void testMissingCertificateVerifiedAgain() {
+        cache.recordVerified(jar, certificateUrl);
+        certificateSource.certificate = null;
+        assertNull("Jar should be verified when the certificate is not known", cache.openVerified(jar, certificateUrl));
+    }
+
+    @MediumTest
+    public void testVerifiedAgainAfterMaxAge() throws InterruptedException {
+        VerifiedJarCache shortLived = new VerifiedJarCache(testDirectory, new File(testDirectory, "optimized"),
+                getContext().getClassLoader(), certificateSource, 50);
+        shortLived.recordVerified(jar, certificateUrl);
+        assertNotNull("Recently verified jar should be opened", shortLived.openVerified(jar, certificateUrl));
+
+        // the certificate at the URL is only fetched again by verifying in full
+        Thread.sleep(100);
+        assertNull("Jar should be verified again once its verification is too old",
+                shortLived.openVerified(jar, certificateUrl));
+        assertNull("Jar should stay forgotten", cache.openVerified(jar, certificateUrl));
+    }
+
+    @MediumTest
+    public void testForget() {
+        cache.recordVerified(jar, certificateUrl);
+        cache.forget(jar);
+        assertNull("Forgotten jar should be verified again", cache.openVerified(jar, certificateUrl));
+    }
+
+    /**
+     * @return Certificate in the signature block of the jar
+     */
+    private static Certificate readSigningCertificate(File jar) throws Exception {
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName().toUpperCase();
+                if (name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC")) {
+                    InputStream inputStream = zipFile.getInputStream(entry);
+                    try {
+                        return CertificateFactory.getInstance("X.509").generateCertificates(inputStream)
+                                .iterator().next();
+                    } finally {
+                        IOUtils.closeQuietly(inputStream);
+                    }
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+        fail("Jar has no signature block");
+        return null;
+    }
+}
@@ -0,0 +1,182 @@
+package org.worldbank.transport.driver.activities;
+
+import android.os.Bundle;
+import android.support.v7.app.ActionBar;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.Toolbar;
+import android.text.format.Formatter;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import org.worldbank.transport.driver.R;
+import org.worldbank.transport.driver.metrics.Histogram;
+import org.worldbank.transport.driver.metrics.StartupTimings;
+import org.worldbank.transport.driver.metrics.UploadMetrics;
+import org.worldbank.transport.driver.metrics.UploadMetricsStore;
+
+import java.io.File;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows how long the app took to start, and measurements of the recent sync sessions, most
+ * recent first, for finding out why uploading is slow. They can be exported as JSON, to send along with a report.
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    private static final String LOG_LABEL = "DiagnosticsActivity";
+
+    // exports are written here, under the app's external files directory if there is one
+    private static final String EXPORT_DIRECTORY = "diagnostics";
+
+    private TextView diagnosticsText;
+    private UploadMetricsStore metricsStore;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_diagnostics);
+        Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
+        setSupportActionBar(toolbar);
+
+        ActionBar actionBar = getSupportActionBar();
+        if (actionBar != null) {
+            actionBar.setDisplayHomeAsUpEnabled(true);
+            actionBar.setTitle(R.string.title_activity_diagnostics);
+        }
+
+        diagnosticsText = (TextView) findViewById(R.id.diagnostics_text);
+        metricsStore = UploadMetricsStore.getInstance();
+    }
+
+    @Override
+    protected void onPostResume() {
+        super.onPostResume();
+        showSessions();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_diagnostics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+
+        switch (id) {
+            case android.R.id.home:
+                finish();
+                return true;
+
+            case R.id.action_export_diagnostics:
+                exportSessions();
+                return true;
+
+            case R.id.action_clear_diagnostics:
+                metricsStore.clear();
+                showSessions();
+                return true;
+        }
+
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showSessions() {
+        StringBuilder text = new StringBuilder();
+        appendStartup(text, StartupTimings.getInstance());
+
+        List<UploadMetrics> sessions = metricsStore.getSessions();
+        if (sessions.isEmpty()) {
+            text.append("\n\n").append(getString(R.string.diagnostics_no_sessions));
+        }
+        for (UploadMetrics session : sessions) {
+            text.append("\n\n");
+            appendSession(text, session);
+        }
+        diagnosticsText.setText(text);
+    }
+
+    private void appendStartup(StringBuilder text, StartupTimings timings) {
+        text.append(getString(R.string.diagnostics_startup));
+        for (Map.Entry<String, Long> phase : timings.getPhases().entrySet()) {
+            text.append('\n').append(getString(R.string.diagnostics_startup_phase, phase.getKey(), phase.getValue()));
+        }
+        for (Map.Entry<String, Long> milestone : timings.getMilestones().entrySet()) {
+            text.append('\n').append(getString(R.string.diagnostics_startup_milestone, milestone.getKey(),
+                    milestone.getValue()));
+        }
+    }
+
+    private void appendSession(StringBuilder text, UploadMetrics session) {
+        DateFormat dateFormat = android.text.format.DateFormat.getTimeFormat(this);
+        long durationMillis = session.getDurationMillis();
+        String duration = durationMillis >= 0 ? getString(R.string.diagnostics_duration, durationMillis) :
+                getString(R.string.diagnostics_session_running);
+
+        text.append(getString(R.string.diagnostics_session,
+                dateFormat.format(new Date(session.getStartedAt())),
+                session.getUploadedCount(),
+                session.getFailedCount(),
+                session.getRequestCount(),
+                Formatter.formatShortFileSize(this, session.getTotalBytesSent()),
+                duration,
+                session.getTlsHandshakes()));
+
+        StringBuilder codes = new StringBuilder();
+        for (Map.Entry<Integer, Integer> entry : session.getResponseCodes().entrySet()) {
+            if (codes.length() > 0) {
+                codes.append(", ");
+            }
+            int code = entry.getKey();
+            codes.append(code != UploadMetrics.NO_RESPONSE ? String.valueOf(code) :
+                    getString(R.string.diagnostics_no_response));
+            codes.append(": ").append(entry.getValue());
+        }
+        text.append('\n').append(getString(R.string.diagnostics_response_codes, codes));
+
+        appendHistogram(text, R.string.diagnostics_record_write_time, session.getRecordWriteTime());
+        appendHistogram(text, R.string.diagnostics_record_bytes_sent, session.getRecordBytesSent());
+        appendHistogram(text, R.string.diagnostics_first_byte_time, session.getFirstByteTime());
+        appendHistogram(text, R.string.diagnostics_delete_time, session.getDeleteTime());
+    }
+
+    private void appendHistogram(StringBuilder text, int labelId, Histogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+
+        text.append('\n').append(getString(R.string.diagnostics_histogram,
+                getString(labelId),
+                histogram.getPercentile(50),
+                histogram.getPercentile(90),
+                histogram.getPercentile(99),
+                histogram.getMax(),
+                histogram.getUnit(),
+                histogram.getCount()));
+    }
+
+    private void exportSessions() {
+        File directory = getExternalFilesDir(EXPORT_DIRECTORY);
+        if (directory == null) {
+            // external storage not available
+            directory = new File(getFilesDir(), EXPORT_DIRECTORY);
+        }
+
+        File exported = metricsStore.export(directory);
+        if (exported != null) {
+            Log.d(LOG_LABEL, "Exported upload metrics to " + exported.getAbsolutePath());
+            Toast.makeText(this, getString(R.string.diagnostics_exported, exported.getAbsolutePath()),
+                    Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this, getString(R.string.diagnostics_export_failed), Toast.LENGTH_LONG).show();
+        }
+    }
+}
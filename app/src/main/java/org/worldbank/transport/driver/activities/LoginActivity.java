@@ -30,6 +30,7 @@ import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.Status;
 
 import org.worldbank.transport.driver.R;
+import org.worldbank.transport.driver.metrics.StartupTimings;
 import org.worldbank.transport.driver.staticmodels.DriverApp;
 import org.worldbank.transport.driver.staticmodels.DriverAppContext;
 import org.worldbank.transport.driver.staticmodels.DriverUserInfo;
@@ -171,6 +172,12 @@ public class LoginActivity extends AppCompatActivity implements LoginTask.LoginC
         }
     }
 
+    @Override
+    protected void onPostResume() {
+        super.onPostResume();
+        StartupTimings.getInstance().milestone(StartupTimings.MILESTONE_FIRST_ACTIVITY);
+    }
+
     @Override
     protected void onStop() {
         try {
@@ -22,36 +22,25 @@ import com.azavea.androidvalidatedforms.controllers.FormSectionController;
 import com.azavea.androidvalidatedforms.controllers.LabeledFieldController;
 import com.azavea.androidvalidatedforms.controllers.SelectionController;
 
-import org.apache.commons.lang.StringUtils;
-import org.jsonschema2pojo.annotations.FieldFormat;
 import org.jsonschema2pojo.annotations.FieldFormats;
-import org.jsonschema2pojo.annotations.FieldType;
 import org.jsonschema2pojo.annotations.FieldTypes;
-import org.jsonschema2pojo.annotations.IsHidden;
 
 import com.azavea.androidvalidatedforms.tasks.ValidationTask;
-import com.google.gson.annotations.SerializedName;
-import javax.validation.constraints.NotNull;
 
-import org.jsonschema2pojo.annotations.WatchTarget;
 import org.jsonschema2pojo.media.SerializableMedia;
 import org.worldbank.transport.driver.R;
-import org.worldbank.transport.driver.annotations.ConstantFieldType;
 import org.worldbank.transport.driver.annotations.ConstantFieldTypes;
 import org.worldbank.transport.driver.controls.DriverImageController;
 import org.worldbank.transport.driver.staticmodels.DriverApp;
 import org.worldbank.transport.driver.staticmodels.DriverAppContext;
 import org.worldbank.transport.driver.utilities.DriverUtilities;
 import org.worldbank.transport.driver.utilities.RecordFormSectionManager;
+import org.worldbank.transport.driver.utilities.SchemaIndex;
 
-import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
-import java.util.Set;
 
 /**
  * Base class for creating dynamic forms for DriverSchema sections.
@@ -218,69 +207,36 @@ public abstract class RecordFormActivity extends FormWithAppCompatActivity {
 
     private FormSectionController addSectionModel() {
         FormSectionController section = new FormSectionController(this, sectionLabel);
-        Field[] fields = sectionClass.getDeclaredFields();
 
-        HashMap<String, Class> enums = new HashMap<>();
-
-        // find enums for select lists
-        Class[] classes = sectionClass.getDeclaredClasses();
-        for (Class clazz : classes) {
-            if (clazz.isEnum()) {
-                enums.put(clazz.getSimpleName(), clazz);
-            }
-        }
+        // read fields from the schema index rather than the class annotations
+        SchemaIndex.ClassInfo classInfo = SchemaIndex.describe(sectionClass);
 
         // map of field names to their form controls
-        HashMap<String, LabeledFieldController> fieldControls = new HashMap<>(fields.length);
+        HashMap<String, LabeledFieldController> fieldControls = new HashMap<>(classInfo.fields.size());
+
+        for (SchemaIndex.FieldInfo field: classInfo.fields) {
+            if (field.hidden) {
+                continue;
+            }
 
-        field_loop:
-        for (Field field: fields) {
             LabeledFieldController control = null;
-            String fieldName = field.getName();
+            String fieldName = field.name;
             String fieldLabel = fieldName;
-            FieldTypes fieldType = null;
-            FieldFormats format = null;
-            boolean isRequired = false;
-            ConstantFieldTypes constantFieldType = null;
-            String watchTarget = null;
+            FieldTypes fieldType = field.fieldType;
+            FieldFormats format = field.format;
+            boolean isRequired = field.required;
+            ConstantFieldTypes constantFieldType = field.constantFieldType;
+            String watchTarget = field.watchTarget;
 
             // constants form keeps translated field labels in strings
             if (isConstants) {
                 fieldLabel = getString(resources.getIdentifier(fieldName, "string", packageName));
+            } else if (field.label != null) {
+                fieldLabel = field.label;
             }
 
-            Annotation[] annotations = field.getDeclaredAnnotations();
-
-            for (Annotation annotation: annotations) {
-
-                Class annotationType = annotation.annotationType();
-
-                if (annotationType.equals(IsHidden.class)) {
-                    IsHidden isHidden = (IsHidden) annotation;
-                    if (isHidden.value()) {
-                        continue field_loop;
-                    } else {
-                        Log.w(LOG_LABEL, "Have false isHidden annotation, which is inefficient. Better just leave it off.");
-                    }
-                } else if (annotationType.equals(FieldType.class)) {
-                    FieldType fieldTypeAnnotation = (FieldType) annotation;
-                    fieldType = fieldTypeAnnotation.value();
-                } else if (annotationType.equals(FieldFormat.class)) {
-                    FieldFormat formatAnnotation = (FieldFormat) annotation;
-                    format = formatAnnotation.value();
-                    Log.d(LOG_LABEL, "Format for field " + fieldName + " is : " + format);
-                } else if (annotationType.equals(SerializedName.class) && !isConstants) {
-                    SerializedName serializedName = (SerializedName) annotation;
-                    fieldLabel = serializedName.value();
-                } else if (annotationType.equals(NotNull.class)) {
-                    isRequired = true;
-                } else if (annotationType.equals(ConstantFieldType.class)) {
-                    ConstantFieldType constantFieldTypeAnnotation = (ConstantFieldType) annotation;
-                    constantFieldType = constantFieldTypeAnnotation.value();
-                } else if (annotationType.equals(WatchTarget.class)) {
-                    WatchTarget watchTargetAnnotation = (WatchTarget) annotation;
-                    watchTarget = watchTargetAnnotation.value();
-                }
+            if (format != null) {
+                Log.d(LOG_LABEL, "Format for field " + fieldName + " is : " + format);
             }
 
             if (fieldType != null) {
@@ -289,41 +245,27 @@ public abstract class RecordFormActivity extends FormWithAppCompatActivity {
                     case image:
                         Log.d(LOG_LABEL, "found image field");
 
-                        if (!field.getType().equals(SerializableMedia.class)) {
-                            Log.e(LOG_LABEL, "image field has wrong type: " + field.getType());
+                        if (!SerializableMedia.class.getName().equals(field.typeName)) {
+                            Log.e(LOG_LABEL, "image field has wrong type: " + field.typeName);
                             continue;
                         }
 
                         control = new DriverImageController(this, fieldName, fieldLabel, isRequired);
                         break;
                     case selectlist:
-                        // find enum with the options in it
-                        Class fieldClass = field.getType();
-                        Class enumClass = enums.get(fieldClass.getSimpleName());
+                        SelectListInfo enumListInfo = buildSelectEnumInfo(field);
+                        if (enumListInfo == null) {
+                            Log.e(LOG_LABEL, "selectlist enumeration not found for " + field.typeName);
+                            continue;
+                        }
 
                         // for checkbox-formatted fields, enum is in a separate class (not inner)
-                        if (enumClass == null) {
-                            if (fieldClass.equals(Set.class) || fieldClass.equals(List.class)) {
-                                String enumName = RecordFormSectionManager.MODEL_PACKAGE +
-                                        StringUtils.capitalize(fieldName) + "Enum";
-                                try {
-                                    enumClass = DriverApp.getSchemaClassLoader().loadClass(enumName);
-                                    SelectListInfo enumListInfo = buildSelectEnumInfo(enumClass);
-                                    control = new CheckBoxController(this, fieldName, fieldLabel, isRequired,
-                                            enumListInfo.labels, enumListInfo.items);
-                                } catch (ClassNotFoundException e) {
-                                    e.printStackTrace();
-                                    Log.e(LOG_LABEL, "selectlist enumeration class " + enumName + " not found for " + fieldClass);
-                                    continue;
-                                }
-                            } else {
-                                Log.e(LOG_LABEL, "selectlist enumeration not found for " + fieldClass);
-                                continue;
-                            }
+                        if (field.collection) {
+                            control = new CheckBoxController(this, fieldName, fieldLabel, isRequired,
+                                    enumListInfo.labels, enumListInfo.items);
                         } else {
-                            SelectListInfo enumListInfo = buildSelectEnumInfo(enumClass);
                             if (!isRequired) {
-                                Log.d(LOG_LABEL, "Adding empty option to list for " + fieldClass);
+                                Log.d(LOG_LABEL, "Adding empty option to list for " + field.typeName);
                                 enumListInfo.labels.add(0, "");
                                 enumListInfo.items.add(0, "");
                             }
@@ -418,7 +360,7 @@ public abstract class RecordFormActivity extends FormWithAppCompatActivity {
         }
 
         // read/respect JsonPropertyOrder annotation of fields, if present
-        String[] orderedFields = DriverUtilities.getFieldOrder(sectionClass);
+        String[] orderedFields = classInfo.fieldOrder;
 
         // add form controls in order
         for (String nextField : orderedFields) {
@@ -450,37 +392,42 @@ public abstract class RecordFormActivity extends FormWithAppCompatActivity {
     /**
      * Helper to build the labels and items to go in a select control for a field of enums.
      *
-     * @param enumClass Enum class containing options to put in the control
-     * @return SelectListInfo structure with labels and items to use in select field
+     * @param field Indexed select list field, with the options to put in the control
+     * @return SelectListInfo structure with labels and items to use in select field,
+     *         or null if the enum was not found
      */
-    private SelectListInfo buildSelectEnumInfo(Class enumClass) {
-        ArrayList<Object> enumValueObjectList = new ArrayList<>(Arrays.asList(enumClass.getEnumConstants()));
-        ArrayList<String> enumLabels = new ArrayList<>(enumValueObjectList.size());
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private SelectListInfo buildSelectEnumInfo(SchemaIndex.FieldInfo field) {
+        if (field.enumClassName == null || field.options == null) {
+            return null;
+        }
 
-        for (Object enumConstant : enumValueObjectList) {
-            String prettyLabel = enumConstant.toString();
+        Class enumClass;
+        try {
+            // enum is defined alongside the section class
+            enumClass = sectionClass.getClassLoader().loadClass(field.enumClassName);
+        } catch (ClassNotFoundException e) {
+            Log.e(LOG_LABEL, "selectlist enumeration class " + field.enumClassName + " not found");
+            e.printStackTrace();
+            return null;
+        }
 
-            Enum myEnum = (Enum) enumConstant;
+        ArrayList<Object> enumValueObjectList = new ArrayList<>(field.options.size());
+        ArrayList<String> enumLabels = new ArrayList<>(field.options.size());
 
-            // Find the field of the same name as the enum constant, to get its label from
-            // the SerializedName annotation.
-            try {
-                Field enumField = enumClass.getField(myEnum.name());
-                if (isConstants) {
-                    // labels are in strings.xml for translation
-                    // hyphens are not valid in strings.xml identifiers; replaced with underscores
-                    String resourceLabel = prettyLabel.replace("-", "_");
-                    prettyLabel = getString(resources.getIdentifier(resourceLabel, "string", packageName));
-                } else {
-                    SerializedName serializedName = enumField.getAnnotation(SerializedName.class);
-                    if (serializedName != null) {
-                        prettyLabel = serializedName.value();
-                    }
-                }
-            } catch (NoSuchFieldException e) {
-                Log.e(LOG_LABEL, "Failed to find enum field to build label for " + prettyLabel);
-                e.printStackTrace();
+        for (SchemaIndex.EnumOption option : field.options) {
+            String prettyLabel = option.value;
+            if (isConstants) {
+                // labels are in strings.xml for translation
+                // hyphens are not valid in strings.xml identifiers; replaced with underscores
+                String resourceLabel = prettyLabel.replace("-", "_");
+                prettyLabel = getString(resources.getIdentifier(resourceLabel, "string", packageName));
+            } else if (option.label != null) {
+                prettyLabel = option.label;
             }
+
+            enumValueObjectList.add(Enum.valueOf(enumClass, option.name));
             enumLabels.add(prettyLabel);
         }
 
@@ -3,12 +3,13 @@ package org.worldbank.transport.driver.activities;
 import android.app.Dialog;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.DialogFragment;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
@@ -19,8 +20,6 @@ import android.view.MenuItem;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.ProgressBar;
-import android.widget.SimpleCursorAdapter;
-import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.android.gms.auth.api.Auth;
@@ -28,34 +27,32 @@ import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
 
 import org.worldbank.transport.driver.R;
-import org.worldbank.transport.driver.datastore.DriverRecordContract;
+import org.worldbank.transport.driver.adapters.RecordListAdapter;
+import org.worldbank.transport.driver.datastore.RecordListItem;
+import org.worldbank.transport.driver.metrics.StartupTimings;
 import org.worldbank.transport.driver.staticmodels.DriverApp;
 import org.worldbank.transport.driver.staticmodels.DriverAppContext;
 import org.worldbank.transport.driver.tasks.CheckSchemaTask;
 import org.worldbank.transport.driver.tasks.PostRecordsTask;
+import org.worldbank.transport.driver.tasks.RecordListLoader;
 import org.worldbank.transport.driver.tasks.UpdateSchemaTask;
-import org.worldbank.transport.driver.utilities.DriverUtilities;
 import org.worldbank.transport.driver.utilities.LocationServiceManager;
 import org.worldbank.transport.driver.utilities.RecordFormSectionManager;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 
 public class RecordListActivity extends AppCompatActivity implements CheckSchemaTask.CheckSchemaCallbackListener,
-        PostRecordsTask.PostRecordsListener, UpdateSchemaTask.UpdateSchemaCallbackListener {
+        PostRecordsTask.PostRecordsListener, UpdateSchemaTask.UpdateSchemaCallbackListener,
+        LoaderManager.LoaderCallbacks<List<RecordListItem>>, RecordListAdapter.RecordListPagingListener,
+        DriverApp.SchemaReadyListener {
 
     private static final String LOG_LABEL = "RecordListActivity";
 
-    private static final DateFormat sourceDateFormat =
-            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+    private static final int RECORD_LIST_LOADER_ID = 0;
 
-    SimpleCursorAdapter adapter;
+    RecordListAdapter adapter;
     DriverApp app;
     CheckSchemaTask checkSchemaTask;
     PostRecordsTask postRecordsTask;
@@ -94,67 +91,22 @@ public class RecordListActivity extends AppCompatActivity implements CheckSchema
 
         // set up list view
         recordListView = (ListView) findViewById(R.id.record_list_view);
-        String[] useColumns = { DriverRecordContract.RecordEntry.COLUMN_ENTERED_AT };
-        int[] toViews = { R.id.record_list_item_entered_at };
-        adapter = new SimpleCursorAdapter(
-                getApplicationContext(),
-                R.layout.record_list_item,
-                app.getAllRecords(),
-                useColumns,
-                toViews,
-                0);
-
-        // use 24-hour date format if system does so
-        final SimpleDateFormat displayDateFormatter;
-        String dateFormatString = "EEEE d MMMM, y ";
-        final Locale locale = Locale.getDefault();
-        if (android.text.format.DateFormat.is24HourFormat(this)) {
-            dateFormatString += "HH:mm:ss z";
-        } else {
-            dateFormatString += "hh:mm:ss z";
-        }
-
-        displayDateFormatter = new SimpleDateFormat(dateFormatString, locale);
-        displayDateFormatter.setTimeZone(TimeZone.getDefault());
-
-        sourceDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-
-        adapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
-            @Override
-            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
-                // format created at date
-                if (columnIndex == 1) {
-                    TextView textView = (TextView) view;
-                    // stored in SQLite as yyyy-mm-dd hh:mm:ss
-                    String createdAt = cursor.getString(1);
-                    try {
-                        Date date = sourceDateFormat.parse(createdAt);
-                        String dateString;
-                        if (useUmmalqura) {
-                            // format in Umm al-Qura Hijri calendar
-                            dateString = DriverUtilities.formatDateAsUmmalqura(date, displayDateFormatter, locale);
-                        } else {
-                            dateString = displayDateFormatter.format(date);
-                        }
-                        textView.setText(dateString);
-                    } catch (ParseException e) {
-                        Log.e(LOG_LABEL, "Failed to parse date string " + createdAt);
-                        e.printStackTrace();
-                        textView.setText(createdAt);
-                    }
-                    return true;
-                }
-                return false;
-            }
-        });
+        adapter = new RecordListAdapter(this, useUmmalqura, this);
         recordListView.setAdapter(adapter);
 	recordListView.setEmptyView(findViewById(android.R.id.empty));
 
+        // load records in the background, a page at a time
+        getSupportLoaderManager().initLoader(RECORD_LIST_LOADER_ID, null, this);
+
         recordListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 // id here is database _ID
                 Log.d(LOG_LABEL, "Going to edit record with ID: " + id);
+                if (!app.canEditRecord(id)) {
+                    showToast(getString(R.string.record_from_earlier_schema), true);
+                    return;
+                }
                 app.setCurrentlyEditingRecord(id);
                 loadRecordForm();
             }
@@ -172,17 +124,36 @@ public class RecordListActivity extends AppCompatActivity implements CheckSchema
                 return true;
             }
         });
+
+        // records can be listed while the schema loads, but not added or edited
+        if (!app.isSchemaReady()) {
+            Log.d(LOG_LABEL, "Waiting for schema to load");
+            progressBar.setIndeterminate(true);
+            progressBar.setVisibility(View.VISIBLE);
+            fab.setVisibility(View.INVISIBLE);
+            recordListView.setEnabled(false);
+        }
+        app.whenSchemaReady(this);
     }
 
     @Override
     protected void onPostResume() {
         Log.d(LOG_LABEL, "in onPostResume for record list; refresh list");
         super.onPostResume();
-        if (adapter != null) {
-            Log.d(LOG_LABEL, "Updating cursor");
-            adapter.changeCursor(app.getAllRecords());
-            adapter.notifyDataSetChanged();
+        StartupTimings.getInstance().milestone(StartupTimings.MILESTONE_FIRST_ACTIVITY);
+        reloadRecordList();
+    }
+
+    @Override
+    public void schemaReady(boolean loaded) {
+        Log.d(LOG_LABEL, "Schema ready; loaded: " + loaded);
+        if (isFinishing()) {
+            return;
         }
+
+        progressBar.setVisibility(View.GONE);
+        findViewById(R.id.record_list_fab).setVisibility(View.VISIBLE);
+        recordListView.setEnabled(true);
     }
 
     @Override
@@ -206,6 +177,9 @@ public class RecordListActivity extends AppCompatActivity implements CheckSchema
         } else if (id == R.id.action_update_schema) {
             startSchemaUpdateCheck();
             return true;
+        } else if (id == R.id.action_diagnostics) {
+            startActivity(new Intent(this, DiagnosticsActivity.class));
+            return true;
         } else if (id == R.id.action_logout) {
             confirmLogout();
         } else {
@@ -308,16 +282,10 @@ public class RecordListActivity extends AppCompatActivity implements CheckSchema
             if (updateSchemaTask != null) {
                 Log.w(LOG_LABEL, "Schema update task already running! Doing nothing.");
             } else {
-                // be sure there are no records around before updating
-                if (adapter.getCount() == 0) {
-                    Log.d(LOG_LABEL, "Starting schema update task");
-                    updateSchemaTask = new UpdateSchemaTask(this, app.getUserInfo());
-                    updateSchemaTask.execute(currentSchema);
-                } else {
-                    Log.w(LOG_LABEL, "Have records that have not uploaded yet; not updating schema now");
-                    showToast(getString(R.string.schema_not_updated_have_records), true);
-                    showProgressBar(false);
-                }
+                // records not yet uploaded keep the schema they were entered with
+                Log.d(LOG_LABEL, "Starting schema update task");
+                updateSchemaTask = new UpdateSchemaTask(this, app.getUserInfo());
+                updateSchemaTask.execute(currentSchema);
             }
 
         } else {
@@ -397,8 +365,7 @@ public class RecordListActivity extends AppCompatActivity implements CheckSchema
         }
 
         // clear now-outdated list view of the uploaded records
-        adapter.changeCursor(app.getAllRecords());
-        adapter.notifyDataSetChanged();
+        reloadRecordList();
     }
 
     @Override
@@ -423,6 +390,42 @@ public class RecordListActivity extends AppCompatActivity implements CheckSchema
         });
     }
 
+    @Override
+    public Loader<List<RecordListItem>> onCreateLoader(int id, Bundle args) {
+        return new RecordListLoader(this, DriverApp.getDatabaseManager());
+    }
+
+    @Override
+    public void onLoadFinished(Loader<List<RecordListItem>> loader, List<RecordListItem> data) {
+        adapter.setRecords(data);
+    }
+
+    @Override
+    public void onLoaderReset(Loader<List<RecordListItem>> loader) {
+        adapter.setRecords(null);
+    }
+
+    @Override
+    public void needNextPage() {
+        RecordListLoader loader = getRecordListLoader();
+        if (loader != null) {
+            loader.loadNextPage();
+        }
+    }
+
+    private void reloadRecordList() {
+        RecordListLoader loader = getRecordListLoader();
+        if (loader != null) {
+            Log.d(LOG_LABEL, "Reloading record list");
+            loader.reload();
+        }
+    }
+
+    private RecordListLoader getRecordListLoader() {
+        Loader<List<RecordListItem>> loader = getSupportLoaderManager().getLoader(RECORD_LIST_LOADER_ID);
+        return (RecordListLoader) loader;
+    }
+
     public void startSingleRecordUploadTask(long recordId) {
         showProgressBar(true);
 
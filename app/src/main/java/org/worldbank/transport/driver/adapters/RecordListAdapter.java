@@ -0,0 +1,139 @@
+package org.worldbank.transport.driver.adapters;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import org.worldbank.transport.driver.R;
+import org.worldbank.transport.driver.datastore.RecordListItem;
+import org.worldbank.transport.driver.utilities.DriverUtilities;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Presents the loaded pages of the record list, and asks for the next page
+ * when the user scrolls near the end of those loaded.
+ */
+public class RecordListAdapter extends BaseAdapter {
+
+    private static final String LOG_LABEL = "RecordListAdapter";
+
+    // request the next page when within this many rows of the end of the loaded records
+    private static final int PREFETCH_DISTANCE = 10;
+
+    private static final DateFormat sourceDateFormat =
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+
+    public interface RecordListPagingListener {
+        void needNextPage();
+    }
+
+    private final LayoutInflater inflater;
+    private final RecordListPagingListener pagingListener;
+    private final SimpleDateFormat displayDateFormatter;
+    private final Locale locale;
+    private final boolean useUmmalqura;
+
+    private List<RecordListItem> records = new ArrayList<>();
+
+    public RecordListAdapter(Context context, boolean useUmmalqura, RecordListPagingListener pagingListener) {
+        this.inflater = LayoutInflater.from(context);
+        this.useUmmalqura = useUmmalqura;
+        this.pagingListener = pagingListener;
+
+        // use 24-hour date format if system does so
+        String dateFormatString = "EEEE d MMMM, y ";
+        locale = Locale.getDefault();
+        if (android.text.format.DateFormat.is24HourFormat(context)) {
+            dateFormatString += "HH:mm:ss z";
+        } else {
+            dateFormatString += "hh:mm:ss z";
+        }
+
+        displayDateFormatter = new SimpleDateFormat(dateFormatString, locale);
+        displayDateFormatter.setTimeZone(TimeZone.getDefault());
+
+        sourceDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Replace the records shown.
+     *
+     * @param records All records loaded so far, in list order
+     */
+    public void setRecords(List<RecordListItem> records) {
+        this.records = records != null ? records : new ArrayList<RecordListItem>();
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return records.size();
+    }
+
+    @Override
+    public RecordListItem getItem(int position) {
+        return records.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        // database _ID
+        return records.get(position).recordId;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View view = convertView;
+        if (view == null) {
+            view = inflater.inflate(R.layout.record_list_item, parent, false);
+        }
+
+        TextView textView = (TextView) view.findViewById(R.id.record_list_item_entered_at);
+        textView.setText(formatEnteredAt(records.get(position).enteredAt));
+
+        if (position >= records.size() - PREFETCH_DISTANCE && pagingListener != null) {
+            pagingListener.needNextPage();
+        }
+
+        return view;
+    }
+
+    /**
+     * Format created at date for display.
+     *
+     * @param createdAt Date stored in SQLite as yyyy-mm-dd hh:mm:ss
+     * @return Date formatted in the user's locale and calendar
+     */
+    private String formatEnteredAt(String createdAt) {
+        try {
+            Date date = sourceDateFormat.parse(createdAt);
+            if (useUmmalqura) {
+                // format in Umm al-Qura Hijri calendar
+                return DriverUtilities.formatDateAsUmmalqura(date, displayDateFormatter, locale);
+            } else {
+                return displayDateFormatter.format(date);
+            }
+        } catch (ParseException e) {
+            Log.e(LOG_LABEL, "Failed to parse date string " + createdAt);
+            e.printStackTrace();
+            return createdAt;
+        }
+    }
+}
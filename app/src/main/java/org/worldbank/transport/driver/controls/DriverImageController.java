@@ -1,19 +1,44 @@
 package org.worldbank.transport.driver.controls;
 
+import android.app.Activity;
 import android.content.Context;
 
 import com.azavea.androidvalidatedforms.controllers.ImageController;
 
 import org.jsonschema2pojo.media.SerializableMedia;
+import org.worldbank.transport.driver.images.ImageProcessingProfile;
+import org.worldbank.transport.driver.images.ImageProcessor;
+import org.worldbank.transport.driver.tasks.ProcessImageTask;
 
 /**
  * Subclass image controller to get and set path on holder class used for Gson serialization.
  *
+ * Attached photos are downscaled and recompressed in the background; the record refers to the
+ * original photo until the processed one is ready. Photos still being processed when the record
+ * is saved are processed again on save, as the form may close before they are ready.
+ *
  * Created by kathrynkillebrew on 2/4/16.
  */
-public class DriverImageController extends ImageController {
+public class DriverImageController extends ImageController implements ProcessImageTask.ProcessImageListener {
+
+    // shared by all image fields, so its reusable bitmap carries over between photos
+    private static ImageProcessor imageProcessor;
+
+    private final Context context;
+
     public DriverImageController(Context ctx, String name, String labelText, boolean isRequired) {
         super(ctx, name, labelText, isRequired);
+        context = ctx;
+    }
+
+    /**
+     * @return Processor shared by the image fields of the form, and by saving records
+     */
+    public static synchronized ImageProcessor getImageProcessor(Context context) {
+        if (imageProcessor == null) {
+            imageProcessor = new ImageProcessor(context.getApplicationContext(), ImageProcessingProfile.DEFAULT);
+        }
+        return imageProcessor;
     }
 
     @Override
@@ -29,11 +54,34 @@ public class DriverImageController extends ImageController {
 
     @Override
     protected void setModelValue(String newImagePath) {
-        SerializableMedia media = null;
+        setMediaPath(newImagePath);
 
         if (newImagePath != null && !newImagePath.isEmpty()) {
+            new ProcessImageTask(this, getImageProcessor(context)).execute(newImagePath);
+        }
+    }
+
+    @Override
+    public boolean imageProcessed(String originalPath, String processedPath) {
+        // form may have been saved and closed, or another photo chosen, while processing
+        if (context instanceof Activity && ((Activity) context).isFinishing()) {
+            return false;
+        }
+        if (!originalPath.equals(getModelValue())) {
+            return false;
+        }
+
+        setMediaPath(processedPath);
+        refresh();
+        return true;
+    }
+
+    private void setMediaPath(String imagePath) {
+        SerializableMedia media = null;
+
+        if (imagePath != null && !imagePath.isEmpty()) {
             media = new SerializableMedia();
-            media.path = newImagePath;
+            media.path = imagePath;
         }
 
         getModel().setValue(getName(), media);
@@ -0,0 +1,120 @@
+package org.worldbank.transport.driver.datastore;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * Stores records in a compact tagged binary format, optionally deflated.
+ *
+ * Records are written by Gson through BinaryRecordWriter, with the same type adapters as JSON,
+ * and read back through BinaryRecordReader. The format is a stream of tagged tokens; field names
+ * and short strings are written once per record and referred to by index after that, so the
+ * repeated names and enum values of multiple sections take a byte or two each.
+ *
+ * Field names are not numbered from the schema classes, so a stored record can still be read
+ * after the schema changes, and can be converted to JSON without the schema classes.
+ *
+ * Format: version byte, flags byte, then the tokens; deflated if FLAG_DEFLATED is set.
+ */
+public class BinaryRecordCodec implements RecordCodec {
+
+    static final int FORMAT_VERSION = 1;
+
+    static final int FLAG_DEFLATED = 1;
+
+    // token tags
+    static final int TAG_BEGIN_OBJECT = 1;
+    static final int TAG_END_OBJECT = 2;
+    static final int TAG_BEGIN_ARRAY = 3;
+    static final int TAG_END_ARRAY = 4;
+    static final int TAG_NAME = 5;          // length-prefixed UTF-8, added to the string table
+    static final int TAG_NAME_REF = 6;      // index into the string table
+    static final int TAG_STRING = 7;        // length-prefixed UTF-8, added to the string table
+    static final int TAG_STRING_REF = 8;    // index into the string table
+    static final int TAG_TEXT = 9;          // length-prefixed UTF-8, not added to the string table
+    static final int TAG_LONG = 10;         // zigzag varint
+    static final int TAG_DOUBLE = 11;       // 8 bytes, big-endian
+    static final int TAG_NUMBER = 12;       // length-prefixed number text, for other number types
+    static final int TAG_TRUE = 13;
+    static final int TAG_FALSE = 14;
+    static final int TAG_NULL = 15;
+
+    // strings longer than this are free text, and unlikely to repeat within a record
+    static final int MAX_TABLE_STRING_LENGTH = 64;
+
+    private final boolean deflate;
+
+    /**
+     * @param deflate True to deflate records as they are written. Records are read either way.
+     */
+    public BinaryRecordCodec(boolean deflate) {
+        this.deflate = deflate;
+    }
+
+    @Override
+    public int getId() {
+        return BINARY;
+    }
+
+    @Override
+    public byte[] encode(Object record, Class recordClass) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(FORMAT_VERSION);
+        bytes.write(deflate ? FLAG_DEFLATED : 0);
+
+        // tokens are written a few bytes at a time, so buffer them for the deflater
+        OutputStream out = deflate ? new BufferedOutputStream(new DeflaterOutputStream(bytes)) : bytes;
+        BinaryRecordWriter writer = new BinaryRecordWriter(out);
+        try {
+            DriverSchemaSerializer.getStorageGson().toJson(record, recordClass, writer);
+        } finally {
+            // finishes deflating, and releases the deflater
+            writer.close();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Records are decoded through a JSON tree, because Gson reads maps with JsonReader internals
+     * that a JsonReader subclass cannot provide.
+     */
+    @Override
+    public Object decode(byte[] data, Class recordClass) throws IOException {
+        JsonReader reader = newReader(data);
+        try {
+            JsonElement tree = new JsonParser().parse(reader);
+            return DriverSchemaSerializer.getStorageGson().fromJson(tree, recordClass);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public JsonReader newReader(byte[] data) throws IOException {
+        InputStream in = new ByteArrayInputStream(data);
+        int version = in.read();
+        int flags = in.read();
+        if (version != FORMAT_VERSION || flags < 0) {
+            throw new IOException("Unsupported binary record format version " + version);
+        }
+
+        if ((flags & FLAG_DEFLATED) != 0) {
+            in = new BufferedInputStream(new InflaterInputStream(in));
+        }
+
+        return new BinaryRecordReader(in);
+    }
+}
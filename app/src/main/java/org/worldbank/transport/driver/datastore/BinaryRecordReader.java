@@ -0,0 +1,306 @@
+package org.worldbank.transport.driver.datastore;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+
+/**
+ * JsonReader over the BinaryRecordCodec token format, so that Gson can read records from it
+ * with the usual type adapters, and stored records can be copied out as JSON.
+ */
+class BinaryRecordReader extends JsonReader {
+
+    private static final int NOT_PEEKED = -2;
+    private static final int END_OF_STREAM = -1;
+
+    private final DataInputStream in;
+
+    // strings read so far, in the order they were added to the table by the writer
+    private final ArrayList<String> stringTable = new ArrayList<>();
+
+    // tag of the next token, read ahead by peek
+    private int peekedTag = NOT_PEEKED;
+
+    BinaryRecordReader(InputStream in) {
+        // JsonReader requires a reader; all of its reading methods are overridden
+        super(new StringReader(""));
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public JsonToken peek() throws IOException {
+        switch (peekTag()) {
+            case BinaryRecordCodec.TAG_BEGIN_OBJECT:
+                return JsonToken.BEGIN_OBJECT;
+            case BinaryRecordCodec.TAG_END_OBJECT:
+                return JsonToken.END_OBJECT;
+            case BinaryRecordCodec.TAG_BEGIN_ARRAY:
+                return JsonToken.BEGIN_ARRAY;
+            case BinaryRecordCodec.TAG_END_ARRAY:
+                return JsonToken.END_ARRAY;
+            case BinaryRecordCodec.TAG_NAME:
+            case BinaryRecordCodec.TAG_NAME_REF:
+                return JsonToken.NAME;
+            case BinaryRecordCodec.TAG_STRING:
+            case BinaryRecordCodec.TAG_STRING_REF:
+            case BinaryRecordCodec.TAG_TEXT:
+                return JsonToken.STRING;
+            case BinaryRecordCodec.TAG_LONG:
+            case BinaryRecordCodec.TAG_DOUBLE:
+            case BinaryRecordCodec.TAG_NUMBER:
+                return JsonToken.NUMBER;
+            case BinaryRecordCodec.TAG_TRUE:
+            case BinaryRecordCodec.TAG_FALSE:
+                return JsonToken.BOOLEAN;
+            case BinaryRecordCodec.TAG_NULL:
+                return JsonToken.NULL;
+            case END_OF_STREAM:
+                return JsonToken.END_DOCUMENT;
+            default:
+                throw new IOException("Unknown tag in binary record: " + peekedTag);
+        }
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        expect(JsonToken.BEGIN_OBJECT);
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        expect(JsonToken.END_OBJECT);
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        expect(JsonToken.BEGIN_ARRAY);
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        expect(JsonToken.END_ARRAY);
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        JsonToken token = peek();
+        return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY && token != JsonToken.END_DOCUMENT;
+    }
+
+    @Override
+    public String nextName() throws IOException {
+        int tag = peekTag();
+        if (tag == BinaryRecordCodec.TAG_NAME) {
+            consume();
+            return readTableString();
+        } else if (tag == BinaryRecordCodec.TAG_NAME_REF) {
+            consume();
+            return readTableRef();
+        }
+        throw unexpected(JsonToken.NAME);
+    }
+
+    @Override
+    public String nextString() throws IOException {
+        int tag = peekTag();
+        switch (tag) {
+            case BinaryRecordCodec.TAG_STRING:
+                consume();
+                return readTableString();
+            case BinaryRecordCodec.TAG_STRING_REF:
+                consume();
+                return readTableRef();
+            case BinaryRecordCodec.TAG_TEXT:
+            case BinaryRecordCodec.TAG_NUMBER:
+                consume();
+                return readUtf8();
+            case BinaryRecordCodec.TAG_LONG:
+                consume();
+                return Long.toString(readZigzag());
+            case BinaryRecordCodec.TAG_DOUBLE:
+                consume();
+                return Double.toString(in.readDouble());
+            default:
+                throw unexpected(JsonToken.STRING);
+        }
+    }
+
+    @Override
+    public boolean nextBoolean() throws IOException {
+        int tag = peekTag();
+        if (tag == BinaryRecordCodec.TAG_TRUE || tag == BinaryRecordCodec.TAG_FALSE) {
+            consume();
+            return tag == BinaryRecordCodec.TAG_TRUE;
+        }
+        throw unexpected(JsonToken.BOOLEAN);
+    }
+
+    @Override
+    public void nextNull() throws IOException {
+        expect(JsonToken.NULL);
+    }
+
+    @Override
+    public double nextDouble() throws IOException {
+        int tag = peekTag();
+        if (tag == BinaryRecordCodec.TAG_DOUBLE) {
+            consume();
+            return in.readDouble();
+        } else if (tag == BinaryRecordCodec.TAG_LONG) {
+            consume();
+            return readZigzag();
+        }
+
+        JsonToken token = peek();
+        if (token != JsonToken.NUMBER && token != JsonToken.STRING) {
+            throw unexpected(JsonToken.NUMBER);
+        }
+
+        double value = Double.parseDouble(nextString());
+        if (!isLenient() && (Double.isNaN(value) || Double.isInfinite(value))) {
+            throw new NumberFormatException("JSON forbids NaN and infinities: " + value);
+        }
+        return value;
+    }
+
+    @Override
+    public long nextLong() throws IOException {
+        if (peekTag() == BinaryRecordCodec.TAG_LONG) {
+            consume();
+            return readZigzag();
+        }
+
+        double value = nextDouble();
+        long result = (long) value;
+        if (result != value) {
+            throw new NumberFormatException("Expected a long but was " + value);
+        }
+        return result;
+    }
+
+    @Override
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        int result = (int) value;
+        if (result != value) {
+            throw new NumberFormatException("Expected an int but was " + value);
+        }
+        return result;
+    }
+
+    @Override
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                case BEGIN_ARRAY:
+                    consume();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    consume();
+                    depth--;
+                    break;
+                case NAME:
+                    nextName();
+                    break;
+                case NULL:
+                    consume();
+                    break;
+                case BOOLEAN:
+                    nextBoolean();
+                    break;
+                case END_DOCUMENT:
+                    throw new EOFException("End of binary record while skipping value");
+                default:
+                    // strings and numbers; read so that table strings are added
+                    nextString();
+                    break;
+            }
+        } while (depth > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @Override
+    public String getPath() {
+        // positions are not tracked
+        return "$";
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName();
+    }
+
+    private int peekTag() throws IOException {
+        if (peekedTag == NOT_PEEKED) {
+            peekedTag = in.read();
+        }
+        return peekedTag;
+    }
+
+    private void consume() {
+        peekedTag = NOT_PEEKED;
+    }
+
+    private void expect(JsonToken expected) throws IOException {
+        if (peek() != expected) {
+            throw unexpected(expected);
+        }
+        consume();
+    }
+
+    private IllegalStateException unexpected(JsonToken expected) throws IOException {
+        return new IllegalStateException("Expected " + expected + " but was " + peek());
+    }
+
+    private String readTableString() throws IOException {
+        String value = readUtf8();
+        stringTable.add(value);
+        return value;
+    }
+
+    private String readTableRef() throws IOException {
+        int index = (int) readVarint();
+        if (index >= stringTable.size()) {
+            throw new IOException("Bad string reference in binary record: " + index);
+        }
+        return stringTable.get(index);
+    }
+
+    private String readUtf8() throws IOException {
+        byte[] bytes = new byte[(int) readVarint()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private long readZigzag() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in binary record");
+    }
+}
@@ -0,0 +1,218 @@
+package org.worldbank.transport.driver.datastore;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * JsonWriter that writes the BinaryRecordCodec token format instead of JSON text,
+ * so that Gson can write records to it with the usual type adapters.
+ */
+class BinaryRecordWriter extends JsonWriter {
+
+    // JsonWriter requires a writer; all of its writing methods are overridden
+    private static final Writer UNWRITABLE_WRITER = new Writer() {
+        @Override
+        public void write(char[] buffer, int offset, int count) {
+            throw new AssertionError();
+        }
+
+        @Override
+        public void flush() {
+            throw new AssertionError();
+        }
+
+        @Override
+        public void close() {
+            throw new AssertionError();
+        }
+    };
+
+    private final DataOutputStream out;
+
+    // strings written so far, by their index in the table
+    private final Map<String, Integer> stringTable = new HashMap<>();
+
+    // name of the next value; dropped if the value is null and nulls are not serialized
+    private String deferredName;
+
+    BinaryRecordWriter(OutputStream out) {
+        super(UNWRITABLE_WRITER);
+        this.out = new DataOutputStream(out);
+    }
+
+    @Override
+    public JsonWriter beginObject() throws IOException {
+        writeDeferredName();
+        out.write(BinaryRecordCodec.TAG_BEGIN_OBJECT);
+        return this;
+    }
+
+    @Override
+    public JsonWriter endObject() throws IOException {
+        out.write(BinaryRecordCodec.TAG_END_OBJECT);
+        return this;
+    }
+
+    @Override
+    public JsonWriter beginArray() throws IOException {
+        writeDeferredName();
+        out.write(BinaryRecordCodec.TAG_BEGIN_ARRAY);
+        return this;
+    }
+
+    @Override
+    public JsonWriter endArray() throws IOException {
+        out.write(BinaryRecordCodec.TAG_END_ARRAY);
+        return this;
+    }
+
+    @Override
+    public JsonWriter name(String name) throws IOException {
+        if (name == null) {
+            throw new NullPointerException("name == null");
+        }
+        if (deferredName != null) {
+            throw new IllegalStateException("Name written twice: " + name);
+        }
+        deferredName = name;
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        writeDeferredName();
+        if (value.length() <= BinaryRecordCodec.MAX_TABLE_STRING_LENGTH) {
+            writeTableString(BinaryRecordCodec.TAG_STRING, BinaryRecordCodec.TAG_STRING_REF, value);
+        } else {
+            out.write(BinaryRecordCodec.TAG_TEXT);
+            writeUtf8(value);
+        }
+        return this;
+    }
+
+    @Override
+    public JsonWriter jsonValue(String value) throws IOException {
+        throw new UnsupportedOperationException("Raw JSON cannot be written to a binary record");
+    }
+
+    @Override
+    public JsonWriter nullValue() throws IOException {
+        if (deferredName != null) {
+            if (!getSerializeNulls()) {
+                deferredName = null;
+                return this; // skip the name and the value
+            }
+            writeDeferredName();
+        }
+        out.write(BinaryRecordCodec.TAG_NULL);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(boolean value) throws IOException {
+        writeDeferredName();
+        out.write(value ? BinaryRecordCodec.TAG_TRUE : BinaryRecordCodec.TAG_FALSE);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(double value) throws IOException {
+        if (!isLenient() && (Double.isNaN(value) || Double.isInfinite(value))) {
+            throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+        }
+        writeDeferredName();
+        out.write(BinaryRecordCodec.TAG_DOUBLE);
+        out.writeDouble(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(long value) throws IOException {
+        writeDeferredName();
+        out.write(BinaryRecordCodec.TAG_LONG);
+        writeVarint((value << 1) ^ (value >> 63));
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(Number value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return value(value.longValue());
+        }
+
+        if (value instanceof Double) {
+            return value(value.doubleValue());
+        }
+
+        // keep the text of other numbers, as JSON would; floats too, since a float widened
+        // to a double does not print the same
+        String string = value.toString();
+        if (!isLenient() && (string.equals("-Infinity") || string.equals("Infinity") || string.equals("NaN"))) {
+            throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+        }
+        writeDeferredName();
+        out.write(BinaryRecordCodec.TAG_NUMBER);
+        writeUtf8(string);
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeDeferredName() throws IOException {
+        if (deferredName != null) {
+            writeTableString(BinaryRecordCodec.TAG_NAME, BinaryRecordCodec.TAG_NAME_REF, deferredName);
+            deferredName = null;
+        }
+    }
+
+    /**
+     * Write a string in full the first time it is seen, and by its index after that.
+     */
+    private void writeTableString(int tag, int refTag, String value) throws IOException {
+        Integer index = stringTable.get(value);
+        if (index != null) {
+            out.write(refTag);
+            writeVarint(index);
+        } else {
+            stringTable.put(value, stringTable.size());
+            out.write(tag);
+            writeUtf8(value);
+        }
+    }
+
+    private void writeUtf8(String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
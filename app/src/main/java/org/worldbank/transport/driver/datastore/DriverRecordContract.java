@@ -4,9 +4,10 @@ import android.provider.BaseColumns;
 
 
 /**
- * Schema for database table used to store records.
- * The record itself is serialized to JSON before being stored as a string;
- * the other columns are metadata.
+ * Schema for database tables used to store records.
+ * The record itself is encoded with a RecordCodec before being stored in the payload table, as text
+ * for JSON or a blob otherwise; the records table holds only metadata, so that listing records does
+ * not read the record data.
  *
  * Created by kathrynkillebrew on 1/5/16.
  */
@@ -24,6 +25,9 @@ public final class DriverRecordContract {
         public static final String COLUMN_ENTERED_AT = "entered_at";
         public static final String COLUMN_UPDATED_AT = "last_updated";
         public static final String COLUMN_SCHEMA_VERSION = "schema_version";
+
+        // Serialized record data. Only present on databases created before version 4, where it is
+        // blanked once the data has been moved to the payload table; use RecordPayloadEntry instead.
         public static final String COLUMN_DATA = "data";
 
         // fields for record constants
@@ -33,6 +37,78 @@ public final class DriverRecordContract {
         public static final String COLUMN_LONGITUDE = "longitude";
         public static final String COLUMN_WEATHER = "weather";
         public static final String COLUMN_LIGHT = "light";
+
+        // 1 if the record has coordinates and so may be uploaded, 0 if not;
+        // null only for rows not yet migrated from database version 2
+        public static final String COLUMN_UPLOADABLE = "uploadable";
+
+        // Key sent with each upload, so the server can tell a record sent again from a new one.
+        // A new key is made each time the record is saved, as a changed record is a new upload;
+        // null only for rows not yet migrated from database version 7, which are sent without one.
+        public static final String COLUMN_UPLOAD_KEY = "upload_key";
+
+        // indexes
+        public static final String INDEX_ENTERED_AT = "driver_records_entered_at_idx";
+        public static final String INDEX_SCHEMA_VERSION = "driver_records_schema_version_idx";
+        public static final String INDEX_UPLOADABLE = "driver_records_uploadable_idx";
+    }
+
+    // serialized record data, one row per record
+    public static abstract class RecordPayloadEntry {
+        public static final String TABLE_NAME = "driver_record_payloads";
+
+        // fields
+        public static final String COLUMN_RECORD_ID = "record_id";
+        public static final String COLUMN_DATA = "data";
+
+        // ID of the RecordCodec that wrote the data
+        public static final String COLUMN_CODEC = "codec";
+    }
+
+    // media files sent to the server separately from their records, one row per file content
+    public static abstract class MediaUploadEntry implements BaseColumns {
+        public static final String TABLE_NAME = "driver_media_uploads";
+
+        // fields
+        // hex SHA-256 of the file content; the same photo in several records is uploaded once
+        public static final String COLUMN_SHA256 = "sha256";
+        public static final String COLUMN_SIZE = "size";
+
+        // ID the server gave the upload; records refer to the media by it
+        public static final String COLUMN_MEDIA_ID = "media_id";
+
+        // bytes of the file the server has confirmed receiving, so an interrupted upload resumes there
+        public static final String COLUMN_UPLOAD_OFFSET = "upload_offset";
+
+        // 1 once the server has the whole file
+        public static final String COLUMN_COMPLETE = "complete";
+        public static final String COLUMN_UPDATED_AT = "last_updated";
+    }
+
+    // upload state of records that have been tried. A record without a row has not been tried,
+    // and is due to upload now. A failed upload waits to retry, until the next attempt time;
+    // a successful one is acknowledged until the record is deleted, so it is not sent again.
+    public static abstract class UploadOutboxEntry {
+        public static final String TABLE_NAME = "driver_upload_outbox";
+
+        // fields
+        public static final String COLUMN_RECORD_ID = "record_id";
+        public static final String COLUMN_STATE = "state";
+        public static final String COLUMN_ATTEMPTS = "attempts";
+
+        // milliseconds since the epoch at which to try the record again
+        public static final String COLUMN_NEXT_ATTEMPT_AT = "next_attempt_at";
+        public static final String COLUMN_LAST_ERROR = "last_error";
+
+        public static final String INDEX_STATE_NEXT_ATTEMPT_AT = "driver_upload_outbox_state_next_attempt_at";
+        // replaced by INDEX_STATE_NEXT_ATTEMPT_AT in database version 9
+        public static final String INDEX_NEXT_ATTEMPT_AT = "driver_upload_outbox_next_attempt_at";
+
+        // states
+        // failed to upload; waiting until the next attempt time to try again
+        public static final int STATE_RETRY_WAIT = 1;
+        // accepted by the server; to be deleted without being sent again
+        public static final int STATE_ACKNOWLEDGED = 2;
     }
 
     public static final String RECORD_TABLE_CREATE = "CREATE TABLE " + RecordEntry.TABLE_NAME + " (" +
@@ -40,7 +116,6 @@ public final class DriverRecordContract {
             RecordEntry.COLUMN_ENTERED_AT + " TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL, " +
             RecordEntry.COLUMN_UPDATED_AT + " TIMESTAMP, " +
             RecordEntry.COLUMN_SCHEMA_VERSION + " TEXT NOT NULL, " +
-            RecordEntry.COLUMN_DATA + " TEXT NOT NULL, " +
             RecordEntry.COLUMN_OCCURRED_FROM + " TIMESTAMP NOT NULL, " +
             RecordEntry.COLUMN_OCCURRED_TO + " TIMESTAMP NOT NULL, " +
 
@@ -49,8 +124,58 @@ public final class DriverRecordContract {
             RecordEntry.COLUMN_LONGITUDE + " DOUBLE, " +
 
             RecordEntry.COLUMN_WEATHER + " TEXT, " +
-            RecordEntry.COLUMN_LIGHT + " TEXT" +
+            RecordEntry.COLUMN_LIGHT + " TEXT, " +
+            RecordEntry.COLUMN_UPLOADABLE + " INTEGER, " +
+            RecordEntry.COLUMN_UPLOAD_KEY + " TEXT" +
             ");";
 
+    // the record list sorts on entered_at; uploads select uploadable records in the same order
+    public static final String[] RECORD_INDEXES_CREATE = {
+            "CREATE INDEX IF NOT EXISTS " + RecordEntry.INDEX_ENTERED_AT + " ON " + RecordEntry.TABLE_NAME +
+                    " (" + RecordEntry.COLUMN_ENTERED_AT + ")",
+            "CREATE INDEX IF NOT EXISTS " + RecordEntry.INDEX_SCHEMA_VERSION + " ON " + RecordEntry.TABLE_NAME +
+                    " (" + RecordEntry.COLUMN_SCHEMA_VERSION + ")",
+            "CREATE INDEX IF NOT EXISTS " + RecordEntry.INDEX_UPLOADABLE + " ON " + RecordEntry.TABLE_NAME +
+                    " (" + RecordEntry.COLUMN_UPLOADABLE + ", " + RecordEntry.COLUMN_ENTERED_AT + ")"
+    };
+
+    // record_id is the rowid, so joining to a record is a primary key lookup
+    public static final String PAYLOAD_TABLE_CREATE = "CREATE TABLE " + RecordPayloadEntry.TABLE_NAME + " (" +
+            RecordPayloadEntry.COLUMN_RECORD_ID + " INTEGER PRIMARY KEY NOT NULL, " +
+            RecordPayloadEntry.COLUMN_DATA + " TEXT NOT NULL, " +
+            RecordPayloadEntry.COLUMN_CODEC + " INTEGER NOT NULL DEFAULT " + RecordCodec.JSON +
+            ");";
+
+    public static final String MEDIA_UPLOAD_TABLE_CREATE = "CREATE TABLE " + MediaUploadEntry.TABLE_NAME + " (" +
+            MediaUploadEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+            MediaUploadEntry.COLUMN_SHA256 + " TEXT NOT NULL UNIQUE, " +
+            MediaUploadEntry.COLUMN_SIZE + " INTEGER NOT NULL, " +
+            MediaUploadEntry.COLUMN_MEDIA_ID + " TEXT NOT NULL, " +
+            MediaUploadEntry.COLUMN_UPLOAD_OFFSET + " INTEGER NOT NULL DEFAULT 0, " +
+            MediaUploadEntry.COLUMN_COMPLETE + " INTEGER NOT NULL DEFAULT 0, " +
+            MediaUploadEntry.COLUMN_UPDATED_AT + " TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL" +
+            ");";
+
+    // record_id is the rowid, so joining to a record is a primary key lookup
+    public static final String UPLOAD_OUTBOX_TABLE_CREATE = "CREATE TABLE " + UploadOutboxEntry.TABLE_NAME + " (" +
+            UploadOutboxEntry.COLUMN_RECORD_ID + " INTEGER PRIMARY KEY NOT NULL, " +
+            UploadOutboxEntry.COLUMN_STATE + " INTEGER NOT NULL, " +
+            UploadOutboxEntry.COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, " +
+            UploadOutboxEntry.COLUMN_NEXT_ATTEMPT_AT + " INTEGER NOT NULL DEFAULT 0, " +
+            UploadOutboxEntry.COLUMN_LAST_ERROR + " TEXT" +
+            ");";
+
+    // the scheduler looks up the earliest next attempt of records waiting to retry, and uploads
+    // look up the acknowledged records to delete; both select on state first
+    public static final String UPLOAD_OUTBOX_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS " +
+            UploadOutboxEntry.INDEX_STATE_NEXT_ATTEMPT_AT + " ON " + UploadOutboxEntry.TABLE_NAME +
+            " (" + UploadOutboxEntry.COLUMN_STATE + ", " + UploadOutboxEntry.COLUMN_NEXT_ATTEMPT_AT + ")";
+
+    public static final String UPLOAD_OUTBOX_LEGACY_INDEX_DROP = "DROP INDEX IF EXISTS " +
+            UploadOutboxEntry.INDEX_NEXT_ATTEMPT_AT;
+
     public static final String RECORD_TABLE_DROP = "DROP TABLE IF EXISTS " + RecordEntry.TABLE_NAME;
+    public static final String PAYLOAD_TABLE_DROP = "DROP TABLE IF EXISTS " + RecordPayloadEntry.TABLE_NAME;
+    public static final String MEDIA_UPLOAD_TABLE_DROP = "DROP TABLE IF EXISTS " + MediaUploadEntry.TABLE_NAME;
+    public static final String UPLOAD_OUTBOX_TABLE_DROP = "DROP TABLE IF EXISTS " + UploadOutboxEntry.TABLE_NAME;
 }
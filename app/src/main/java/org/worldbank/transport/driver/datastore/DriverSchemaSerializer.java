@@ -1,38 +1,127 @@
 package org.worldbank.transport.driver.datastore;
 
+import android.database.Cursor;
 import android.util.Log;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
 import org.jsonschema2pojo.media.SerializableMedia;
 import org.worldbank.transport.driver.staticmodels.DriverApp;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.Set;
 
 
 /**
  * Handles reading and writing records to and from JSON strings.
  *
+ * Gson instances are built once and reused, so that the type adapters Gson builds by reflection
+ * for the schema classes are kept between records. They hold on to the schema classes, so
+ * clearCache must be called when a different schema is loaded.
+ *
+ * Records are stored with a RecordCodec; JSON by default. Rows remember their codec, so
+ * records are read back with the codec that wrote them, whichever is set for storage. Rows also
+ * remember their schema, so records entered with an earlier schema are read with its classes.
+ *
  * Created by kathrynkillebrew on 1/6/16.
  */
 public class DriverSchemaSerializer {
 
     public static final String LOG_LABEL = "SchemaSerializer";
 
+    // guards the cached Gson instances
+    private static final Object cacheLock = new Object();
+
+    // writes media as file paths, for storing records in the database
+    private static Gson storageGson;
+
+    // writes media as base64-encoded bytes, for uploading records
+    private static Gson uploadGson;
+
+    // shared by both Gson instances; holds the enum lookup tables for the schema classes
+    private static GsonSetDeserializer setDeserializer;
+
+    private static final RecordCodec jsonCodec = new JsonRecordCodec();
+    private static final RecordCodec binaryCodec = new BinaryRecordCodec(true);
+
+    // codec used to write records to the database
+    private static volatile RecordCodec storageCodec = jsonCodec;
+
+    /**
+     * @return Gson for reading and writing records in the database
+     */
+    public static Gson getStorageGson() {
+        synchronized (cacheLock) {
+            if (storageGson == null) {
+                GsonBuilder builder = new GsonBuilder();
+                builder.registerTypeAdapter(SerializableMedia.class, new SerializableMedia.SerializableMediaPathStringAdapter());
+                builder.registerTypeAdapter(Set.class, getSetDeserializer());
+                storageGson = builder.create();
+            }
+            return storageGson;
+        }
+    }
+
+    /**
+     * @return Gson for writing records to upload to the server
+     */
+    public static Gson getUploadGson() {
+        synchronized (cacheLock) {
+            if (uploadGson == null) {
+                GsonBuilder builder = new GsonBuilder();
+                builder.registerTypeAdapter(SerializableMedia.class, new SerializableMedia.SerializableMediaByteArrayAdapter());
+                builder.registerTypeAdapter(Set.class, getSetDeserializer());
+                uploadGson = builder.create();
+            }
+            return uploadGson;
+        }
+    }
+
+    // must hold cacheLock
+    private static GsonSetDeserializer getSetDeserializer() {
+        if (setDeserializer == null) {
+            setDeserializer = new GsonSetDeserializer();
+        }
+        return setDeserializer;
+    }
+
+    /**
+     * Drop the cached Gson instances, and the adapters and enum lookup tables built for the schema classes.
+     * Call when the schema classes are replaced.
+     */
+    public static void clearCache() {
+        synchronized (cacheLock) {
+            storageGson = null;
+            uploadGson = null;
+            setDeserializer = null;
+        }
+    }
+
     public static Object readRecord(String jsonData) {
-        GsonBuilder builder = new GsonBuilder();
-        builder.registerTypeAdapter(SerializableMedia.class, new SerializableMedia.SerializableMediaPathStringAdapter());
-        builder.registerTypeAdapter(Set.class, new GsonSetDeserializer());
-        Gson gson = builder.create();
+        Class driverClass = DriverApp.getSchemaClass();
+        if (driverClass == null) {
+            Log.e(LOG_LABEL, "Could not read record; driver schema undefined");
+            return null;
+        }
+
+        return readRecord(jsonData, driverClass);
+    }
+
+    /**
+     * Read a record of the given class from JSON.
+     *
+     * @param jsonData Serialized record, as stored in the database
+     * @param recordClass Class of the record
+     * @return Deserialized record, or null on failure
+     */
+    public static Object readRecord(String jsonData, Class recordClass) {
         try {
-            Class driverClass = DriverApp.getSchemaClass();
-            if (driverClass != null) {
-                return gson.fromJson(jsonData, driverClass);
-            } else {
-                Log.e(LOG_LABEL, "Could not read record; driver schema undefined");
-            }
+            return getStorageGson().fromJson(jsonData, recordClass);
         } catch (JsonParseException ex) {
             Log.e(LOG_LABEL, "Failed to parse record from JSON");
             ex.printStackTrace();
@@ -42,17 +131,25 @@ public class DriverSchemaSerializer {
     }
 
     public static String serializeRecordForStorage(Object object) {
-        GsonBuilder builder = new GsonBuilder();
-        builder.registerTypeAdapter(SerializableMedia.class, new SerializableMedia.SerializableMediaPathStringAdapter());
-        Gson gson = builder.create();
+        Class driverSchemaClass = DriverApp.getSchemaClass();
+        if (driverSchemaClass == null) {
+            Log.e(LOG_LABEL, "No driver schema class to serialize!");
+            return null;
+        }
+
+        return serializeRecordForStorage(object, driverSchemaClass);
+    }
+
+    /**
+     * Write a record of the given class to JSON for storage.
+     *
+     * @param object Record to serialize
+     * @param recordClass Class of the record
+     * @return Serialized record, or null on failure
+     */
+    public static String serializeRecordForStorage(Object object, Class recordClass) {
         try {
-            Class driverSchemaClass = DriverApp.getSchemaClass();
-            if (driverSchemaClass != null) {
-                return gson.toJson(object, driverSchemaClass);
-            } else {
-                Log.e(LOG_LABEL, "No driver schema class to serialize!");
-                return null;
-            }
+            return getStorageGson().toJson(object, recordClass);
         } catch (JsonParseException ex) {
             Log.e(LOG_LABEL, "Failed to serialize record to JSON string");
             ex.printStackTrace();
@@ -60,4 +157,166 @@ public class DriverSchemaSerializer {
         }
     }
 
+    /**
+     * @return Codec used to write records to the database
+     */
+    public static RecordCodec getStorageCodec() {
+        return storageCodec;
+    }
+
+    /**
+     * Set the codec used to write records to the database. Records already stored keep their codec.
+     *
+     * @param codec Codec to use for records saved from now on
+     */
+    public static void setStorageCodec(RecordCodec codec) {
+        storageCodec = codec;
+    }
+
+    /**
+     * @param codecId ID of a codec, as stored with a record
+     * @return Codec with that ID, or null if unknown
+     */
+    public static RecordCodec getCodec(int codecId) {
+        switch (codecId) {
+            case RecordCodec.JSON:
+                return jsonCodec;
+            case RecordCodec.BINARY:
+                return binaryCodec;
+            default:
+                Log.e(LOG_LABEL, "Unknown record codec " + codecId);
+                return null;
+        }
+    }
+
+    /**
+     * Encode a record for storage.
+     *
+     * @param object Record to encode
+     * @param codec Codec to encode with; usually the storage codec
+     * @return Encoded record, or null on failure
+     */
+    public static byte[] encodeRecordForStorage(Object object, RecordCodec codec) {
+        Class driverSchemaClass = DriverApp.getSchemaClass();
+        if (driverSchemaClass == null) {
+            Log.e(LOG_LABEL, "No driver schema class to serialize!");
+            return null;
+        }
+
+        try {
+            return codec.encode(object, driverSchemaClass);
+        } catch (IOException | JsonParseException ex) {
+            Log.e(LOG_LABEL, "Failed to encode record for storage");
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Open the stored data of a record for reading, with the codec that wrote it.
+     * JSON records are stored as text; others as blobs. The caller should close the reader.
+     *
+     * @param cursor Cursor positioned at the record
+     * @param dataColumn Index of the data column
+     * @param codecColumn Index of the codec column
+     * @return Reader for the record, or null if it cannot be read
+     */
+    public static JsonReader openRecordReader(Cursor cursor, int dataColumn, int codecColumn) {
+        int codecId = cursor.getInt(codecColumn);
+        if (codecId == RecordCodec.JSON) {
+            String data = cursor.getString(dataColumn);
+            return data != null ? new JsonReader(new StringReader(data)) : null;
+        }
+
+        RecordCodec codec = getCodec(codecId);
+        if (codec == null) {
+            return null;
+        }
+
+        try {
+            return codec.newReader(cursor.getBlob(dataColumn));
+        } catch (IOException e) {
+            Log.e(LOG_LABEL, "Failed to open stored record with codec " + codecId);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Read a stored record of the given class, with the codec that wrote it.
+     *
+     * @param cursor Cursor positioned at the record
+     * @param dataColumn Index of the data column
+     * @param codecColumn Index of the codec column
+     * @param recordClass Class of the record
+     * @return Deserialized record, or null on failure
+     */
+    public static Object readStoredRecord(Cursor cursor, int dataColumn, int codecColumn, Class recordClass) {
+        int codecId = cursor.getInt(codecColumn);
+        if (codecId == RecordCodec.JSON) {
+            return readRecord(cursor.getString(dataColumn), recordClass);
+        }
+
+        RecordCodec codec = getCodec(codecId);
+        if (codec == null) {
+            return null;
+        }
+
+        try {
+            return codec.decode(cursor.getBlob(dataColumn), recordClass);
+        } catch (IOException | JsonParseException ex) {
+            Log.e(LOG_LABEL, "Failed to decode stored record with codec " + codecId);
+            ex.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Read a stored record with the classes of the schema it was entered with, which may be an
+     * earlier schema than the current one, and the codec that wrote it.
+     *
+     * @param cursor Cursor positioned at the record
+     * @param dataColumn Index of the data column
+     * @param codecColumn Index of the codec column
+     * @param schemaColumn Index of the schema version column
+     * @return Deserialized record, or null on failure
+     */
+    public static Object readStoredRecord(Cursor cursor, int dataColumn, int codecColumn, int schemaColumn) {
+        String schemaVersion = cursor.getString(schemaColumn);
+        Class recordClass = DriverApp.getSchemaClass(schemaVersion);
+        if (recordClass == null) {
+            Log.e(LOG_LABEL, "Could not read record; classes of schema " + schemaVersion + " unavailable");
+            return null;
+        }
+
+        return readStoredRecord(cursor, dataColumn, codecColumn, recordClass);
+    }
+
+    /**
+     * Convert a record from any codec to JSON, without the schema classes, and close the reader.
+     *
+     * @param reader Reader opened on a stored record
+     * @return JSON for the record, or null on failure
+     */
+    public static String readRecordAsJson(JsonReader reader) {
+        try {
+            return new JsonParser().parse(reader).toString();
+        } catch (JsonParseException ex) {
+            Log.e(LOG_LABEL, "Failed to convert stored record to JSON");
+            ex.printStackTrace();
+        } finally {
+            closeReader(reader);
+        }
+
+        return null;
+    }
+
+    private static void closeReader(JsonReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
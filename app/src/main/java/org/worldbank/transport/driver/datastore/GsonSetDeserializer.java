@@ -8,63 +8,114 @@ import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParseException;
 
+import org.worldbank.transport.driver.schemas.SchemaClassLoader;
 import org.worldbank.transport.driver.staticmodels.DriverApp;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
-
-import it.necst.grabnrun.SecureDexClassLoader;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Custom deserializer to deal with Gson being able to serialize but not deserialize some collections.
  * https://sites.google.com/site/gson/gson-user-guide#TOC-Collections-Examples
+ *
+ * The enum type of each set is resolved once, into a table from the values stored in the record
+ * to the enum constants, so reading a set needs no reflection. The tables refer to the schema
+ * classes, so use a new deserializer when the schema is replaced; DriverSchemaSerializer does so
+ * when its cache is cleared.
+ *
  * Created by kathrynkillebrew on 3/14/16.
  */
 public class GsonSetDeserializer implements JsonDeserializer<Set> {
 
     private static final String LOG_LABEL = "GsonSetCustom";
 
+    // set type to its lookup table of stored value to enum constant
+    private final Map<Type, Map<String, Object>> lookupTables = new ConcurrentHashMap<>();
+
     @SuppressWarnings("unchecked")
     @Override
     public Set deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
+        Map<String, Object> lookup = lookupTables.get(typeOfT);
+        if (lookup == null) {
+            lookup = buildLookupTable(typeOfT);
+            if (lookup == null) {
+                return null;
+            }
+            lookupTables.put(typeOfT, lookup);
+        }
+
         JsonArray array = json.getAsJsonArray();
-        Log.d(LOG_LABEL, "Type of set json: " + typeOfT.toString());
+        int size = array.size();
+        Set set = new LinkedHashSet(size);
 
-        String typeString = typeOfT.toString();
-        String typeParam = typeString.substring(typeString.indexOf("<") + 1, typeString.lastIndexOf(">"));
-        Log.d(LOG_LABEL, "extracted type param: " + typeParam);
+        for (int i = 0; i < size; i++) {
+            String value = array.get(i).getAsString();
+            Object checkedEnum = lookup.get(value);
+            if (checkedEnum == null) {
+                Log.e(LOG_LABEL, "Value " + value + " not found in enum for set type " + typeOfT);
+                return null;
+            }
+            set.add(checkedEnum);
+        }
 
-        SecureDexClassLoader classLoader = DriverApp.getSchemaClassLoader();
-        try {
-            Class loadedClass = classLoader.loadClass(typeParam);
-            Method fromValueMethod = loadedClass.getDeclaredMethod("fromValue", String.class);
+        return set;
+    }
 
-            Set set = new LinkedHashSet(array.size());
+    /**
+     * Find the enum type of a set, and map its values to its constants. The values are those
+     * the generated fromValue method accepts, which is what the generated toString returns.
+     *
+     * @param typeOfT Type of the set field
+     * @return Lookup table of stored value to enum constant, or null if the enum could not be found
+     */
+    private static Map<String, Object> buildLookupTable(Type typeOfT) {
+        Class enumClass = findElementClass(typeOfT);
+        if (enumClass == null) {
+            return null;
+        }
+
+        Object[] constants = enumClass.getEnumConstants();
+        if (constants == null) {
+            Log.e(LOG_LABEL, "Set type " + enumClass.getName() + " is not an enum");
+            return null;
+        }
 
-            int size = array.size();
-            for (int i = 0; i < size; i++) {
-                Log.d(LOG_LABEL, "Checked value found: " + array.get(i).getAsString());
-                Object checkedEnum = fromValueMethod.invoke(loadedClass, array.get(i).getAsString());
-                set.add(checkedEnum);
+        Map<String, Object> lookup = new HashMap<>(constants.length * 2);
+        for (Object constant : constants) {
+            lookup.put(constant.toString(), constant);
+        }
+
+        return lookup;
+    }
+
+    private static Class findElementClass(Type typeOfT) {
+        if (typeOfT instanceof ParameterizedType) {
+            Type elementType = ((ParameterizedType) typeOfT).getActualTypeArguments()[0];
+            if (elementType instanceof Class) {
+                return (Class) elementType;
             }
+        }
 
-            return set;
+        // fall back to finding the element class by name
+        String typeString = typeOfT.toString();
+        String typeParam = typeString.substring(typeString.indexOf("<") + 1, typeString.lastIndexOf(">"));
 
+        SchemaClassLoader classLoader = DriverApp.getSchemaClassLoader();
+        if (classLoader == null) {
+            Log.e(LOG_LABEL, "No schema class loader to find set class type " + typeParam);
+            return null;
+        }
+
+        try {
+            return classLoader.loadClass(typeParam);
         } catch (ClassNotFoundException e) {
             e.printStackTrace();
             Log.e(LOG_LABEL, "Failed to find extracted set class type " + typeParam);
-        } catch (NoSuchMethodException e) {
-            e.printStackTrace();
-            Log.e(LOG_LABEL, "Failed to find fromValue method on enum type " + typeParam);
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            Log.e(LOG_LABEL, "Could not invoke static fromValue method on enum class " + typeParam);
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            Log.e(LOG_LABEL, "Do not have access to invoke fromValue method on enum class " + typeParam);
         }
 
         return null;
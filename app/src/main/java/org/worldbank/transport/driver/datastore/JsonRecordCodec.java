@@ -0,0 +1,42 @@
+package org.worldbank.transport.driver.datastore;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+
+/**
+ * Stores records as Gson JSON text; the format used before codecs were added.
+ * RecordDatabaseManager stores JSON rows as text, so they remain readable in the database.
+ */
+public class JsonRecordCodec implements RecordCodec {
+
+    private static final String CHARSET = "UTF-8";
+
+    @Override
+    public int getId() {
+        return JSON;
+    }
+
+    @Override
+    public byte[] encode(Object record, Class recordClass) throws IOException {
+        return DriverSchemaSerializer.getStorageGson().toJson(record, recordClass).getBytes(CHARSET);
+    }
+
+    @Override
+    public Object decode(byte[] data, Class recordClass) throws IOException {
+        JsonReader reader = newReader(data);
+        try {
+            return DriverSchemaSerializer.getStorageGson().fromJson(reader, recordClass);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public JsonReader newReader(byte[] data) throws IOException {
+        return new JsonReader(new InputStreamReader(new ByteArrayInputStream(data), CHARSET));
+    }
+}
@@ -0,0 +1,41 @@
+package org.worldbank.transport.driver.datastore;
+
+/**
+ * Progress of uploading a media file to the server, as stored in the media upload table.
+ */
+public class MediaUploadState {
+
+    public final String sha256;
+    public final long size;
+    public final String mediaId;
+
+    // bytes the server has confirmed receiving
+    public final long offset;
+
+    /**
+     * @param sha256 Hex SHA-256 of the file content
+     * @param size File size in bytes
+     * @param mediaId ID the server gave the upload
+     * @param offset Bytes of the file the server has confirmed receiving
+     */
+    public MediaUploadState(String sha256, long size, String mediaId, long offset) {
+        this.sha256 = sha256;
+        this.size = size;
+        this.mediaId = mediaId;
+        this.offset = offset;
+    }
+
+    /**
+     * @return True once the server has the whole file
+     */
+    public boolean isComplete() {
+        return offset >= size;
+    }
+
+    /**
+     * @return State after the server confirmed receiving the file up to the given offset
+     */
+    public MediaUploadState withOffset(long newOffset) {
+        return new MediaUploadState(sha256, size, mediaId, newOffset);
+    }
+}
@@ -0,0 +1,32 @@
+package org.worldbank.transport.driver.datastore;
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Version 6: add the media upload table, which tracks photos sent to the server apart from their
+ * records. It starts empty, so there is no data phase.
+ */
+class MediaUploadsMigration extends RecordDatabaseMigration {
+
+    // media upload table as of version 6; later versions may alter it, so do not use the current definition
+    private static final String MEDIA_UPLOAD_TABLE_CREATE = "CREATE TABLE " +
+            DriverRecordContract.MediaUploadEntry.TABLE_NAME + " (" +
+            DriverRecordContract.MediaUploadEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+            DriverRecordContract.MediaUploadEntry.COLUMN_SHA256 + " TEXT NOT NULL UNIQUE, " +
+            DriverRecordContract.MediaUploadEntry.COLUMN_SIZE + " INTEGER NOT NULL, " +
+            DriverRecordContract.MediaUploadEntry.COLUMN_MEDIA_ID + " TEXT NOT NULL, " +
+            DriverRecordContract.MediaUploadEntry.COLUMN_UPLOAD_OFFSET + " INTEGER NOT NULL DEFAULT 0, " +
+            DriverRecordContract.MediaUploadEntry.COLUMN_COMPLETE + " INTEGER NOT NULL DEFAULT 0, " +
+            DriverRecordContract.MediaUploadEntry.COLUMN_UPDATED_AT + " TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL" +
+            ");";
+
+    MediaUploadsMigration() {
+        super(6);
+    }
+
+    @Override
+    public void upgradeSchema(SQLiteDatabase db) {
+        db.execSQL(MEDIA_UPLOAD_TABLE_CREATE);
+    }
+}
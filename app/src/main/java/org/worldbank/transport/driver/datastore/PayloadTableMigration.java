@@ -0,0 +1,77 @@
+package org.worldbank.transport.driver.datastore;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+
+/**
+ * Version 4: move serialized record data out of the records table into its own payload table,
+ * so that the record list reads only small metadata rows.
+ *
+ * SQLite cannot drop a column, so the data column stays on upgraded databases. The data phase
+ * copies each record's data to the payload table and blanks it in the records table. Until then,
+ * RecordDatabaseManager reads data from the records table for records that have no payload row.
+ */
+class PayloadTableMigration extends RecordDatabaseMigration {
+
+    private static final String RECORD_TABLE = DriverRecordContract.RecordEntry.TABLE_NAME;
+    private static final String PAYLOAD_TABLE = DriverRecordContract.RecordPayloadEntry.TABLE_NAME;
+    private static final String RECORD_ID = DriverRecordContract.RecordEntry._ID;
+    private static final String DATA = DriverRecordContract.RecordEntry.COLUMN_DATA;
+
+    private static final String PENDING = RECORD_ID + " NOT IN (SELECT " +
+            DriverRecordContract.RecordPayloadEntry.COLUMN_RECORD_ID + " FROM " + PAYLOAD_TABLE + ")";
+
+    // payload table as of version 4; later versions alter it, so do not use the current definition
+    private static final String PAYLOAD_TABLE_CREATE = "CREATE TABLE " + PAYLOAD_TABLE + " (" +
+            DriverRecordContract.RecordPayloadEntry.COLUMN_RECORD_ID + " INTEGER PRIMARY KEY NOT NULL, " +
+            DriverRecordContract.RecordPayloadEntry.COLUMN_DATA + " TEXT NOT NULL" +
+            ");";
+
+    PayloadTableMigration() {
+        super(4);
+    }
+
+    @Override
+    public void upgradeSchema(SQLiteDatabase db) {
+        db.execSQL(PAYLOAD_TABLE_CREATE);
+    }
+
+    @Override
+    public int countPendingRows(SQLiteDatabase db) {
+        return (int) DatabaseUtils.queryNumEntries(db, RECORD_TABLE, PENDING);
+    }
+
+    @Override
+    public int migrateChunk(SQLiteDatabase db, int chunkSize) {
+        Cursor cursor = db.query(RECORD_TABLE, new String[] { RECORD_ID }, PENDING, null, null, null, null,
+                String.valueOf(chunkSize));
+
+        SQLiteStatement copyStatement = db.compileStatement("INSERT INTO " + PAYLOAD_TABLE + " (" +
+                DriverRecordContract.RecordPayloadEntry.COLUMN_RECORD_ID + ", " +
+                DriverRecordContract.RecordPayloadEntry.COLUMN_DATA + ") SELECT " + RECORD_ID + ", " + DATA +
+                " FROM " + RECORD_TABLE + " WHERE " + RECORD_ID + " = ?");
+        SQLiteStatement blankStatement = db.compileStatement("UPDATE " + RECORD_TABLE + " SET " + DATA +
+                " = '' WHERE " + RECORD_ID + " = ?");
+
+        int migrated = 0;
+        try {
+            while (cursor.moveToNext()) {
+                long recordId = cursor.getLong(0);
+                copyStatement.bindLong(1, recordId);
+                copyStatement.executeInsert();
+                blankStatement.bindLong(1, recordId);
+                blankStatement.executeUpdateDelete();
+                migrated++;
+            }
+        } finally {
+            cursor.close();
+            copyStatement.close();
+            blankStatement.close();
+        }
+
+        return migrated;
+    }
+}
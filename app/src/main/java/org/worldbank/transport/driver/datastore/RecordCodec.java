@@ -0,0 +1,54 @@
+package org.worldbank.transport.driver.datastore;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+
+/**
+ * Encoding of record data in the payload table. Each payload row records the ID of the codec
+ * that wrote it, so rows written with different codecs can be read side by side.
+ *
+ * Codecs can also read records back as a stream of JSON tokens, so that any stored record can be
+ * uploaded or exported as JSON the same way.
+ */
+public interface RecordCodec {
+
+    // IDs stored in the payload table codec column; do not change
+    int JSON = 0;
+    int BINARY = 1;
+
+    /**
+     * @return ID of this codec, as stored with each row it writes
+     */
+    int getId();
+
+    /**
+     * Encode a record for storage.
+     *
+     * @param record Record to encode
+     * @param recordClass Schema class of the record
+     * @return Encoded record
+     * @throws IOException If the record could not be encoded
+     */
+    byte[] encode(Object record, Class recordClass) throws IOException;
+
+    /**
+     * Decode a stored record.
+     *
+     * @param data Record as returned by encode
+     * @param recordClass Schema class of the record
+     * @return Decoded record
+     * @throws IOException If the stored record is not in this codec's format
+     */
+    Object decode(byte[] data, Class recordClass) throws IOException;
+
+    /**
+     * Open a stored record for reading as JSON tokens, to copy it without building the record.
+     * The caller should close the reader.
+     *
+     * @param data Record as returned by encode
+     * @return Reader for the record, as JSON tokens
+     * @throws IOException If the stored record is not in this codec's format
+     */
+    JsonReader newReader(byte[] data) throws IOException;
+}
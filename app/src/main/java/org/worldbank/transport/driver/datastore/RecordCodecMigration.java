@@ -0,0 +1,21 @@
+package org.worldbank.transport.driver.datastore;
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Version 5: add a codec column to the payload table, so records may be stored in formats other
+ * than JSON. All existing rows are JSON, which the column default records, so there is no data phase.
+ */
+class RecordCodecMigration extends RecordDatabaseMigration {
+
+    RecordCodecMigration() {
+        super(5);
+    }
+
+    @Override
+    public void upgradeSchema(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + DriverRecordContract.RecordPayloadEntry.TABLE_NAME + " ADD COLUMN " +
+                DriverRecordContract.RecordPayloadEntry.COLUMN_CODEC + " INTEGER NOT NULL DEFAULT " + RecordCodec.JSON);
+    }
+}
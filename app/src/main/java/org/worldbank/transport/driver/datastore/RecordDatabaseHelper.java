@@ -1,10 +1,14 @@
 package org.worldbank.transport.driver.datastore;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Handles creation and version management of database.
@@ -15,7 +19,32 @@ public class RecordDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String LOG_LABEL = "DatabaseHelper";
 
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 9;
+
+    // databases older than this predate the migrations, and are dropped and recreated on upgrade
+    private static final int MIN_MIGRATABLE_VERSION = 2;
+
+    /**
+     * Build the migration steps, one per database version after MIN_MIGRATABLE_VERSION.
+     * Add a step here with each DATABASE_VERSION bump.
+     *
+     * @return Migrations to apply on upgrade
+     */
+    static List<RecordDatabaseMigration> buildMigrations() {
+        List<RecordDatabaseMigration> migrations = new ArrayList<>();
+        migrations.add(new UploadableRecordsMigration());
+        migrations.add(new PayloadTableMigration());
+        migrations.add(new RecordCodecMigration());
+        migrations.add(new MediaUploadsMigration());
+        migrations.add(new UploadOutboxMigration());
+        migrations.add(new UploadKeysMigration());
+        migrations.add(new UploadOutboxIndexMigration());
+        return migrations;
+    }
+
+    private final RecordStorageProfile storageProfile;
+    private final boolean inMemory;
+    private final RecordDatabaseMigrator migrator;
 
     /**
      * Set up database. If databaseName is null, will use in-memory DB. Only do so when testing!
@@ -24,29 +53,174 @@ public class RecordDatabaseHelper extends SQLiteOpenHelper {
      * @param databaseName Name to use for database, or null for in-memory DB.
      */
     public RecordDatabaseHelper(Context context, String databaseName) {
-        super(context, databaseName, null, DATABASE_VERSION);
+        this(context, databaseName, RecordStorageProfile.DEFAULT);
+    }
 
-        if (databaseName == null) {
+    /**
+     * Set up database with the given storage settings.
+     *
+     * @param context Context for database
+     * @param databaseName Name to use for database, or null for in-memory DB.
+     * @param storageProfile Journal mode and pragmas to apply when the database is opened
+     */
+    public RecordDatabaseHelper(Context context, String databaseName, RecordStorageProfile storageProfile) {
+        this(context, databaseName, storageProfile, null);
+    }
+
+    /**
+     * Set up database with the given storage settings and cursor factory.
+     *
+     * @param context Context for database
+     * @param databaseName Name to use for database, or null for in-memory DB.
+     * @param storageProfile Journal mode and pragmas to apply when the database is opened
+     * @param cursorFactory Factory for query cursors, or null for the default. Useful in testing to inspect queries.
+     */
+    public RecordDatabaseHelper(Context context, String databaseName, RecordStorageProfile storageProfile,
+                                SQLiteDatabase.CursorFactory cursorFactory) {
+        super(context, databaseName, cursorFactory, DATABASE_VERSION);
+
+        this.storageProfile = storageProfile;
+        inMemory = databaseName == null;
+        migrator = new RecordDatabaseMigrator(buildMigrations());
+
+        if (inMemory) {
             Log.w(LOG_LABEL, "Using in-memory database for testing");
         }
     }
 
+    public RecordStorageProfile getStorageProfile() {
+        return storageProfile;
+    }
+
+    public RecordDatabaseMigrator getMigrator() {
+        return migrator;
+    }
+
+    /**
+     * Check if the records table still has the data column from before database version 4.
+     * Such databases must keep writing to it, since it cannot be dropped.
+     *
+     * @param db Opened database
+     * @return True if the records table has a data column
+     */
+    static boolean hasLegacyDataColumn(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + DriverRecordContract.RecordEntry.TABLE_NAME + ")", null);
+        try {
+            int nameColumn = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (DriverRecordContract.RecordEntry.COLUMN_DATA.equals(cursor.getString(nameColumn))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // only called on API 16+; older devices are configured in onOpen instead
+        super.onConfigure(db);
+        applyStorageProfile(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            applyStorageProfile(db);
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(DriverRecordContract.RECORD_TABLE_CREATE);
+        db.execSQL(DriverRecordContract.PAYLOAD_TABLE_CREATE);
+        db.execSQL(DriverRecordContract.MEDIA_UPLOAD_TABLE_CREATE);
+        db.execSQL(DriverRecordContract.UPLOAD_OUTBOX_TABLE_CREATE);
+        db.execSQL(DriverRecordContract.UPLOAD_OUTBOX_INDEX_CREATE);
+        for (String createIndex : DriverRecordContract.RECORD_INDEXES_CREATE) {
+            db.execSQL(createIndex);
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Handle migrations here.
-        // This drops any existing entries and recreates the table.
-        db.execSQL(DriverRecordContract.RECORD_TABLE_DROP);
-        onCreate(db);
+        if (oldVersion < MIN_MIGRATABLE_VERSION) {
+            Log.w(LOG_LABEL, "Cannot migrate records database from version " + oldVersion + "; recreating it");
+            recreate(db);
+            return;
+        }
+
+        // Apply schema changes only; existing rows are migrated after opening.
+        // If a step fails, the upgrade is rolled back and the records are kept.
+        migrator.upgradeSchema(db, oldVersion, newVersion);
     }
 
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // handle migrations here
-        onUpgrade(db, oldVersion, newVersion);
+        // A newer schema cannot be known here, so records written by a newer app version are dropped.
+        Log.w(LOG_LABEL, "Downgrading records database from version " + oldVersion + " to " +
+                newVersion + "; existing records will be lost");
+        recreate(db);
+    }
+
+    private void recreate(SQLiteDatabase db) {
+        db.execSQL(DriverRecordContract.UPLOAD_OUTBOX_TABLE_DROP);
+        db.execSQL(DriverRecordContract.MEDIA_UPLOAD_TABLE_DROP);
+        db.execSQL(DriverRecordContract.PAYLOAD_TABLE_DROP);
+        db.execSQL(DriverRecordContract.RECORD_TABLE_DROP);
+        onCreate(db);
+    }
+
+    /**
+     * Set the journal mode and pragmas from the storage profile. Pragmas apply to the connection
+     * they are run on, which is the primary (writing) connection; readers use the platform defaults.
+     *
+     * @param db Database being opened
+     */
+    private void applyStorageProfile(SQLiteDatabase db) {
+        // WAL must be enabled first, as enabling it resets the connection's sync mode
+        if (storageProfile.writeAheadLogging && !inMemory) {
+            if (!db.enableWriteAheadLogging()) {
+                Log.w(LOG_LABEL, "Could not enable write-ahead logging");
+            } else if (storageProfile.walAutoCheckpointPages > 0) {
+                runPragma(db, "wal_autocheckpoint = " + storageProfile.walAutoCheckpointPages);
+            }
+        }
+
+        runPragma(db, "synchronous = " + storageProfile.synchronous);
+
+        if (storageProfile.cacheSizeKb > 0) {
+            // negative cache size is in KiB rather than pages
+            runPragma(db, "cache_size = -" + storageProfile.cacheSizeKb);
+        }
+
+        if (storageProfile.mmapSize > 0 && !inMemory) {
+            runPragma(db, "mmap_size = " + storageProfile.mmapSize);
+        }
+    }
+
+    /**
+     * Run a pragma statement. Some pragmas return a row, which execSQL does not allow,
+     * so run them as queries.
+     *
+     * @param db Database to run pragma on
+     * @param pragma Pragma assignment, without the PRAGMA keyword
+     */
+    static void runPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("PRAGMA " + pragma, null);
+            cursor.moveToFirst();
+        } catch (Exception e) {
+            Log.e(LOG_LABEL, "Failed to set pragma " + pragma);
+            e.printStackTrace();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
     }
 }
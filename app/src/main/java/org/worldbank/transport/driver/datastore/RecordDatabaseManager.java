@@ -3,19 +3,28 @@ package org.worldbank.transport.driver.datastore;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
+
 import org.worldbank.transport.driver.staticmodels.DriverConstantFields;
 import org.worldbank.transport.driver.staticmodels.Record;
 
+import java.io.UnsupportedEncodingException;
+import java.security.SecureRandom;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -35,13 +44,109 @@ public class RecordDatabaseManager {
     // use as WHERE clause to match on ID
     private static final String WHERE_ID = "_id= ?";
 
-    // use to return all columns from record table
+    // use as WHERE clause to match payloads on record ID
+    private static final String WHERE_RECORD_ID = DriverRecordContract.RecordPayloadEntry.COLUMN_RECORD_ID + "= ?";
+
+    // precompiled statements used by the batch operations;
+    // the record statements are completed in the constructor, depending on the legacy data column
+    private static final String INSERT_RECORD = "INSERT INTO " + DriverRecordContract.RecordEntry.TABLE_NAME + " (" +
+            DriverRecordContract.RecordEntry.COLUMN_SCHEMA_VERSION + ", " +
+            DriverRecordContract.RecordEntry.COLUMN_OCCURRED_FROM + ", " +
+            DriverRecordContract.RecordEntry.COLUMN_OCCURRED_TO + ", " +
+            DriverRecordContract.RecordEntry.COLUMN_LATITUDE + ", " +
+            DriverRecordContract.RecordEntry.COLUMN_LONGITUDE + ", " +
+            DriverRecordContract.RecordEntry.COLUMN_WEATHER + ", " +
+            DriverRecordContract.RecordEntry.COLUMN_LIGHT + ", " +
+            DriverRecordContract.RecordEntry.COLUMN_UPLOADABLE + ", " +
+            DriverRecordContract.RecordEntry.COLUMN_UPLOAD_KEY;
+    private static final String INSERT_RECORD_VALUES = ") VALUES (?, ?, ?, ?, ?, ?, ?, COALESCE(?, 0), ?";
+
+    // optional constants are bound as null when unset, so COALESCE keeps their stored values,
+    // matching the behavior of updateRecord
+    private static final String UPDATE_RECORD = "UPDATE " + DriverRecordContract.RecordEntry.TABLE_NAME + " SET " +
+            DriverRecordContract.RecordEntry.COLUMN_UPDATED_AT + " = ?, " +
+            DriverRecordContract.RecordEntry.COLUMN_OCCURRED_FROM + " = ?, " +
+            DriverRecordContract.RecordEntry.COLUMN_OCCURRED_TO + " = ?, " +
+            DriverRecordContract.RecordEntry.COLUMN_LATITUDE + " = COALESCE(?, " + DriverRecordContract.RecordEntry.COLUMN_LATITUDE + "), " +
+            DriverRecordContract.RecordEntry.COLUMN_LONGITUDE + " = COALESCE(?, " + DriverRecordContract.RecordEntry.COLUMN_LONGITUDE + "), " +
+            DriverRecordContract.RecordEntry.COLUMN_WEATHER + " = COALESCE(?, " + DriverRecordContract.RecordEntry.COLUMN_WEATHER + "), " +
+            DriverRecordContract.RecordEntry.COLUMN_LIGHT + " = COALESCE(?, " + DriverRecordContract.RecordEntry.COLUMN_LIGHT + "), " +
+            DriverRecordContract.RecordEntry.COLUMN_UPLOADABLE + " = COALESCE(?, " + DriverRecordContract.RecordEntry.COLUMN_UPLOADABLE + "), " +
+            DriverRecordContract.RecordEntry.COLUMN_UPLOAD_KEY + " = ?";
+
+    private static final String DELETE_RECORD = "DELETE FROM " + DriverRecordContract.RecordEntry.TABLE_NAME +
+            " WHERE " + WHERE_ID;
+
+    private static final String INSERT_PAYLOAD = "INSERT OR REPLACE INTO " + DriverRecordContract.RecordPayloadEntry.TABLE_NAME + " (" +
+            DriverRecordContract.RecordPayloadEntry.COLUMN_RECORD_ID + ", " +
+            DriverRecordContract.RecordPayloadEntry.COLUMN_DATA + ", " +
+            DriverRecordContract.RecordPayloadEntry.COLUMN_CODEC +
+            ") VALUES (?, ?, " + RecordCodec.JSON + ")";
+
+    private static final String DELETE_PAYLOAD = "DELETE FROM " + DriverRecordContract.RecordPayloadEntry.TABLE_NAME +
+            " WHERE " + WHERE_RECORD_ID;
+
+    // use as WHERE clause to find records after the given entered_at and _id, in list order;
+    // written so the range on entered_at may use its index
+    private static final String WHERE_AFTER_LIST_POSITION = DriverRecordContract.RecordEntry.COLUMN_ENTERED_AT + " <= ? AND (" +
+            DriverRecordContract.RecordEntry.COLUMN_ENTERED_AT + " < ? OR " + DriverRecordContract.RecordEntry._ID + " < ?)";
+
+    // order of records in the record list
+    private static final String LIST_SORT_ORDER = DriverRecordContract.RecordEntry.COLUMN_ENTERED_AT + " DESC, " +
+            DriverRecordContract.RecordEntry._ID + " DESC";
+
+    // columns shown in the record list
+    private static final String[] LIST_FIELDS = {
+            DriverRecordContract.RecordEntry._ID,
+            DriverRecordContract.RecordEntry.COLUMN_ENTERED_AT
+    };
+
+    // use as WHERE clause to match media uploads on content hash
+    private static final String WHERE_MEDIA_SHA256 = DriverRecordContract.MediaUploadEntry.COLUMN_SHA256 + "= ?";
+
+    // media uploads completed before the given SQLite time modifier, e.g. '-30 days'
+    private static final String WHERE_MEDIA_COMPLETE_BEFORE = DriverRecordContract.MediaUploadEntry.COLUMN_COMPLETE +
+            " = 1 AND " + DriverRecordContract.MediaUploadEntry.COLUMN_UPDATED_AT + " < datetime('now', ?)";
+
+    private static final String[] MEDIA_UPLOAD_FIELDS = {
+            DriverRecordContract.MediaUploadEntry.COLUMN_SHA256,
+            DriverRecordContract.MediaUploadEntry.COLUMN_SIZE,
+            DriverRecordContract.MediaUploadEntry.COLUMN_MEDIA_ID,
+            DriverRecordContract.MediaUploadEntry.COLUMN_UPLOAD_OFFSET
+    };
+
+    // use as WHERE clause to match outbox entries on record ID
+    private static final String WHERE_OUTBOX_RECORD_ID = DriverRecordContract.UploadOutboxEntry.COLUMN_RECORD_ID + "= ?";
+
+    // use as WHERE clause, with the outbox joined as o, to find records due to be tried at the given time:
+    // those not yet tried, and those waiting to retry whose time has come, but not those acknowledged
+    private static final String WHERE_UPLOAD_DUE = "(o." + DriverRecordContract.UploadOutboxEntry.COLUMN_STATE +
+            " IS NULL OR (o." + DriverRecordContract.UploadOutboxEntry.COLUMN_STATE + " = " +
+            DriverRecordContract.UploadOutboxEntry.STATE_RETRY_WAIT + " AND o." +
+            DriverRecordContract.UploadOutboxEntry.COLUMN_NEXT_ATTEMPT_AT + " <= ?))";
+
+    // use as WHERE clause to find records the server has accepted
+    private static final String WHERE_OUTBOX_ACKNOWLEDGED = DriverRecordContract.UploadOutboxEntry.COLUMN_STATE + " = " +
+            DriverRecordContract.UploadOutboxEntry.STATE_ACKNOWLEDGED;
+
+    // use as WHERE clause to leave out records the server has accepted; they are only left to be
+    // deleted, and must not be changed, as a changed record would be sent again under a new key
+    private static final String WHERE_NOT_ACKNOWLEDGED = DriverRecordContract.RecordEntry._ID + " NOT IN (SELECT " +
+            DriverRecordContract.UploadOutboxEntry.COLUMN_RECORD_ID + " FROM " +
+            DriverRecordContract.UploadOutboxEntry.TABLE_NAME + " WHERE " + WHERE_OUTBOX_ACKNOWLEDGED + ")";
+
+    private static final String DELETE_OUTBOX_ENTRY = "DELETE FROM " + DriverRecordContract.UploadOutboxEntry.TABLE_NAME +
+            " WHERE " + WHERE_OUTBOX_RECORD_ID;
+
+    // use as WHERE clause to find records with coordinates
+    private static final String WHERE_UPLOADABLE = DriverRecordContract.RecordEntry.COLUMN_UPLOADABLE + " = 1";
+
+    // use to return all metadata columns from record table; does not include the record data
     private static final String[] ALL_FIELDS = {
             DriverRecordContract.RecordEntry._ID,
             DriverRecordContract.RecordEntry.COLUMN_ENTERED_AT,
             DriverRecordContract.RecordEntry.COLUMN_UPDATED_AT,
             DriverRecordContract.RecordEntry.COLUMN_SCHEMA_VERSION,
-            DriverRecordContract.RecordEntry.COLUMN_DATA,
 
             // constant fields
             DriverRecordContract.RecordEntry.COLUMN_OCCURRED_FROM,
@@ -49,14 +154,40 @@ public class RecordDatabaseManager {
             DriverRecordContract.RecordEntry.COLUMN_LATITUDE,
             DriverRecordContract.RecordEntry.COLUMN_LONGITUDE,
             DriverRecordContract.RecordEntry.COLUMN_WEATHER,
-            DriverRecordContract.RecordEntry.COLUMN_LIGHT
+            DriverRecordContract.RecordEntry.COLUMN_LIGHT,
+
+            DriverRecordContract.RecordEntry.COLUMN_UPLOAD_KEY
     };
 
+    // bytes of randomness in each upload key
+    private static final int UPLOAD_KEY_BYTES = 16;
+    private static final SecureRandom uploadKeyRandom = new SecureRandom();
+
     RecordDatabaseHelper dbHelper;
 
     private final SQLiteDatabase writableDb;
     private final SQLiteDatabase readableDb;
 
+    // true if the database predates the payload table, and so must keep writing to the data column
+    private final boolean hasLegacyDataColumn;
+
+    // SQL that depends on whether the database has the legacy data column
+    private final String insertRecordSql;
+    private final String updateRecordSql;
+    private final String recordWithDataQuery;
+
+    // compiled lazily on first batch operation; guarded by this
+    private SQLiteStatement insertStatement;
+    private SQLiteStatement updateStatement;
+    private SQLiteStatement deleteStatement;
+    private SQLiteStatement insertPayloadStatement;
+    private SQLiteStatement deletePayloadStatement;
+    private SQLiteStatement deleteOutboxStatement;
+
+    // rows written since the last WAL checkpoint, and how many to allow before checkpointing
+    private final AtomicInteger writesSinceCheckpoint = new AtomicInteger(0);
+    private final int checkpointInterval;
+
     /**
      * Set up database for use. Will use in-memory database if amTesting flag is true.
      *
@@ -64,19 +195,191 @@ public class RecordDatabaseManager {
      * @param amTesting Use in-memory DB if true, otherwise use file-based DB.
      */
     public RecordDatabaseManager(Context context, boolean amTesting) {
+        this(context, amTesting ? null : DATABASE_NAME);
+
         if (amTesting) {
             Log.w(LOG_LABEL, "DB Manager will use in-memory DB. This should only happen in testing!");
-            dbHelper = new RecordDatabaseHelper(context, null);
-        } else {
-            dbHelper = new RecordDatabaseHelper(context, DATABASE_NAME);
         }
+    }
+
+    /**
+     * Set up database with the given name. Useful for testing against a file-based database
+     * other than the one used by the app.
+     *
+     * @param context Context for database
+     * @param databaseName Name of the database file, or null for in-memory DB
+     */
+    public RecordDatabaseManager(Context context, String databaseName) {
+        this(context, databaseName, RecordStorageProfile.DEFAULT);
+    }
+
+    /**
+     * Set up database with the given name and storage settings.
+     *
+     * @param context Context for database
+     * @param databaseName Name of the database file, or null for in-memory DB
+     * @param storageProfile Journal mode and pragmas to use for the database
+     */
+    public RecordDatabaseManager(Context context, String databaseName, RecordStorageProfile storageProfile) {
+        this(context, databaseName, storageProfile, null);
+    }
+
+    /**
+     * Set up database with the given name, storage settings, and cursor factory.
+     *
+     * @param context Context for database
+     * @param databaseName Name of the database file, or null for in-memory DB
+     * @param storageProfile Journal mode and pragmas to use for the database
+     * @param cursorFactory Factory for query cursors, or null for the default. Useful in testing to inspect queries.
+     */
+    public RecordDatabaseManager(Context context, String databaseName, RecordStorageProfile storageProfile,
+                                 SQLiteDatabase.CursorFactory cursorFactory) {
+        dbHelper = new RecordDatabaseHelper(context, databaseName, storageProfile, cursorFactory);
+        checkpointInterval = databaseName != null && storageProfile.writeAheadLogging ?
+                storageProfile.checkpointIntervalWrites : 0;
 
         writableDb = dbHelper.getWritableDatabase();
         readableDb = dbHelper.getReadableDatabase();
 
+        hasLegacyDataColumn = RecordDatabaseHelper.hasLegacyDataColumn(writableDb);
+        if (hasLegacyDataColumn) {
+            // legacy column is NOT NULL, so blank it; data goes to the payload table instead
+            insertRecordSql = INSERT_RECORD + ", " + DriverRecordContract.RecordEntry.COLUMN_DATA +
+                    INSERT_RECORD_VALUES + ", '')";
+            updateRecordSql = UPDATE_RECORD + ", " + DriverRecordContract.RecordEntry.COLUMN_DATA + " = ''" +
+                    " WHERE " + WHERE_ID + " AND " + WHERE_NOT_ACKNOWLEDGED;
+        } else {
+            insertRecordSql = INSERT_RECORD + INSERT_RECORD_VALUES + ")";
+            updateRecordSql = UPDATE_RECORD + " WHERE " + WHERE_ID + " AND " + WHERE_NOT_ACKNOWLEDGED;
+        }
+        recordWithDataQuery = buildRecordWithDataQuery(hasLegacyDataColumn);
+
         storeDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
 
+    /**
+     * Release the compiled statements and close the database.
+     * The manager cannot be used after calling this.
+     */
+    public synchronized void close() {
+        if (insertStatement != null) {
+            insertStatement.close();
+            insertStatement = null;
+        }
+        if (updateStatement != null) {
+            updateStatement.close();
+            updateStatement = null;
+        }
+        if (deleteStatement != null) {
+            deleteStatement.close();
+            deleteStatement = null;
+        }
+        if (insertPayloadStatement != null) {
+            insertPayloadStatement.close();
+            insertPayloadStatement = null;
+        }
+        if (deletePayloadStatement != null) {
+            deletePayloadStatement.close();
+            deletePayloadStatement = null;
+        }
+        if (deleteOutboxStatement != null) {
+            deleteOutboxStatement.close();
+            deleteOutboxStatement = null;
+        }
+        dbHelper.close();
+    }
+
+    /**
+     * Build a query that joins each record's metadata to its data, which is returned in a column
+     * named the same as COLUMN_DATA, with the codec that wrote it in a column named COLUMN_CODEC,
+     * and the number of failed upload attempts in a column named the same as the outbox COLUMN_ATTEMPTS.
+     * Records not yet moved to the payload table have their data read from the legacy column,
+     * which only ever held JSON.
+     *
+     * @param hasLegacyDataColumn True if the records table has the legacy data column
+     * @return Query without WHERE or ORDER BY clauses
+     */
+    private static String buildRecordWithDataQuery(boolean hasLegacyDataColumn) {
+        StringBuilder query = new StringBuilder("SELECT ");
+        for (String field : ALL_FIELDS) {
+            query.append("r.").append(field).append(" AS ").append(field).append(", ");
+        }
+
+        if (hasLegacyDataColumn) {
+            query.append("COALESCE(p.").append(DriverRecordContract.RecordPayloadEntry.COLUMN_DATA)
+                    .append(", r.").append(DriverRecordContract.RecordEntry.COLUMN_DATA).append(")")
+                    .append(" AS ").append(DriverRecordContract.RecordEntry.COLUMN_DATA)
+                    .append(", COALESCE(p.").append(DriverRecordContract.RecordPayloadEntry.COLUMN_CODEC)
+                    .append(", ").append(RecordCodec.JSON).append(")");
+        } else {
+            query.append("p.").append(DriverRecordContract.RecordPayloadEntry.COLUMN_DATA)
+                    .append(" AS ").append(DriverRecordContract.RecordEntry.COLUMN_DATA)
+                    .append(", p.").append(DriverRecordContract.RecordPayloadEntry.COLUMN_CODEC);
+        }
+
+        query.append(" AS ").append(DriverRecordContract.RecordPayloadEntry.COLUMN_CODEC)
+                .append(", COALESCE(o.").append(DriverRecordContract.UploadOutboxEntry.COLUMN_ATTEMPTS)
+                .append(", 0) AS ").append(DriverRecordContract.UploadOutboxEntry.COLUMN_ATTEMPTS)
+                .append(" FROM ").append(DriverRecordContract.RecordEntry.TABLE_NAME).append(" r LEFT JOIN ")
+                .append(DriverRecordContract.RecordPayloadEntry.TABLE_NAME).append(" p ON p.")
+                .append(DriverRecordContract.RecordPayloadEntry.COLUMN_RECORD_ID).append(" = r.")
+                .append(DriverRecordContract.RecordEntry._ID)
+                .append(" LEFT JOIN ").append(DriverRecordContract.UploadOutboxEntry.TABLE_NAME).append(" o ON o.")
+                .append(DriverRecordContract.UploadOutboxEntry.COLUMN_RECORD_ID).append(" = r.")
+                .append(DriverRecordContract.RecordEntry._ID);
+
+        return query.toString();
+    }
+
+    /**
+     * Track rows written, and checkpoint the write-ahead log when enough have accumulated.
+     * Call after a write transaction has ended.
+     *
+     * @param rows Number of rows written by the transaction
+     */
+    private void noteWrites(int rows) {
+        if (checkpointInterval <= 0 || rows <= 0) {
+            return;
+        }
+
+        if (writesSinceCheckpoint.addAndGet(rows) >= checkpointInterval) {
+            writesSinceCheckpoint.set(0);
+            checkpoint();
+        }
+    }
+
+    /**
+     * Copy committed transactions from the write-ahead log back into the database file.
+     * A passive checkpoint does not wait on readers, so it is safe to run while the record list is open.
+     */
+    public void checkpoint() {
+        if (checkpointInterval <= 0) {
+            return; // not using WAL
+        }
+
+        RecordDatabaseHelper.runPragma(writableDb, "wal_checkpoint(PASSIVE)");
+    }
+
+    /**
+     * @return True if the last upgrade left existing records to be migrated
+     */
+    public boolean hasPendingMigrations() {
+        return dbHelper.getMigrator().countPendingRows(writableDb) > 0;
+    }
+
+    /**
+     * Migrate existing records after a database upgrade. Each chunk of records is migrated in its
+     * own transaction, so records may be read and saved meanwhile. Should not be called on the UI thread.
+     *
+     * @param listener Notified of progress after each chunk; may be null
+     * @return Number of records migrated, or -1 on failure
+     */
+    public int migratePendingData(RecordDatabaseMigrator.MigrationProgressListener listener) {
+        int migrated = dbHelper.getMigrator().migrateData(writableDb, listener);
+        noteWrites(migrated);
+        return migrated;
+    }
+
     /**
      * Add a record to the database.
      *
@@ -85,18 +388,47 @@ public class RecordDatabaseManager {
      * @return The row ID of the added record
      */
     public long addRecord(String schemaVersion, String data, DriverConstantFields constantFields) {
+        return addRecord(schemaVersion, createPayloadContent(data), constantFields);
+    }
+
+    /**
+     * Add a record encoded with a RecordCodec to the database.
+     *
+     * @param schemaVersion UUID of the schema used to create the record
+     * @param data Encoded record
+     * @param codecId ID of the codec that encoded the record
+     * @return The row ID of the added record, or -1 on failure
+     */
+    public long addRecord(String schemaVersion, byte[] data, int codecId, DriverConstantFields constantFields) {
+        ContentValues payload = createPayloadContent(data, codecId);
+        if (payload == null) {
+            return -1;
+        }
+        return addRecord(schemaVersion, payload, constantFields);
+    }
+
+    private long addRecord(String schemaVersion, ContentValues payload, DriverConstantFields constantFields) {
 
         // store constants
         ContentValues values = createConstantContent(constantFields);
 
-        // add schema version and serialized record data
+        // add schema version
         values.put(DriverRecordContract.RecordEntry.COLUMN_SCHEMA_VERSION, schemaVersion);
-        values.put(DriverRecordContract.RecordEntry.COLUMN_DATA, data);
+        values.put(DriverRecordContract.RecordEntry.COLUMN_UPLOAD_KEY, newUploadKey());
+        if (hasLegacyDataColumn) {
+            values.put(DriverRecordContract.RecordEntry.COLUMN_DATA, "");
+        }
+
+        if (!values.containsKey(DriverRecordContract.RecordEntry.COLUMN_UPLOADABLE)) {
+            values.put(DriverRecordContract.RecordEntry.COLUMN_UPLOADABLE, 0);
+        }
 
         writableDb.beginTransaction();
         long newId = -1;
         try {
-            newId = writableDb.insert(DriverRecordContract.RecordEntry.TABLE_NAME, null, values);
+            newId = writableDb.insertOrThrow(DriverRecordContract.RecordEntry.TABLE_NAME, null, values);
+            payload.put(DriverRecordContract.RecordPayloadEntry.COLUMN_RECORD_ID, newId);
+            writableDb.insertOrThrow(DriverRecordContract.RecordPayloadEntry.TABLE_NAME, null, payload);
             writableDb.setTransactionSuccessful();
         } catch (Exception e) {
             Log.e(LOG_LABEL, "Database record insert failed");
@@ -106,6 +438,7 @@ public class RecordDatabaseManager {
             writableDb.endTransaction();
         }
 
+        noteWrites(newId > -1 ? 1 : 0);
         return newId;
     }
 
@@ -131,6 +464,7 @@ public class RecordDatabaseManager {
         if (constantFields.location != null) {
             values.put(DriverRecordContract.RecordEntry.COLUMN_LATITUDE, constantFields.location.getLatitude());
             values.put(DriverRecordContract.RecordEntry.COLUMN_LONGITUDE, constantFields.location.getLongitude());
+            values.put(DriverRecordContract.RecordEntry.COLUMN_UPLOADABLE, isUploadable(constantFields.location) ? 1 : 0);
         }
 
         if (constantFields.Weather != null) {
@@ -144,29 +478,112 @@ public class RecordDatabaseManager {
         return values;
     }
 
+    /**
+     * Helper to build create/update query components for a record's data.
+     * Add the record ID before writing.
+     *
+     * @param data Serialized JSON representation of the record
+     * @return New set of query values for the payload table
+     */
+    private static ContentValues createPayloadContent(String data) {
+        ContentValues values = new ContentValues();
+        values.put(DriverRecordContract.RecordPayloadEntry.COLUMN_DATA, data);
+        values.put(DriverRecordContract.RecordPayloadEntry.COLUMN_CODEC, RecordCodec.JSON);
+        return values;
+    }
+
+    /**
+     * Helper to build create/update query components for an encoded record.
+     * JSON is stored as text, so that it can be read as before; other codecs are stored as blobs.
+     * Add the record ID before writing.
+     *
+     * @param data Encoded record
+     * @param codecId ID of the codec that encoded the record
+     * @return New set of query values for the payload table, or null if the data cannot be stored
+     */
+    private static ContentValues createPayloadContent(byte[] data, int codecId) {
+        if (codecId != RecordCodec.JSON) {
+            ContentValues values = new ContentValues();
+            values.put(DriverRecordContract.RecordPayloadEntry.COLUMN_DATA, data);
+            values.put(DriverRecordContract.RecordPayloadEntry.COLUMN_CODEC, codecId);
+            return values;
+        }
+
+        try {
+            return createPayloadContent(new String(data, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            Log.e(LOG_LABEL, "Failed to decode JSON record");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Records may be saved without a location, in case the user cannot get a GPS fix,
+     * but cannot be uploaded until it is set.
+     *
+     * @param location Location of the record
+     * @return True if the location has been set
+     */
+    private static boolean isUploadable(Location location) {
+        return location != null && (location.getLatitude() != 0 || location.getLongitude() != 0);
+    }
+
     /**
      * Update an existing record in the database. Should be called on record 'save'.
+     * Records the server has already accepted are not updated.
      *
      * @param data Serialized JSON string of the DriverSchema object to save
      * @param recordId Database ID of the record to update
      * @return Number of rows affected (should be 1 on success)
      */
     public int updateRecord(String data, DriverConstantFields constantFields, long recordId) {
+        return updateRecord(createPayloadContent(data), constantFields, recordId);
+    }
+
+    /**
+     * Update an existing record in the database with a record encoded with a RecordCodec.
+     *
+     * @param data Encoded record
+     * @param codecId ID of the codec that encoded the record
+     * @param recordId Database ID of the record to update
+     * @return Number of rows affected (should be 1 on success), or -1 on failure
+     */
+    public int updateRecord(byte[] data, int codecId, DriverConstantFields constantFields, long recordId) {
+        ContentValues payload = createPayloadContent(data, codecId);
+        if (payload == null) {
+            return -1;
+        }
+        return updateRecord(payload, constantFields, recordId);
+    }
+
+    private int updateRecord(ContentValues payload, DriverConstantFields constantFields, long recordId) {
 
         String[] whereArgs = { String.valueOf(recordId) };
 
         // store constants
         ContentValues values = createConstantContent(constantFields);
 
-        values.put(DriverRecordContract.RecordEntry.COLUMN_DATA, data);
-
-        // set last updated timestamp
+        // set last updated timestamp; the changed record is a new upload
         values.put(DriverRecordContract.RecordEntry.COLUMN_UPDATED_AT, storeDateFormat.format(new Date()));
+        values.put(DriverRecordContract.RecordEntry.COLUMN_UPLOAD_KEY, newUploadKey());
+
+        if (hasLegacyDataColumn) {
+            values.put(DriverRecordContract.RecordEntry.COLUMN_DATA, "");
+        }
 
         writableDb.beginTransaction();
         int affected = -1;
         try {
-            affected = writableDb.update(DriverRecordContract.RecordEntry.TABLE_NAME, values, WHERE_ID, whereArgs);
+            affected = writableDb.update(DriverRecordContract.RecordEntry.TABLE_NAME, values,
+                    WHERE_ID + " AND " + WHERE_NOT_ACKNOWLEDGED, whereArgs);
+            if (affected == 0) {
+                Log.w(LOG_LABEL, "Record " + recordId + " not updated; missing or already uploaded");
+            } else if (affected == 1) {
+                payload.put(DriverRecordContract.RecordPayloadEntry.COLUMN_RECORD_ID, recordId);
+                writableDb.replaceOrThrow(DriverRecordContract.RecordPayloadEntry.TABLE_NAME, null, payload);
+                writableDb.delete(DriverRecordContract.UploadOutboxEntry.TABLE_NAME, WHERE_OUTBOX_RECORD_ID, whereArgs);
+            }
             writableDb.setTransactionSuccessful();
         } catch (Exception e) {
             Log.e(LOG_LABEL, "Database record update failed for ID " + recordId);
@@ -175,6 +592,8 @@ public class RecordDatabaseManager {
         } finally {
             writableDb.endTransaction();
         }
+
+        noteWrites(affected);
         return affected;
     }
 
@@ -190,6 +609,8 @@ public class RecordDatabaseManager {
         writableDb.beginTransaction();
         int affected = -1;
         try {
+            writableDb.delete(DriverRecordContract.RecordPayloadEntry.TABLE_NAME, WHERE_RECORD_ID, whereArgs);
+            writableDb.delete(DriverRecordContract.UploadOutboxEntry.TABLE_NAME, WHERE_OUTBOX_RECORD_ID, whereArgs);
             affected = writableDb.delete(DriverRecordContract.RecordEntry.TABLE_NAME, WHERE_ID, whereArgs);
             writableDb.setTransactionSuccessful();
         } catch (Exception e) {
@@ -200,6 +621,8 @@ public class RecordDatabaseManager {
             writableDb.endTransaction();
         }
 
+        noteWrites(affected);
+
         if (affected == 1) {
             return true;
         } else {
@@ -210,7 +633,402 @@ public class RecordDatabaseManager {
     }
 
     /**
-     * Get a cursor to fetch all records.
+     * Add many records to the database in a single transaction.
+     * Either all of the records are added, or none of them are.
+     *
+     * @param records Records to add, each with a schema version, serialized data, and constants
+     * @return The row IDs of the added records, in the same order as passed in, or null on failure
+     */
+    public synchronized long[] addRecords(List<StoredRecord> records) {
+        long[] newIds = new long[records.size()];
+
+        if (insertStatement == null) {
+            insertStatement = writableDb.compileStatement(insertRecordSql);
+        }
+        if (insertPayloadStatement == null) {
+            insertPayloadStatement = writableDb.compileStatement(INSERT_PAYLOAD);
+        }
+
+        writableDb.beginTransaction();
+        try {
+            int i = 0;
+            for (StoredRecord record : records) {
+                insertStatement.clearBindings();
+                insertStatement.bindString(1, record.schemaVersion);
+                bindConstants(insertStatement, 2, record.constantFields);
+                insertStatement.bindString(9, newUploadKey());
+                long newId = insertStatement.executeInsert();
+                bindPayload(newId, record.data);
+                newIds[i++] = newId;
+            }
+            writableDb.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(LOG_LABEL, "Database batch insert failed for " + records.size() + " records");
+            e.printStackTrace();
+            newIds = null;
+        } finally {
+            writableDb.endTransaction();
+        }
+
+        noteWrites(newIds != null ? newIds.length : 0);
+        return newIds;
+    }
+
+    /**
+     * Update many existing records in the database in a single transaction.
+     * Either all of the records are updated, or none of them are. Records the server has
+     * already accepted are left as they are, and not counted.
+     *
+     * @param records Records to update, each with a record ID, serialized data, and constants
+     * @return Number of rows affected (should match the number of records passed on success), or -1 on failure
+     */
+    public synchronized int updateRecords(List<StoredRecord> records) {
+        String updatedAt = storeDateFormat.format(new Date());
+
+        if (updateStatement == null) {
+            updateStatement = writableDb.compileStatement(updateRecordSql);
+        }
+        if (insertPayloadStatement == null) {
+            insertPayloadStatement = writableDb.compileStatement(INSERT_PAYLOAD);
+        }
+        if (deleteOutboxStatement == null) {
+            deleteOutboxStatement = writableDb.compileStatement(DELETE_OUTBOX_ENTRY);
+        }
+
+        writableDb.beginTransaction();
+        int affected = 0;
+        try {
+            for (StoredRecord record : records) {
+                updateStatement.clearBindings();
+                updateStatement.bindString(1, updatedAt);
+                bindConstants(updateStatement, 2, record.constantFields);
+                updateStatement.bindString(9, newUploadKey());
+                updateStatement.bindLong(10, record.recordId);
+                if (updateStatement.executeUpdateDelete() == 1) {
+                    bindPayload(record.recordId, record.data);
+                    deleteOutboxStatement.bindLong(1, record.recordId);
+                    deleteOutboxStatement.executeUpdateDelete();
+                    affected++;
+                }
+            }
+            writableDb.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(LOG_LABEL, "Database batch update failed for " + records.size() + " records");
+            e.printStackTrace();
+            affected = -1;
+        } finally {
+            writableDb.endTransaction();
+        }
+
+        noteWrites(affected);
+        return affected;
+    }
+
+    /**
+     * Delete many records from the database in a single transaction.
+     * To be called after a group of records have been successfully uploaded.
+     *
+     * @param recordIds Database IDs of the records to delete
+     * @return Number of rows deleted, or -1 on failure
+     */
+    public synchronized int deleteRecords(long[] recordIds) {
+        if (deleteStatement == null) {
+            deleteStatement = writableDb.compileStatement(DELETE_RECORD);
+        }
+        if (deletePayloadStatement == null) {
+            deletePayloadStatement = writableDb.compileStatement(DELETE_PAYLOAD);
+        }
+        if (deleteOutboxStatement == null) {
+            deleteOutboxStatement = writableDb.compileStatement(DELETE_OUTBOX_ENTRY);
+        }
+
+        writableDb.beginTransaction();
+        int affected = 0;
+        try {
+            for (long recordId : recordIds) {
+                deletePayloadStatement.bindLong(1, recordId);
+                deletePayloadStatement.executeUpdateDelete();
+                deleteOutboxStatement.bindLong(1, recordId);
+                deleteOutboxStatement.executeUpdateDelete();
+                deleteStatement.bindLong(1, recordId);
+                affected += deleteStatement.executeUpdateDelete();
+            }
+            writableDb.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(LOG_LABEL, "Database batch deletion failed for " + recordIds.length + " records");
+            e.printStackTrace();
+            affected = -1;
+        } finally {
+            writableDb.endTransaction();
+        }
+
+        noteWrites(affected);
+
+        if (affected != recordIds.length) {
+            Log.e(LOG_LABEL, "Expected to delete " + recordIds.length + " records, but deleted " + affected);
+        }
+
+        return affected;
+    }
+
+    /**
+     * Note a failed attempt to upload a record, and when to try it again.
+     *
+     * @param recordId Database ID of the record
+     * @param attempts Number of failed attempts so far, including this one
+     * @param nextAttemptAt Time to try again, in milliseconds since the epoch
+     * @param error Description of the failure
+     * @return true on success
+     */
+    public synchronized boolean recordUploadFailed(long recordId, int attempts, long nextAttemptAt, String error) {
+        ContentValues values = new ContentValues();
+        values.put(DriverRecordContract.UploadOutboxEntry.COLUMN_RECORD_ID, recordId);
+        values.put(DriverRecordContract.UploadOutboxEntry.COLUMN_STATE, DriverRecordContract.UploadOutboxEntry.STATE_RETRY_WAIT);
+        values.put(DriverRecordContract.UploadOutboxEntry.COLUMN_ATTEMPTS, attempts);
+        values.put(DriverRecordContract.UploadOutboxEntry.COLUMN_NEXT_ATTEMPT_AT, nextAttemptAt);
+        values.put(DriverRecordContract.UploadOutboxEntry.COLUMN_LAST_ERROR, error);
+
+        long rowId = writableDb.insertWithOnConflict(DriverRecordContract.UploadOutboxEntry.TABLE_NAME, null,
+                values, SQLiteDatabase.CONFLICT_REPLACE);
+        noteWrites(rowId != -1 ? 1 : 0);
+
+        if (rowId == -1) {
+            Log.e(LOG_LABEL, "Failed to save upload attempt for record " + recordId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Note that the server has accepted a record, so that it is not sent again if the app stops
+     * before the record is deleted.
+     *
+     * @param recordId Database ID of the record
+     * @return true on success
+     */
+    public synchronized boolean acknowledgeUpload(long recordId) {
+        ContentValues values = new ContentValues();
+        values.put(DriverRecordContract.UploadOutboxEntry.COLUMN_RECORD_ID, recordId);
+        values.put(DriverRecordContract.UploadOutboxEntry.COLUMN_STATE, DriverRecordContract.UploadOutboxEntry.STATE_ACKNOWLEDGED);
+
+        long rowId = writableDb.insertWithOnConflict(DriverRecordContract.UploadOutboxEntry.TABLE_NAME, null,
+                values, SQLiteDatabase.CONFLICT_REPLACE);
+        noteWrites(rowId != -1 ? 1 : 0);
+
+        if (rowId == -1) {
+            Log.e(LOG_LABEL, "Failed to acknowledge upload of record " + recordId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Delete the records the server has accepted, but which were not deleted after uploading,
+     * such as when the app stopped first.
+     *
+     * @return Number of records deleted, or -1 on failure
+     */
+    public int deleteAcknowledgedRecords() {
+        String[] columns = { DriverRecordContract.UploadOutboxEntry.COLUMN_RECORD_ID };
+        Cursor cursor = readableDb.query(DriverRecordContract.UploadOutboxEntry.TABLE_NAME, columns,
+                WHERE_OUTBOX_ACKNOWLEDGED, null, null, null, null);
+
+        long[] recordIds;
+        try {
+            recordIds = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                recordIds[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (recordIds.length == 0) {
+            return 0;
+        }
+        return deleteRecords(recordIds);
+    }
+
+    /**
+     * Find the earliest time a record that failed to upload is to be tried again.
+     *
+     * @return Time in milliseconds since the epoch, or -1 if no record is waiting to be tried again
+     */
+    public long getNextUploadAttemptTime() {
+        Cursor cursor = readableDb.rawQuery("SELECT MIN(" + DriverRecordContract.UploadOutboxEntry.COLUMN_NEXT_ATTEMPT_AT +
+                ") FROM " + DriverRecordContract.UploadOutboxEntry.TABLE_NAME + " WHERE " +
+                DriverRecordContract.UploadOutboxEntry.COLUMN_STATE + " = " +
+                DriverRecordContract.UploadOutboxEntry.STATE_RETRY_WAIT, null);
+
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return -1;
+            }
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Find the last error from trying to upload a record.
+     *
+     * @param recordId Database ID of the record
+     * @return Description of the last failure, or null if the record has not failed to upload
+     */
+    public String getLastUploadError(long recordId) {
+        String[] columns = { DriverRecordContract.UploadOutboxEntry.COLUMN_LAST_ERROR };
+        String[] whereArgs = { String.valueOf(recordId) };
+        Cursor cursor = readableDb.query(DriverRecordContract.UploadOutboxEntry.TABLE_NAME, columns,
+                WHERE_OUTBOX_RECORD_ID, whereArgs, null, null, null);
+
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Find the upload progress of a media file, by its content.
+     *
+     * @param sha256 Hex SHA-256 of the file content
+     * @return Upload state, or null if the file has not been sent to the server
+     */
+    public MediaUploadState getMediaUpload(String sha256) {
+        String[] whereArgs = { sha256 };
+        Cursor cursor = readableDb.query(DriverRecordContract.MediaUploadEntry.TABLE_NAME, MEDIA_UPLOAD_FIELDS,
+                WHERE_MEDIA_SHA256, whereArgs, null, null, null);
+
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new MediaUploadState(cursor.getString(0), cursor.getLong(1), cursor.getString(2), cursor.getLong(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Save the upload progress of a media file, replacing any earlier progress for the same content.
+     * Called after each chunk the server confirms, so that an interrupted upload resumes from there.
+     *
+     * @param state Upload state to save
+     * @return true on success
+     */
+    public synchronized boolean saveMediaUpload(MediaUploadState state) {
+        ContentValues values = new ContentValues();
+        values.put(DriverRecordContract.MediaUploadEntry.COLUMN_SHA256, state.sha256);
+        values.put(DriverRecordContract.MediaUploadEntry.COLUMN_SIZE, state.size);
+        values.put(DriverRecordContract.MediaUploadEntry.COLUMN_MEDIA_ID, state.mediaId);
+        values.put(DriverRecordContract.MediaUploadEntry.COLUMN_UPLOAD_OFFSET, state.offset);
+        values.put(DriverRecordContract.MediaUploadEntry.COLUMN_COMPLETE, state.isComplete() ? 1 : 0);
+
+        long rowId = writableDb.insertWithOnConflict(DriverRecordContract.MediaUploadEntry.TABLE_NAME, null,
+                values, SQLiteDatabase.CONFLICT_REPLACE);
+        noteWrites(rowId != -1 ? 1 : 0);
+
+        if (rowId == -1) {
+            Log.e(LOG_LABEL, "Failed to save upload state for media " + state.sha256);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forget the upload progress of a media file, so that it is sent again from the start.
+     *
+     * @param sha256 Hex SHA-256 of the file content
+     */
+    public synchronized void deleteMediaUpload(String sha256) {
+        String[] whereArgs = { sha256 };
+        noteWrites(writableDb.delete(DriverRecordContract.MediaUploadEntry.TABLE_NAME, WHERE_MEDIA_SHA256, whereArgs));
+    }
+
+    /**
+     * Forget media uploads completed some time ago. They are kept only so that the same
+     * photo attached to another record is not sent twice; incomplete uploads are kept to resume.
+     *
+     * @param maxAgeDays Days after completion to forget an upload
+     * @return Number of uploads forgotten
+     */
+    public synchronized int pruneMediaUploads(int maxAgeDays) {
+        String[] whereArgs = { -maxAgeDays + " days" };
+        int deleted = writableDb.delete(DriverRecordContract.MediaUploadEntry.TABLE_NAME,
+                WHERE_MEDIA_COMPLETE_BEFORE, whereArgs);
+        noteWrites(deleted);
+        return deleted;
+    }
+
+    /**
+     * @return New random key for a record's upload, as hex
+     */
+    private static String newUploadKey() {
+        byte[] bytes = new byte[UPLOAD_KEY_BYTES];
+        uploadKeyRandom.nextBytes(bytes);
+
+        StringBuilder key = new StringBuilder(UPLOAD_KEY_BYTES * 2);
+        for (byte b : bytes) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Helper to write a record's data to the payload table with the compiled statement.
+     * Must be called within a transaction, after insertPayloadStatement has been compiled.
+     *
+     * @param recordId Database ID of the record
+     * @param data Serialized JSON representation of the record
+     */
+    private void bindPayload(long recordId, String data) {
+        insertPayloadStatement.bindLong(1, recordId);
+        insertPayloadStatement.bindString(2, data);
+        insertPayloadStatement.executeInsert();
+    }
+
+    /**
+     * Helper to bind the constant fields to a compiled statement, in the order
+     * occurred from, occurred to, latitude, longitude, weather, light, uploadable.
+     * Unset optional fields are bound as null.
+     *
+     * @param statement Compiled statement with parameters for the constant fields
+     * @param startIndex Parameter index (1-based) of the occurred from field
+     * @param constantFields Object with constant fields to bind
+     */
+    private void bindConstants(SQLiteStatement statement, int startIndex, DriverConstantFields constantFields) {
+        // set occurred-to same as occurred-from, as in createConstantContent
+        String formattedDateOccurred = storeDateFormat.format(constantFields.occurredFrom);
+        statement.bindString(startIndex, formattedDateOccurred);
+        statement.bindString(startIndex + 1, formattedDateOccurred);
+
+        if (constantFields.location != null) {
+            statement.bindDouble(startIndex + 2, constantFields.location.getLatitude());
+            statement.bindDouble(startIndex + 3, constantFields.location.getLongitude());
+            statement.bindLong(startIndex + 6, isUploadable(constantFields.location) ? 1 : 0);
+        } else {
+            statement.bindNull(startIndex + 2);
+            statement.bindNull(startIndex + 3);
+            statement.bindNull(startIndex + 6);
+        }
+
+        if (constantFields.Weather != null) {
+            statement.bindString(startIndex + 4, constantFields.Weather.toString());
+        } else {
+            statement.bindNull(startIndex + 4);
+        }
+
+        if (constantFields.Light != null) {
+            statement.bindString(startIndex + 5, constantFields.Light.toString());
+        } else {
+            statement.bindNull(startIndex + 5);
+        }
+    }
+
+    /**
+     * Get a cursor to fetch all records. Only the metadata is returned, without the record data,
+     * to keep the rows small when listing many records.
      *
      * @return Database cursor to retrieve all records
      */
@@ -230,53 +1048,142 @@ public class RecordDatabaseManager {
     }
 
     /**
-     * Fetch the JSON representation of a record from the database by its _id
+     * Get a cursor to fetch all records that have coordinates set, and so may be uploaded,
+     * with their metadata and data.
+     * Records left from before database version 3 are not included until they have been migrated.
      *
-     * @param recordId Database ID for record to get
-     * @return Serialized string of the record data, or null on failure
+     * @return Database cursor to retrieve uploadable records
      */
-    public String getSerializedRecordWithId(long recordId) {
+    public Cursor readUploadableRecords() {
+        return readableDb.rawQuery(recordWithDataQuery + " WHERE r." + WHERE_UPLOADABLE +
+                " ORDER BY r." + DriverRecordContract.RecordEntry.COLUMN_ENTERED_AT + " DESC", null);
+    }
 
-        String[] dataField = { DriverRecordContract.RecordEntry.COLUMN_DATA };
-        String[] whereArgs = { String.valueOf(recordId) };
+    /**
+     * Get a cursor to fetch the uploadable records that are due to be tried: those that have not
+     * been tried, and those whose wait after failing has passed. Records the server has accepted
+     * are left to be deleted. Read in the same order and with the same columns as
+     * readUploadableRecords.
+     *
+     * @param now Current time, in milliseconds since the epoch
+     * @return Database cursor to retrieve uploadable records due to be tried
+     */
+    public Cursor readDueUploadableRecords(long now) {
+        String[] whereArgs = { String.valueOf(now) };
+        return readableDb.rawQuery(recordWithDataQuery + " WHERE r." + WHERE_UPLOADABLE + " AND " + WHERE_UPLOAD_DUE +
+                " ORDER BY r." + DriverRecordContract.RecordEntry.COLUMN_ENTERED_AT + " DESC", whereArgs);
+    }
+
+    /**
+     * Read a page of the record list, with only the columns the list shows. Pages are found by
+     * position rather than offset, so each page reads only its own rows from the entered_at index,
+     * and records added or removed between pages do not shift the list. Records the server has
+     * accepted are left out, as they are only waiting to be deleted.
+     *
+     * @param after Last record in the previous page, or null to read the first page
+     * @param pageSize Maximum number of records to read
+     * @return Records in the page, most recently entered first; fewer than pageSize if at the end
+     */
+    public List<RecordListItem> readRecordListPage(RecordListItem after, int pageSize) {
+        String where = WHERE_NOT_ACKNOWLEDGED;
+        String[] whereArgs = null;
+        if (after != null) {
+            where = WHERE_AFTER_LIST_POSITION + " AND " + WHERE_NOT_ACKNOWLEDGED;
+            whereArgs = new String[] { after.enteredAt, after.enteredAt, String.valueOf(after.recordId) };
+        }
 
         Cursor cursor = readableDb.query(
                 DriverRecordContract.RecordEntry.TABLE_NAME,
-                dataField, // columns
-                WHERE_ID,   // WHERE
-                whereArgs,  // WHERE args
-                null,       // GROUP BY
-                null,       // HAVING
-                null        // ORDER BY
+                LIST_FIELDS,     // columns
+                where,           // WHERE
+                whereArgs,       // WHERE args
+                null,            // GROUP BY
+                null,            // HAVING
+                LIST_SORT_ORDER, // ORDER BY
+                String.valueOf(pageSize) // LIMIT
         );
 
+        ArrayList<RecordListItem> page = new ArrayList<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                page.add(new RecordListItem(cursor.getLong(0), cursor.getString(1)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return page;
+    }
+
+    /**
+     * @return Number of records in the database
+     */
+    public long countRecords() {
+        return DatabaseUtils.queryNumEntries(readableDb, DriverRecordContract.RecordEntry.TABLE_NAME);
+    }
+
+    /**
+     * @return Number of records that cannot be uploaded because they do not have coordinates
+     */
+    public long countUnuploadableRecords() {
+        return DatabaseUtils.queryNumEntries(readableDb, DriverRecordContract.RecordEntry.TABLE_NAME,
+                DriverRecordContract.RecordEntry.COLUMN_UPLOADABLE + " = 0");
+    }
+
+    /**
+     * Fetch the JSON representation of a record from the database by its _id.
+     * Records stored with other codecs are converted to JSON.
+     *
+     * @param recordId Database ID for record to get
+     * @return Serialized string of the record data, or null on failure
+     */
+    public String getSerializedRecordWithId(long recordId) {
+
+        Cursor cursor = getRecordByIdCursor(recordId);
+
         if (!cursor.moveToFirst()) {
             Log.e(LOG_LABEL, "Record with ID " + recordId + " not found!");
+            cursor.close();
             return null;
         }
 
-        String recordData = cursor.getString(0);
+        int dataColumn = cursor.getColumnIndex(DriverRecordContract.RecordEntry.COLUMN_DATA);
+        int codecColumn = cursor.getColumnIndex(DriverRecordContract.RecordPayloadEntry.COLUMN_CODEC);
+        if (cursor.getInt(codecColumn) == RecordCodec.JSON) {
+            String recordData = cursor.getString(dataColumn);
+            cursor.close();
+            return recordData;
+        }
+
+        JsonReader reader = DriverSchemaSerializer.openRecordReader(cursor, dataColumn, codecColumn);
+        cursor.close();
+        return reader != null ? DriverSchemaSerializer.readRecordAsJson(reader) : null;
+    }
+
+    /**
+     * @param recordId Database ID for record
+     * @return UUID of the schema the record was entered with, or null if the record is not found
+     */
+    public String getRecordSchemaVersion(long recordId) {
+        String[] columns = { DriverRecordContract.RecordEntry.COLUMN_SCHEMA_VERSION };
+        String[] whereArgs = { String.valueOf(recordId) };
+        Cursor cursor = readableDb.query(DriverRecordContract.RecordEntry.TABLE_NAME, columns, WHERE_ID,
+                whereArgs, null, null, null);
+
+        String schemaVersion = cursor.moveToFirst() ? cursor.getString(0) : null;
         cursor.close();
-        return recordData;
+        return schemaVersion;
     }
 
     /**
-     * Get a cursor that queries for a single database record
+     * Get a cursor that queries for a single database record, with its metadata and data
      * @param recordId ID for the record
      * @return Database cursor that should have one record in it
      */
     public Cursor getRecordByIdCursor(long recordId) {
         String[] whereArgs = { String.valueOf(recordId) };
 
-        return readableDb.query(
-                DriverRecordContract.RecordEntry.TABLE_NAME,
-                ALL_FIELDS, // columns
-                WHERE_ID,   // WHERE
-                whereArgs,  // WHERE args
-                null,       // GROUP BY
-                null,       // HAVING
-                null        // ORDER BY
-        );
+        return readableDb.rawQuery(recordWithDataQuery + " WHERE r." + WHERE_ID, whereArgs);
     }
 
     /**
@@ -295,20 +1202,15 @@ public class RecordDatabaseManager {
 
         // find column offsets in response
         int dataColumn = cursor.getColumnIndex(DriverRecordContract.RecordEntry.COLUMN_DATA);
+        int codecColumn = cursor.getColumnIndex(DriverRecordContract.RecordPayloadEntry.COLUMN_CODEC);
         int schemaColumn = cursor.getColumnIndex(DriverRecordContract.RecordEntry.COLUMN_SCHEMA_VERSION);
 
-        // fetch fields
-        String recordData = cursor.getString(dataColumn);
+        // fetch fields, with the classes of the schema the record was entered with
+        Object recordObject = DriverSchemaSerializer.readStoredRecord(cursor, dataColumn, codecColumn, schemaColumn);
         DriverConstantFields constants = readStoredConstants(cursor);
         String schemaVersion = cursor.getString(schemaColumn);
         cursor.close();
 
-        Object recordObject;
-        if (recordData == null) {
-            Log.e(LOG_LABEL, "Cannot deserialize null record data string!");
-        }
-
-        recordObject = DriverSchemaSerializer.readRecord(recordData);
         if (recordObject == null) {
             Log.e(LOG_LABEL, "Failed to deserialize record data for id " + recordId);
         }
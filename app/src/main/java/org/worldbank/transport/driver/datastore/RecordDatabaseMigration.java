@@ -0,0 +1,58 @@
+package org.worldbank.transport.driver.datastore;
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * One step in upgrading the records database from the previous version to its target version.
+ *
+ * A migration runs in two phases. The schema phase runs while the database is being opened, so it
+ * must be quick (add columns, tables, and indexes), and must leave the database fully usable by
+ * the new version of the app. Any slow rewriting of existing rows goes in the data phase instead,
+ * which runs in small chunks after the database has opened, each chunk in its own transaction.
+ */
+public abstract class RecordDatabaseMigration {
+
+    private final int targetVersion;
+
+    /**
+     * @param targetVersion Database version after this migration has been applied
+     */
+    protected RecordDatabaseMigration(int targetVersion) {
+        this.targetVersion = targetVersion;
+    }
+
+    public int getTargetVersion() {
+        return targetVersion;
+    }
+
+    /**
+     * Apply schema changes. Runs within a transaction while the database is being opened.
+     *
+     * @param db Database to upgrade
+     */
+    public abstract void upgradeSchema(SQLiteDatabase db);
+
+    /**
+     * Count rows still waiting on the data phase of this migration. Checked each time the
+     * database is opened, so that an interrupted data migration resumes on the next start.
+     *
+     * @param db Database being migrated
+     * @return Number of rows left to migrate; zero if this migration has no data phase
+     */
+    public int countPendingRows(SQLiteDatabase db) {
+        return 0;
+    }
+
+    /**
+     * Migrate the next chunk of rows. Runs within its own transaction. Migrated rows must no longer
+     * be counted by countPendingRows, or the migration will never finish.
+     *
+     * @param db Database being migrated
+     * @param chunkSize Maximum number of rows to migrate
+     * @return Number of rows migrated; zero when there are none left
+     */
+    public int migrateChunk(SQLiteDatabase db, int chunkSize) {
+        return 0;
+    }
+}
@@ -0,0 +1,141 @@
+package org.worldbank.transport.driver.datastore;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Applies migrations to the records database in version order, keeping existing records.
+ *
+ * Schema changes are applied from RecordDatabaseHelper.onUpgrade. Rewriting of existing rows is
+ * done afterwards with migrateData, which should be called off the UI thread.
+ */
+public class RecordDatabaseMigrator {
+
+    private static final String LOG_LABEL = "DatabaseMigrator";
+
+    // number of rows to rewrite in each data migration transaction
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    public interface MigrationProgressListener {
+        void migrationProgress(int migratedRows, int totalRows);
+    }
+
+    private final List<RecordDatabaseMigration> migrations;
+    private final int chunkSize;
+
+    public RecordDatabaseMigrator(List<RecordDatabaseMigration> migrations) {
+        this(migrations, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param migrations Migration steps; need not be in order
+     * @param chunkSize Maximum number of rows to rewrite per transaction in the data phase
+     */
+    public RecordDatabaseMigrator(List<RecordDatabaseMigration> migrations, int chunkSize) {
+        this.migrations = new ArrayList<>(migrations);
+        this.chunkSize = chunkSize;
+
+        Collections.sort(this.migrations, new Comparator<RecordDatabaseMigration>() {
+            @Override
+            public int compare(RecordDatabaseMigration lhs, RecordDatabaseMigration rhs) {
+                return lhs.getTargetVersion() - rhs.getTargetVersion();
+            }
+        });
+    }
+
+    /**
+     * Run the schema phase of each migration between the two versions, in order, each in a
+     * nested transaction. If a step fails, the exception propagates so that the whole upgrade
+     * rolls back and the database stays at its old version with its records intact.
+     *
+     * @param db Database being upgraded; should already be in a transaction, as in onUpgrade
+     * @param oldVersion Version of the database on disk
+     * @param newVersion Version to upgrade to
+     */
+    public void upgradeSchema(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (RecordDatabaseMigration migration : migrations) {
+            int target = migration.getTargetVersion();
+            if (target <= oldVersion || target > newVersion) {
+                continue;
+            }
+
+            Log.i(LOG_LABEL, "Migrating records database schema to version " + target);
+            db.beginTransaction();
+            try {
+                migration.upgradeSchema(db);
+                db.setTransactionSuccessful();
+            } catch (RuntimeException e) {
+                Log.e(LOG_LABEL, "Failed to migrate records database schema to version " + target);
+                throw e;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Count rows waiting on the data phase of any migration.
+     *
+     * @param db Opened database
+     * @return Number of rows left to migrate
+     */
+    public int countPendingRows(SQLiteDatabase db) {
+        int pending = 0;
+        for (RecordDatabaseMigration migration : migrations) {
+            pending += migration.countPendingRows(db);
+        }
+        return pending;
+    }
+
+    /**
+     * Run the data phase of each migration, in chunks, each chunk in its own transaction, so that
+     * the app may read and write records in between. Safe to interrupt; work left over is picked up
+     * the next time this is called.
+     *
+     * @param db Opened database
+     * @param listener Notified after each chunk; may be null
+     * @return Number of rows migrated, or -1 on failure
+     */
+    public int migrateData(SQLiteDatabase db, MigrationProgressListener listener) {
+        int total = countPendingRows(db);
+        if (total == 0) {
+            return 0;
+        }
+
+        Log.i(LOG_LABEL, "Migrating " + total + " rows in records database");
+        int migrated = 0;
+        for (RecordDatabaseMigration migration : migrations) {
+            int count;
+            do {
+                db.beginTransaction();
+                try {
+                    count = migration.migrateChunk(db, chunkSize);
+                    db.setTransactionSuccessful();
+                } catch (Exception e) {
+                    Log.e(LOG_LABEL, "Failed to migrate data for records database version " +
+                            migration.getTargetVersion());
+                    e.printStackTrace();
+                    return -1;
+                } finally {
+                    db.endTransaction();
+                }
+
+                if (count > 0) {
+                    migrated += count;
+                    if (listener != null) {
+                        listener.migrationProgress(Math.min(migrated, total), total);
+                    }
+                }
+            } while (count > 0);
+        }
+
+        Log.i(LOG_LABEL, "Finished migrating " + migrated + " rows in records database");
+        return migrated;
+    }
+}
@@ -0,0 +1,18 @@
+package org.worldbank.transport.driver.datastore;
+
+/**
+ * Columns shown for a record in the record list.
+ * Also serves as the position in the list after which to read the next page.
+ */
+public class RecordListItem {
+
+    public final long recordId;
+
+    // stored in SQLite as yyyy-mm-dd hh:mm:ss, in UTC
+    public final String enteredAt;
+
+    public RecordListItem(long recordId, String enteredAt) {
+        this.recordId = recordId;
+        this.enteredAt = enteredAt;
+    }
+}
@@ -0,0 +1,64 @@
+package org.worldbank.transport.driver.datastore;
+
+/**
+ * Storage settings applied to the records database when it is opened.
+ *
+ * Write-ahead logging lets the record list read while an upload deletes records in the background,
+ * instead of one blocking the other as with the default rollback journal. Because WAL commits
+ * only append to the log, synchronous=NORMAL is durable across app crashes and only risks the most
+ * recent transactions on power loss, which is acceptable for records that are re-saved on edit.
+ */
+public class RecordStorageProfile {
+
+    /**
+     * Write-ahead logging with relaxed syncing, a larger page cache, and memory-mapped reads.
+     */
+    public static final RecordStorageProfile DEFAULT = new RecordStorageProfile(true, "NORMAL", 2048, 8 * 1024 * 1024, 1000, 500);
+
+    /**
+     * SQLite defaults, with a rollback journal. Useful for comparison in testing.
+     */
+    public static final RecordStorageProfile ROLLBACK_JOURNAL = new RecordStorageProfile(false, "FULL", 0, 0, 0, 0);
+
+    /**
+     * Use write-ahead logging instead of a rollback journal. Has no effect on in-memory databases.
+     */
+    public final boolean writeAheadLogging;
+
+    /**
+     * Value for PRAGMA synchronous: OFF, NORMAL, or FULL.
+     */
+    public final String synchronous;
+
+    /**
+     * Size of the page cache, in KiB; zero to keep the SQLite default.
+     */
+    public final int cacheSizeKb;
+
+    /**
+     * Maximum bytes of the database file to memory-map for reads; zero to disable.
+     * Ignored by SQLite versions older than 3.7.17 (before Android 5.0).
+     */
+    public final long mmapSize;
+
+    /**
+     * Number of WAL pages after which SQLite checkpoints automatically on commit; zero to keep the default.
+     */
+    public final int walAutoCheckpointPages;
+
+    /**
+     * Number of rows written after which RecordDatabaseManager runs a passive WAL checkpoint,
+     * so the log does not grow without bound while readers hold it open; zero to disable.
+     */
+    public final int checkpointIntervalWrites;
+
+    public RecordStorageProfile(boolean writeAheadLogging, String synchronous, int cacheSizeKb, long mmapSize,
+                                int walAutoCheckpointPages, int checkpointIntervalWrites) {
+        this.writeAheadLogging = writeAheadLogging;
+        this.synchronous = synchronous;
+        this.cacheSizeKb = cacheSizeKb;
+        this.mmapSize = mmapSize;
+        this.walAutoCheckpointPages = walAutoCheckpointPages;
+        this.checkpointIntervalWrites = checkpointIntervalWrites;
+    }
+}
@@ -0,0 +1,374 @@
+package org.worldbank.transport.driver.datastore;
+
+import android.util.Base64;
+import android.util.Log;
+
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.jsonschema2pojo.media.SerializableMedia;
+import org.worldbank.transport.driver.staticmodels.DriverSchemaUpload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Writes a stored record into an upload request body without building its object graph.
+ *
+ * The stored record is copied token by token, with the constant fields written around it in the
+ * same form as DriverSchemaUpload. Media fields are stored as file paths; their files are read
+ * in small chunks and written straight to the request body as base64, so memory use does not
+ * grow with the number or size of images in a record.
+ *
+ * Media already sent to the server on their own may instead be written as references to the
+ * uploaded files, given by path; use findMediaPaths to list the files a record holds.
+ *
+ * A record's upload key is written in the body only for batch uploads, as idempotency_key, since
+ * the batch request holds many records. A record posted on its own carries its key in the
+ * Idempotency-Key header instead.
+ *
+ * The schema class is used only to find which fields hold media. Fields it does not know are
+ * copied as they are.
+ *
+ * A writer may be shared by upload threads.
+ */
+public class RecordUploadWriter {
+
+    private static final String LOG_LABEL = "RecordUploadWriter";
+
+    // media are uploaded as data URIs, as written by SerializableMediaByteArrayAdapter
+    private static final String MEDIA_DATA_URI_PREFIX = "data:image/jpeg;base64,";
+
+    // bytes read from a media file at a time; a multiple of 3, so chunks encode without padding
+    private static final int MEDIA_CHUNK_SIZE = 3 * 1024;
+
+    private final Class recordClass;
+
+    // JSON field name to field type (or element type, for collections), by class
+    private final Map<Class, Map<String, Class>> fieldTypes = new ConcurrentHashMap<>();
+
+    /**
+     * @param recordClass Schema class of the records to write; may be null if unavailable,
+     *                    in which case media paths are written as they are stored
+     */
+    public RecordUploadWriter(Class recordClass) {
+        this.recordClass = recordClass;
+    }
+
+    /**
+     * Write a record for upload.
+     *
+     * @param out Request body. Not closed.
+     * @param data Record data, as stored in the database
+     * @param upload Constant fields and metadata for the record; its driverData is ignored
+     * @throws IOException On failure to read the stored record or its media, or to write to the request
+     */
+    public void writeRecord(Writer out, String data, DriverSchemaUpload upload) throws IOException {
+        writeRecord(out, new JsonReader(new StringReader(data)), upload);
+    }
+
+    /**
+     * Write a record for upload, from a reader opened with its codec.
+     *
+     * @param out Request body. Not closed.
+     * @param reader Reader for the stored record, from DriverSchemaSerializer.openRecordReader. Closed when done.
+     * @param upload Constant fields and metadata for the record; its driverData is ignored
+     * @throws IOException On failure to read the stored record or its media, or to write to the request
+     */
+    public void writeRecord(Writer out, JsonReader reader, DriverSchemaUpload upload) throws IOException {
+        writeRecord(out, reader, upload, null);
+    }
+
+    /**
+     * Write a record for upload, from a reader opened with its codec, with references in place of
+     * the media already uploaded.
+     *
+     * @param out Request body. Not closed.
+     * @param reader Reader for the stored record, from DriverSchemaSerializer.openRecordReader. Closed when done.
+     * @param upload Constant fields and metadata for the record; its driverData is ignored
+     * @param mediaReferences Reference to write for each uploaded media file, by path; files
+     *                        not in the map are written inline. May be null.
+     * @throws IOException On failure to read the stored record or its media, or to write to the request
+     */
+    public void writeRecord(Writer out, JsonReader reader, DriverSchemaUpload upload,
+                            Map<String, String> mediaReferences) throws IOException {
+        writeRecord(out, reader, upload, mediaReferences, false);
+    }
+
+    /**
+     * Write a record for upload, from a reader opened with its codec, with references in place of
+     * the media already uploaded, and optionally its upload key.
+     *
+     * @param out Request body. Not closed.
+     * @param reader Reader for the stored record, from DriverSchemaSerializer.openRecordReader. Closed when done.
+     * @param upload Constant fields and metadata for the record; its driverData is ignored
+     * @param mediaReferences Reference to write for each uploaded media file, by path; files
+     *                        not in the map are written inline. May be null.
+     * @param withUploadKey If set, write the record's upload key, for records in a batch
+     * @throws IOException On failure to read the stored record or its media, or to write to the request
+     */
+    public void writeRecord(Writer out, JsonReader reader, DriverSchemaUpload upload,
+                            Map<String, String> mediaReferences, boolean withUploadKey) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        // match the default Gson output
+        writer.setSerializeNulls(false);
+        writer.setHtmlSafe(true);
+
+        writer.beginObject();
+        writer.name("schema").value(upload.schemaVersion);
+
+        writer.name("data");
+        try {
+            copyValue(reader, writer, out, recordClass, mediaReferences);
+        } finally {
+            reader.close();
+        }
+
+        writer.name("weather").value(upload.driverWeather);
+        writer.name("light").value(upload.driverLight);
+
+        if (upload.geom != null) {
+            writer.name("geom").beginObject();
+            writer.name("type").value(upload.geom.geomType);
+            writer.name("coordinates").beginArray();
+            for (double coordinate : upload.geom.coordinates) {
+                writer.value(coordinate);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+
+        writer.name("occurred_from").value(upload.occurredFrom);
+        writer.name("occurred_to").value(upload.occurredTo);
+        writer.name("created").value(upload.createdAt);
+        writer.name("modified").value(upload.modifiedAt);
+        if (withUploadKey) {
+            writer.name("idempotency_key").value(upload.idempotencyKey);
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Copy the next value from the stored record to the request.
+     *
+     * @param type Schema class of the value, if known
+     */
+    private void copyValue(JsonReader reader, JsonWriter writer, Writer out, Class type,
+                           Map<String, String> mediaReferences) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                Map<String, Class> types = getFieldTypes(type);
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    writer.name(name);
+                    copyValue(reader, writer, out, types != null ? types.get(name) : null, mediaReferences);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case BEGIN_ARRAY:
+                // elements have the element type found for the field
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copyValue(reader, writer, out, type, mediaReferences);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case STRING:
+                String value = reader.nextString();
+                String reference = mediaReferences != null ? mediaReferences.get(value) : null;
+                if (SerializableMedia.class.equals(type) && reference != null) {
+                    writer.value(reference);
+                } else if (SerializableMedia.class.equals(type)) {
+                    writeMedia(writer, out, value);
+                } else {
+                    writer.value(value);
+                }
+                break;
+            case NUMBER:
+                // keep the number exactly as stored
+                writer.jsonValue(reader.nextString());
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            default:
+                throw new IOException("Unexpected token in stored record: " + reader.peek());
+        }
+    }
+
+    /**
+     * List the media files held by a stored record that can be read, each once.
+     *
+     * @param reader Reader for the stored record, from DriverSchemaSerializer.openRecordReader. Closed when done.
+     * @return Paths of the record's media files, in the order found
+     * @throws IOException On failure to read the stored record
+     */
+    public List<String> findMediaPaths(JsonReader reader) throws IOException {
+        Set<String> paths = new LinkedHashSet<>();
+        try {
+            findMedia(reader, recordClass, paths);
+        } finally {
+            reader.close();
+        }
+        return new ArrayList<>(paths);
+    }
+
+    private void findMedia(JsonReader reader, Class type, Set<String> paths) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                Map<String, Class> types = getFieldTypes(type);
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    findMedia(reader, types != null ? types.get(name) : null, paths);
+                }
+                reader.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    findMedia(reader, type, paths);
+                }
+                reader.endArray();
+                break;
+            case STRING:
+                String value = reader.nextString();
+                if (SerializableMedia.class.equals(type) && !value.isEmpty() && new File(value).canRead()) {
+                    paths.add(value);
+                }
+                break;
+            default:
+                reader.skipValue();
+        }
+    }
+
+    /**
+     * Write the file at the given path as a base64 data URI, a chunk at a time.
+     * Missing files are written as null.
+     *
+     * @param out Writer the JSON writer writes to
+     */
+    private void writeMedia(JsonWriter writer, Writer out, String path) throws IOException {
+        File file = path.isEmpty() ? null : new File(path);
+        if (file == null || !file.canRead()) {
+            Log.w(LOG_LABEL, "Media file missing for upload: " + path);
+            writer.nullValue();
+            return;
+        }
+
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            // JsonWriter does not buffer, so the opening quote goes out with any preceding
+            // separator and name, and the encoded file may follow it directly
+            writer.jsonValue("\"" + MEDIA_DATA_URI_PREFIX);
+
+            byte[] mediaBuffer = new byte[MEDIA_CHUNK_SIZE];
+            int read;
+            while ((read = readChunk(inputStream, mediaBuffer)) > 0) {
+                out.write(Base64.encodeToString(mediaBuffer, 0, read, Base64.NO_WRAP));
+            }
+            out.write('"');
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Fill the media buffer from the stream, so that only the last chunk is short.
+     *
+     * @return Number of bytes read; 0 at end of stream
+     */
+    private static int readChunk(InputStream inputStream, byte[] mediaBuffer) throws IOException {
+        int total = 0;
+        while (total < mediaBuffer.length) {
+            int read = inputStream.read(mediaBuffer, total, mediaBuffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Find the JSON field names of a schema class and the types of their values.
+     * Collections map to their element type, so that arrays of sections and media are followed.
+     *
+     * @return Map of field names to types, or null if the class is unknown
+     */
+    private Map<String, Class> getFieldTypes(Class type) {
+        if (type == null || type.isPrimitive() || type.getName().startsWith("java.")) {
+            return null;
+        }
+
+        Map<String, Class> types = fieldTypes.get(type);
+        if (types != null) {
+            return types;
+        }
+
+        types = new HashMap<>();
+        for (Class current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+
+                SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                String name = serializedName != null ? serializedName.value() : field.getName();
+                types.put(name, getValueType(field));
+            }
+        }
+
+        fieldTypes.put(type, types);
+        return types;
+    }
+
+    private static Class getValueType(Field field) {
+        Class fieldType = field.getType();
+        if (fieldType.isArray()) {
+            return fieldType.getComponentType();
+        }
+
+        if (Collection.class.isAssignableFrom(fieldType)) {
+            Type genericType = field.getGenericType();
+            if (genericType instanceof ParameterizedType) {
+                Type elementType = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+                if (elementType instanceof Class) {
+                    return (Class) elementType;
+                }
+            }
+            return null;
+        }
+
+        return fieldType;
+    }
+}
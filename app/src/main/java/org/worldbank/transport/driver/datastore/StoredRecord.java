@@ -0,0 +1,44 @@
+package org.worldbank.transport.driver.datastore;
+
+import org.worldbank.transport.driver.staticmodels.DriverConstantFields;
+
+/**
+ * Serialized record with its constant fields, as written to the database.
+ * Used to pass many records at once to the batch operations on RecordDatabaseManager.
+ */
+public class StoredRecord {
+
+    public final long recordId;
+    public final String schemaVersion;
+    public final String data;
+    public final DriverConstantFields constantFields;
+
+    /**
+     * Build a record to be added to the database.
+     *
+     * @param schemaVersion UUID of the schema used to create the record
+     * @param data Serialized JSON representation of the record
+     * @param constantFields Constant fields for the record
+     */
+    public StoredRecord(String schemaVersion, String data, DriverConstantFields constantFields) {
+        this(-1, schemaVersion, data, constantFields);
+    }
+
+    /**
+     * Build a record to update an existing database row.
+     *
+     * @param recordId Database ID of the record to update
+     * @param data Serialized JSON representation of the record
+     * @param constantFields Constant fields for the record
+     */
+    public StoredRecord(long recordId, String data, DriverConstantFields constantFields) {
+        this(recordId, null, data, constantFields);
+    }
+
+    private StoredRecord(long recordId, String schemaVersion, String data, DriverConstantFields constantFields) {
+        this.recordId = recordId;
+        this.schemaVersion = schemaVersion;
+        this.data = data;
+        this.constantFields = constantFields;
+    }
+}
@@ -0,0 +1,49 @@
+package org.worldbank.transport.driver.datastore;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+
+/**
+ * Version 8: add the upload key column, sent with each upload so that the server can tell a
+ * record sent again from a new one.
+ *
+ * The column is added without a default, so rows from version 7 start out null and are given
+ * random keys by the data phase. Until then, those rows are uploaded without a key, as before.
+ */
+class UploadKeysMigration extends RecordDatabaseMigration {
+
+    private static final String TABLE = DriverRecordContract.RecordEntry.TABLE_NAME;
+    private static final String UPLOAD_KEY = DriverRecordContract.RecordEntry.COLUMN_UPLOAD_KEY;
+
+    private static final String PENDING = UPLOAD_KEY + " IS NULL";
+
+    UploadKeysMigration() {
+        super(8);
+    }
+
+    @Override
+    public void upgradeSchema(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + UPLOAD_KEY + " TEXT");
+    }
+
+    @Override
+    public int countPendingRows(SQLiteDatabase db) {
+        return (int) DatabaseUtils.queryNumEntries(db, TABLE, PENDING);
+    }
+
+    @Override
+    public int migrateChunk(SQLiteDatabase db, int chunkSize) {
+        // 128 random bits, as in the keys made for new records
+        SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE + " SET " + UPLOAD_KEY +
+                " = lower(hex(randomblob(16))) WHERE " + DriverRecordContract.RecordEntry._ID + " IN (SELECT " +
+                DriverRecordContract.RecordEntry._ID + " FROM " + TABLE + " WHERE " + PENDING +
+                " LIMIT " + chunkSize + ")");
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+}
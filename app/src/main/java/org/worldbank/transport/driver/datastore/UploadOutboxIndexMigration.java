@@ -0,0 +1,22 @@
+package org.worldbank.transport.driver.datastore;
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Version 9: index the upload outbox on state and next attempt time, in place of next attempt
+ * time alone. The outbox is looked up by state since acknowledged uploads were added to it, to
+ * find the records to delete and the earliest retry. Indexes need no data phase.
+ */
+class UploadOutboxIndexMigration extends RecordDatabaseMigration {
+
+    UploadOutboxIndexMigration() {
+        super(9);
+    }
+
+    @Override
+    public void upgradeSchema(SQLiteDatabase db) {
+        db.execSQL(DriverRecordContract.UPLOAD_OUTBOX_INDEX_CREATE);
+        db.execSQL(DriverRecordContract.UPLOAD_OUTBOX_LEGACY_INDEX_DROP);
+    }
+}
@@ -0,0 +1,37 @@
+package org.worldbank.transport.driver.datastore;
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Version 7: add the upload outbox table, which tracks failed upload attempts so that records
+ * are retried with backoff. It starts empty, as no record has failed yet, so there is no data phase.
+ */
+class UploadOutboxMigration extends RecordDatabaseMigration {
+
+    private static final String OUTBOX_TABLE = DriverRecordContract.UploadOutboxEntry.TABLE_NAME;
+    private static final String NEXT_ATTEMPT_AT = DriverRecordContract.UploadOutboxEntry.COLUMN_NEXT_ATTEMPT_AT;
+
+    // outbox table and index as of version 7; version 9 replaces the index, so do not use the
+    // current definitions
+    private static final String OUTBOX_TABLE_CREATE = "CREATE TABLE " + OUTBOX_TABLE + " (" +
+            DriverRecordContract.UploadOutboxEntry.COLUMN_RECORD_ID + " INTEGER PRIMARY KEY NOT NULL, " +
+            DriverRecordContract.UploadOutboxEntry.COLUMN_STATE + " INTEGER NOT NULL, " +
+            DriverRecordContract.UploadOutboxEntry.COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, " +
+            NEXT_ATTEMPT_AT + " INTEGER NOT NULL DEFAULT 0, " +
+            DriverRecordContract.UploadOutboxEntry.COLUMN_LAST_ERROR + " TEXT" +
+            ");";
+    private static final String OUTBOX_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS " +
+            DriverRecordContract.UploadOutboxEntry.INDEX_NEXT_ATTEMPT_AT + " ON " + OUTBOX_TABLE +
+            " (" + NEXT_ATTEMPT_AT + ")";
+
+    UploadOutboxMigration() {
+        super(7);
+    }
+
+    @Override
+    public void upgradeSchema(SQLiteDatabase db) {
+        db.execSQL(OUTBOX_TABLE_CREATE);
+        db.execSQL(OUTBOX_INDEX_CREATE);
+    }
+}
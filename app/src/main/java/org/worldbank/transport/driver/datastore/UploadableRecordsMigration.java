@@ -0,0 +1,54 @@
+package org.worldbank.transport.driver.datastore;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+
+/**
+ * Version 3: add indexes for the record list and upload queries, and an uploadable column
+ * so that records without coordinates can be skipped without reading them.
+ *
+ * The column is added without a default, so rows from version 2 start out null and are filled in
+ * by the data phase. Until then, those rows are left out of uploads but still shown in the list.
+ */
+class UploadableRecordsMigration extends RecordDatabaseMigration {
+
+    private static final String TABLE = DriverRecordContract.RecordEntry.TABLE_NAME;
+    private static final String UPLOADABLE = DriverRecordContract.RecordEntry.COLUMN_UPLOADABLE;
+
+    private static final String PENDING = UPLOADABLE + " IS NULL";
+
+    UploadableRecordsMigration() {
+        super(3);
+    }
+
+    @Override
+    public void upgradeSchema(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + UPLOADABLE + " INTEGER");
+        for (String createIndex : DriverRecordContract.RECORD_INDEXES_CREATE) {
+            db.execSQL(createIndex);
+        }
+    }
+
+    @Override
+    public int countPendingRows(SQLiteDatabase db) {
+        return (int) DatabaseUtils.queryNumEntries(db, TABLE, PENDING);
+    }
+
+    @Override
+    public int migrateChunk(SQLiteDatabase db, int chunkSize) {
+        // same test as PostRecordsTask, which reads null coordinates as zero
+        SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE + " SET " + UPLOADABLE + " = " +
+                "CASE WHEN IFNULL(" + DriverRecordContract.RecordEntry.COLUMN_LATITUDE + ", 0) = 0 AND " +
+                "IFNULL(" + DriverRecordContract.RecordEntry.COLUMN_LONGITUDE + ", 0) = 0 THEN 0 ELSE 1 END " +
+                "WHERE " + DriverRecordContract.RecordEntry._ID + " IN (SELECT " +
+                DriverRecordContract.RecordEntry._ID + " FROM " + TABLE + " WHERE " + PENDING +
+                " LIMIT " + chunkSize + ")");
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+}
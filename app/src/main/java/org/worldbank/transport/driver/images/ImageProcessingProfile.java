@@ -0,0 +1,45 @@
+package org.worldbank.transport.driver.images;
+
+/**
+ * Settings for processing photos attached to records.
+ *
+ * Camera photos are usually several megapixels and several megabytes; at the default settings
+ * they are stored and uploaded at a tenth of that or less, still large enough to make out the
+ * details of a scene.
+ */
+public class ImageProcessingProfile {
+
+    /**
+     * Photos no larger than 1600 pixels on a side, at JPEG quality 80; originals are not kept.
+     */
+    public static final ImageProcessingProfile DEFAULT = new ImageProcessingProfile(1600, 80, false);
+
+    /**
+     * Most pixels on the longer side of a processed photo. Smaller photos are not enlarged.
+     */
+    public final int maxDimension;
+
+    /**
+     * JPEG quality to recompress photos at, 0-100.
+     */
+    public final int jpegQuality;
+
+    /**
+     * Keep the original photo after processing. Originals outside the app's own storage,
+     * such as those picked from the gallery, are always kept.
+     */
+    public final boolean keepOriginal;
+
+    public ImageProcessingProfile(int maxDimension, int jpegQuality, boolean keepOriginal) {
+        if (maxDimension <= 0) {
+            throw new IllegalArgumentException("Invalid maximum dimension: " + maxDimension);
+        }
+        if (jpegQuality < 0 || jpegQuality > 100) {
+            throw new IllegalArgumentException("Invalid JPEG quality: " + jpegQuality);
+        }
+
+        this.maxDimension = maxDimension;
+        this.jpegQuality = jpegQuality;
+        this.keepOriginal = keepOriginal;
+    }
+}
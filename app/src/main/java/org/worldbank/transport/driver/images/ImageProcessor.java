@@ -0,0 +1,408 @@
+package org.worldbank.transport.driver.images;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Build;
+import android.util.Log;
+
+import org.jsonschema2pojo.media.SerializableMedia;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+
+
+/**
+ * Downscales and recompresses photos attached to records, before they are stored and uploaded.
+ *
+ * Photos are decoded at the largest power-of-two reduction that is still at least the profile's
+ * maximum dimension, so a full-resolution bitmap is never held, then scaled the rest of the way
+ * and written as a new JPEG in the app's image directory. The new JPEG has no EXIF metadata,
+ * so the camera's location and device details are not uploaded; photos are rotated upright first,
+ * as the EXIF orientation is lost with it.
+ *
+ * The decoded bitmap is kept for reuse by the next photo, through BitmapFactory.Options.inBitmap,
+ * so processing several photos does not allocate a large bitmap for each. It is held softly, so
+ * it is freed if memory runs short between photos.
+ *
+ * Photos are processed one at a time.
+ *
+ * Photos are processed in the background once attached, but a record may be saved first; its
+ * remaining originals are processed on save with processRecordMedia, so the stored record never
+ * refers to them.
+ */
+public class ImageProcessor {
+
+    private static final String LOG_LABEL = "ImageProcessor";
+
+    // processed photos are written here, under the app's files directory
+    public static final String IMAGE_DIRECTORY = "record_images";
+
+    private static final String PROCESSED_PREFIX = "driver_";
+    private static final String JPEG_SUFFIX = ".jpg";
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final ImageProcessingProfile profile;
+    private final File outputDirectory;
+
+    // original photos in these directories belong to the app, and may be deleted once processed
+    private final File[] appDirectories;
+
+    // last decoded bitmap, and the size of its allocation, for decoding the next photo into
+    private SoftReference<Bitmap> reusableBitmap;
+    private int reusableBytes;
+
+    /**
+     * @param context Context for the app's storage directories
+     * @param profile Settings for processed photos
+     */
+    public ImageProcessor(Context context, ImageProcessingProfile profile) {
+        this.profile = profile;
+        outputDirectory = new File(context.getFilesDir(), IMAGE_DIRECTORY);
+        appDirectories = new File[] {
+                context.getFilesDir(), context.getCacheDir(),
+                context.getExternalFilesDir(null), context.getExternalCacheDir()
+        };
+    }
+
+    /**
+     * @return Directory processed photos are written to
+     */
+    public File getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    /**
+     * Downscale and recompress a photo. Photos already processed are returned as they are.
+     *
+     * @param sourcePath Path of the photo to process
+     * @return Path of the processed photo, or null on failure, in which case the original is kept
+     */
+    public synchronized String process(String sourcePath) {
+        File source = new File(sourcePath);
+        if (isInDirectory(source, outputDirectory)) {
+            return sourcePath;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(sourcePath, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.e(LOG_LABEL, "Could not read photo to process: " + sourcePath);
+            return null;
+        }
+
+        int originalWidth = options.outWidth;
+        int originalHeight = options.outHeight;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateSampleSize(originalWidth, originalHeight, profile.maxDimension);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+
+        Bitmap decoded = decode(sourcePath, options);
+        if (decoded == null) {
+            Log.e(LOG_LABEL, "Could not decode photo to process: " + sourcePath);
+            return null;
+        }
+
+        Bitmap processed = decoded;
+        try {
+            // scale down the rest of the way, and rotate upright, as the EXIF orientation is dropped
+            Matrix matrix = new Matrix();
+            int longest = Math.max(decoded.getWidth(), decoded.getHeight());
+            if (longest > profile.maxDimension) {
+                float scale = (float) profile.maxDimension / longest;
+                matrix.postScale(scale, scale);
+            }
+            int rotation = readRotation(sourcePath);
+            if (rotation != 0) {
+                matrix.postRotate(rotation);
+            }
+            if (!matrix.isIdentity()) {
+                processed = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+            }
+
+            File output = writeJpeg(processed);
+            if (output == null) {
+                return null;
+            }
+
+            Log.d(LOG_LABEL, "Processed " + originalWidth + "x" + originalHeight + " photo of " + source.length() +
+                    " bytes to " + processed.getWidth() + "x" + processed.getHeight() + " of " + output.length() + " bytes");
+            return output.getAbsolutePath();
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_LABEL, "Out of memory processing photo " + sourcePath);
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (processed != decoded) {
+                processed.recycle();
+            }
+            keepForReuse(decoded);
+        }
+    }
+
+    /**
+     * Process the photos of a record that still refer to their originals, replacing their paths
+     * with those of the processed photos, and delete the originals. Photos that cannot be
+     * processed are left as they are.
+     *
+     * @param record Record or section object, with its sections and lists of sections
+     * @return Number of photos processed
+     */
+    public int processRecordMedia(Object record) {
+        if (record == null) {
+            return 0;
+        }
+
+        int processed = 0;
+        if (record instanceof Collection) {
+            for (Object item : (Collection) record) {
+                processed += processRecordMedia(item);
+            }
+            return processed;
+        }
+
+        // schema classes are generated models; anything from the platform holds no photos
+        Class recordClass = record.getClass();
+        if (recordClass.isEnum() || recordClass.getName().startsWith("java.") ||
+                recordClass.getName().startsWith("android.")) {
+            return 0;
+        }
+
+        try {
+            for (Field field : recordClass.getFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                    continue;
+                }
+
+                Object value = field.get(record);
+                if (value instanceof SerializableMedia) {
+                    if (processMedia((SerializableMedia) value)) {
+                        processed++;
+                    }
+                } else {
+                    processed += processRecordMedia(value);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            Log.e(LOG_LABEL, "Could not read fields of " + recordClass.getName() + " to process photos");
+            e.printStackTrace();
+        }
+        return processed;
+    }
+
+    /**
+     * @return True if the photo was processed, and the media now refers to the processed photo
+     */
+    private boolean processMedia(SerializableMedia media) {
+        String originalPath = media.path;
+        if (originalPath == null || originalPath.isEmpty() ||
+                isInDirectory(new File(originalPath), outputDirectory)) {
+            return false;
+        }
+
+        String processedPath = process(originalPath);
+        if (processedPath == null) {
+            return false;
+        }
+
+        Log.d(LOG_LABEL, "Processed photo on save: " + originalPath);
+        media.path = processedPath;
+        deleteOriginal(originalPath);
+        return true;
+    }
+
+    /**
+     * Delete an original photo once it has been processed, unless the profile keeps originals, or
+     * the photo does not belong to the app.
+     *
+     * @return True if the original was deleted
+     */
+    public boolean deleteOriginal(String sourcePath) {
+        if (profile.keepOriginal) {
+            return false;
+        }
+
+        File source = new File(sourcePath);
+        if (isInDirectory(source, outputDirectory)) {
+            return false;
+        }
+        for (File directory : appDirectories) {
+            if (isInDirectory(source, directory)) {
+                return source.delete();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the largest power of two to divide the photo's dimensions by, so that its longer side
+     * stays at least the maximum dimension.
+     */
+    static int calculateSampleSize(int width, int height, int maxDimension) {
+        int longest = Math.max(width, height);
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decode a photo, into the reusable bitmap if it fits.
+     */
+    private Bitmap decode(String sourcePath, BitmapFactory.Options options) {
+        Bitmap reusable = reusableBitmap != null ? reusableBitmap.get() : null;
+        if (reusable != null && canReuse(reusable, options)) {
+            options.inBitmap = reusable;
+            try {
+                Bitmap decoded = BitmapFactory.decodeFile(sourcePath, options);
+                if (decoded != null) {
+                    return decoded;
+                }
+            } catch (IllegalArgumentException e) {
+                // bitmap turned out not to fit; decode into a new one
+                Log.d(LOG_LABEL, "Could not reuse bitmap to decode photo");
+            }
+            options.inBitmap = null;
+            reusableBitmap = null;
+        }
+
+        try {
+            return BitmapFactory.decodeFile(sourcePath, options);
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_LABEL, "Out of memory decoding photo " + sourcePath);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Check whether the photo can be decoded into the bitmap. Before KitKat, only a bitmap of
+     * exactly the same size can be reused, and only without sampling; after, any large enough.
+     */
+    private boolean canReuse(Bitmap reusable, BitmapFactory.Options options) {
+        if (!reusable.isMutable() || reusable.isRecycled()) {
+            return false;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+            int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+            return width * height * BYTES_PER_PIXEL <= reusableBytes;
+        }
+
+        return options.inSampleSize == 1 && reusable.getWidth() == options.outWidth &&
+                reusable.getHeight() == options.outHeight;
+    }
+
+    private void keepForReuse(Bitmap decoded) {
+        Bitmap reusable = reusableBitmap != null ? reusableBitmap.get() : null;
+        if (reusable == decoded) {
+            // decoded into the reused bitmap; its allocation is unchanged
+            return;
+        }
+
+        if (reusable != null) {
+            reusable.recycle();
+        }
+
+        if (decoded.isMutable()) {
+            reusableBitmap = new SoftReference<>(decoded);
+            reusableBytes = decoded.getRowBytes() * decoded.getHeight();
+        } else {
+            decoded.recycle();
+            reusableBitmap = null;
+        }
+    }
+
+    /**
+     * @return Degrees to rotate the photo clockwise to show it upright, from its EXIF orientation
+     */
+    private static int readRotation(String sourcePath) {
+        try {
+            ExifInterface exif = new ExifInterface(sourcePath);
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            Log.w(LOG_LABEL, "Could not read EXIF orientation of " + sourcePath);
+            return 0;
+        }
+    }
+
+    /**
+     * Write the bitmap as a new JPEG in the output directory. The file only appears under its
+     * final name once complete.
+     *
+     * @return The new file, or null on failure
+     */
+    private File writeJpeg(Bitmap bitmap) {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            Log.e(LOG_LABEL, "Could not create directory for processed photos");
+            return null;
+        }
+
+        File output = null;
+        File temporary = null;
+        try {
+            output = File.createTempFile(PROCESSED_PREFIX, JPEG_SUFFIX, outputDirectory);
+            temporary = new File(output.getPath() + ".tmp");
+
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temporary));
+            boolean written;
+            try {
+                written = bitmap.compress(Bitmap.CompressFormat.JPEG, profile.jpegQuality, out);
+            } finally {
+                out.close();
+            }
+
+            if (written && temporary.renameTo(output)) {
+                return output;
+            }
+            Log.e(LOG_LABEL, "Failed to write processed photo");
+        } catch (IOException e) {
+            Log.e(LOG_LABEL, "Failed to write processed photo");
+            e.printStackTrace();
+        }
+
+        if (temporary != null) {
+            temporary.delete();
+        }
+        if (output != null) {
+            output.delete();
+        }
+        return null;
+    }
+
+    private static boolean isInDirectory(File file, File directory) {
+        if (directory == null) {
+            return false;
+        }
+
+        try {
+            String directoryPath = directory.getCanonicalPath() + File.separator;
+            return file.getCanonicalPath().startsWith(directoryPath);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.worldbank.transport.driver.metrics;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+
+/**
+ * Distribution of a measurement, counted in buckets by powers of two, so that it takes the same
+ * memory however many values are recorded. Percentiles are estimated from the bucket they fall in,
+ * so are within a factor of two; the minimum, maximum, and mean are exact.
+ *
+ * Values may be recorded from several threads.
+ */
+public class Histogram {
+
+    // bucket i counts values below 2^i and at least 2^(i-1); the last also counts any larger
+    private static final int BUCKETS = 48;
+
+    private final String unit;
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * @param unit Unit of the values, for export
+     */
+    public Histogram(String unit) {
+        this.unit = unit;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @param value Value to count; negative values count as zero
+     */
+    public synchronized void record(long value) {
+        value = Math.max(0, value);
+        counts[bucketFor(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getSum() {
+        return sum;
+    }
+
+    /**
+     * @return Smallest value recorded, or 0 if none
+     */
+    public synchronized long getMin() {
+        return count > 0 ? min : 0;
+    }
+
+    /**
+     * @return Largest value recorded, or 0 if none
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return Mean of the values recorded, or 0 if none
+     */
+    public synchronized long getMean() {
+        return count > 0 ? sum / count : 0;
+    }
+
+    /**
+     * Estimate a percentile, as the upper bound of the bucket it falls in, limited to the values seen.
+     *
+     * @param percentile Percentile to estimate, from 0 to 100
+     * @return Estimated value, or 0 if none have been recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, upperBound(i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Write the histogram as a JSON object, with its summary statistics and non-empty buckets.
+     */
+    public synchronized void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("unit").value(unit);
+        writer.name("count").value(count);
+        writer.name("min").value(getMin());
+        writer.name("max").value(max);
+        writer.name("mean").value(getMean());
+        writer.name("p50").value(getPercentile(50));
+        writer.name("p90").value(getPercentile(90));
+        writer.name("p99").value(getPercentile(99));
+
+        writer.name("buckets").beginArray();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] > 0) {
+                writer.beginObject();
+                writer.name("max").value(upperBound(i));
+                writer.name("count").value(counts[i]);
+                writer.endObject();
+            }
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    static int bucketFor(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * @return Largest value counted in the bucket
+     */
+    private static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,88 @@
+package org.worldbank.transport.driver.metrics;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times the phases of starting the app, for finding out why cold start is slow.
+ *
+ * Phases are timed on their own, wherever they run. Milestones are timed from when the timings
+ * were first asked for, at the start of the application's onCreate, and only the first time they
+ * are reached counts. Both are logged as they are recorded, and kept in memory for the
+ * diagnostics screen.
+ */
+public class StartupTimings {
+
+    private static final String LOG_LABEL = "StartupTimings";
+
+    // phases
+    public static final String PHASE_APPLICATION_CREATE = "Application.onCreate";
+    public static final String PHASE_SCHEMA_COPY = "Copy schema jar";
+    public static final String PHASE_SCHEMA_VERIFY = "Verify schema jar";
+    public static final String PHASE_SCHEMA_REUSE = "Open verified schema jar";
+    public static final String PHASE_SCHEMA_CLASSES = "Load schema classes";
+    public static final String PHASE_SCHEMA_INDEX = "Load schema index";
+    public static final String PHASE_SCHEMA_LOAD = "Load schema";
+
+    // milestones
+    public static final String MILESTONE_SCHEMA_READY = "Schema ready";
+    public static final String MILESTONE_FIRST_ACTIVITY = "First activity shown";
+
+    private static StartupTimings instance;
+
+    private final long startNanos = System.nanoTime();
+
+    // in milliseconds, in the order recorded
+    private final LinkedHashMap<String, Long> phases = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> milestones = new LinkedHashMap<>();
+
+    public static synchronized StartupTimings getInstance() {
+        if (instance == null) {
+            instance = new StartupTimings();
+        }
+        return instance;
+    }
+
+    /**
+     * Record a phase that has just finished.
+     *
+     * @param phase Name of the phase
+     * @param startedNanos System.nanoTime when the phase started
+     */
+    public synchronized void phase(String phase, long startedNanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+        phases.put(phase, millis);
+        Log.d(LOG_LABEL, phase + " took " + millis + " ms");
+    }
+
+    /**
+     * Record reaching a milestone, if it has not been reached before.
+     */
+    public synchronized void milestone(String milestone) {
+        if (milestones.containsKey(milestone)) {
+            return;
+        }
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        milestones.put(milestone, millis);
+        Log.d(LOG_LABEL, milestone + " after " + millis + " ms");
+    }
+
+    /**
+     * @return Length of each phase in milliseconds, in the order recorded
+     */
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<>(phases);
+    }
+
+    /**
+     * @return Time each milestone was reached in milliseconds from the start, in the order reached
+     */
+    public synchronized Map<String, Long> getMilestones() {
+        return new LinkedHashMap<>(milestones);
+    }
+}
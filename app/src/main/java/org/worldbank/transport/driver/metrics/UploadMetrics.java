@@ -0,0 +1,311 @@
+package org.worldbank.transport.driver.metrics;
+
+import com.google.gson.stream.JsonWriter;
+
+import org.worldbank.transport.driver.network.DriverHttpClient;
+import org.worldbank.transport.driver.uploads.RecordUploadStatus;
+import org.worldbank.transport.driver.uploads.ThroughputMeter;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measurements of one sync session, that is one run of PostRecordsTask, for finding out why
+ * syncing is slow.
+ *
+ * For each upload request, this records the time taken to write the request body, the bytes
+ * written and sent, the time from finishing the body to the first byte of the response, and the
+ * response code. Request bodies are streamed, so writing the body includes sending most of it.
+ * Deleting uploaded records from the database is timed for each batch of deletes.
+ *
+ * Write time and bytes sent are also kept in histograms per record, sharing out a batch request
+ * evenly over its records; time to first byte is kept per request. Only the first MAX_REQUESTS
+ * requests are kept individually, so a long session holds a bounded amount of memory.
+ *
+ * Requests that got a response are also counted by the ThroughputMeter given, if any, for
+ * choosing how to upload next time.
+ *
+ * Measurements may be recorded from the upload workers' threads.
+ */
+public class UploadMetrics {
+
+    // requests kept individually; later requests are only counted in the histograms
+    public static final int MAX_REQUESTS = 500;
+
+    // response code of a request that got no response
+    public static final int NO_RESPONSE = 0;
+
+    private static final String MICROSECONDS = "us";
+    private static final String BYTES = "bytes";
+
+    /**
+     * Measurements of a single upload request.
+     */
+    public static class RequestMetric {
+        public final int records;
+        public final long writeMicros;
+        public final long bytesWritten;
+        public final long bytesSent;
+        // -1 if there was no response
+        public final long firstByteMicros;
+        public final int responseCode;
+
+        RequestMetric(int records, long writeMicros, long bytesWritten, long bytesSent,
+                      long firstByteMicros, int responseCode) {
+            this.records = records;
+            this.writeMicros = writeMicros;
+            this.bytesWritten = bytesWritten;
+            this.bytesSent = bytesSent;
+            this.firstByteMicros = firstByteMicros;
+            this.responseCode = responseCode;
+        }
+    }
+
+    private final ThroughputMeter throughputMeter;
+
+    private final long startedAt = System.currentTimeMillis();
+    private final long startedNanos = System.nanoTime();
+    private long durationMillis = -1;
+
+    private final Histogram recordWriteTime = new Histogram(MICROSECONDS);
+    private final Histogram recordBytesSent = new Histogram(BYTES);
+    private final Histogram firstByteTime = new Histogram(MICROSECONDS);
+    private final Histogram deleteTime = new Histogram(MICROSECONDS);
+
+    private final ArrayList<RequestMetric> requests = new ArrayList<>();
+    private final TreeMap<Integer, Integer> responseCodes = new TreeMap<>();
+    private long totalBytesWritten = 0;
+    private long totalBytesSent = 0;
+    private int requestCount = 0;
+
+    private int uploaded = 0;
+    private int failed = 0;
+    private int unauthorized = 0;
+    private int cancelled = 0;
+    private int recordsDeleted = 0;
+
+    private int connectionRequests = -1;
+    private int tlsHandshakes = -1;
+
+    public UploadMetrics() {
+        this(null);
+    }
+
+    /**
+     * @param throughputMeter Meter to count the requests' throughput in, or null
+     */
+    public UploadMetrics(ThroughputMeter throughputMeter) {
+        this.throughputMeter = throughputMeter;
+    }
+
+    /**
+     * Record an upload request.
+     *
+     * @param records Number of records sent in the request
+     * @param writeNanos Time taken to write the request body
+     * @param bytesWritten Bytes of request body written, before any compression
+     * @param bytesSent Bytes of request body sent
+     * @param firstByteNanos Time from finishing the body to the first byte of the response; ignored if no response
+     * @param responseCode Response code, or NO_RESPONSE if the request failed without one
+     */
+    public synchronized void recordRequest(int records, long writeNanos, long bytesWritten, long bytesSent,
+                                           long firstByteNanos, int responseCode) {
+        records = Math.max(1, records);
+        long writeMicros = TimeUnit.NANOSECONDS.toMicros(writeNanos);
+        long firstByteMicros = responseCode != NO_RESPONSE ? TimeUnit.NANOSECONDS.toMicros(firstByteNanos) : -1;
+
+        for (int i = 0; i < records; i++) {
+            recordWriteTime.record(writeMicros / records);
+            recordBytesSent.record(bytesSent / records);
+        }
+        if (firstByteMicros >= 0) {
+            firstByteTime.record(firstByteMicros);
+            if (throughputMeter != null) {
+                throughputMeter.record(bytesSent, writeNanos + firstByteNanos);
+            }
+        }
+
+        Integer codeCount = responseCodes.get(responseCode);
+        responseCodes.put(responseCode, codeCount != null ? codeCount + 1 : 1);
+        totalBytesWritten += bytesWritten;
+        totalBytesSent += bytesSent;
+        requestCount++;
+
+        if (requests.size() < MAX_REQUESTS) {
+            requests.add(new RequestMetric(records, writeMicros, bytesWritten, bytesSent, firstByteMicros, responseCode));
+        }
+    }
+
+    /**
+     * Record deleting a batch of uploaded records from the database.
+     *
+     * @param records Number of records deleted
+     * @param nanos Time taken
+     */
+    public synchronized void recordDelete(int records, long nanos) {
+        deleteTime.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        recordsDeleted += records;
+    }
+
+    /**
+     * Record the outcome of uploading a record.
+     */
+    public synchronized void recordResult(RecordUploadStatus status) {
+        switch (status) {
+            case UPLOADED:
+                uploaded++;
+                break;
+            case FAILED:
+                failed++;
+                break;
+            case UNAUTHORIZED:
+                unauthorized++;
+                break;
+            case CANCELLED:
+                cancelled++;
+                break;
+        }
+    }
+
+    /**
+     * Mark the session finished.
+     *
+     * @param httpSession Connections made by the session, or null if unknown
+     */
+    public synchronized void finish(DriverHttpClient.Session httpSession) {
+        durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+        if (httpSession != null) {
+            connectionRequests = httpSession.getRequestCount();
+            tlsHandshakes = httpSession.getHandshakeCount();
+        }
+    }
+
+    /**
+     * @return Time the session started, in milliseconds since the epoch
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return Length of the session in milliseconds, or -1 if it has not finished
+     */
+    public synchronized long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    public synchronized int getUploadedCount() {
+        return uploaded;
+    }
+
+    /**
+     * @return Records that failed to upload, including those rejected for bad credentials
+     */
+    public synchronized int getFailedCount() {
+        return failed + unauthorized;
+    }
+
+    public synchronized long getTotalBytesSent() {
+        return totalBytesSent;
+    }
+
+    /**
+     * @return TLS handshakes made by the session, or -1 if unknown
+     */
+    public synchronized int getTlsHandshakes() {
+        return tlsHandshakes;
+    }
+
+    public Histogram getRecordWriteTime() {
+        return recordWriteTime;
+    }
+
+    public Histogram getRecordBytesSent() {
+        return recordBytesSent;
+    }
+
+    public Histogram getFirstByteTime() {
+        return firstByteTime;
+    }
+
+    public Histogram getDeleteTime() {
+        return deleteTime;
+    }
+
+    /**
+     * @return Number of requests with each response code; NO_RESPONSE counts requests without one
+     */
+    public synchronized Map<Integer, Integer> getResponseCodes() {
+        return new TreeMap<>(responseCodes);
+    }
+
+    /**
+     * Write the session as a JSON object.
+     */
+    public synchronized void writeJson(JsonWriter writer) throws IOException {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        writer.beginObject();
+        writer.name("started").value(dateFormat.format(new Date(startedAt)));
+        writer.name("duration_ms").value(durationMillis);
+
+        writer.name("records").beginObject();
+        writer.name("uploaded").value(uploaded);
+        writer.name("failed").value(failed);
+        writer.name("unauthorized").value(unauthorized);
+        writer.name("cancelled").value(cancelled);
+        writer.name("deleted").value(recordsDeleted);
+        writer.endObject();
+
+        writer.name("http").beginObject();
+        writer.name("requests").value(requestCount);
+        writer.name("connection_requests").value(connectionRequests);
+        writer.name("tls_handshakes").value(tlsHandshakes);
+        writer.name("bytes_written").value(totalBytesWritten);
+        writer.name("bytes_sent").value(totalBytesSent);
+        writer.name("response_codes").beginObject();
+        for (Map.Entry<Integer, Integer> entry : responseCodes.entrySet()) {
+            writer.name(String.valueOf(entry.getKey())).value(entry.getValue());
+        }
+        writer.endObject();
+        writer.endObject();
+
+        writer.name("record_write_time");
+        recordWriteTime.writeJson(writer);
+        writer.name("record_bytes_sent");
+        recordBytesSent.writeJson(writer);
+        writer.name("first_byte_time");
+        firstByteTime.writeJson(writer);
+        writer.name("delete_time");
+        deleteTime.writeJson(writer);
+
+        writer.name("requests").beginArray();
+        for (RequestMetric request : requests) {
+            writer.beginObject();
+            writer.name("records").value(request.records);
+            writer.name("write_us").value(request.writeMicros);
+            writer.name("bytes_written").value(request.bytesWritten);
+            writer.name("bytes_sent").value(request.bytesSent);
+            writer.name("first_byte_us").value(request.firstByteMicros);
+            writer.name("response_code").value(request.responseCode);
+            writer.endObject();
+        }
+        writer.endArray();
+
+        writer.endObject();
+    }
+}
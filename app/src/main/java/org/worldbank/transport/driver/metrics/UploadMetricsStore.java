@@ -0,0 +1,120 @@
+package org.worldbank.transport.driver.metrics;
+
+import android.util.Log;
+
+import com.google.gson.stream.JsonWriter;
+
+import org.worldbank.transport.driver.uploads.ThroughputMeter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+
+/**
+ * Keeps the measurements of the most recent sync sessions in memory, for the diagnostics screen,
+ * and exports them as JSON on request. Nothing is kept across restarts of the app.
+ *
+ * Sessions count their requests' throughput in the shared ThroughputMeter.
+ */
+public class UploadMetricsStore {
+
+    private static final String LOG_LABEL = "UploadMetricsStore";
+
+    public static final int MAX_SESSIONS = 20;
+
+    private static final String EXPORT_PREFIX = "upload-metrics-";
+    private static final String EXPORT_SUFFIX = ".json";
+
+    private static UploadMetricsStore instance;
+
+    // most recent first
+    private final LinkedList<UploadMetrics> sessions = new LinkedList<>();
+
+    public static synchronized UploadMetricsStore getInstance() {
+        if (instance == null) {
+            instance = new UploadMetricsStore();
+        }
+        return instance;
+    }
+
+    /**
+     * Start measuring a new sync session. The oldest session is dropped if there are too many.
+     */
+    public synchronized UploadMetrics startSession() {
+        UploadMetrics session = new UploadMetrics(ThroughputMeter.getInstance());
+        sessions.addFirst(session);
+        while (sessions.size() > MAX_SESSIONS) {
+            sessions.removeLast();
+        }
+        return session;
+    }
+
+    /**
+     * @return Sessions kept, most recent first
+     */
+    public synchronized List<UploadMetrics> getSessions() {
+        return new ArrayList<>(sessions);
+    }
+
+    public synchronized void clear() {
+        sessions.clear();
+    }
+
+    /**
+     * Write all sessions kept as a JSON array, most recent first.
+     */
+    public void writeJson(Writer writer) throws IOException {
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.setIndent("  ");
+        jsonWriter.beginArray();
+        for (UploadMetrics session : getSessions()) {
+            session.writeJson(jsonWriter);
+        }
+        jsonWriter.endArray();
+        jsonWriter.flush();
+    }
+
+    /**
+     * Write all sessions kept to a new JSON file.
+     *
+     * @param directory Directory to write the file to
+     * @return The file written, or null on failure
+     */
+    public File export(File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(LOG_LABEL, "Could not create directory to export upload metrics");
+            return null;
+        }
+
+        File file = new File(directory, EXPORT_PREFIX + System.currentTimeMillis() + EXPORT_SUFFIX);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            writeJson(writer);
+            writer.close();
+            writer = null;
+            return file;
+        } catch (IOException e) {
+            Log.e(LOG_LABEL, "Failed to export upload metrics");
+            e.printStackTrace();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        file.delete();
+        return null;
+    }
+}
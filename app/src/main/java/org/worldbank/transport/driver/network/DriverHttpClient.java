@@ -0,0 +1,325 @@
+package org.worldbank.transport.driver.network;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+
+/**
+ * Opens and releases the app's connections to the server, so that they are kept alive and reused
+ * from the platform connection pool instead of paying for a new TCP and TLS handshake per request.
+ *
+ * A connection only goes back to the pool once its response body has been read to the end and
+ * closed, and only if it was not disconnected. Use readResponse to read a response, and release
+ * when done with a connection whose response was not read, instead of calling disconnect. Use
+ * abort to throw away a connection left in an unknown state by an I/O error.
+ *
+ * All HTTPS connections share one socket factory, which counts the TLS handshakes made. Tasks can
+ * start a Session to count the requests and handshakes made while it runs.
+ *
+ * Request bodies opened with openRequestBody are sent uncompressed, unless compression has been
+ * turned on with setCompressionLevel for a server known to accept gzip request bodies; then they
+ * are compressed when they compress well. Servers that do not, such as Django REST framework,
+ * answer a compressed body with 400 or 415; the uploads then call compressedRequestRejected and
+ * send the body again uncompressed.
+ *
+ * Whether the server has an optional endpoint is checked once per endpoint, with hasEndpoint.
+ */
+public class DriverHttpClient {
+
+    private static final String LOG_LABEL = "DriverHttpClient";
+
+    private static final int CONNECT_TIMEOUT_MS = 30 * 1000;
+    private static final int READ_TIMEOUT_MS = 60 * 1000;
+
+    // most connections to keep alive in the pool; enough for concurrent uploads
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+
+    // most of an unread response body to read so that its connection can be reused;
+    // it is cheaper to open a new connection than to download more than this
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    // gzip level to turn on for servers that accept compressed request bodies;
+    // compresses nearly as well as the highest level, with less CPU
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    static {
+        // read by the platform connection pool when first used
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+    }
+
+    private static DriverHttpClient instance;
+
+    private final CountingSSLSocketFactory sslSocketFactory;
+    private final AtomicInteger requestCount = new AtomicInteger(0);
+
+    // whether optional endpoints exist, by endpoint URL, for as long as the app runs
+    private final Map<String, Boolean> endpointSupport = new ConcurrentHashMap<>();
+    private volatile int compressionLevel = Deflater.NO_COMPRESSION;
+
+    /**
+     * Counts the requests and handshakes made by a client from when the session was started.
+     */
+    public static class Session {
+        private final DriverHttpClient client;
+        private final int startRequests;
+        private final int startHandshakes;
+
+        private Session(DriverHttpClient client) {
+            this.client = client;
+            startRequests = client.getRequestCount();
+            startHandshakes = client.getHandshakeCount();
+        }
+
+        public int getRequestCount() {
+            return client.getRequestCount() - startRequests;
+        }
+
+        public int getHandshakeCount() {
+            return client.getHandshakeCount() - startHandshakes;
+        }
+
+        @Override
+        public String toString() {
+            return getRequestCount() + " requests, " + getHandshakeCount() + " TLS handshakes";
+        }
+    }
+
+    /**
+     * @return Client shared by the app's tasks
+     */
+    public static synchronized DriverHttpClient getInstance() {
+        if (instance == null) {
+            instance = new DriverHttpClient(HttpsURLConnection.getDefaultSSLSocketFactory());
+        }
+        return instance;
+    }
+
+    /**
+     * Invoke directly in test, to connect with a test server's certificates.
+     *
+     * @param sslSocketFactory Factory for HTTPS connections
+     */
+    public DriverHttpClient(SSLSocketFactory sslSocketFactory) {
+        this.sslSocketFactory = new CountingSSLSocketFactory(sslSocketFactory);
+    }
+
+    /**
+     * Open a connection to the given URL. The connection is not yet connected, so request
+     * properties may still be set.
+     */
+    public HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        if (urlConnection instanceof HttpsURLConnection) {
+            // connections are pooled by socket factory, so every connection must use the same one
+            ((HttpsURLConnection) urlConnection).setSSLSocketFactory(sslSocketFactory);
+        }
+
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        urlConnection.setReadTimeout(READ_TIMEOUT_MS);
+        urlConnection.setRequestProperty("Connection", "keep-alive");
+
+        requestCount.incrementAndGet();
+        return urlConnection;
+    }
+
+    /**
+     * Open the body of a request, to be compressed if it compresses well. The connection must be
+     * in streaming mode, and its request properties set, before writing to the body.
+     *
+     * @param urlConnection Connection to send the body on; not yet connected
+     * @return Stream to write the body to. Closing it sends the rest of the body.
+     */
+    public RequestBodyStream openRequestBody(HttpURLConnection urlConnection) {
+        return new RequestBodyStream(urlConnection, compressionLevel);
+    }
+
+    /**
+     * Turn on compression of request bodies, for a server that accepts them gzip compressed.
+     *
+     * @param level Deflater compression level for request bodies, 1-9, or Deflater.NO_COMPRESSION
+     *              to send them uncompressed, as by default
+     */
+    public void setCompressionLevel(int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        compressionLevel = level;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Stop compressing request bodies, after the server refused a compressed one, either as an
+     * unsupported media type (415) or as a bad request (400).
+     */
+    public void compressedRequestRejected() {
+        if (compressionLevel != Deflater.NO_COMPRESSION) {
+            Log.w(LOG_LABEL, "Server does not accept compressed requests; no longer compressing them");
+            compressionLevel = Deflater.NO_COMPRESSION;
+        }
+    }
+
+    /**
+     * Check whether the server has an optional endpoint, with an OPTIONS request. The answer is
+     * remembered, so the server is only asked once per endpoint while the app runs. Answers that
+     * may be temporary, such as server errors or bad credentials, are not remembered.
+     *
+     * @param url Endpoint to check
+     * @param token User's API token
+     * @return True if the endpoint exists
+     */
+    public boolean hasEndpoint(URL url, String token) {
+        String key = url.toString();
+        Boolean supported = endpointSupport.get(key);
+        if (supported != null) {
+            return supported;
+        }
+
+        HttpURLConnection urlConnection = null;
+        try {
+            urlConnection = openConnection(url);
+            urlConnection.setRequestMethod("OPTIONS");
+            urlConnection.setRequestProperty("Authorization", "Token " + token);
+
+            int responseCode = urlConnection.getResponseCode();
+            release(urlConnection);
+
+            if (responseCode >= 200 && responseCode < 300) {
+                Log.d(LOG_LABEL, "Server has endpoint " + url.getPath());
+                endpointSupport.put(key, true);
+                return true;
+            } else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND ||
+                    responseCode == HttpURLConnection.HTTP_BAD_METHOD ||
+                    responseCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                Log.d(LOG_LABEL, "Server does not have endpoint " + url.getPath());
+                endpointSupport.put(key, false);
+            } else {
+                Log.w(LOG_LABEL, "Could not check for endpoint " + url.getPath() + ". Got response: " + responseCode);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_LABEL, "Error communicating with server to check for endpoint " + url.getPath());
+            e.printStackTrace();
+            if (urlConnection != null) {
+                abort(urlConnection);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Remember that an optional endpoint is missing after all, such as when the server answered
+     * OPTIONS for it but rejected a request to it, so that hasEndpoint no longer reports it.
+     *
+     * @param url Endpoint that rejected a request as not found or not allowed
+     */
+    public void endpointMissing(URL url) {
+        Log.w(LOG_LABEL, "Server rejected requests to endpoint " + url.getPath());
+        endpointSupport.put(url.toString(), false);
+    }
+
+    /**
+     * Read the whole response body as text, then release the connection to the pool.
+     * Lines are joined without their line breaks.
+     *
+     * @return Response body
+     * @throws IOException If the response is an error, or could not be read. The connection is aborted.
+     */
+    public String readResponse(HttpURLConnection urlConnection) throws IOException {
+        try {
+            InputStream in = urlConnection.getInputStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            StringBuilder stringBuilder = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                stringBuilder.append(line);
+            }
+            reader.close();
+            return stringBuilder.toString();
+        } catch (IOException e) {
+            abort(urlConnection);
+            throw e;
+        }
+    }
+
+    /**
+     * Done with a connection: read the rest of its response, if short, and close it, so that the
+     * connection can be reused. Call after getting the response code, if the response is not read
+     * with readResponse.
+     */
+    public void release(HttpURLConnection urlConnection) {
+        try {
+            InputStream in = urlConnection.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST ?
+                    urlConnection.getInputStream() : urlConnection.getErrorStream();
+
+            if (in == null) {
+                // no response body
+                return;
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int drained = 0;
+            int read;
+            while (drained <= MAX_DRAIN_BYTES && (read = in.read(buffer)) >= 0) {
+                drained += read;
+            }
+
+            if (drained > MAX_DRAIN_BYTES) {
+                Log.d(LOG_LABEL, "Response too long to drain; closing connection");
+                urlConnection.disconnect();
+            } else {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_LABEL, "Failed to read response to release connection");
+            e.printStackTrace();
+            abort(urlConnection);
+        }
+    }
+
+    /**
+     * Close a connection without returning it to the pool.
+     */
+    public void abort(HttpURLConnection urlConnection) {
+        urlConnection.disconnect();
+    }
+
+    /**
+     * @return Session counting the requests and handshakes made from now on
+     */
+    public Session startSession() {
+        return new Session(this);
+    }
+
+    /**
+     * @return Number of requests made through this client
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return Number of TLS handshakes made for connections opened by this client
+     */
+    public int getHandshakeCount() {
+        return sslSocketFactory.getSocketCount();
+    }
+}
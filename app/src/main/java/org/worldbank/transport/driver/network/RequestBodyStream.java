@@ -0,0 +1,209 @@
+package org.worldbank.transport.driver.network;
+
+import android.util.Log;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Request body that is gzip compressed, if it compresses well.
+ *
+ * The Content-Encoding header has to be set before any of the body is sent, so the start of the
+ * body is held back and compressed once as a probe. If the probe shrinks enough, the header is
+ * set and the whole body is sent compressed; if not (as for bodies that are mostly already
+ * compressed data), it is sent as it is. Bodies too short to gain from compression are sent as
+ * they are.
+ *
+ * The connection's output stream is opened on the first write past the probe, or on close.
+ * The connection must use streaming mode, as the length of the body sent is not known in advance.
+ */
+public class RequestBodyStream extends OutputStream {
+
+    private static final String LOG_LABEL = "RequestBodyStream";
+
+    // bytes of the body to compress to decide whether to compress the rest
+    static final int PROBE_BYTES = 16 * 1024;
+
+    // bodies shorter than this are not worth compressing
+    static final int MIN_COMPRESS_BYTES = 512;
+
+    // compress if the probe compresses to no more than this fraction of its size
+    static final double MAX_COMPRESSED_RATIO = 0.9;
+
+    private static final int GZIP_BUFFER_SIZE = 8 * 1024;
+
+    private final HttpURLConnection urlConnection;
+    private final int compressionLevel;
+
+    // start of the body, until it is decided whether to compress
+    private byte[] probe;
+    private int probeLength = 0;
+
+    private CountingOutputStream sent;
+    private OutputStream out;
+    private boolean compressed = false;
+    private long bytesWritten = 0;
+    private boolean closed = false;
+
+    /**
+     * GZIPOutputStream with a compression level.
+     */
+    private static class LevelGzipOutputStream extends GZIPOutputStream {
+        LevelGzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out, GZIP_BUFFER_SIZE);
+            def.setLevel(level);
+        }
+    }
+
+    /**
+     * Counts the bytes passed to the connection.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+    }
+
+    /**
+     * @param urlConnection Connection to send the body on; not yet connected
+     * @param compressionLevel Deflater compression level, 1-9; Deflater.NO_COMPRESSION to never compress
+     */
+    RequestBodyStream(HttpURLConnection urlConnection, int compressionLevel) {
+        this.urlConnection = urlConnection;
+        this.compressionLevel = compressionLevel;
+        probe = compressionLevel == Deflater.NO_COMPRESSION ? null : new byte[PROBE_BYTES];
+    }
+
+    /**
+     * @return True if the body was sent compressed; only known once more than the probe has been
+     * written, or the stream is closed
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @return Number of bytes of body written to this stream
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return Number of bytes of body sent on the connection, after any compression
+     */
+    public long getBytesSent() {
+        return sent != null ? sent.count : 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        bytesWritten += length;
+        if (probe != null) {
+            int probed = Math.min(length, probe.length - probeLength);
+            System.arraycopy(buffer, offset, probe, probeLength, probed);
+            probeLength += probed;
+            offset += probed;
+            length -= probed;
+
+            if (probeLength < probe.length) {
+                return;
+            }
+            open();
+        } else if (out == null) {
+            open();
+        }
+
+        if (length > 0) {
+            out.write(buffer, offset, length);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // held back body is not sent until the probe is full
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (out == null) {
+            open();
+        }
+        // finishes compression
+        out.close();
+    }
+
+    /**
+     * Decide whether to compress from the probe, then open the connection's stream and send the probe.
+     */
+    private void open() throws IOException {
+        compressed = probe != null && shouldCompress();
+        if (compressed) {
+            urlConnection.setRequestProperty("Content-Encoding", "gzip");
+        }
+
+        sent = new CountingOutputStream(urlConnection.getOutputStream());
+        out = compressed ? new LevelGzipOutputStream(sent, compressionLevel) : sent;
+
+        if (probe != null) {
+            out.write(probe, 0, probeLength);
+            probe = null;
+        }
+    }
+
+    private boolean shouldCompress() {
+        if (probeLength < MIN_COMPRESS_BYTES) {
+            return false;
+        }
+
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try {
+            deflater.setInput(probe, 0, probeLength);
+            deflater.finish();
+
+            byte[] buffer = new byte[GZIP_BUFFER_SIZE];
+            long compressedLength = 0;
+            while (!deflater.finished()) {
+                compressedLength += deflater.deflate(buffer);
+            }
+
+            double ratio = (double) compressedLength / probeLength;
+            Log.d(LOG_LABEL, "Request body probe compressed to " + ratio);
+            return ratio <= MAX_COMPRESSED_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.worldbank.transport.driver.schemas;
+
+import it.necst.grabnrun.SecureDexClassLoader;
+
+
+/**
+ * Loads the model classes of a schema jar, whether the jar was verified against the signing
+ * certificate as it was opened, or had been verified before.
+ */
+public interface SchemaClassLoader {
+
+    /**
+     * @param className Fully qualified name of the class
+     * @return The class, or null if the jar could not be verified
+     * @throws ClassNotFoundException If the jar has no such class
+     */
+    Class<?> loadClass(String className) throws ClassNotFoundException;
+
+    /**
+     * Loads classes through the secure loader, which verifies the jar against the signing
+     * certificate before loading from it.
+     */
+    class Secure implements SchemaClassLoader {
+        private final SecureDexClassLoader secureDexClassLoader;
+
+        public Secure(SecureDexClassLoader secureDexClassLoader) {
+            this.secureDexClassLoader = secureDexClassLoader;
+        }
+
+        @Override
+        public Class<?> loadClass(String className) throws ClassNotFoundException {
+            return secureDexClassLoader.loadClass(className);
+        }
+    }
+
+    /**
+     * Loads classes from a jar that has already been verified.
+     */
+    class Verified implements SchemaClassLoader {
+        private final ClassLoader classLoader;
+
+        public Verified(ClassLoader classLoader) {
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        public Class<?> loadClass(String className) throws ClassNotFoundException {
+            return classLoader.loadClass(className);
+        }
+    }
+}
@@ -0,0 +1,516 @@
+package org.worldbank.transport.driver.schemas;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import org.apache.commons.io.IOUtils;
+import org.worldbank.transport.driver.network.DriverHttpClient;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Keeps the model jars downloaded for the most recent schemas, so that switching back to one of
+ * them needs no download, and an interrupted download picks up where it stopped.
+ *
+ * Jars are stored under the SHA-256 of their content, and an index maps each schema UUID to its
+ * jar, with the ETag the server sent for it. A cached jar is revalidated with If-None-Match, so
+ * that an unchanged jar is not sent again. A partial download is kept with the ETag of the
+ * response it came from, and resumed with a Range request; the If-Range header makes the server
+ * send the whole jar instead if it has changed since.
+ */
+public class SchemaJarCache {
+
+    private static final String LOG_LABEL = "SchemaJarCache";
+
+    // under the app's dex directory, where the schema loader expects jars
+    public static final String CACHE_DIRECTORY = "schemas";
+
+    // number of schemas to keep jars for
+    public static final int DEFAULT_MAX_SCHEMAS = 3;
+
+    private static final String INDEX_FILE = "index.json";
+    private static final String JAR_SUFFIX = ".jar";
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // guards the files of all caches
+    private static final Object lock = new Object();
+
+    /**
+     * A jar downloaded, or being downloaded, for a schema.
+     */
+    static class Entry {
+        // hex SHA-256 of the jar; null while partially downloaded
+        String sha256;
+        String etag;
+        // length of whole jar, or -1 if not known
+        long length = -1;
+        long lastUsed;
+    }
+
+    /**
+     * What is kept on disk about the cached jars.
+     */
+    static class Index {
+        // by schema UUID
+        HashMap<String, Entry> jars = new HashMap<>();
+        HashMap<String, Entry> partial = new HashMap<>();
+    }
+
+    /**
+     * Outcome of asking the server for a schema's jar.
+     */
+    public static class Download {
+        // response code of the last request
+        public final int responseCode;
+        // the jar, if the server sent it or confirmed the cached one; otherwise null
+        public final File jar;
+        // body bytes received
+        public final long bytesReceived;
+
+        public Download(int responseCode, File jar, long bytesReceived) {
+            this.responseCode = responseCode;
+            this.jar = jar;
+            this.bytesReceived = bytesReceived;
+        }
+    }
+
+    private final File directory;
+    private final int maxSchemas;
+
+    /**
+     * @param directory Directory to keep jars in
+     * @param maxSchemas Number of schemas to keep jars for; the least recently used are removed
+     */
+    public SchemaJarCache(File directory, int maxSchemas) {
+        if (maxSchemas < 1) {
+            throw new IllegalArgumentException("Must keep at least one schema");
+        }
+        this.directory = directory;
+        this.maxSchemas = maxSchemas;
+    }
+
+    /**
+     * Get the jar cached for a schema.
+     *
+     * @param schemaUuid UUID of the schema
+     * @return The jar, or null if there is none or it does not have the length expected
+     */
+    @Nullable
+    public File getJar(String schemaUuid) {
+        synchronized (lock) {
+            Entry entry = readIndex().jars.get(schemaUuid);
+            if (entry == null) {
+                return null;
+            }
+
+            File jar = getJarFile(entry.sha256);
+            if (!jar.exists() || (entry.length >= 0 && jar.length() != entry.length)) {
+                Log.w(LOG_LABEL, "Cached jar for schema " + schemaUuid + " is missing or damaged");
+                remove(schemaUuid);
+                return null;
+            }
+            return jar;
+        }
+    }
+
+    /**
+     * Note that a schema has just been used, so that its jar is kept over those of older schemas.
+     */
+    public void markUsed(String schemaUuid) {
+        synchronized (lock) {
+            Index index = readIndex();
+            Entry entry = index.jars.get(schemaUuid);
+            if (entry != null) {
+                entry.lastUsed = System.currentTimeMillis();
+                writeIndex(index);
+            }
+        }
+    }
+
+    /**
+     * Remove a schema's jar, if no other schema has the same jar, and any partial download of it.
+     */
+    public void remove(String schemaUuid) {
+        synchronized (lock) {
+            Index index = readIndex();
+            index.jars.remove(schemaUuid);
+            if (index.partial.remove(schemaUuid) != null) {
+                getPartialFile(schemaUuid).delete();
+            }
+            writeIndex(index);
+            deleteUnusedJars(index);
+        }
+    }
+
+    /**
+     * Get the jar for a schema from the server, unless the cached one is still current.
+     * Resumes a download that was interrupted before.
+     *
+     * @param httpClient Client to make requests with
+     * @param url Jar endpoint for the schema
+     * @param token User token to authorize requests with
+     * @param schemaUuid UUID of the schema
+     * @return Outcome of the download. If the response was not a success, the caller should handle it.
+     * @throws IOException If the server could not be reached, or the download was interrupted;
+     *                     the part downloaded is kept to resume from
+     */
+    public Download download(DriverHttpClient httpClient, URL url, String token, String schemaUuid) throws IOException {
+        synchronized (lock) {
+            Download download = requestJar(httpClient, url, token, schemaUuid, true);
+            if (download == null) {
+                // partial download could not be resumed; start over
+                download = requestJar(httpClient, url, token, schemaUuid, false);
+            }
+            return download;
+        }
+    }
+
+    /**
+     * Make one request for a jar.
+     *
+     * @param resume Whether to resume a partial download, if there is one
+     * @return Outcome, or null if the server sent a range that does not follow on from the part
+     *         downloaded, which has been discarded
+     */
+    @Nullable
+    private Download requestJar(DriverHttpClient httpClient, URL url, String token, String schemaUuid,
+                                boolean resume) throws IOException {
+
+        Index index = readIndex();
+        Entry cached = index.jars.get(schemaUuid);
+        if (cached != null && getJar(schemaUuid) == null) {
+            // damaged; removed from the index
+            index = readIndex();
+            cached = null;
+        }
+
+        Entry partial = index.partial.get(schemaUuid);
+        File partialFile = getPartialFile(schemaUuid);
+        long partialLength = partialFile.exists() ? partialFile.length() : 0;
+
+        HttpURLConnection urlConnection = httpClient.openConnection(url);
+        urlConnection.setRequestProperty("Authorization", "Token " + token);
+        // ranges must count the bytes of the jar itself
+        urlConnection.setRequestProperty("Accept-Encoding", "identity");
+
+        boolean resuming = false;
+        if (cached != null && cached.etag != null) {
+            urlConnection.setRequestProperty("If-None-Match", cached.etag);
+        } else if (resume && partial != null && partial.etag != null && partialLength > 0) {
+            Log.d(LOG_LABEL, "Resuming download of schema " + schemaUuid + " from " + partialLength);
+            urlConnection.setRequestProperty("Range", "bytes=" + partialLength + "-");
+            urlConnection.setRequestProperty("If-Range", partial.etag);
+            resuming = true;
+        }
+
+        int responseCode = urlConnection.getResponseCode();
+
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            Log.d(LOG_LABEL, "Cached jar for schema " + schemaUuid + " is current");
+            httpClient.release(urlConnection);
+            markUsed(schemaUuid);
+            return new Download(responseCode, getJar(schemaUuid), 0);
+        }
+
+        boolean append;
+        if (responseCode == HttpURLConnection.HTTP_PARTIAL && resuming) {
+            long[] range = parseContentRange(urlConnection.getHeaderField("Content-Range"));
+            if (range == null || range[0] != partialLength) {
+                Log.w(LOG_LABEL, "Server sent range that does not follow on from partial download; starting over");
+                httpClient.abort(urlConnection);
+                discardPartial(index, schemaUuid);
+                return resume ? null : new Download(responseCode, null, 0);
+            }
+            partial.length = range[1];
+            append = true;
+        } else if (responseCode == HttpURLConnection.HTTP_OK) {
+            partial = new Entry();
+            partial.etag = urlConnection.getHeaderField("ETag");
+            partial.length = parseLength(urlConnection.getHeaderField("Content-Length"));
+            append = false;
+        } else {
+            Log.d(LOG_LABEL, "Jar request for schema " + schemaUuid + " got response " + responseCode);
+            httpClient.release(urlConnection);
+            return new Download(responseCode, null, 0);
+        }
+
+        // note the partial download before receiving it, so that it can be resumed if interrupted
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            httpClient.abort(urlConnection);
+            throw new IOException("Could not create schema jar cache directory");
+        }
+        index.partial.put(schemaUuid, partial);
+        writeIndex(index);
+
+        long received = 0;
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        try {
+            inputStream = urlConnection.getInputStream();
+            outputStream = new FileOutputStream(partialFile, append);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, read);
+                received += read;
+            }
+            outputStream.close();
+            outputStream = null;
+        } catch (IOException e) {
+            Log.w(LOG_LABEL, "Download of schema " + schemaUuid + " interrupted after " + received + " bytes");
+            httpClient.abort(urlConnection);
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+            IOUtils.closeQuietly(outputStream);
+        }
+        httpClient.release(urlConnection);
+
+        if (partial.length >= 0 && partialFile.length() != partial.length) {
+            Log.e(LOG_LABEL, "Downloaded jar for schema " + schemaUuid + " has length " + partialFile.length() +
+                    "; expected " + partial.length);
+            discardPartial(index, schemaUuid);
+            return new Download(responseCode, null, received);
+        }
+
+        File jar = completeDownload(index, schemaUuid, partial, partialFile);
+        return new Download(responseCode, jar, received);
+    }
+
+    /**
+     * Move a finished download to its place under its content hash.
+     *
+     * @return The jar, or null on failure
+     */
+    @Nullable
+    private File completeDownload(Index index, String schemaUuid, Entry entry, File partialFile) {
+        String sha256 = hashFile(partialFile);
+        if (sha256 == null) {
+            discardPartial(index, schemaUuid);
+            return null;
+        }
+
+        File jar = getJarFile(sha256);
+        // another schema may already have the same jar
+        if (jar.exists() && jar.length() == partialFile.length()) {
+            partialFile.delete();
+        } else if (!partialFile.renameTo(jar)) {
+            Log.e(LOG_LABEL, "Could not move downloaded jar into cache");
+            discardPartial(index, schemaUuid);
+            return null;
+        }
+
+        entry.sha256 = sha256;
+        entry.length = jar.length();
+        entry.lastUsed = System.currentTimeMillis();
+        index.partial.remove(schemaUuid);
+        index.jars.put(schemaUuid, entry);
+        evict(index);
+        writeIndex(index);
+        deleteUnusedJars(index);
+
+        Log.d(LOG_LABEL, "Cached jar for schema " + schemaUuid + " with hash " + sha256);
+        return jar;
+    }
+
+    private void discardPartial(Index index, String schemaUuid) {
+        index.partial.remove(schemaUuid);
+        getPartialFile(schemaUuid).delete();
+        writeIndex(index);
+    }
+
+    /**
+     * Drop the least recently used schemas over the limit.
+     */
+    private void evict(Index index) {
+        if (index.jars.size() <= maxSchemas) {
+            return;
+        }
+
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>(index.jars.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> lhs, Map.Entry<String, Entry> rhs) {
+                return Long.valueOf(lhs.getValue().lastUsed).compareTo(rhs.getValue().lastUsed);
+            }
+        });
+
+        for (int i = 0; i < entries.size() - maxSchemas; i++) {
+            Log.d(LOG_LABEL, "Removing jar for schema " + entries.get(i).getKey() + " from cache");
+            index.jars.remove(entries.get(i).getKey());
+        }
+    }
+
+    /**
+     * Delete jars no schema in the index refers to.
+     */
+    private void deleteUnusedJars(Index index) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Set<String> used = new HashSet<>(index.jars.size());
+        for (Entry entry : index.jars.values()) {
+            used.add(getJarFile(entry.sha256).getName());
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(JAR_SUFFIX) && !used.contains(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getJarFile(String sha256) {
+        return new File(directory, sha256 + JAR_SUFFIX);
+    }
+
+    private File getPartialFile(String schemaUuid) {
+        return new File(directory, schemaUuid + PARTIAL_SUFFIX);
+    }
+
+    private Index readIndex() {
+        File file = new File(directory, INDEX_FILE);
+        if (!file.exists()) {
+            return new Index();
+        }
+
+        Reader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            Index index = new Gson().fromJson(reader, Index.class);
+            if (index != null && index.jars != null && index.partial != null) {
+                return index;
+            }
+        } catch (IOException | JsonParseException e) {
+            Log.e(LOG_LABEL, "Failed to read schema jar cache index");
+            e.printStackTrace();
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+
+        // start over; jars not in the index are deleted on next write
+        return new Index();
+    }
+
+    private void writeIndex(Index index) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(LOG_LABEL, "Could not create schema jar cache directory");
+            return;
+        }
+
+        File file = new File(directory, INDEX_FILE);
+        File tempFile = new File(directory, INDEX_FILE + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+            new Gson().toJson(index, writer);
+            writer.close();
+            writer = null;
+            if (!tempFile.renameTo(file)) {
+                Log.e(LOG_LABEL, "Could not replace schema jar cache index");
+            }
+        } catch (IOException e) {
+            Log.e(LOG_LABEL, "Failed to write schema jar cache index");
+            e.printStackTrace();
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    /**
+     * @param contentRange Content-Range header, as "bytes first-last/length"
+     * @return Offset of the first byte and length of the whole, or null if not understood.
+     *         Length is -1 if unknown.
+     */
+    @Nullable
+    static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+
+        try {
+            String range = contentRange.substring("bytes ".length()).trim();
+            int dash = range.indexOf('-');
+            int slash = range.indexOf('/');
+            if (dash < 0 || slash < dash) {
+                return null;
+            }
+            long first = Long.parseLong(range.substring(0, dash));
+            String length = range.substring(slash + 1);
+            return new long[] {first, length.equals("*") ? -1 : Long.parseLong(length)};
+        } catch (NumberFormatException e) {
+            Log.e(LOG_LABEL, "Could not parse Content-Range " + contentRange);
+            return null;
+        }
+    }
+
+    private static long parseLength(String contentLength) {
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return Hex SHA-256 of the file content, or null if it could not be read
+     */
+    @Nullable
+    private static String hashFile(File file) {
+        InputStream inputStream = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            inputStream = new FileInputStream(file);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            Log.e(LOG_LABEL, "Could not hash jar " + file.getPath());
+            e.printStackTrace();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.worldbank.transport.driver.schemas;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Keeps the classes of each schema records have been entered with, so records stored under an
+ * earlier schema can be read with the classes they were written with, side by side with the
+ * current schema.
+ *
+ * The current schema is always kept. Earlier schemas are opened when a record of theirs is first
+ * read, and the least recently used are dropped once more than the maximum are loaded, so that
+ * their classes can be garbage collected.
+ */
+public class SchemaRegistry {
+
+    private static final String LOG_LABEL = "SchemaRegistry";
+
+    public static final String DRIVER_SCHEMA_CLASS = "DriverSchema";
+
+    /**
+     * Opens the classes of schemas other than the current one.
+     */
+    public interface SchemaSource {
+        /**
+         * @param schemaVersion UUID of the schema
+         * @return Loader for the classes of the schema, or null if it cannot be opened
+         */
+        @Nullable
+        SchemaClassLoader openSchema(String schemaVersion);
+
+        /**
+         * Called when the classes of a schema are dropped, to drop anything else holding on to them.
+         *
+         * @param schemaVersion UUID of the schema
+         */
+        void schemaUnloaded(String schemaVersion);
+    }
+
+    /**
+     * Classes of a schema.
+     */
+    public static class LoadedSchema {
+        public final String schemaVersion;
+        public final SchemaClassLoader classLoader;
+        public final Class driverSchema;
+
+        public LoadedSchema(String schemaVersion, SchemaClassLoader classLoader, Class driverSchema) {
+            this.schemaVersion = schemaVersion;
+            this.classLoader = classLoader;
+            this.driverSchema = driverSchema;
+        }
+    }
+
+    private final SchemaSource source;
+    private final String modelPackage;
+    private final int maxSchemas;
+
+    private LoadedSchema current;
+
+    // earlier schemas, least recently used first
+    private final LinkedHashMap<String, LoadedSchema> loaded = new LinkedHashMap<>(4, 0.75f, true);
+
+    // schemas that could not be opened, so they are not tried for every record
+    private final Set<String> unavailable = new HashSet<>();
+
+    /**
+     * @param source Opens the classes of earlier schemas
+     * @param modelPackage Package of the schema classes, with trailing dot
+     * @param maxSchemas Number of schemas to keep loaded, including the current one
+     */
+    public SchemaRegistry(SchemaSource source, String modelPackage, int maxSchemas) {
+        if (maxSchemas < 1) {
+            throw new IllegalArgumentException("Must keep at least the current schema");
+        }
+        this.source = source;
+        this.modelPackage = modelPackage;
+        this.maxSchemas = maxSchemas;
+    }
+
+    /**
+     * Set the schema new records are entered with. The schema it replaces is kept with the
+     * earlier schemas, for reading records entered with it.
+     *
+     * @param schemaVersion UUID of the schema
+     * @param classLoader Loader of its classes
+     * @param driverSchema Its top-level class
+     */
+    public synchronized void setCurrent(String schemaVersion, SchemaClassLoader classLoader, Class driverSchema) {
+        if (current != null && !current.schemaVersion.equals(schemaVersion)) {
+            loaded.put(current.schemaVersion, current);
+        }
+        loaded.remove(schemaVersion);
+        current = new LoadedSchema(schemaVersion, classLoader, driverSchema);
+
+        // schemas may have become available with the new one
+        unavailable.clear();
+        evict();
+    }
+
+    /**
+     * @return Schema new records are entered with, or null if none is set
+     */
+    @Nullable
+    public synchronized LoadedSchema getCurrent() {
+        return current;
+    }
+
+    /**
+     * Get the top-level class of a schema, opening the schema if it is not loaded.
+     *
+     * @param schemaVersion UUID of the schema
+     * @return Top-level class of the schema, or null if the schema cannot be opened
+     */
+    @Nullable
+    public Class getSchemaClass(String schemaVersion) {
+        LoadedSchema schema = getSchema(schemaVersion);
+        return schema != null ? schema.driverSchema : null;
+    }
+
+    /**
+     * Get the classes of a schema, opening the schema if it is not loaded.
+     *
+     * @param schemaVersion UUID of the schema
+     * @return Classes of the schema, or null if the schema cannot be opened
+     */
+    @Nullable
+    public synchronized LoadedSchema getSchema(String schemaVersion) {
+        if (current != null && current.schemaVersion.equals(schemaVersion)) {
+            return current;
+        }
+
+        LoadedSchema schema = loaded.get(schemaVersion);
+        if (schema != null) {
+            return schema;
+        }
+
+        if (unavailable.contains(schemaVersion)) {
+            return null;
+        }
+
+        Log.d(LOG_LABEL, "Opening earlier schema " + schemaVersion);
+        SchemaClassLoader classLoader = source.openSchema(schemaVersion);
+        if (classLoader != null) {
+            try {
+                Class driverSchema = classLoader.loadClass(modelPackage + DRIVER_SCHEMA_CLASS);
+                if (driverSchema != null) {
+                    schema = new LoadedSchema(schemaVersion, classLoader, driverSchema);
+                    loaded.put(schemaVersion, schema);
+                    evict();
+                    return schema;
+                }
+            } catch (ClassNotFoundException e) {
+                Log.e(LOG_LABEL, "Schema " + schemaVersion + " has no top-level class");
+                e.printStackTrace();
+            }
+        }
+
+        Log.w(LOG_LABEL, "Could not open schema " + schemaVersion);
+        unavailable.add(schemaVersion);
+        return null;
+    }
+
+    /**
+     * @return True if the classes of the schema are loaded
+     */
+    public synchronized boolean isLoaded(String schemaVersion) {
+        return (current != null && current.schemaVersion.equals(schemaVersion)) || loaded.containsKey(schemaVersion);
+    }
+
+    /**
+     * Drop the classes of all schemas but the current one.
+     */
+    public synchronized void clear() {
+        Iterator<Map.Entry<String, LoadedSchema>> iterator = loaded.entrySet().iterator();
+        while (iterator.hasNext()) {
+            String schemaVersion = iterator.next().getKey();
+            iterator.remove();
+            source.schemaUnloaded(schemaVersion);
+        }
+        unavailable.clear();
+    }
+
+    /**
+     * Drop the least recently used earlier schemas over the limit.
+     */
+    private void evict() {
+        int maxEarlier = maxSchemas - 1;
+        Iterator<Map.Entry<String, LoadedSchema>> iterator = loaded.entrySet().iterator();
+        while (loaded.size() > maxEarlier && iterator.hasNext()) {
+            String schemaVersion = iterator.next().getKey();
+            iterator.remove();
+            Log.d(LOG_LABEL, "Unloading schema " + schemaVersion);
+            source.schemaUnloaded(schemaVersion);
+        }
+    }
+}
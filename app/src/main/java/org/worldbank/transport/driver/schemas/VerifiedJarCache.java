@@ -0,0 +1,374 @@
+package org.worldbank.transport.driver.schemas;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import dalvik.system.DexClassLoader;
+
+
+/**
+ * Remembers which schema jars have been verified against the signing certificate, so that later
+ * starts can open them without verifying them again.
+ *
+ * Verifying a jar with the secure loader checks its signatures against the certificate, and
+ * optimizes its dex again. Once a jar has been verified, its digest and the fingerprint of the
+ * certificate it was signed with are recorded. When the same jar is opened again, with the same
+ * certificate URL configured, it is digested again and compared, which is cheap next to
+ * verifying it. The recorded fingerprint is also compared with the certificate the secure loader
+ * last fetched from the URL, given by a CertificateSource, so that once any jar has been verified
+ * against a certificate replaced at the same URL, the others are not trusted either. If all
+ * match, the jar is loaded with a plain class loader that keeps its optimized dex. Any change to
+ * the file or to the certificate, or a certificate that cannot be found, means the jar is
+ * verified again in full.
+ *
+ * Only a full verification fetches the certificate from the URL again, so a jar is also verified
+ * in full once its verification is older than the maximum age; a certificate replaced or revoked
+ * at the URL is noticed within that time.
+ */
+public class VerifiedJarCache {
+
+    private static final String LOG_LABEL = "VerifiedJarCache";
+
+    private static final String RECORD_FILE = "verified-jars.json";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // verify jars in full, fetching the certificate again, at least this often
+    public static final long DEFAULT_MAX_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * Finds the certificate jars must currently be signed with.
+     */
+    public interface CertificateSource {
+        /**
+         * @param certificateUrl URL the certificate is served at
+         * @return Certificate fetched or cached from the URL, or null if there is none
+         */
+        @Nullable
+        Certificate getCertificate(String certificateUrl);
+    }
+
+    /**
+     * A jar verified in full.
+     */
+    static class Record {
+        String sha256;
+        long length;
+        String certificateUrl;
+        // hex SHA-256 of the certificate the jar was signed with
+        String certificateFingerprint;
+        // when verified, in milliseconds since the epoch; 0 if recorded before this was kept
+        long verifiedAt;
+    }
+
+    /**
+     * Jars verified, by absolute path.
+     */
+    static class Records {
+        HashMap<String, Record> jars = new HashMap<>();
+    }
+
+    private final File recordDirectory;
+    private final File optimizedDirectory;
+    private final ClassLoader parent;
+    private final CertificateSource certificateSource;
+    private final long maxAgeMs;
+
+    /**
+     * @param recordDirectory Directory to keep the record of verified jars in
+     * @param optimizedDirectory Directory to keep optimized dex of verified jars in
+     * @param parent Parent class loader for schema classes
+     * @param certificateSource Finds the certificate to compare with the one verified jars were signed with
+     * @param maxAgeMs Time after which a verified jar is verified in full again
+     */
+    public VerifiedJarCache(File recordDirectory, File optimizedDirectory, ClassLoader parent,
+                            CertificateSource certificateSource, long maxAgeMs) {
+        this.recordDirectory = recordDirectory;
+        this.optimizedDirectory = optimizedDirectory;
+        this.parent = parent;
+        this.certificateSource = certificateSource;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Open a jar that has been verified before, if it has not changed since.
+     *
+     * @param jar Jar file to open
+     * @param certificateUrl URL of the certificate the jar must be signed with
+     * @return Loader of the jar's classes, or null if the jar needs to be verified in full
+     */
+    @Nullable
+    public synchronized SchemaClassLoader openVerified(File jar, String certificateUrl) {
+        Record record = readRecords().jars.get(jar.getAbsolutePath());
+        if (record == null) {
+            Log.d(LOG_LABEL, "Jar " + jar.getName() + " has not been verified");
+            return null;
+        }
+
+        if (!certificateUrl.equals(record.certificateUrl) || jar.length() != record.length ||
+                !record.sha256.equals(hashFile(jar))) {
+            Log.d(LOG_LABEL, "Jar " + jar.getName() + " or its certificate changed since verified");
+            forget(jar);
+            return null;
+        }
+
+        // the certificate at the URL is only fetched again by verifying in full
+        long age = System.currentTimeMillis() - record.verifiedAt;
+        if (age < 0 || age > maxAgeMs) {
+            Log.d(LOG_LABEL, "Jar " + jar.getName() + " was verified too long ago; verifying it again");
+            forget(jar);
+            return null;
+        }
+
+        // the certificate at the URL may have been replaced since
+        Certificate certificate = certificateSource.getCertificate(certificateUrl);
+        String expectedFingerprint = certificate != null ? getFingerprint(certificate) : null;
+        if (!record.certificateFingerprint.equals(expectedFingerprint)) {
+            Log.d(LOG_LABEL, "Jar " + jar.getName() + " was not verified with the certificate now at " + certificateUrl);
+            forget(jar);
+            return null;
+        }
+
+        if (!optimizedDirectory.isDirectory() && !optimizedDirectory.mkdirs()) {
+            Log.e(LOG_LABEL, "Could not create directory for optimized dex");
+            return null;
+        }
+
+        Log.d(LOG_LABEL, "Opening verified jar " + jar.getName() + " signed by " + record.certificateFingerprint);
+        return new SchemaClassLoader.Verified(new DexClassLoader(jar.getAbsolutePath(),
+                optimizedDirectory.getAbsolutePath(), null, parent));
+    }
+
+    /**
+     * Record that a jar has been verified in full.
+     *
+     * @param jar Jar file verified
+     * @param certificateUrl URL of the certificate it was verified against
+     */
+    public synchronized void recordVerified(File jar, String certificateUrl) {
+        Record record = new Record();
+        record.sha256 = hashFile(jar);
+        record.certificateFingerprint = getCertificateFingerprint(jar);
+        if (record.sha256 == null || record.certificateFingerprint == null) {
+            Log.w(LOG_LABEL, "Could not fingerprint verified jar " + jar.getName() + "; will verify again");
+            return;
+        }
+        record.length = jar.length();
+        record.certificateUrl = certificateUrl;
+        record.verifiedAt = System.currentTimeMillis();
+
+        Records records = readRecords();
+        records.jars.put(jar.getAbsolutePath(), record);
+
+        // forget jars since deleted
+        for (String path : records.jars.keySet().toArray(new String[records.jars.size()])) {
+            if (!new File(path).exists()) {
+                records.jars.remove(path);
+            }
+        }
+        writeRecords(records);
+    }
+
+    /**
+     * Forget a jar was verified, so that it is verified in full when next opened.
+     */
+    public synchronized void forget(File jar) {
+        Records records = readRecords();
+        if (records.jars.remove(jar.getAbsolutePath()) != null) {
+            writeRecords(records);
+        }
+    }
+
+    /**
+     * Get the fingerprint of the certificate in the jar's signature block. The secure loader
+     * checks that it is the expected certificate; it is recorded to compare with the certificate at
+     * the URL when the jar is opened again.
+     *
+     * @return Hex SHA-256 of the signing certificate, or null if not found
+     */
+    @Nullable
+    static String getCertificateFingerprint(File jar) {
+        ZipFile zipFile = null;
+        InputStream inputStream = null;
+        try {
+            zipFile = new ZipFile(jar);
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName().toUpperCase();
+                if (name.startsWith("META-INF/") && (name.endsWith(".RSA") || name.endsWith(".DSA") ||
+                        name.endsWith(".EC"))) {
+
+                    inputStream = zipFile.getInputStream(entry);
+                    Collection<? extends Certificate> certificates =
+                            CertificateFactory.getInstance("X.509").generateCertificates(inputStream);
+                    if (certificates.isEmpty()) {
+                        return null;
+                    }
+                    return getFingerprint(certificates.iterator().next());
+                }
+            }
+            Log.w(LOG_LABEL, "No signature block found in " + jar.getName());
+        } catch (IOException | CertificateException e) {
+            Log.e(LOG_LABEL, "Could not read signing certificate of " + jar.getName());
+            e.printStackTrace();
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+            if (zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Hex SHA-256 of the encoded certificate, or null if it could not be encoded
+     */
+    @Nullable
+    static String getFingerprint(Certificate certificate) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return toHex(digest.digest(certificate.getEncoded()));
+        } catch (CertificateException | NoSuchAlgorithmException e) {
+            Log.e(LOG_LABEL, "Could not fingerprint certificate");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Read a certificate from a PEM or DER file.
+     *
+     * @return Certificate, or null if the file is missing or not a certificate
+     */
+    @Nullable
+    public static Certificate readCertificate(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            return CertificateFactory.getInstance("X.509").generateCertificate(inputStream);
+        } catch (IOException | CertificateException e) {
+            Log.e(LOG_LABEL, "Could not read certificate " + file.getName());
+            e.printStackTrace();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * @return Hex SHA-256 of the file content, or null if it could not be read
+     */
+    @Nullable
+    private static String hashFile(File file) {
+        InputStream inputStream = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            inputStream = new FileInputStream(file);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            Log.e(LOG_LABEL, "Could not hash jar " + file.getPath());
+            e.printStackTrace();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private Records readRecords() {
+        File file = new File(recordDirectory, RECORD_FILE);
+        if (!file.exists()) {
+            return new Records();
+        }
+
+        Reader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            Records records = new Gson().fromJson(reader, Records.class);
+            if (records != null && records.jars != null) {
+                return records;
+            }
+        } catch (IOException | JsonParseException e) {
+            Log.e(LOG_LABEL, "Failed to read verified jars");
+            e.printStackTrace();
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+
+        // everything will be verified again
+        return new Records();
+    }
+
+    private void writeRecords(Records records) {
+        if (!recordDirectory.isDirectory() && !recordDirectory.mkdirs()) {
+            Log.e(LOG_LABEL, "Could not create directory for verified jars");
+            return;
+        }
+
+        File file = new File(recordDirectory, RECORD_FILE);
+        File tempFile = new File(recordDirectory, RECORD_FILE + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+            new Gson().toJson(records, writer);
+            writer.close();
+            writer = null;
+            if (!tempFile.renameTo(file)) {
+                Log.e(LOG_LABEL, "Could not replace record of verified jars");
+            }
+        } catch (IOException e) {
+            Log.e(LOG_LABEL, "Failed to write verified jars");
+            e.printStackTrace();
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+}
@@ -6,6 +6,8 @@ import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -14,9 +16,26 @@ import org.apache.commons.lang.StringUtils;
 import org.jsonschema2pojo.annotations.FieldType;
 import org.jsonschema2pojo.annotations.FieldTypes;
 import org.worldbank.transport.driver.R;
+import org.worldbank.transport.driver.controls.DriverImageController;
+import org.worldbank.transport.driver.datastore.DriverSchemaSerializer;
 import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.metrics.StartupTimings;
+import org.worldbank.transport.driver.schemas.SchemaClassLoader;
+import org.worldbank.transport.driver.schemas.SchemaJarCache;
+import org.worldbank.transport.driver.schemas.SchemaRegistry;
+import org.worldbank.transport.driver.schemas.VerifiedJarCache;
+import org.worldbank.transport.driver.tasks.MigrateRecordsTask;
+import org.worldbank.transport.driver.tasks.PostRecordsTask;
+import org.worldbank.transport.driver.uploads.AdaptiveUploadPolicy;
+import org.worldbank.transport.driver.uploads.AndroidConnectivityProvider;
+import org.worldbank.transport.driver.uploads.Clock;
+import org.worldbank.transport.driver.uploads.ConnectivityProvider;
+import org.worldbank.transport.driver.uploads.ThroughputMeter;
+import org.worldbank.transport.driver.uploads.UploadScheduler;
 import org.worldbank.transport.driver.utilities.DriverUtilities;
 import org.worldbank.transport.driver.utilities.RecordFormSectionManager;
+import org.worldbank.transport.driver.utilities.SchemaIndex;
+import org.worldbank.transport.driver.utilities.UploadRecordUrlBuilder;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -24,24 +43,39 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
-import it.necst.grabnrun.SecureDexClassLoader;
 import it.necst.grabnrun.SecureLoaderFactory;
 
 
 /**
  * Singleton to hold data used across the application.
  *
+ * On start, the schema model classes are loaded on a background thread, so that the first
+ * activity can draw meanwhile; copying out the jar, verifying its signature, and loading its
+ * classes take seconds on slower devices. Anything asking for the schema waits until it is
+ * loaded, so activities should wait with whenSchemaReady before using it, and show that they are
+ * loading meanwhile. The schema is loaded straight away when testing. The phases of starting
+ * are timed in StartupTimings.
+ *
  * Created by kathrynkillebrew on 12/9/15.
  */
-public class DriverApp extends Application {
+public class DriverApp extends Application implements MigrateRecordsTask.MigrateRecordsListener,
+        UploadScheduler.UploadTaskFactory {
 
     private static final String LOG_LABEL = "DriverApp";
 
@@ -53,9 +87,35 @@ public class DriverApp extends Application {
 
     private static String SCHEMA_CERT_URL;
 
+    // the secure loader keeps the certificate it last fetched for each package here, as <package>.pem
+    private static final String SECURE_LOADER_CERT_DIR = "valid_certs";
+
     public static final String BACKUP_JAR_NAME = "models.jar";
     public static final String UPDATED_JAR_NAME = "updatedModels.jar";
 
+    public interface SchemaReadyListener {
+        /**
+         * Called on the main thread once the schema has loaded, or failed to.
+         *
+         * @param loaded True if schema classes are available
+         */
+        void schemaReady(boolean loaded);
+    }
+
+    /**
+     * Loader and index of the current schema, replaced together so that a schema can be swapped
+     * while records are uploaded in the background.
+     */
+    private static class CurrentSchema {
+        final SchemaClassLoader classLoader;
+        final SchemaIndex index;
+
+        CurrentSchema(SchemaClassLoader classLoader, SchemaIndex index) {
+            this.classLoader = classLoader;
+            this.index = index;
+        }
+    }
+
     /**
      * Current user.
      */
@@ -68,13 +128,27 @@ public class DriverApp extends Application {
 
     private static Context mContext;
     private static ConnectivityManager connMgr;
+    private static ConnectivityProvider connectivityProvider;
     private static RecordDatabaseManager databaseManager;
+    private UploadScheduler uploadScheduler;
 
     private boolean amTesting = false;
     private boolean useHijri = false;
-    private SecureDexClassLoader schemaClassLoader = null;
+    private volatile CurrentSchema currentSchema = null;
+    private SchemaJarCache schemaJarCache = null;
+    private VerifiedJarCache verifiedJarCache = null;
+    private SchemaRegistry schemaRegistry = null;
     private static Map<String, URL> packageNameCertMap = null;
 
+    // loads the schema on start; null until started
+    private final ExecutorService schemaExecutor = Executors.newSingleThreadExecutor();
+    private volatile FutureTask<Boolean> schemaLoad;
+    private volatile Thread schemaLoadThread;
+    private Handler mainHandler;
+
+    // waiting for the schema to load; only used on the main thread
+    private final ArrayList<WeakReference<SchemaReadyListener>> schemaReadyListeners = new ArrayList<>();
+
     /**
      * Constructor for use in testing. Can use default constructor instead if not testing.
      *
@@ -94,37 +168,192 @@ public class DriverApp extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
+        StartupTimings timings = StartupTimings.getInstance();
+        long createStarted = System.nanoTime();
 
         SCHEMA_CERT_URL = getString(R.string.signing_cert_pem_url);
+        mContext = this;
+        mainHandler = new Handler(Looper.getMainLooper());
+
+        // load schema in the background, unless testing, where tests expect it loaded
+        schemaLoad = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return loadStartupSchema();
+            }
+        }) {
+            @Override
+            protected void done() {
+                StartupTimings.getInstance().milestone(StartupTimings.MILESTONE_SCHEMA_READY);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        notifySchemaReady();
+                    }
+                });
+            }
+        };
+        if (amTesting) {
+            schemaLoad.run();
+        } else {
+            schemaExecutor.execute(schemaLoad);
+        }
+
+        connMgr = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        connectivityProvider = new AndroidConnectivityProvider(connMgr, ThroughputMeter.getInstance());
+        record = null;
+        databaseManager = new RecordDatabaseManager(mContext, amTesting);
+        useHijri = DriverUtilities.isInSaudiArabiaOrArabic();
+
+        // finish migrating any records left over from a database upgrade
+        new MigrateRecordsTask(this).execute(databaseManager);
+
+        // upload records in the background while logged in; tasks run after the migration
+        uploadScheduler = new UploadScheduler(this, new Handler(Looper.getMainLooper()), Clock.SYSTEM,
+                databaseManager, this);
+        if (!amTesting && hasUserToken()) {
+            uploadScheduler.start();
+        }
+
+        timings.phase(StartupTimings.PHASE_APPLICATION_CREATE, createStarted);
+    }
+
+    /**
+     * Load the updated schema, if there is one, or else the backup schema. Runs on the schema executor.
+     *
+     * @return True if a schema was loaded
+     */
+    private boolean loadStartupSchema() {
+        schemaLoadThread = Thread.currentThread();
+        long loadStarted = System.nanoTime();
+        StartupTimings timings = StartupTimings.getInstance();
+        boolean loaded = false;
 
         packageNameCertMap = new HashMap<>(1);
         try {
             packageNameCertMap.put(MODELS_BASE_PACKAGE, new URL(SCHEMA_CERT_URL));
             // check if there is a schema update jar available, and use that first;
             // fall back to backup jar if not
-            if (haveUpdatedSchemaJar()) {
+            String currentVersion = getSchemaVersionFromSharedPreferences();
+            File cachedJar = currentVersion.isEmpty() ? null : getSchemaJarCache().getJar(currentVersion);
+            if (cachedJar != null) {
+                if (loadSchemaJar(cachedJar, currentVersion, timings)) {
+                    loaded = true;
+                } else {
+                    Log.e(LOG_LABEL, "Failed to load updated schema from cached jar; reverting to backup");
+                    getSchemaJarCache().remove(currentVersion);
+                    loaded = loadBackupSchema(timings);
+                }
+            } else if (haveUpdatedSchemaJar()) {
+                // downloaded before jars were cached
                 // get current schema version from shared preferences
                 String preferencesSchemaVersion = getSchemaVersionFromSharedPreferences();
                 if (preferencesSchemaVersion.isEmpty()) {
                     Log.e(LOG_LABEL, "Have an updated schema jar file, but its version was not found in shared preferences!");
-                    loadBackupSchema();
-                } else if (!loadSchemaClasses(UPDATED_JAR_NAME, preferencesSchemaVersion)) {
+                    loaded = loadBackupSchema(timings);
+                } else if (loadSchemaClasses(UPDATED_JAR_NAME, preferencesSchemaVersion, timings)) {
+                    loaded = true;
+                } else {
                     Log.e(LOG_LABEL, "Failed to load updated schema from stored file; reverting to backup");
-                    loadBackupSchema();
+                    loaded = loadBackupSchema(timings);
                 }
             } else {
-                loadBackupSchema();
+                loaded = loadBackupSchema(timings);
             }
         } catch (MalformedURLException e) {
             Log.e(LOG_LABEL, "Certificate URL for model packages is invalid");
             e.printStackTrace();
+        } finally {
+            schemaLoadThread = null;
         }
 
-        mContext = this;
-        connMgr = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-        record = null;
-        databaseManager = new RecordDatabaseManager(mContext, amTesting);
-        useHijri = DriverUtilities.isInSaudiArabiaOrArabic();
+        timings.phase(StartupTimings.PHASE_SCHEMA_LOAD, loadStarted);
+        return loaded;
+    }
+
+    /**
+     * @return True if the schema has finished loading on start, whether or not it loaded
+     */
+    public boolean isSchemaReady() {
+        return schemaLoad == null || schemaLoad.isDone();
+    }
+
+    /**
+     * Call the listener once the schema has loaded on start: straight away if it has already,
+     * otherwise later on the main thread. Only a weak reference to the listener is held.
+     * Must be called on the main thread.
+     */
+    public void whenSchemaReady(SchemaReadyListener listener) {
+        if (isSchemaReady()) {
+            listener.schemaReady(currentSchema != null);
+            return;
+        }
+        schemaReadyListeners.add(new WeakReference<>(listener));
+    }
+
+    private void notifySchemaReady() {
+        boolean loaded = currentSchema != null;
+        ArrayList<WeakReference<SchemaReadyListener>> listeners = new ArrayList<>(schemaReadyListeners);
+        schemaReadyListeners.clear();
+        for (WeakReference<SchemaReadyListener> reference : listeners) {
+            SchemaReadyListener listener = reference.get();
+            if (listener != null) {
+                listener.schemaReady(loaded);
+            }
+        }
+    }
+
+    /**
+     * Wait for the schema to finish loading on start, unless called while loading it.
+     */
+    private void awaitSchema() {
+        FutureTask<Boolean> load = schemaLoad;
+        if (load == null || load.isDone() || Thread.currentThread() == schemaLoadThread) {
+            return;
+        }
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Log.w(LOG_LABEL, "Main thread waiting for schema to load");
+        }
+        try {
+            load.get();
+        } catch (InterruptedException e) {
+            Log.e(LOG_LABEL, "Interrupted waiting for schema to load");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(LOG_LABEL, "Failed to load schema");
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public PostRecordsTask createUploadTask(PostRecordsTask.PostRecordsListener listener) {
+        if (!hasUserToken()) {
+            return null;
+        }
+
+        // records with photos wait for an unmetered link when uploaded in the background
+        return new PostRecordsTask(listener, getUserInfo(), new UploadRecordUrlBuilder(), databaseManager,
+                new PostRecordsTask.Options()
+                        .setDueOnly(true)
+                        .setUploadPolicy(new AdaptiveUploadPolicy(connectivityProvider, true)));
+    }
+
+    private boolean hasUserToken() {
+        String token = getUserInfo().getUserToken();
+        return token != null && !token.isEmpty();
+    }
+
+    @Override
+    public void migrationProgress(int migratedRecords, int totalRecords) {
+        Log.d(LOG_LABEL, "Migrated " + migratedRecords + " of " + totalRecords + " records");
+    }
+
+    @Override
+    public void migrationFinished(boolean successful) {
+        if (!successful) {
+            Log.e(LOG_LABEL, "Failed to migrate records after database upgrade");
+        }
     }
 
     public static Context getContext() {
@@ -132,6 +361,10 @@ public class DriverApp extends Application {
     }
 
     public static String getCurrentSchema() {
+        DriverApp driverApp = (DriverApp) DriverApp.getContext();
+        if (driverApp != null) {
+            driverApp.awaitSchema();
+        }
         return currentSchemaVersion;
     }
 
@@ -149,7 +382,14 @@ public class DriverApp extends Application {
 
         if (userInfo != null) {
             userInfo.writeToSharedPreferences(mContext);
+            if (uploadScheduler != null && !amTesting) {
+                uploadScheduler.start();
+            }
         } else {
+            if (uploadScheduler != null) {
+                uploadScheduler.stop();
+            }
+
             // clear shared preferences if user info is reset
             SharedPreferences preferences = mContext.getSharedPreferences(
                     mContext.getString(R.string.shared_preferences_file), Context.MODE_PRIVATE);
@@ -219,6 +459,9 @@ public class DriverApp extends Application {
     public boolean saveRecordAndClearCurrentlyEditing() {
         boolean wasSaved = saveRecord();
         clearCurrentlyEditingRecord();
+        if (wasSaved && uploadScheduler != null) {
+            uploadScheduler.requestUpload();
+        }
         return wasSaved;
     }
 
@@ -247,6 +490,8 @@ public class DriverApp extends Application {
             return false;
         }
 
+        // the form may be saved before its photos are processed in the background
+        DriverImageController.getImageProcessor(this).processRecordMedia(record.getEditObject());
         return record.save();
     }
 
@@ -258,6 +503,22 @@ public class DriverApp extends Application {
         record = null;
     }
 
+    /**
+     * The form can only edit records entered with the current schema. Records entered with an
+     * earlier schema are uploaded as they are.
+     *
+     * @param databaseId _id of record in database
+     * @return true if the record was entered with the current schema
+     */
+    public boolean canEditRecord(long databaseId) {
+        String recordSchema = databaseManager.getRecordSchemaVersion(databaseId);
+        if (recordSchema != null && !recordSchema.equals(getCurrentSchema())) {
+            Log.w(LOG_LABEL, "Record " + databaseId + " was entered with earlier schema " + recordSchema);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Set the record to be edited by database record ID.
      *
@@ -265,10 +526,22 @@ public class DriverApp extends Application {
      * @return true on success; will clear edit object on failure
      */
     public boolean setCurrentlyEditingRecord(long databaseId) {
+        if (!canEditRecord(databaseId)) {
+            record = null;
+            return false;
+        }
+
         record = databaseManager.getRecordById(databaseId);
         return record != null;
     }
 
+    /**
+     * @return Conditions of the active network, for deciding how to upload
+     */
+    public static ConnectivityProvider getConnectivityProvider() {
+        return connectivityProvider;
+    }
+
     public static boolean getIsNetworkAvailable() {
         NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
         return networkInfo != null && networkInfo.isConnected();
@@ -296,10 +569,29 @@ public class DriverApp extends Application {
         Log.d("DriverUserInfo", "Updated schema written to shared preferences");
     }
 
+    /**
+     * Get the top-level class of the schema a record was entered with, which may be an earlier
+     * schema than the current one.
+     *
+     * @param schemaVersion UUID of the schema
+     * @return Top-level class of the schema, or null if it cannot be opened
+     */
+    public static Class getSchemaClass(String schemaVersion) {
+        DriverApp driverApp = (DriverApp) DriverApp.getContext();
+        driverApp.awaitSchema();
+        return driverApp.getSchemaRegistry().getSchemaClass(schemaVersion);
+    }
+
     public static Class getSchemaClass() {
         DriverApp driverApp = (DriverApp) DriverApp.getContext();
+        driverApp.awaitSchema();
+        CurrentSchema schema = driverApp.currentSchema;
+        if (schema == null) {
+            Log.e(LOG_LABEL, "No schema loaded");
+            return null;
+        }
         try {
-            return driverApp.schemaClassLoader.loadClass(RecordFormSectionManager.MODEL_PACKAGE + "DriverSchema");
+            return schema.classLoader.loadClass(RecordFormSectionManager.MODEL_PACKAGE + "DriverSchema");
         } catch (ClassNotFoundException e) {
             Log.e(LOG_LABEL, "Could not load DriverSchema class!");
             e.printStackTrace();
@@ -308,27 +600,127 @@ public class DriverApp extends Application {
         return null;
     }
 
-    public static SecureDexClassLoader getSchemaClassLoader() {
+    /**
+     * @return Index of the current schema, or null if no schema is loaded
+     */
+    public static SchemaIndex getSchemaIndex() {
+        DriverApp driverApp = (DriverApp) DriverApp.getContext();
+        if (driverApp == null) {
+            return null;
+        }
+        driverApp.awaitSchema();
+        CurrentSchema schema = driverApp.currentSchema;
+        return schema != null ? schema.index : null;
+    }
+
+    public static SchemaClassLoader getSchemaClassLoader() {
         DriverApp driverApp = (DriverApp) DriverApp.getContext();
-        return driverApp.schemaClassLoader;
+        driverApp.awaitSchema();
+        CurrentSchema schema = driverApp.currentSchema;
+        return schema != null ? schema.classLoader : null;
     }
 
     /**
      * Helper to revert to the backup model classes, if updates not found or could not be loaded.
      */
     public void loadBackupSchema() {
-        if (loadSchemaClasses(BACKUP_JAR_NAME, getString(R.string.backup_jar_schema_version))) {
+        loadBackupSchema(null);
+    }
+
+    /**
+     * @param timings Timings to record the phases of loading in, or null
+     * @return True on success
+     */
+    private boolean loadBackupSchema(StartupTimings timings) {
+        if (loadSchemaClasses(BACKUP_JAR_NAME, getString(R.string.backup_jar_schema_version), timings)) {
             Log.d(LOG_LABEL, "Reverted to backup schema");
-        } else {
-            Log.e(LOG_LABEL, "Could not load backup schema!");
-            // should never happen
-            Toast toast = Toast.makeText(this, getString(R.string.error_schema_update), Toast.LENGTH_LONG);
-            toast.show();
+            return true;
         }
+
+        Log.e(LOG_LABEL, "Could not load backup schema!");
+        // should never happen; may be loading in the background, so show it from the main thread
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Toast toast = Toast.makeText(DriverApp.this, getString(R.string.error_schema_update), Toast.LENGTH_LONG);
+                toast.show();
+            }
+        });
+        return false;
     }
 
     /**
-     * Helper to check if an updated schema model jar file is available locally.
+     * @return Cache of the model jars downloaded for recent schemas
+     */
+    public synchronized SchemaJarCache getSchemaJarCache() {
+        if (schemaJarCache == null) {
+            schemaJarCache = new SchemaJarCache(new File(getDir("dex", Context.MODE_PRIVATE),
+                    SchemaJarCache.CACHE_DIRECTORY), SchemaJarCache.DEFAULT_MAX_SCHEMAS);
+        }
+        return schemaJarCache;
+    }
+
+    /**
+     * @return Record of the schema jars already verified against the signing certificate
+     */
+    public synchronized VerifiedJarCache getVerifiedJarCache() {
+        if (verifiedJarCache == null) {
+            verifiedJarCache = new VerifiedJarCache(getDir("dex", Context.MODE_PRIVATE),
+                    getDir("verified_dex", Context.MODE_PRIVATE), getClass().getClassLoader(),
+                    new VerifiedJarCache.CertificateSource() {
+                        @Override
+                        public Certificate getCertificate(String certificateUrl) {
+                            // as fetched from the URL when a jar was last verified in full
+                            return VerifiedJarCache.readCertificate(new File(getDir(SECURE_LOADER_CERT_DIR,
+                                    Context.MODE_PRIVATE), MODELS_BASE_PACKAGE + ".pem"));
+                        }
+                    }, VerifiedJarCache.DEFAULT_MAX_AGE_MS);
+        }
+        return verifiedJarCache;
+    }
+
+    /**
+     * @return Classes of the current schema and of earlier schemas records were entered with
+     */
+    public synchronized SchemaRegistry getSchemaRegistry() {
+        if (schemaRegistry == null) {
+            schemaRegistry = new SchemaRegistry(new SchemaRegistry.SchemaSource() {
+                @Override
+                public SchemaClassLoader openSchema(String schemaVersion) {
+                    File jarFile = getSchemaJarCache().getJar(schemaVersion);
+                    if (jarFile == null && schemaVersion.equals(getString(R.string.backup_jar_schema_version))) {
+                        jarFile = new File(getDir("dex", Context.MODE_PRIVATE), BACKUP_JAR_NAME);
+                    }
+                    if (jarFile == null || !jarFile.exists()) {
+                        Log.w(LOG_LABEL, "No jar for schema " + schemaVersion);
+                        return null;
+                    }
+                    return openSchemaJar(jarFile, null);
+                }
+
+                @Override
+                public void schemaUnloaded(String schemaVersion) {
+                    // drop the type adapters built for its classes
+                    DriverSchemaSerializer.clearCache();
+                }
+            }, RecordFormSectionManager.MODEL_PACKAGE, SchemaJarCache.DEFAULT_MAX_SCHEMAS);
+        }
+        return schemaRegistry;
+    }
+
+    /**
+     * Remove the updated schema jar downloaded before jars were cached, once no longer in use.
+     */
+    public void deleteUpdatedSchemaJar() {
+        File updatedJarPath = new File(getDir("dex", Context.MODE_PRIVATE), UPDATED_JAR_NAME);
+        if (updatedJarPath.exists() && !updatedJarPath.delete()) {
+            Log.w(LOG_LABEL, "Could not delete old updated schema jar");
+        }
+    }
+
+    /**
+     * Helper to check if an updated schema model jar file, downloaded before jars were cached,
+     * is available locally.
      *
      * @return True if updated jar available
      */
@@ -338,24 +730,42 @@ public class DriverApp extends Application {
     }
 
     /**
-     * Load a model schema jar file. Should only be called on app start or after all records are cleared;
-     * otherwise, old schema class references in memory may interfere with  the new ones.
+     * Load a model schema jar file, and make it the schema new records are entered with. Records
+     * already entered keep their schema, and are read with its classes from the schema registry.
+     * Should not be called while a record is being edited, as the form refers to the current schema.
      *
      * @param jarPath Relative path to the jar file containing the new models.
      * @param schemaVersion UUID of new schema, to be stored after successful class load
      * @return True on success
      */
     public boolean loadSchemaClasses(String jarPath, String schemaVersion) {
-        Log.d(LOG_LABEL, "loading schema classes...");
+        return loadSchemaClasses(jarPath, schemaVersion, null);
+    }
 
-        try {
-            File dexInternalStoragePath = new File(getDir("dex", Context.MODE_PRIVATE), jarPath);
+    /**
+     * Load a model schema jar file from the schema jar cache. Should not be called while a record
+     * is being edited, as for loadSchemaClasses.
+     *
+     * @param jarFile Jar file containing the new models
+     * @param schemaVersion UUID of new schema, to be stored after successful class load
+     * @return True on success
+     */
+    public boolean loadSchemaJar(File jarFile, String schemaVersion) {
+        return loadSchemaJar(jarFile, schemaVersion, null);
+    }
 
-            // if loading fallback model jar file from assets for the first time, it will need
-            // to be copied first out to the app data directory
+    /**
+     * @param timings Timings to record the phases of loading in, or null
+     */
+    private boolean loadSchemaClasses(String jarPath, String schemaVersion, StartupTimings timings) {
+        long phaseStarted = System.nanoTime();
+        File dexInternalStoragePath = new File(getDir("dex", Context.MODE_PRIVATE), jarPath);
 
+        // if loading fallback model jar file from assets for the first time, it will need
+        // to be copied first out to the app data directory
+        if (!dexInternalStoragePath.exists()) {
             boolean copiedOk = false;
-            if (!dexInternalStoragePath.exists()) {
+            try {
                 InputStream inputStream = getAssets().open(jarPath);
                 OutputStream outputStream = new FileOutputStream(dexInternalStoragePath);
                 try {
@@ -372,64 +782,172 @@ public class DriverApp extends Application {
                 if (!copiedOk) {
                     return false;
                 }
+            } catch (IOException e) {
+                Log.e(LOG_LABEL, "Error copying jar file out to data directory");
+                e.printStackTrace();
+                return false;
+            }
+            if (timings != null) {
+                timings.phase(StartupTimings.PHASE_SCHEMA_COPY, phaseStarted);
             }
+        }
 
-            schemaClassLoader = null;
-            String modelPackageName = RecordFormSectionManager.MODEL_PACKAGE;
-            SecureLoaderFactory secureLoaderFactory = new SecureLoaderFactory(this);
-            schemaClassLoader = secureLoaderFactory.createDexClassLoader(dexInternalStoragePath.getAbsolutePath(),
-                    null, getClass().getClassLoader(), packageNameCertMap);
+        return loadSchemaJar(dexInternalStoragePath, schemaVersion, timings);
+    }
 
-            Class newSchema = schemaClassLoader.loadClass(modelPackageName + "DriverSchema");
+    /**
+     * @param timings Timings to record the phases of loading in, or null
+     */
+    private boolean loadSchemaJar(File jarFile, String schemaVersion, StartupTimings timings) {
+        Log.d(LOG_LABEL, "loading schema classes...");
 
-            if (newSchema == null) {
-                // might get here if cert link not HTTPS, or is a redirect,
-                // or if cert does not match key used to sign model jar file
-                Log.e(LOG_LABEL, "Failed to load class! Is signing certificate available?");
+        try {
+            // the current schema stays in use until the new one has loaded
+            String modelPackageName = RecordFormSectionManager.MODEL_PACKAGE;
+
+            // switching back to a schema still loaded for its records needs no verification
+            SchemaRegistry registry = getSchemaRegistry();
+            SchemaClassLoader newLoader;
+            if (registry.isLoaded(schemaVersion)) {
+                Log.d(LOG_LABEL, "Schema " + schemaVersion + " already loaded");
+                newLoader = registry.getSchema(schemaVersion).classLoader;
+            } else {
+                newLoader = openSchemaJar(jarFile, timings);
+            }
+            if (newLoader == null) {
                 return false;
             }
+            long phaseStarted = System.nanoTime();
+
+            Class newSchema = newLoader.loadClass(modelPackageName + SchemaRegistry.DRIVER_SCHEMA_CLASS);
 
             // recursively reload all the child classes from DriverSchema and its fields
-            recursiveClassLoad(newSchema);
+            recursiveClassLoad(newLoader, newSchema);
             Field[] fields = newSchema.getDeclaredFields();
             for (Field field: fields) {
                 String fieldClassName = modelPackageName + StringUtils.capitalize(field.getName());
                 Log.d(LOG_LABEL, "Found section " + fieldClassName + " for field " + field.getName());
                 Log.d(LOG_LABEL, "Dynamically loading section " + fieldClassName);
-                Class sectionClass = schemaClassLoader.loadClass(fieldClassName);
-                recursiveClassLoad(sectionClass);
+                Class sectionClass = newLoader.loadClass(fieldClassName);
+                recursiveClassLoad(newLoader, sectionClass);
             }
 
             Log.d(LOG_LABEL, "Done dynamically loading schema classes");
+            if (timings != null) {
+                timings.phase(StartupTimings.PHASE_SCHEMA_CLASSES, phaseStarted);
+            }
+
+            phaseStarted = System.nanoTime();
+            SchemaIndex newIndex = loadSchemaIndex(newSchema, schemaVersion);
+            if (timings != null) {
+                timings.phase(StartupTimings.PHASE_SCHEMA_INDEX, phaseStarted);
+            }
+
+            currentSchema = new CurrentSchema(newLoader, newIndex);
+            // drop serializers holding on to the old schema classes
+            DriverSchemaSerializer.clearCache();
+            registry.setCurrent(schemaVersion, newLoader, newSchema);
             setCurrentSchemaVersion(schemaVersion);
             return true;
 
         } catch (ClassNotFoundException e) {
             Log.e(LOG_LABEL, "Could not find class");
             e.printStackTrace();
-        } catch (IOException e) {
-            Log.e(LOG_LABEL, "Error copying jar file out to data directory");
-            e.printStackTrace();
         }
 
         return false;
     }
 
+    /**
+     * Open a model schema jar file, verifying it against the signing certificate unless it has
+     * been verified before and has not changed since.
+     *
+     * @param jarFile Jar file containing the models
+     * @param timings Timings to record the phases of loading in, or null
+     * @return Loader for the classes of the jar, or null if it could not be opened or verified
+     */
+    private SchemaClassLoader openSchemaJar(File jarFile, StartupTimings timings) {
+        String driverSchemaName = RecordFormSectionManager.MODEL_PACKAGE + SchemaRegistry.DRIVER_SCHEMA_CLASS;
+        long phaseStarted = System.nanoTime();
+
+        // skip verifying the jar again if it has not changed since it was last verified
+        VerifiedJarCache verifiedJarCache = getVerifiedJarCache();
+        SchemaClassLoader verifiedLoader = verifiedJarCache.openVerified(jarFile, SCHEMA_CERT_URL);
+        if (verifiedLoader != null) {
+            try {
+                verifiedLoader.loadClass(driverSchemaName);
+                if (timings != null) {
+                    timings.phase(StartupTimings.PHASE_SCHEMA_REUSE, phaseStarted);
+                }
+                return verifiedLoader;
+            } catch (ClassNotFoundException e) {
+                Log.w(LOG_LABEL, "Could not load from verified jar; verifying it again");
+                verifiedJarCache.forget(jarFile);
+            }
+        }
+
+        phaseStarted = System.nanoTime();
+        SecureLoaderFactory secureLoaderFactory = new SecureLoaderFactory(this);
+        SchemaClassLoader secureLoader = new SchemaClassLoader.Secure(secureLoaderFactory.createDexClassLoader(
+                jarFile.getAbsolutePath(), null, getClass().getClassLoader(), packageNameCertMap));
+
+        try {
+            if (secureLoader.loadClass(driverSchemaName) == null) {
+                // might get here if cert link not HTTPS, or is a redirect,
+                // or if cert does not match key used to sign model jar file
+                Log.e(LOG_LABEL, "Failed to load class! Is signing certificate available?");
+                return null;
+            }
+        } catch (ClassNotFoundException e) {
+            Log.e(LOG_LABEL, "Could not find class");
+            e.printStackTrace();
+            return null;
+        }
+
+        verifiedJarCache.recordVerified(jarFile, SCHEMA_CERT_URL);
+        if (timings != null) {
+            timings.phase(StartupTimings.PHASE_SCHEMA_VERIFY, phaseStarted);
+        }
+        return secureLoader;
+    }
+
+    /**
+     * Read back the index of the schema, or build and write it out if this schema has not been
+     * loaded before.
+     *
+     * @param driverSchema Top-level schema class
+     * @param schemaVersion UUID of the schema
+     * @return Index of the schema
+     */
+    private SchemaIndex loadSchemaIndex(Class driverSchema, String schemaVersion) {
+        File indexDirectory = new File(getFilesDir(), SchemaIndex.INDEX_DIRECTORY);
+        SchemaIndex index = SchemaIndex.load(indexDirectory, schemaVersion);
+        if (index == null) {
+            // schema classes are all defined by the loader the secure loader verified the jar with
+            index = SchemaIndex.build(schemaVersion, driverSchema, driverSchema.getClassLoader());
+            if (!index.save(indexDirectory)) {
+                Log.w(LOG_LABEL, "Could not write out schema index; will rebuild it next time");
+            }
+        }
+        return index;
+    }
+
     /**
      * Dynamically load inner classes on sections
      *
+     * @param classLoader Loader of the schema the class belongs to
      * @param clazz Already-loaded class to examine for inner classes
      */
-    private void recursiveClassLoad(Class clazz) {
+    private void recursiveClassLoad(SchemaClassLoader classLoader, Class clazz) {
         try {
-            enumClassLoad(clazz);
+            enumClassLoad(classLoader, clazz);
             Class[] hasClasses = clazz.getDeclaredClasses();
             if (hasClasses != null && hasClasses.length > 0) {
                 for (Class child : hasClasses) {
                     Log.d(LOG_LABEL, "Going to dynamically load class: " + child.getName());
-                    child = schemaClassLoader.loadClass(child.getName());
+                    child = classLoader.loadClass(child.getName());
                     // recurse
-                    recursiveClassLoad(child);
+                    recursiveClassLoad(classLoader, child);
                 }
             }
         } catch (ClassNotFoundException e) {
@@ -440,9 +958,10 @@ public class DriverApp extends Application {
 
     /**
      * Find and load enums that are in separate classes (not inner classes)
+     * @param classLoader Loader of the schema the class belongs to
      * @param clazz Section class to introspect for enum class references
      */
-    private void enumClassLoad(Class clazz) {
+    private void enumClassLoad(SchemaClassLoader classLoader, Class clazz) {
         Field[] fields = clazz.getDeclaredFields();
         for (Field field : fields) {
             Class fieldType = field.getType();
@@ -456,7 +975,7 @@ public class DriverApp extends Application {
                                     StringUtils.capitalize(field.getName()) + "Enum";
                             Log.d(LOG_LABEL, "Going to dynamically load class: " + enumClassName);
                             try {
-                                schemaClassLoader.loadClass(enumClassName);
+                                classLoader.loadClass(enumClassName);
                             } catch (ClassNotFoundException e) {
                                 Log.e(LOG_LABEL, "Could not find enum class to dynamically load for " + field.getName());
                                 e.printStackTrace();
@@ -45,4 +45,9 @@ public class DriverSchemaUpload {
     @SerializedName("modified")
     public String modifiedAt;
 
+    // lets the server recognize a record sent again; written in the body only in batches,
+    // and sent as a header instead when posted on its own
+    @SerializedName("idempotency_key")
+    public String idempotencyKey;
+
 }
@@ -3,6 +3,7 @@ package org.worldbank.transport.driver.staticmodels;
 import android.util.Log;
 
 import org.worldbank.transport.driver.datastore.DriverSchemaSerializer;
+import org.worldbank.transport.driver.datastore.RecordCodec;
 import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
 
 /**
@@ -73,10 +74,11 @@ public class Record {
             return false;
         }
 
-        String serializedEditObject = DriverSchemaSerializer.serializeRecordForStorage(editObject);
+        RecordCodec codec = DriverSchemaSerializer.getStorageCodec();
+        byte[] encodedEditObject = DriverSchemaSerializer.encodeRecordForStorage(editObject, codec);
 
-        if (serializedEditObject == null) {
-            Log.e(LOG_LABEL, "Failed to serialize record to JSON");
+        if (encodedEditObject == null) {
+            Log.e(LOG_LABEL, "Failed to encode record for storage");
             return false;
         }
 
@@ -84,7 +86,8 @@ public class Record {
 
         if (editObjectDatabaseId > -1) {
             // update an existing record
-            int affected = databaseManager.updateRecord(serializedEditObject, editConstants, editObjectDatabaseId);
+            int affected = databaseManager.updateRecord(encodedEditObject, codec.getId(), editConstants,
+                    editObjectDatabaseId);
             if (affected == 1) {
                 return true;
             } else {
@@ -92,7 +95,8 @@ public class Record {
             }
         } else {
             // add new record
-            long newId = databaseManager.addRecord(DriverApp.getCurrentSchema(), serializedEditObject, editConstants);
+            long newId = databaseManager.addRecord(DriverApp.getCurrentSchema(), encodedEditObject, codec.getId(),
+                    editConstants);
             if (newId > -1) {
                 editObjectDatabaseId = newId;
                 return true;
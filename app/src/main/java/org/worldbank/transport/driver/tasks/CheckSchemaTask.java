@@ -7,16 +7,13 @@ import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.worldbank.transport.driver.R;
+import org.worldbank.transport.driver.network.DriverHttpClient;
 import org.worldbank.transport.driver.staticmodels.DriverApp;
 import org.worldbank.transport.driver.staticmodels.DriverAppContext;
 import org.worldbank.transport.driver.staticmodels.DriverUserInfo;
 import org.worldbank.transport.driver.utilities.CheckSchemaUrlBuilder;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -101,13 +98,15 @@ public class CheckSchemaTask extends AsyncTask<DriverUserInfo, String, String> {
             String recordTypeLabel = context.getString(R.string.record_type_label);
             URL url = currentSchemaUrl.currentSchemaUrl(serverUrl, recordTypeLabel);
 
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+            DriverHttpClient httpClient = DriverHttpClient.getInstance();
+            HttpURLConnection urlConnection = httpClient.openConnection(url);
             urlConnection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
             urlConnection.setRequestProperty("Authorization", "Token " + token);
 
             // if get a 403 back, tell activity to go login again (shouldn't happen)
             if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_FORBIDDEN) {
                 Log.w(LOG_LABEL, "User token must be invalid.");
+                httpClient.release(urlConnection);
                 CheckSchemaCallbackListener caller = listener.get();
                 if (caller != null) {
                     caller.haveInvalidCredentials();
@@ -118,17 +117,7 @@ public class CheckSchemaTask extends AsyncTask<DriverUserInfo, String, String> {
                 return null;
             }
 
-            InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-            BufferedReader ir = new BufferedReader(new InputStreamReader(in));
-
-            StringBuilder stringBuilder = new StringBuilder();
-            String line;
-            while ((line = ir.readLine()) != null) {
-                stringBuilder.append(line);
-            }
-            ir.close();
-            in.close();
-            String responseStr = stringBuilder.toString();
+            String responseStr = httpClient.readResponse(urlConnection);
 
             // parse the JSON to find the schema UUID
             JSONObject json = new JSONObject(responseStr);
@@ -16,18 +16,15 @@ import com.google.gson.GsonBuilder;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.worldbank.transport.driver.R;
+import org.worldbank.transport.driver.network.DriverHttpClient;
 import org.worldbank.transport.driver.staticmodels.DriverApp;
 import org.worldbank.transport.driver.staticmodels.DriverAppContext;
 import org.worldbank.transport.driver.staticmodels.DriverUserAuth;
 import org.worldbank.transport.driver.staticmodels.DriverUserInfo;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.lang.ref.WeakReference;
@@ -116,6 +113,7 @@ public class LoginTask extends AsyncTask<String, String, DriverUserInfo> {
             return null;
         }
 
+        DriverHttpClient httpClient = DriverHttpClient.getInstance();
         HttpURLConnection urlConnection = null;
 
         // will contain fetched credentials if login successful
@@ -128,14 +126,14 @@ public class LoginTask extends AsyncTask<String, String, DriverUserInfo> {
                 // username/password login
                 URL tokenUrl = mLoginUrls.userTokenUrl(serverUrl, false);
                 Log.d(LOG_LABEL, "Going to attempt username/password login with token endpoint: " + tokenUrl);
-                urlConnection = (HttpURLConnection) tokenUrl.openConnection();
+                urlConnection = httpClient.openConnection(tokenUrl);
                 authJson.put("username", mUsername);
                 authJson.put("password", mPassword);
             } else {
                 // SSO login
                 URL tokenUrl = mLoginUrls.userTokenUrl(serverUrl, true);
                 Log.d(LOG_LABEL, "Going to attempt SSO login with token endpoint: " + tokenUrl);
-                urlConnection = (HttpURLConnection) tokenUrl.openConnection();
+                urlConnection = httpClient.openConnection(tokenUrl);
                 authJson.put("token", mSsoToken);
             }
 
@@ -165,21 +163,15 @@ public class LoginTask extends AsyncTask<String, String, DriverUserInfo> {
                 }
 
                 // bail now
-                urlConnection.disconnect();
+                httpClient.release(urlConnection);
+                urlConnection = null;
                 cancel(true);
                 return null;
             }
 
-            InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-            BufferedReader ir = new BufferedReader(new InputStreamReader(in));
-            StringBuilder stringBuilder = new StringBuilder();
-            String line;
-            while ((line = ir.readLine()) != null) {
-                stringBuilder.append(line);
-            }
-            ir.close();
-            in.close();
-            String responseStr = stringBuilder.toString();
+            // reading the whole response returns the connection to the pool, for the user info request
+            String responseStr = httpClient.readResponse(urlConnection);
+            urlConnection = null;
 
             Log.d(LOG_LABEL, "Token request response:");
             Log.d(LOG_LABEL, responseStr);
@@ -188,28 +180,19 @@ public class LoginTask extends AsyncTask<String, String, DriverUserInfo> {
             DriverUserAuth auth = gson.fromJson(responseStr, DriverUserAuth.class);
 
             if (auth.token != null && auth.token.length() > 0) {
-                // get user info, reusing some objects for the connection
-                urlConnection.disconnect();
-
+                // get user info
                 URL userInfoUrl = mLoginUrls.userInfoUrl(serverUrl, auth.user);
                 Log.d(LOG_LABEL, "Going to attempt fetching user info from endpoint: " + userInfoUrl);
 
-                urlConnection = (HttpURLConnection) userInfoUrl.openConnection();
+                urlConnection = httpClient.openConnection(userInfoUrl);
                 urlConnection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
                 urlConnection.setDoOutput(false);
                 urlConnection.setDoInput(true);
                 urlConnection.setRequestProperty("Authorization", "Token " + auth.token);
                 urlConnection.connect();
 
-                in = new BufferedInputStream(urlConnection.getInputStream());
-                ir = new BufferedReader(new InputStreamReader(in));
-                stringBuilder = new StringBuilder();
-                while ((line = ir.readLine()) != null) {
-                    stringBuilder.append(line);
-                }
-                ir.close();
-                in.close();
-                responseStr = stringBuilder.toString();
+                responseStr = httpClient.readResponse(urlConnection);
+                urlConnection = null;
 
                 Log.d(LOG_LABEL, "User info request response: " + responseStr);
                 userInfo = gson.fromJson(responseStr, DriverUserInfo.class);
@@ -241,8 +224,9 @@ public class LoginTask extends AsyncTask<String, String, DriverUserInfo> {
             publishProgress(context.getString(R.string.error_login_unknown));
             userInfo = null;
         } finally {
+            // connection not released after a failure
             if (urlConnection != null) {
-                urlConnection.disconnect();
+                httpClient.abort(urlConnection);
             }
         }
 
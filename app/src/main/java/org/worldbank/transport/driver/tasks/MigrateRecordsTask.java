@@ -0,0 +1,62 @@
+package org.worldbank.transport.driver.tasks;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.datastore.RecordDatabaseMigrator;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Migrate existing records in the background after a database upgrade, so that app start
+ * is not held up by rewriting a large number of records.
+ */
+public class MigrateRecordsTask extends AsyncTask<RecordDatabaseManager, Integer, Integer> {
+
+    private static final String LOG_LABEL = "MigrateRecordsTask";
+
+    public interface MigrateRecordsListener {
+        void migrationProgress(int migratedRecords, int totalRecords);
+        void migrationFinished(boolean successful);
+    }
+
+    private final WeakReference<MigrateRecordsListener> listener;
+
+    public MigrateRecordsTask(MigrateRecordsListener listener) {
+        this.listener = new WeakReference<>(listener);
+    }
+
+    @Override
+    protected Integer doInBackground(RecordDatabaseManager... params) {
+        RecordDatabaseManager manager = params[0];
+        return manager.migratePendingData(new RecordDatabaseMigrator.MigrationProgressListener() {
+            @Override
+            public void migrationProgress(int migratedRows, int totalRows) {
+                publishProgress(migratedRows, totalRows);
+            }
+        });
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        MigrateRecordsListener caller = listener.get();
+        if (caller != null) {
+            caller.migrationProgress(values[0], values[1]);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Integer migrated) {
+        if (migrated < 0) {
+            Log.e(LOG_LABEL, "Record migration failed; will retry on next start");
+        }
+
+        MigrateRecordsListener caller = listener.get();
+        if (caller != null) {
+            caller.migrationFinished(migrated >= 0);
+        } else {
+            Log.w(LOG_LABEL, "Cannot notify of record migration result because listener has gone");
+        }
+    }
+}
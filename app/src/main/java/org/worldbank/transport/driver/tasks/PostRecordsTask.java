@@ -5,32 +5,43 @@ import android.database.Cursor;
 import android.os.AsyncTask;
 import android.util.Log;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 
-import org.jsonschema2pojo.media.SerializableMedia;
 import org.worldbank.transport.driver.R;
 import org.worldbank.transport.driver.datastore.DriverRecordContract;
 import org.worldbank.transport.driver.datastore.DriverSchemaSerializer;
-import org.worldbank.transport.driver.datastore.GsonSetDeserializer;
 import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.datastore.RecordUploadWriter;
+import org.worldbank.transport.driver.metrics.UploadMetrics;
+import org.worldbank.transport.driver.metrics.UploadMetricsStore;
+import org.worldbank.transport.driver.network.DriverHttpClient;
+import org.worldbank.transport.driver.schemas.SchemaRegistry;
 import org.worldbank.transport.driver.staticmodels.DriverApp;
 import org.worldbank.transport.driver.staticmodels.DriverAppContext;
 import org.worldbank.transport.driver.staticmodels.DriverSchemaUpload;
 import org.worldbank.transport.driver.staticmodels.DriverUploadGeom;
 import org.worldbank.transport.driver.staticmodels.DriverUserInfo;
+import org.worldbank.transport.driver.uploads.AdaptiveUploadPolicy;
+import org.worldbank.transport.driver.uploads.FixedUploadPolicy;
+import org.worldbank.transport.driver.uploads.MediaUploader;
+import org.worldbank.transport.driver.uploads.RecordBatchUpload;
+import org.worldbank.transport.driver.uploads.RecordUpload;
+import org.worldbank.transport.driver.uploads.RecordUploadEngine;
+import org.worldbank.transport.driver.uploads.RecordUploadJob;
+import org.worldbank.transport.driver.uploads.RecordUploadOptions;
+import org.worldbank.transport.driver.uploads.RecordUploadStatus;
+import org.worldbank.transport.driver.uploads.StoredRecordSource;
+import org.worldbank.transport.driver.uploads.UploadBackoff;
+import org.worldbank.transport.driver.uploads.UploadPlan;
+import org.worldbank.transport.driver.uploads.UploadPolicy;
 import org.worldbank.transport.driver.utilities.UploadRecordUrlBuilder;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.lang.ref.WeakReference;
-import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 /**
  * Upload records to server, then delete them from the local database.
@@ -38,12 +49,49 @@ import java.util.Set;
  * To upload a single record, send its ID into doInBackground. If no record ID is sent,
  * task will attempt to upload all records.
  *
+ * Records are uploaded several at a time by a RecordUploadEngine. Progress is published in the
+ * order records are read, and uploading stops on the first response rejecting the user's credentials.
+ * If the server has the batch record endpoint, records are sent in batches; otherwise each is sent
+ * on its own, as are the records of a batch the server turns away as not found. If the server has
+ * the media endpoint, photos are sent there first by a MediaUploader, in resumable chunks, and
+ * records refer to them instead of holding them.
+ *
+ * How many records are sent at once and in each batch is planned at the start by an UploadPolicy,
+ * which may adapt it to the network. The plan may also leave records with photos for a later
+ * upload, such as on an unmetered link; those records are not counted as failed.
+ *
+ * Each record is written with the classes of the schema it was entered with, to find its media;
+ * records whose schema cannot be opened are written with the current schema.
+ *
+ * Records that fail to upload are noted in the upload outbox, with a time to try them again from
+ * the UploadBackoff. A task made to upload only due records skips those still waiting; the
+ * UploadScheduler runs such tasks in the background.
+ *
+ * Each record is sent with its upload key, so the server can recognize a record sent again.
+ * A record the server accepts is acknowledged in the outbox straight away, and deleted with the
+ * next batch of deletes; records left acknowledged when a task stops early are deleted by the
+ * next task without being sent again.
+ *
+ * Each task that gets as far as sending records is measured as a sync session in the
+ * UploadMetricsStore, for the diagnostics screen.
+ *
  * Created by kathrynkillebrew on 1/28/16.
  */
 public class PostRecordsTask extends AsyncTask<Long, Integer, Integer> {
 
     public static final String LOG_LABEL = "PostRecordsTask";
 
+    // number of uploaded and acknowledged records to accumulate before deleting them from the
+    // database together; acknowledged records are not sent again if the task stops first
+    private static final int DELETE_BATCH_SIZE = 25;
+
+    // failures noted in the upload outbox
+    private static final String ERROR_UNREADABLE = "Could not read stored record";
+    private static final String ERROR_UPLOAD_FAILED = "Upload failed";
+
+    // days to remember media already uploaded, so the same photo in another record is not sent again
+    private static final int MEDIA_UPLOAD_MAX_AGE_DAYS = 30;
+
     public interface PostRecordsListener {
         void recordUploadFinished(int failed);
         void recordUploadCancelled(String errorMessage);
@@ -54,8 +102,20 @@ public class PostRecordsTask extends AsyncTask<Long, Integer, Integer> {
     public interface UploadRecordUrl {
         // Backend endpoints. Note that it is necessary to keep the trailing slash here.
         String RECORD_ENDPOINT = "api/records/";
+        String BATCH_RECORD_ENDPOINT = "api/records/batch/";
+        String MEDIA_ENDPOINT = "api/media/";
 
         URL recordUrl(String serverUrl);
+
+        /**
+         * @return Endpoint to upload records in batches, or null to upload them one at a time
+         */
+        URL batchRecordUrl(String serverUrl);
+
+        /**
+         * @return Endpoint to upload media files to on their own, or null to send them inline in records
+         */
+        URL mediaUrl(String serverUrl);
     }
 
     private String serverUrl;
@@ -64,16 +124,85 @@ public class PostRecordsTask extends AsyncTask<Long, Integer, Integer> {
     private final UploadRecordUrl uploadRecordUrl;
     private final DriverUserInfo userInfo;
     private final RecordDatabaseManager databaseManager;
+    private final UploadPolicy uploadPolicy;
+    private final SchemaRegistry schemaRegistry;
+    private final UploadBackoff backoff;
+    private final boolean dueOnly;
     private String errorMessage;
 
+    // decremented as records are uploaded successfully
+    private int failed;
+    private boolean notifiedInvalidCredentials = false;
+
+    // IDs of records uploaded, but not yet deleted from the database
+    private final ArrayList<Long> uploadedRecordIds = new ArrayList<>(DELETE_BATCH_SIZE);
+
+    // failed upload attempts of records sent but not yet reported on, by record ID
+    private final HashMap<Long, Integer> attemptsByRecord = new HashMap<>();
+
+    // writers of the records of each schema, by schema version; records may be entered with earlier schemas
+    private final HashMap<String, RecordUploadWriter> uploadWriters = new HashMap<>();
+
+    // measurements of this sync session; set once records are being sent
+    private UploadMetrics metrics;
+
+    /**
+     * Optional settings for a task; each has a default suited to a task the user started.
+     */
+    public static class Options {
+        private UploadBackoff backoff = UploadBackoff.DEFAULT;
+        private boolean dueOnly = false;
+        private UploadPolicy uploadPolicy = new FixedUploadPolicy(UploadPlan.DEFAULT);
+        private SchemaRegistry schemaRegistry;
+
+        /**
+         * @param backoff Decides when records that fail to upload are tried again
+         */
+        public Options setBackoff(UploadBackoff backoff) {
+            this.backoff = backoff;
+            return this;
+        }
+
+        /**
+         * @param dueOnly If set, and no record ID is sent, upload only the records due to be tried
+         */
+        public Options setDueOnly(boolean dueOnly) {
+            this.dueOnly = dueOnly;
+            return this;
+        }
+
+        /**
+         * @param uploadPolicy Decides how many records to send at once, and whether to send media
+         */
+        public Options setUploadPolicy(UploadPolicy uploadPolicy) {
+            this.uploadPolicy = uploadPolicy;
+            return this;
+        }
+
+        /**
+         * @param schemaRegistry Classes of the schemas records were entered with; if not set, the app's
+         */
+        public Options setSchemaRegistry(SchemaRegistry schemaRegistry) {
+            this.schemaRegistry = schemaRegistry;
+            return this;
+        }
+    }
+
     public PostRecordsTask(PostRecordsListener listener, DriverUserInfo userInfo) {
-        this(listener, userInfo, new UploadRecordUrlBuilder(), DriverApp.getDatabaseManager());
+        // the user asked to upload now, so media is sent whatever the network
+        this(listener, userInfo, new UploadRecordUrlBuilder(), DriverApp.getDatabaseManager(),
+                new Options().setUploadPolicy(new AdaptiveUploadPolicy(DriverApp.getConnectivityProvider(), false)));
     }
 
-     // Invoke this constructor directly in test.
+    // Invoke this constructor directly in test.
     public PostRecordsTask(PostRecordsListener listener, DriverUserInfo userInfo,
-                           UploadRecordUrl uploadRecordUrl, RecordDatabaseManager databaseManager) {
+                           UploadRecordUrl uploadRecordUrl, RecordDatabaseManager databaseManager,
+                           Options options) {
 
+        this.uploadPolicy = options.uploadPolicy;
+        this.schemaRegistry = options.schemaRegistry;
+        this.backoff = options.backoff;
+        this.dueOnly = options.dueOnly;
         this.listener = new WeakReference<>(listener);
         this.userInfo = userInfo;
         this.uploadRecordUrl = uploadRecordUrl;
@@ -84,17 +213,28 @@ public class PostRecordsTask extends AsyncTask<Long, Integer, Integer> {
     @Override
     protected Integer doInBackground(Long... params) {
 
+        // clear out records accepted by the server, but not deleted before the last task stopped
+        int acknowledged = databaseManager.deleteAcknowledgedRecords();
+        if (acknowledged > 0) {
+            Log.d(LOG_LABEL, "Deleted " + acknowledged + " records uploaded before");
+        }
+
         Cursor cursor;
-        if (params.length == 0) {
+        if (params.length == 0 && dueOnly) {
+            Log.d(LOG_LABEL, "Going to upload records due to be tried");
+            cursor = databaseManager.readDueUploadableRecords(backoff.now());
+            failed = cursor.getCount();
+        } else if (params.length == 0) {
             Log.d(LOG_LABEL, "Going to upload all records");
-            cursor = databaseManager.readAllRecords();
+            // records without coordinates are not read, but still count as failed
+            cursor = databaseManager.readUploadableRecords();
+            failed = cursor.getCount() + (int) databaseManager.countUnuploadableRecords();
         } else {
             Log.d(LOG_LABEL, "Going to upload single record with ID " + params[0]);
             cursor = databaseManager.getRecordByIdCursor(params[0]);
+            failed = cursor.getCount();
         }
 
-        int failed = cursor.getCount(); // decrement failure count as records are uploaded successfully
-
         if (!DriverApp.getIsNetworkAvailable()) {
             // no network available. don't bother logging in
             errorMessage = context.getString(R.string.error_no_network);
@@ -131,6 +271,12 @@ public class PostRecordsTask extends AsyncTask<Long, Integer, Integer> {
         Log.d(LOG_LABEL, "Going to upload " + cursor.getCount() + " records...");
 
         if (!cursor.moveToFirst()) {
+            cursor.close();
+            if (failed > 0) {
+                Log.w(LOG_LABEL, "No records with coordinates to upload");
+                return failed;
+            }
+
             Log.w(LOG_LABEL, "No records in cursor to upload!");
             errorMessage = context.getString(R.string.records_nothing_to_upload);
             cancel(true);
@@ -141,6 +287,7 @@ public class PostRecordsTask extends AsyncTask<Long, Integer, Integer> {
             int idCol = cursor.getColumnIndexOrThrow(DriverRecordContract.RecordEntry._ID);
             int schemaCol = cursor.getColumnIndexOrThrow(DriverRecordContract.RecordEntry.COLUMN_SCHEMA_VERSION);
             int dataCol = cursor.getColumnIndexOrThrow(DriverRecordContract.RecordEntry.COLUMN_DATA);
+            int codecCol = cursor.getColumnIndexOrThrow(DriverRecordContract.RecordPayloadEntry.COLUMN_CODEC);
             int weatherCol = cursor.getColumnIndexOrThrow(DriverRecordContract.RecordEntry.COLUMN_WEATHER);
             int lightCol = cursor.getColumnIndexOrThrow(DriverRecordContract.RecordEntry.COLUMN_LIGHT);
             int colOccurredFrom = cursor.getColumnIndexOrThrow(DriverRecordContract.RecordEntry.COLUMN_OCCURRED_FROM);
@@ -149,16 +296,53 @@ public class PostRecordsTask extends AsyncTask<Long, Integer, Integer> {
             int colLon = cursor.getColumnIndexOrThrow(DriverRecordContract.RecordEntry.COLUMN_LONGITUDE);
             int colEnteredAt = cursor.getColumnIndexOrThrow(DriverRecordContract.RecordEntry.COLUMN_ENTERED_AT);
             int colUpdatedAt = cursor.getColumnIndexOrThrow(DriverRecordContract.RecordEntry.COLUMN_UPDATED_AT);
+            int colAttempts = cursor.getColumnIndexOrThrow(DriverRecordContract.UploadOutboxEntry.COLUMN_ATTEMPTS);
+            int colUploadKey = cursor.getColumnIndexOrThrow(DriverRecordContract.RecordEntry.COLUMN_UPLOAD_KEY);
+
+            UploadPlan plan = uploadPolicy.plan();
+            Log.d(LOG_LABEL, "Uploading with " + plan);
+            int deferred = 0;
+
+            URL uploadUrl = uploadRecordUrl.recordUrl(serverUrl);
+
+            // uploads share kept-alive connections; count how many had to be opened
+            DriverHttpClient httpClient = DriverHttpClient.getInstance();
+            DriverHttpClient.Session httpSession = httpClient.startSession();
+            metrics = UploadMetricsStore.getInstance().startSession();
+
+            // send records in batches, if the server accepts them; checked once per server
+            URL batchUrl = uploadRecordUrl.batchRecordUrl(serverUrl);
+            boolean useBatches = cursor.getCount() > 1 && plan.batchSize > 1 &&
+                    RecordBatchUpload.isSupported(httpClient, batchUrl, token);
+            RecordBatchUpload batch = null;
+
+            // send photos on their own, if the server accepts them; otherwise inline in records
+            URL mediaUrl = uploadRecordUrl.mediaUrl(serverUrl);
+            MediaUploader mediaUploader = null;
+            if (plan.sendMedia && mediaUrl != null && httpClient.hasEndpoint(mediaUrl, token)) {
+                mediaUploader = new MediaUploader(mediaUrl, token, httpClient, databaseManager);
+                databaseManager.pruneMediaUploads(MEDIA_UPLOAD_MAX_AGE_DAYS);
+            }
 
-            do {
-                int recordId = cursor.getInt(idCol);
-                Log.d(LOG_LABEL, "Reading record to upload: " + recordId);
+            RecordUploadOptions uploadOptions = new RecordUploadOptions(uploadUrl, token, httpClient)
+                    .setBatchUrl(batchUrl)
+                    .setMediaUploader(mediaUploader)
+                    .setMetrics(metrics)
+                    .setRecordSource(new DatabaseRecordSource());
+
+            // several requests are made at once; results come back here in cursor order
+            RecordUploadEngine uploadEngine = new RecordUploadEngine(plan.workers, new UploadResultHandler());
+            try {
+                do {
+                    if (isCancelled()) {
+                        uploadEngine.stop();
+                        break;
+                    }
+
+                    long recordId = cursor.getLong(idCol);
+                    Log.d(LOG_LABEL, "Reading record to upload: " + recordId);
 
-                // this try block is for attempting to read/upload a single record;
-                // it will continue to the next record in the loop on failure
-                try {
                     String schemaVersion = cursor.getString(schemaCol);
-                    String data = cursor.getString(dataCol);
                     String weather = cursor.getString(weatherCol);
                     String light = cursor.getString(lightCol);
                     String occurredFrom = cursor.getString(colOccurredFrom);
@@ -167,6 +351,7 @@ public class PostRecordsTask extends AsyncTask<Long, Integer, Integer> {
                     Double longitude = cursor.getDouble(colLon);
                     String enteredAt = cursor.getString(colEnteredAt);
                     String updatedAt = cursor.getString(colUpdatedAt);
+                    int attempts = cursor.getInt(colAttempts);
 
                     // user allowed to save record without a location, in case they cannot get a
                     // GPS fix somewhere, but it cannot be uploaded until set
@@ -175,8 +360,41 @@ public class PostRecordsTask extends AsyncTask<Long, Integer, Integer> {
                         continue;
                     }
 
+                    // media fields are found with the classes of the schema the record was entered with
+                    RecordUploadWriter uploadWriter = getUploadWriter(schemaVersion);
+                    if (uploadWriter == null) {
+                        // left for a later upload, once a schema has loaded; not a failure
+                        deferred++;
+                        failed--;
+                        continue;
+                    }
+
+                    // media files are found by reading the record once before it is read to be written
+                    List<String> mediaPaths = null;
+                    if (mediaUploader != null || !plan.sendMedia) {
+                        mediaPaths = findMediaPaths(uploadWriter, cursor, dataCol, codecCol, recordId);
+                        if (mediaPaths == null) {
+                            noteFailure(recordId, attempts, ERROR_UNREADABLE);
+                            continue;
+                        }
+                        if (!plan.sendMedia && !mediaPaths.isEmpty()) {
+                            // left for a later upload; not a failure
+                            deferred++;
+                            failed--;
+                            continue;
+                        }
+                    }
+
+                    // stored record is read from the cursor here, as workers cannot share it
+                    JsonReader recordReader = DriverSchemaSerializer.openRecordReader(cursor, dataCol, codecCol);
+                    if (recordReader == null) {
+                        Log.e(LOG_LABEL, "Could not read stored record " + recordId);
+                        noteFailure(recordId, attempts, ERROR_UNREADABLE);
+                        continue;
+                    }
+
+                    // record data is not set here; the upload writer copies it from the stored record
                     DriverSchemaUpload driverSchemaUpload = new DriverSchemaUpload();
-                    driverSchemaUpload.driverData = DriverSchemaSerializer.readRecord(data);
                     driverSchemaUpload.schemaVersion = schemaVersion;
                     driverSchemaUpload.driverWeather = weather;
                     driverSchemaUpload.driverLight = light;
@@ -185,63 +403,48 @@ public class PostRecordsTask extends AsyncTask<Long, Integer, Integer> {
                     driverSchemaUpload.occurredTo = occurredTo;
                     driverSchemaUpload.createdAt = enteredAt;
                     driverSchemaUpload.modifiedAt = updatedAt;
+                    driverSchemaUpload.idempotencyKey = cursor.getString(colUploadKey);
 
                     // now go upload it
-                    URL uploadUrl = uploadRecordUrl.recordUrl(serverUrl);
-                    HttpURLConnection urlConnection = (HttpURLConnection) uploadUrl.openConnection();
-
-                    urlConnection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-                    urlConnection.setRequestProperty("Authorization", "Token " + token);
-                    urlConnection.setDoOutput(true);
-                    urlConnection.setChunkedStreamingMode(0);
-                    OutputStream out = new BufferedOutputStream(urlConnection.getOutputStream());
-
-                    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
-
-                    GsonBuilder builder = new GsonBuilder();
-                    builder.registerTypeAdapter(SerializableMedia.class, new SerializableMedia.SerializableMediaByteArrayAdapter());
-                    builder.registerTypeAdapter(Set.class, new GsonSetDeserializer());
-                    Gson gson = builder.create();
-
-                    gson.toJson(driverSchemaUpload, DriverSchemaUpload.class, writer);
-
-                    writer.flush();
-                    writer.close();
-                    out.close();
-
-                    // check response
-                    int responseCode = urlConnection.getResponseCode();
-                    if (responseCode != 201) {
-                        Log.e(LOG_LABEL, "Failed to upload record. Got response: " +
-                                urlConnection.getResponseCode() + ": " + urlConnection.getResponseMessage());
-
-                        if (responseCode == 403) {
-                            // credentials must be bad. stop trying to upload records and log out.
-                            PostRecordsListener caller = listener.get();
-                            if (caller != null) {
-                                caller.haveInvalidCredentials();
-                            }
+                    attemptsByRecord.put(recordId, attempts);
+                    RecordUploadJob job;
+                    if (useBatches && batch == null) {
+                        // a batch turned away as not found marks the endpoint missing
+                        useBatches = RecordBatchUpload.isSupported(httpClient, batchUrl, token);
+                    }
+                    if (useBatches) {
+                        if (batch == null) {
+                            batch = new RecordBatchUpload(uploadOptions);
                         }
-
-                        // send general "server error" message
-                        errorMessage = context.getString(R.string.error_record_upload);
-                        urlConnection.disconnect();
-                    } else {
-                        Log.d(LOG_LABEL, "Record uploaded successfully!");
-
-                        // delete uploaded record from DB now
-                        if (!databaseManager.deleteRecord(recordId)) {
-                            Log.e(LOG_LABEL, "Failed to delete record " + recordId);
+                        batch.add(recordId, driverSchemaUpload, recordReader, mediaPaths, uploadWriter);
+                        if (batch.size() < plan.batchSize) {
+                            continue;
                         }
-                        failed--;
-                        publishProgress(1);
+                        job = batch;
+                        batch = null;
+                    } else {
+                        job = new RecordUpload(uploadOptions, recordId, driverSchemaUpload, recordReader,
+                                uploadWriter, mediaPaths);
+                    }
 
+                    if (!uploadEngine.submit(job)) {
+                        // stopped on bad credentials; remaining records stay in the database
+                        break;
                     }
-                } catch (IOException e) {
-                    Log.e(LOG_LABEL, "Error communicating with server to upload record");
-                    e.printStackTrace();
+                } while (cursor.moveToNext());
+
+                // send the last partial batch; discarded if uploading stopped
+                if (batch != null) {
+                    uploadEngine.submit(batch);
                 }
-            } while (cursor.moveToNext());
+            } finally {
+                uploadEngine.finish();
+                metrics.finish(httpSession);
+                if (deferred > 0) {
+                    Log.d(LOG_LABEL, "Left " + deferred + " records with media for a later upload");
+                }
+                Log.d(LOG_LABEL, "Upload session made " + httpSession);
+            }
             return failed;
 
         } catch (IllegalArgumentException e) {
@@ -249,16 +452,179 @@ public class PostRecordsTask extends AsyncTask<Long, Integer, Integer> {
             e.printStackTrace();
             errorMessage = context.getString(R.string.error_record_upload);
             cancel(true);
-        } catch (JsonParseException ex) {
-            Log.e(LOG_LABEL, "Failed to serialize record to JSON string");
-            ex.printStackTrace();
-            cancel(true);
         } finally {
             cursor.close();
+            // delete any remaining uploaded records, even if the task did not finish
+            deleteUploadedRecords();
         }
         return null;
     }
 
+    /**
+     * Get the writer that streams the stored JSON and media of records of a schema into their requests.
+     *
+     * @param schemaVersion Schema the records were entered with
+     * @return Writer for the records; if the classes of the schema are unavailable, one for the
+     *         current schema, which copies fields it does not know as they are; null if no
+     *         schema is loaded
+     */
+    private RecordUploadWriter getUploadWriter(String schemaVersion) {
+        RecordUploadWriter uploadWriter = uploadWriters.get(schemaVersion);
+        if (uploadWriter != null) {
+            return uploadWriter;
+        }
+
+        Class schemaClass;
+        if (schemaRegistry != null) {
+            schemaClass = schemaRegistry.getSchemaClass(schemaVersion);
+            // fields the current schema does not know are copied as they are
+            if (schemaClass == null && schemaRegistry.getCurrent() != null) {
+                schemaClass = schemaRegistry.getCurrent().driverSchema;
+            }
+        } else {
+            schemaClass = DriverApp.getSchemaClass(schemaVersion);
+            if (schemaClass == null) {
+                schemaClass = DriverApp.getSchemaClass();
+            }
+        }
+
+        if (schemaClass == null) {
+            // no schema loaded, so its media fields cannot be found; try again for the next record
+            Log.w(LOG_LABEL, "No schema classes to write records of schema " + schemaVersion + " with");
+            return null;
+        }
+
+        uploadWriter = new RecordUploadWriter(schemaClass);
+        uploadWriters.put(schemaVersion, uploadWriter);
+        return uploadWriter;
+    }
+
+    /**
+     * List the media files of the stored record at the cursor position.
+     *
+     * @return Paths of the record's media files, or null if the record could not be read
+     */
+    private static List<String> findMediaPaths(RecordUploadWriter uploadWriter, Cursor cursor,
+                                               int dataCol, int codecCol, long recordId) {
+        JsonReader reader = DriverSchemaSerializer.openRecordReader(cursor, dataCol, codecCol);
+        if (reader == null) {
+            Log.e(LOG_LABEL, "Could not read stored record " + recordId);
+            return null;
+        }
+
+        try {
+            return uploadWriter.findMediaPaths(reader);
+        } catch (IOException | IllegalStateException e) {
+            Log.e(LOG_LABEL, "Could not find media in stored record " + recordId);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reopens records from the database, for records to be sent again after a request was
+     * turned away for its form, such as for a compressed body or a missing batch endpoint.
+     */
+    private class DatabaseRecordSource implements StoredRecordSource {
+        @Override
+        public JsonReader reopen(long recordId) {
+            Cursor cursor = databaseManager.getRecordByIdCursor(recordId);
+            try {
+                if (!cursor.moveToFirst()) {
+                    return null;
+                }
+                return DriverSchemaSerializer.openRecordReader(cursor,
+                        cursor.getColumnIndexOrThrow(DriverRecordContract.RecordEntry.COLUMN_DATA),
+                        cursor.getColumnIndexOrThrow(DriverRecordContract.RecordPayloadEntry.COLUMN_CODEC));
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Receives upload results, in cursor order, on the task thread.
+     */
+    private class UploadResultHandler implements RecordUploadEngine.UploadResultListener {
+        @Override
+        public void recordUploadDone(long recordId, RecordUploadStatus status) {
+            Integer attempts = attemptsByRecord.remove(recordId);
+            metrics.recordResult(status);
+            switch (status) {
+                case UPLOADED:
+                    // acknowledge it now, so it is not sent again even if the task stops before
+                    // it is deleted; queue uploaded record for deletion from DB in batches.
+                    // Only an acknowledged record can wait to be deleted; otherwise a task that
+                    // stops first would send it again, so delete it now with those queued.
+                    uploadedRecordIds.add(recordId);
+                    if (!databaseManager.acknowledgeUpload(recordId) ||
+                            uploadedRecordIds.size() >= DELETE_BATCH_SIZE) {
+                        deleteUploadedRecords();
+                    }
+                    failed--;
+                    publishProgress(1);
+                    break;
+                case UNAUTHORIZED:
+                    // credentials must be bad. upload engine stops sending records; log out.
+                    if (!notifiedInvalidCredentials) {
+                        notifiedInvalidCredentials = true;
+                        PostRecordsListener caller = listener.get();
+                        if (caller != null) {
+                            caller.haveInvalidCredentials();
+                        }
+                    }
+                    errorMessage = context.getString(R.string.error_record_upload);
+                    break;
+                case FAILED:
+                    // send general "server error" message, and wait a while to try this one again
+                    errorMessage = context.getString(R.string.error_record_upload);
+                    noteFailure(recordId, attempts != null ? attempts : 0, ERROR_UPLOAD_FAILED);
+                    break;
+                case CANCELLED:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Note a failed attempt to upload a record in the outbox, with the time to try it again.
+     *
+     * @param recordId Database ID of the record
+     * @param previousAttempts Failed attempts before this one
+     * @param error Description of the failure
+     */
+    private void noteFailure(long recordId, int previousAttempts, String error) {
+        int attempts = previousAttempts + 1;
+        if (!databaseManager.recordUploadFailed(recordId, attempts, backoff.nextAttemptTime(attempts), error)) {
+            Log.e(LOG_LABEL, "Failed to note upload attempt " + attempts + " of record " + recordId);
+        }
+    }
+
+    /**
+     * Delete the records uploaded since the last call from the database, in a single transaction.
+     */
+    private void deleteUploadedRecords() {
+        if (uploadedRecordIds.isEmpty()) {
+            return;
+        }
+
+        long[] recordIds = new long[uploadedRecordIds.size()];
+        for (int i = 0; i < recordIds.length; i++) {
+            recordIds[i] = uploadedRecordIds.get(i);
+        }
+        uploadedRecordIds.clear();
+
+        long deleteStarted = System.nanoTime();
+        int deleted = databaseManager.deleteRecords(recordIds);
+        if (metrics != null) {
+            metrics.recordDelete(deleted, System.nanoTime() - deleteStarted);
+        }
+        if (deleted != recordIds.length) {
+            Log.e(LOG_LABEL, "Failed to delete uploaded records. Number deleted: " + deleted +
+                    " of " + recordIds.length);
+        }
+    }
+
     @Override
     protected void onProgressUpdate(Integer... values) {
         PostRecordsListener caller = listener.get();
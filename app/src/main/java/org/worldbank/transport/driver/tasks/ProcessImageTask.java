@@ -0,0 +1,60 @@
+package org.worldbank.transport.driver.tasks;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import org.worldbank.transport.driver.images.ImageProcessor;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+
+/**
+ * Downscale and recompress a photo in the background, after it is attached to a record.
+ * Send the path of the photo into doInBackground.
+ */
+public class ProcessImageTask extends AsyncTask<String, Void, String> {
+
+    private static final String LOG_LABEL = "ProcessImageTask";
+
+    public interface ProcessImageListener {
+        /**
+         * Called once the photo is processed.
+         *
+         * @return True if the processed photo replaced the original, which may then be deleted
+         */
+        boolean imageProcessed(String originalPath, String processedPath);
+    }
+
+    private final WeakReference<ProcessImageListener> listener;
+    private final ImageProcessor imageProcessor;
+    private String originalPath;
+
+    public ProcessImageTask(ProcessImageListener listener, ImageProcessor imageProcessor) {
+        this.listener = new WeakReference<>(listener);
+        this.imageProcessor = imageProcessor;
+    }
+
+    @Override
+    protected String doInBackground(String... params) {
+        originalPath = params[0];
+        return imageProcessor.process(originalPath);
+    }
+
+    @Override
+    protected void onPostExecute(String processedPath) {
+        if (processedPath == null || processedPath.equals(originalPath)) {
+            // keep the original
+            return;
+        }
+
+        ProcessImageListener caller = listener.get();
+        if (caller != null && caller.imageProcessed(originalPath, processedPath)) {
+            imageProcessor.deleteOriginal(originalPath);
+        } else {
+            Log.d(LOG_LABEL, "Processed photo not used; deleting it");
+            if (!new File(processedPath).delete()) {
+                Log.w(LOG_LABEL, "Could not delete unused processed photo " + processedPath);
+            }
+        }
+    }
+}
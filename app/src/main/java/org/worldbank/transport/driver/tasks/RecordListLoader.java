@@ -0,0 +1,175 @@
+package org.worldbank.transport.driver.tasks;
+
+import android.content.Context;
+import android.support.v4.content.AsyncTaskLoader;
+import android.util.Log;
+
+import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.datastore.RecordListItem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Load the record list in the background, a page at a time.
+ *
+ * Each result delivered holds all the pages loaded so far. Call loadNextPage as the user
+ * scrolls toward the end of the list, and reload when records may have changed.
+ */
+public class RecordListLoader extends AsyncTaskLoader<List<RecordListItem>> {
+
+    private static final String LOG_LABEL = "RecordListLoader";
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    private final RecordDatabaseManager databaseManager;
+    private final int pageSize;
+
+    // last result delivered; not modified once delivered, and only replaced on the UI thread
+    private RecordList records;
+
+    // true while a page requested by loadNextPage is loading; only used on the UI thread
+    private boolean loadingPage = false;
+
+    // counts the reloads requested on the UI thread; a list read before the last request is stale,
+    // so the next load starts over until a list read since has been delivered
+    private volatile int reloadCount = 0;
+
+    public RecordListLoader(Context context, RecordDatabaseManager databaseManager) {
+        this(context, databaseManager, DEFAULT_PAGE_SIZE);
+    }
+
+    public RecordListLoader(Context context, RecordDatabaseManager databaseManager, int pageSize) {
+        super(context);
+        this.databaseManager = databaseManager;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Load the page after those already loaded, unless there are no more records or a load is running.
+     */
+    public void loadNextPage() {
+        if (records == null || records.endOfList || loadingPage || isReloadPending()) {
+            return;
+        }
+
+        loadingPage = true;
+        forceLoad();
+    }
+
+    /**
+     * Re-read the list from the start, after records have been added, changed, or deleted.
+     * As many records are read as were loaded before, so the list keeps its scroll position.
+     */
+    public void reload() {
+        if (records == null) {
+            return; // first load has not finished yet
+        }
+
+        reloadCount++;
+        onContentChanged();
+    }
+
+    /**
+     * @return True if all records have been loaded
+     */
+    public boolean haveAllRecords() {
+        return records != null && records.endOfList;
+    }
+
+    /**
+     * @return True if the list last delivered was read before records last changed
+     */
+    private boolean isReloadPending() {
+        return records != null && records.reloadCount != reloadCount;
+    }
+
+    @Override
+    public List<RecordListItem> loadInBackground() {
+        RecordList loaded = records;
+        int reloads = reloadCount;
+        ArrayList<RecordListItem> result;
+        RecordListItem after = null;
+        int limit = pageSize;
+
+        // a load cancelled for a newer one delivers nothing, so the reload stays pending until
+        // a list read after it is delivered
+        if (loaded == null || loaded.reloadCount != reloads) {
+            result = new ArrayList<>();
+            if (loaded != null) {
+                limit = Math.max(pageSize, loaded.size());
+            }
+        } else {
+            result = new ArrayList<>(loaded);
+            if (!loaded.isEmpty()) {
+                after = loaded.get(loaded.size() - 1);
+            }
+        }
+
+        List<RecordListItem> page = databaseManager.readRecordListPage(after, limit);
+        result.addAll(page);
+        Log.d(LOG_LABEL, "Read " + page.size() + " records for list; have " + result.size());
+
+        // mark the end of the list with a short page
+        return new RecordList(result, reloads, page.size() < limit);
+    }
+
+    @Override
+    public void deliverResult(List<RecordListItem> data) {
+        if (isReset()) {
+            return;
+        }
+
+        loadingPage = false;
+        records = (RecordList) data;
+
+        if (isStarted()) {
+            super.deliverResult(data);
+        }
+    }
+
+    @Override
+    public void onCanceled(List<RecordListItem> data) {
+        loadingPage = false;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (records != null) {
+            deliverResult(records);
+        }
+
+        // a reload cancelled when stopped is started again
+        if (takeContentChanged() || records == null || isReloadPending()) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        records = null;
+        loadingPage = false;
+    }
+
+    /**
+     * Records loaded, with the number of reloads requested when they were read.
+     */
+    private static class RecordList extends ArrayList<RecordListItem> {
+        final int reloadCount;
+        // true if the list includes the last record in the database
+        final boolean endOfList;
+
+        RecordList(List<RecordListItem> records, int reloadCount, boolean endOfList) {
+            super(records);
+            this.reloadCount = reloadCount;
+            this.endOfList = endOfList;
+        }
+    }
+}
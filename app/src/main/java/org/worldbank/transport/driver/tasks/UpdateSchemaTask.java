@@ -5,18 +5,16 @@ import android.os.AsyncTask;
 import android.util.Log;
 
 
-import org.apache.commons.io.IOUtils;
 import org.worldbank.transport.driver.R;
+import org.worldbank.transport.driver.network.DriverHttpClient;
+import org.worldbank.transport.driver.schemas.SchemaJarCache;
 import org.worldbank.transport.driver.staticmodels.DriverApp;
 import org.worldbank.transport.driver.staticmodels.DriverAppContext;
 import org.worldbank.transport.driver.staticmodels.DriverUserInfo;
 import org.worldbank.transport.driver.utilities.UpdateSchemaUrlBuilder;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -25,6 +23,10 @@ import java.util.UUID;
 /**
  * Background task for downloading a jar file with updated models for a schema and loading it.
  *
+ * Jars are kept in the schema jar cache, which revalidates a cached jar with the server instead
+ * of downloading it again, and resumes interrupted downloads. If the network is not available,
+ * a cached jar for the schema is loaded without checking with the server.
+ *
  * Created by kathrynkillebrew on 2/15/16.
  */
 public class UpdateSchemaTask extends AsyncTask<String, String, String> {
@@ -71,14 +73,6 @@ public class UpdateSchemaTask extends AsyncTask<String, String, String> {
     @SuppressWarnings("ResultOfMethodCallIgnored")
     @Override
     protected String doInBackground(String... params) {
-        if(!DriverApp.getIsNetworkAvailable()) {
-            // no network available. don't bother logging in
-            publishProgress(context.getString(R.string.error_no_network));
-            Log.d(LOG_LABEL, "No network");
-            cancel(true);
-            return null;
-        }
-
         if (userInfo == null) {
             publishProgress(context.getString(R.string.error_schema_update));
             Log.e(LOG_LABEL, "missing user info!");
@@ -108,15 +102,31 @@ public class UpdateSchemaTask extends AsyncTask<String, String, String> {
             return null;
         }
 
+        DriverApp driverApp = (DriverApp) DriverApp.getContext();
+        SchemaJarCache jarCache = driverApp.getSchemaJarCache();
+
+        if(!DriverApp.getIsNetworkAvailable()) {
+            // switch to a schema used before without the network, if its jar is still cached
+            File cachedJar = jarCache.getJar(recordSchemaUuid);
+            if (cachedJar != null) {
+                Log.d(LOG_LABEL, "No network; using cached jar for schema " + recordSchemaUuid);
+                return loadJar(driverApp, jarCache, cachedJar, recordSchemaUuid);
+            }
+
+            // no network available. don't bother logging in
+            publishProgress(context.getString(R.string.error_no_network));
+            Log.d(LOG_LABEL, "No network");
+            cancel(true);
+            return null;
+        }
+
         try {
             URL url = schemaUrl.schemaUrl(serverUrl, recordSchemaUuid);
-
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-            urlConnection.setRequestProperty("Authorization", "Token " + token);
+            SchemaJarCache.Download download = jarCache.download(DriverHttpClient.getInstance(), url, token,
+                    recordSchemaUuid);
 
             // if get a 403 back, tell activity to go login again (shouldn't happen)
-            if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_FORBIDDEN) {
+            if (download.responseCode == HttpURLConnection.HTTP_FORBIDDEN) {
                 Log.w(LOG_LABEL, "User token must be invalid.");
                 UpdateSchemaCallbackListener caller = listener.get();
                 if (caller != null) {
@@ -129,7 +139,7 @@ public class UpdateSchemaTask extends AsyncTask<String, String, String> {
             }
 
             // if get a 201 back, jar doesn't exist just yet (unlikely to happen)
-            if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_CREATED) {
+            if (download.responseCode == HttpURLConnection.HTTP_CREATED) {
                 Log.d(LOG_LABEL, "Updated model jar is not ready; it is now being created");
                 UpdateSchemaCallbackListener caller = listener.get();
                 if (caller != null) {
@@ -141,55 +151,19 @@ public class UpdateSchemaTask extends AsyncTask<String, String, String> {
                 return null;
             }
 
-            if (urlConnection.getResponseCode() == 200) {
-                // download jar file
-                File file = new File(context.getDir("dex", Context.MODE_PRIVATE), DriverApp.UPDATED_JAR_NAME);
-
-                // delete any previously downloaded update
-                if (file.exists()) {
-                    file.delete();
-                }
-
-                InputStream inputStream = urlConnection.getInputStream();
-                OutputStream outputStream = new FileOutputStream(file);
-
-                boolean fileDownloadedOk = false;
-                try {
-                    IOUtils.copy(inputStream, outputStream);
-                    fileDownloadedOk = true;
-                } catch (IOException e) {
-                    Log.e(LOG_LABEL, "Failed to download jar file");
-                    // cancel task after streams closed
-                    e.printStackTrace();
-                } finally {
-                    IOUtils.closeQuietly(inputStream);
-                    IOUtils.closeQuietly(outputStream);
-                }
-
-                if (!fileDownloadedOk) {
-                    publishProgress(context.getString(R.string.error_schema_update));
-                    cancel(true);
-                    return null;
-                }
-
-                // go load the downloaded schema
-                DriverApp driverApp = (DriverApp) DriverApp.getContext();
-                if (driverApp.loadSchemaClasses(DriverApp.UPDATED_JAR_NAME, recordSchemaUuid)) {
-                    Log.d(LOG_LABEL, "New schema jar loaded successfully");
-                    return recordSchemaUuid;
-                } else {
-                    Log.e(LOG_LABEL, "Could not load updated schema jar file!");
-                    // delete the downloaded file; hopefully trying again later will work
-                    file.delete();
-
-                    // load backup model jar file
-                    driverApp.loadBackupSchema();
-                    return context.getString(R.string.backup_jar_schema_version);
-                }
+            if (download.jar != null) {
+                Log.d(LOG_LABEL, "Have jar for schema " + recordSchemaUuid + "; received " +
+                        download.bytesReceived + " bytes");
+                return loadJar(driverApp, jarCache, download.jar, recordSchemaUuid);
+            }
 
-            } else {
-                Log.e(LOG_LABEL, "Schema update download request got response " + urlConnection.getResponseCode()
-                        + ": " + urlConnection.getResponseMessage());
+            Log.e(LOG_LABEL, "Schema update download request got response " + download.responseCode);
+            if (download.responseCode == HttpURLConnection.HTTP_OK ||
+                    download.responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                // downloaded, but not whole
+                publishProgress(context.getString(R.string.error_schema_update));
+                cancel(true);
+                return null;
             }
         } catch (IOException e) {
             Log.e(LOG_LABEL, "Error communicating with server to perform schema check");
@@ -201,6 +175,29 @@ public class UpdateSchemaTask extends AsyncTask<String, String, String> {
         return null;
     }
 
+    /**
+     * Load a schema jar from the cache, falling back to the backup schema if it will not load.
+     *
+     * @return Version of the schema loaded
+     */
+    private String loadJar(DriverApp driverApp, SchemaJarCache jarCache, File jar, String recordSchemaUuid) {
+        if (driverApp.loadSchemaJar(jar, recordSchemaUuid)) {
+            Log.d(LOG_LABEL, "New schema jar loaded successfully");
+            jarCache.markUsed(recordSchemaUuid);
+            driverApp.deleteUpdatedSchemaJar();
+            return recordSchemaUuid;
+        }
+
+        Log.e(LOG_LABEL, "Could not load updated schema jar file!");
+        // delete the downloaded file; hopefully trying again later will work
+        jarCache.remove(recordSchemaUuid);
+
+        // load backup model jar file
+        driverApp.loadBackupSchema();
+        driverApp.deleteUpdatedSchemaJar();
+        return context.getString(R.string.backup_jar_schema_version);
+    }
+
     @Override
     protected void onProgressUpdate(String... values) {
         UpdateSchemaCallbackListener caller = listener.get();
@@ -0,0 +1,51 @@
+package org.worldbank.transport.driver.uploads;
+
+/**
+ * Uploads according to the network conditions.
+ *
+ * On a slow link, which is one measured below SLOW_BYTES_PER_SECOND or, before it has been
+ * measured, a 2G cellular link, records are sent one request at a time, in small batches. That
+ * way a request is not left waiting behind the others and timing out, and a failed request loses
+ * less. Otherwise records are sent as in UploadPlan.DEFAULT.
+ *
+ * If set to defer media, records with photos are left for an unmetered link. Records without
+ * photos are still sent straight away.
+ */
+public class AdaptiveUploadPolicy implements UploadPolicy {
+
+    // links measured below this are treated as slow, whatever their type
+    public static final long SLOW_BYTES_PER_SECOND = 16 * 1024;
+
+    public static final int SLOW_WORKERS = 1;
+    public static final int SLOW_BATCH_SIZE = 3;
+
+    private final ConnectivityProvider connectivityProvider;
+    private final boolean deferMediaWhenMetered;
+
+    /**
+     * @param connectivityProvider Source of the network conditions
+     * @param deferMediaWhenMetered If set, leave records with media for an unmetered link
+     */
+    public AdaptiveUploadPolicy(ConnectivityProvider connectivityProvider, boolean deferMediaWhenMetered) {
+        this.connectivityProvider = connectivityProvider;
+        this.deferMediaWhenMetered = deferMediaWhenMetered;
+    }
+
+    @Override
+    public UploadPlan plan() {
+        NetworkConditions conditions = connectivityProvider.getConditions();
+        boolean sendMedia = !(deferMediaWhenMetered && conditions.metered);
+
+        if (isSlow(conditions)) {
+            return new UploadPlan(SLOW_WORKERS, SLOW_BATCH_SIZE, sendMedia);
+        }
+        return new UploadPlan(UploadPlan.DEFAULT.workers, UploadPlan.DEFAULT.batchSize, sendMedia);
+    }
+
+    private static boolean isSlow(NetworkConditions conditions) {
+        if (conditions.bytesPerSecond != NetworkConditions.UNKNOWN_THROUGHPUT) {
+            return conditions.bytesPerSecond < SLOW_BYTES_PER_SECOND;
+        }
+        return conditions.linkType == NetworkConditions.LinkType.CELLULAR_SLOW;
+    }
+}
@@ -0,0 +1,81 @@
+package org.worldbank.transport.driver.uploads;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+
+/**
+ * Reports the conditions of the active network from the ConnectivityManager, with the throughput
+ * measured by uploads on it. The throughput measured is reset whenever the active link changes.
+ */
+public class AndroidConnectivityProvider implements ConnectivityProvider {
+
+    private static final String LOG_LABEL = "ConnectivityProvider";
+
+    private final ConnectivityManager connectivityManager;
+    private final ThroughputMeter throughputMeter;
+
+    // link the throughput was last measured on, as network type and subtype
+    private int lastType = -1;
+    private int lastSubtype = -1;
+
+    /**
+     * @param connectivityManager Source of the active network
+     * @param throughputMeter Throughput measured by uploads
+     */
+    public AndroidConnectivityProvider(ConnectivityManager connectivityManager, ThroughputMeter throughputMeter) {
+        this.connectivityManager = connectivityManager;
+        this.throughputMeter = throughputMeter;
+    }
+
+    @Override
+    public synchronized NetworkConditions getConditions() {
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return new NetworkConditions(NetworkConditions.LinkType.NONE, true, NetworkConditions.UNKNOWN_THROUGHPUT);
+        }
+
+        int type = networkInfo.getType();
+        int subtype = networkInfo.getSubtype();
+        if (type != lastType || subtype != lastSubtype) {
+            Log.d(LOG_LABEL, "Network changed to " + networkInfo.getTypeName() + " " + networkInfo.getSubtypeName());
+            throughputMeter.reset();
+            lastType = type;
+            lastSubtype = subtype;
+        }
+
+        return new NetworkConditions(getLinkType(type, subtype),
+                ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager),
+                throughputMeter.getBytesPerSecond());
+    }
+
+    private static NetworkConditions.LinkType getLinkType(int type, int subtype) {
+        switch (type) {
+            case ConnectivityManager.TYPE_WIFI:
+                return NetworkConditions.LinkType.WIFI;
+            case ConnectivityManager.TYPE_ETHERNET:
+                return NetworkConditions.LinkType.ETHERNET;
+            case ConnectivityManager.TYPE_MOBILE:
+                return isSlowCellular(subtype) ? NetworkConditions.LinkType.CELLULAR_SLOW :
+                        NetworkConditions.LinkType.CELLULAR_FAST;
+            default:
+                return NetworkConditions.LinkType.OTHER;
+        }
+    }
+
+    private static boolean isSlowCellular(int subtype) {
+        switch (subtype) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
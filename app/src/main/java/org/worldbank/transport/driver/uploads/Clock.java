@@ -0,0 +1,19 @@
+package org.worldbank.transport.driver.uploads;
+
+/**
+ * Source of the current time for upload scheduling, so that tests may control it.
+ */
+public interface Clock {
+
+    /**
+     * @return Current time, in milliseconds since the epoch
+     */
+    long now();
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+    };
+}
@@ -0,0 +1,12 @@
+package org.worldbank.transport.driver.uploads;
+
+/**
+ * Source of the current network conditions, for deciding how to upload.
+ */
+public interface ConnectivityProvider {
+
+    /**
+     * @return Conditions of the active network link
+     */
+    NetworkConditions getConditions();
+}
@@ -0,0 +1,18 @@
+package org.worldbank.transport.driver.uploads;
+
+/**
+ * Uploads the same way whatever the network conditions.
+ */
+public class FixedUploadPolicy implements UploadPolicy {
+
+    private final UploadPlan plan;
+
+    public FixedUploadPolicy(UploadPlan plan) {
+        this.plan = plan;
+    }
+
+    @Override
+    public UploadPlan plan() {
+        return plan;
+    }
+}
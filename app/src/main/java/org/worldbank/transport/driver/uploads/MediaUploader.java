@@ -0,0 +1,401 @@
+package org.worldbank.transport.driver.uploads;
+
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.worldbank.transport.driver.datastore.MediaUploadState;
+import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.network.DriverHttpClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Sends media files to the media endpoint on their own, in chunks, so that records can refer to
+ * them instead of carrying them inline as base64. Files are identified by the SHA-256 of their
+ * content, so the same photo is only sent once, however many records hold it.
+ *
+ * An upload is started with a POST of the file's hash and size to the media endpoint. The server
+ * answers 200 or 201 with a JSON object holding the upload's "id", and the "offset" of the bytes
+ * it already has; the whole size, if it already has the file. Chunks are then sent with a PUT to
+ * the upload's URL, the endpoint followed by its ID, with the offset of the chunk in the
+ * Upload-Offset header. The server answers 204 while it expects more, or 201 once it has the whole
+ * file, with the offset it has received up to. It answers 409 with its own offset if the chunk does
+ * not start there, and 404 if the upload has expired.
+ *
+ * The offset the server confirms is saved after each chunk, so an upload interrupted by a lost
+ * connection resumes where it stopped on the next attempt, even after the app restarts.
+ *
+ * An uploader may be shared by upload threads; the same content is only sent by one at a time.
+ */
+public class MediaUploader {
+
+    private static final String LOG_LABEL = "MediaUploader";
+
+    // bytes per PUT; small enough to not lose much on a dropped connection, large enough to
+    // not spend most of the time on round trips
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    // times in a row to accept the server's offset in place of ours, before giving up
+    private static final int MAX_OFFSET_CONFLICTS = 3;
+
+    public static final String UPLOAD_OFFSET_HEADER = "Upload-Offset";
+
+    // media are written into records as this prefix followed by their upload ID
+    public static final String MEDIA_REFERENCE_PREFIX = "media:";
+
+    private static final String MEDIA_CONTENT_TYPE = "image/jpeg";
+
+    private static final int HASH_BUFFER_SIZE = 8 * 1024;
+
+    // content hashes by file path, size and modification time, so files are only hashed once while the app runs
+    private static final Map<String, String> fileHashes = new ConcurrentHashMap<>();
+
+    private final URL mediaUrl;
+    private final String token;
+    private final DriverHttpClient httpClient;
+    private final RecordDatabaseManager databaseManager;
+
+    // one lock per file content, so the same file held by records on several threads is sent once
+    private final Map<String, Object> uploadLocks = new HashMap<>();
+
+    private volatile boolean unauthorized = false;
+
+    /**
+     * @param mediaUrl Media endpoint
+     * @param token User's API token
+     * @param httpClient Client to connect with
+     * @param databaseManager Database to save upload progress to
+     */
+    public MediaUploader(URL mediaUrl, String token, DriverHttpClient httpClient, RecordDatabaseManager databaseManager) {
+        this.mediaUrl = mediaUrl;
+        this.token = token;
+        this.httpClient = httpClient;
+        this.databaseManager = databaseManager;
+    }
+
+    /**
+     * @return True if the server rejected the user's credentials
+     */
+    public boolean wasUnauthorized() {
+        return unauthorized;
+    }
+
+    /**
+     * Upload files held by a record. Stops at the first file that fails to upload.
+     *
+     * @param paths Paths of the files
+     * @return Reference to write in the record for each file, by path, or null if any failed to upload
+     */
+    public Map<String, String> uploadAll(List<String> paths) {
+        Map<String, String> references = new HashMap<>(paths.size());
+        for (String path : paths) {
+            String reference = upload(path);
+            if (reference == null) {
+                return null;
+            }
+            references.put(path, reference);
+        }
+        return references;
+    }
+
+    /**
+     * Upload a file, or finish uploading it, unless the server already has it.
+     *
+     * @param path Path of the file
+     * @return Reference to write in the record for the file, or null if it failed to upload
+     */
+    public String upload(String path) {
+        File file = new File(path);
+        String sha256 = hashFile(file);
+        if (sha256 == null) {
+            return null;
+        }
+
+        synchronized (getUploadLock(sha256)) {
+            MediaUploadState state = databaseManager.getMediaUpload(sha256);
+            if (state == null) {
+                state = startUpload(sha256, file.length());
+                if (state == null) {
+                    return null;
+                }
+                databaseManager.saveMediaUpload(state);
+            } else if (!state.isComplete()) {
+                Log.d(LOG_LABEL, "Resuming upload of " + path + " at " + state.offset + " of " + state.size + " bytes");
+            }
+
+            if (!state.isComplete()) {
+                state = sendChunks(file, state);
+                if (state == null || !state.isComplete()) {
+                    return null;
+                }
+            }
+
+            return MEDIA_REFERENCE_PREFIX + state.mediaId;
+        }
+    }
+
+    private synchronized Object getUploadLock(String sha256) {
+        Object lock = uploadLocks.get(sha256);
+        if (lock == null) {
+            lock = new Object();
+            uploadLocks.put(sha256, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * Ask the server to start an upload.
+     *
+     * @return State of the new upload, or null on failure
+     */
+    private MediaUploadState startUpload(String sha256, long size) {
+        HttpURLConnection urlConnection = null;
+        try {
+            StringWriter body = new StringWriter();
+            JsonWriter writer = new JsonWriter(body);
+            writer.beginObject();
+            writer.name("sha256").value(sha256);
+            writer.name("size").value(size);
+            writer.name("content_type").value(MEDIA_CONTENT_TYPE);
+            writer.endObject();
+            writer.close();
+            byte[] bodyBytes = body.toString().getBytes("UTF-8");
+
+            urlConnection = httpClient.openConnection(mediaUrl);
+            urlConnection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            urlConnection.setRequestProperty("Authorization", "Token " + token);
+            urlConnection.setDoOutput(true);
+            urlConnection.setFixedLengthStreamingMode(bodyBytes.length);
+
+            OutputStream out = urlConnection.getOutputStream();
+            out.write(bodyBytes);
+            out.close();
+
+            int responseCode = urlConnection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_CREATED) {
+                Log.e(LOG_LABEL, "Failed to start media upload. Got response: " +
+                        responseCode + ": " + urlConnection.getResponseMessage());
+                if (responseCode == HttpURLConnection.HTTP_FORBIDDEN) {
+                    unauthorized = true;
+                }
+                httpClient.release(urlConnection);
+                return null;
+            }
+
+            return readUploadState(httpClient.readResponse(urlConnection), sha256, size);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // JsonReader throws IllegalStateException and NumberFormatException on unexpected content
+            Log.e(LOG_LABEL, "Error communicating with server to start media upload");
+            e.printStackTrace();
+            if (urlConnection != null) {
+                httpClient.abort(urlConnection);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return State of the upload from the server's answer to starting it, or null if it has no ID
+     */
+    private static MediaUploadState readUploadState(String response, String sha256, long size) throws IOException {
+        String mediaId = null;
+        long offset = 0;
+
+        JsonReader reader = new JsonReader(new StringReader(response));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("id".equals(name)) {
+                    mediaId = reader.nextString();
+                } else if ("offset".equals(name)) {
+                    offset = reader.nextLong();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+
+        if (mediaId == null || mediaId.isEmpty()) {
+            Log.e(LOG_LABEL, "Server did not give an ID for media upload");
+            return null;
+        }
+
+        return new MediaUploadState(sha256, size, mediaId, Math.min(Math.max(offset, 0), size));
+    }
+
+    /**
+     * Send the rest of the file, a chunk at a time, saving the offset the server confirms after each.
+     *
+     * @return State after the last chunk the server confirmed, or null if the upload must start over
+     */
+    private MediaUploadState sendChunks(File file, MediaUploadState state) {
+        URL chunkUrl;
+        RandomAccessFile input;
+        try {
+            chunkUrl = new URL(mediaUrl, URLEncoder.encode(state.mediaId, "UTF-8") + "/");
+            input = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            Log.e(LOG_LABEL, "Could not open media file for upload: " + file.getPath());
+            e.printStackTrace();
+            return null;
+        }
+
+        byte[] buffer = new byte[(int) Math.min(CHUNK_SIZE, state.size)];
+        int conflicts = 0;
+        HttpURLConnection urlConnection = null;
+        try {
+            while (!state.isComplete()) {
+                int length = (int) Math.min(buffer.length, state.size - state.offset);
+                input.seek(state.offset);
+                input.readFully(buffer, 0, length);
+
+                urlConnection = httpClient.openConnection(chunkUrl);
+                urlConnection.setRequestMethod("PUT");
+                urlConnection.setRequestProperty("Content-Type", "application/octet-stream");
+                urlConnection.setRequestProperty("Authorization", "Token " + token);
+                urlConnection.setRequestProperty(UPLOAD_OFFSET_HEADER, String.valueOf(state.offset));
+                urlConnection.setDoOutput(true);
+                urlConnection.setFixedLengthStreamingMode(length);
+
+                OutputStream out = urlConnection.getOutputStream();
+                out.write(buffer, 0, length);
+                out.close();
+
+                int responseCode = urlConnection.getResponseCode();
+                long serverOffset = readOffset(urlConnection);
+                httpClient.release(urlConnection);
+                urlConnection = null;
+
+                if (responseCode == HttpURLConnection.HTTP_CREATED || responseCode == HttpURLConnection.HTTP_OK ||
+                        responseCode == HttpURLConnection.HTTP_NO_CONTENT) {
+                    long newOffset = serverOffset >= 0 ? serverOffset : state.offset + length;
+                    if (newOffset <= state.offset) {
+                        // server kept none of the chunk; treat like a conflict, to not send it forever
+                        conflicts++;
+                    } else {
+                        conflicts = 0;
+                    }
+                    state = state.withOffset(Math.min(newOffset, state.size));
+                } else if (responseCode == HttpURLConnection.HTTP_CONFLICT && serverOffset >= 0) {
+                    Log.w(LOG_LABEL, "Server has media upload " + state.mediaId + " at offset " + serverOffset +
+                            ", not " + state.offset);
+                    conflicts++;
+                    state = state.withOffset(Math.min(serverOffset, state.size));
+                } else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_GONE) {
+                    Log.w(LOG_LABEL, "Media upload " + state.mediaId + " expired; will start over");
+                    databaseManager.deleteMediaUpload(state.sha256);
+                    return null;
+                } else {
+                    Log.e(LOG_LABEL, "Failed to upload media chunk. Got response: " + responseCode);
+                    if (responseCode == HttpURLConnection.HTTP_FORBIDDEN) {
+                        unauthorized = true;
+                    }
+                    return state;
+                }
+
+                databaseManager.saveMediaUpload(state);
+                if (conflicts > MAX_OFFSET_CONFLICTS) {
+                    Log.e(LOG_LABEL, "Server keeps disagreeing on offset of media upload " + state.mediaId);
+                    return state;
+                }
+            }
+
+            Log.d(LOG_LABEL, "Media file " + file.getPath() + " uploaded as " + state.mediaId);
+        } catch (IOException e) {
+            // progress up to the last confirmed chunk is saved, to resume from next time
+            Log.e(LOG_LABEL, "Error communicating with server to upload media " + state.mediaId +
+                    " at offset " + state.offset);
+            e.printStackTrace();
+            if (urlConnection != null) {
+                httpClient.abort(urlConnection);
+            }
+        } finally {
+            try {
+                input.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return state;
+    }
+
+    /**
+     * @return Offset given by the server in the response, or -1 if none
+     */
+    private static long readOffset(HttpURLConnection urlConnection) {
+        String header = urlConnection.getHeaderField(UPLOAD_OFFSET_HEADER);
+        if (header == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            Log.w(LOG_LABEL, "Invalid upload offset from server: " + header);
+            return -1;
+        }
+    }
+
+    /**
+     * @return Hex SHA-256 of the file content, or null if it could not be read
+     */
+    static String hashFile(File file) {
+        String key = file.getAbsolutePath() + ':' + file.length() + ':' + file.lastModified();
+        String hash = fileHashes.get(key);
+        if (hash != null) {
+            return hash;
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[HASH_BUFFER_SIZE];
+                int read;
+                while ((read = inputStream.read(buffer)) >= 0) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                inputStream.close();
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            hash = hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            Log.e(LOG_LABEL, "Could not hash media file " + file.getPath());
+            e.printStackTrace();
+            return null;
+        }
+
+        fileHashes.put(key, hash);
+        return hash;
+    }
+}
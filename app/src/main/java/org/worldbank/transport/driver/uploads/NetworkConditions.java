@@ -0,0 +1,44 @@
+package org.worldbank.transport.driver.uploads;
+
+/**
+ * State of the network link uploads would go over, as reported by a ConnectivityProvider.
+ */
+public class NetworkConditions {
+
+    public enum LinkType {
+        NONE,
+        WIFI,
+        ETHERNET,
+        // 3G and later
+        CELLULAR_FAST,
+        // 2G: GPRS, EDGE, CDMA, 1xRTT, iDEN
+        CELLULAR_SLOW,
+        OTHER
+    }
+
+    public static final long UNKNOWN_THROUGHPUT = -1;
+
+    public final LinkType linkType;
+
+    /**
+     * True if data sent over the link may cost the user, as on most cellular links and tethered Wi-Fi.
+     */
+    public final boolean metered;
+
+    /**
+     * Recent upload throughput measured on the link, or UNKNOWN_THROUGHPUT if not measured yet.
+     */
+    public final long bytesPerSecond;
+
+    public NetworkConditions(LinkType linkType, boolean metered, long bytesPerSecond) {
+        this.linkType = linkType;
+        this.metered = metered;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return linkType + (metered ? " metered" : " unmetered") +
+                (bytesPerSecond != UNKNOWN_THROUGHPUT ? " at " + bytesPerSecond + " bytes/s" : "");
+    }
+}
@@ -0,0 +1,405 @@
+package org.worldbank.transport.driver.uploads;
+
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.worldbank.transport.driver.datastore.RecordUploadWriter;
+import org.worldbank.transport.driver.metrics.UploadMetrics;
+import org.worldbank.transport.driver.network.DriverHttpClient;
+import org.worldbank.transport.driver.network.RequestBodyStream;
+import org.worldbank.transport.driver.staticmodels.DriverSchemaUpload;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * POST several stored records to the batch record endpoint in one request, as a JSON array of
+ * records in the same form as single uploads, except that each also holds its upload key in an
+ * idempotency_key field, as one Idempotency-Key header cannot cover them all.
+ *
+ * The server answers 201 if every record was created. If only some were, it answers 207, with a
+ * JSON array holding a result object for each record, in request order; each result has a
+ * "status" field with the response code the record would have had if posted on its own.
+ * Records without a result are treated as failed. The upload keys let the server recognize
+ * records it has already created; it may give those a status of 200.
+ *
+ * If given a media uploader, each record's media files are sent to the media endpoint first, and
+ * the record refers to them; records whose files fail to upload are left out of the batch.
+ *
+ * Servers without the batch endpoint are detected with isSupported before uploading, so records
+ * can be posted one at a time instead. A server may still answer OPTIONS for the endpoint, such
+ * as when the path matches another route, and then turn away the batch as not found or not
+ * allowed. The endpoint is then marked missing in the client, and if given a StoredRecordSource,
+ * the batch's records are reopened and posted one at a time to the record endpoint.
+ *
+ * Request bodies are compressed only if the client has been set to. A server that does not take
+ * compressed bodies answers 400 or 415; compression is then turned off in the client, and if
+ * given a StoredRecordSource, the batch's records are reopened and sent again uncompressed.
+ *
+ * If given UploadMetrics, the request is measured there.
+ */
+public class RecordBatchUpload implements RecordUploadJob {
+
+    private static final String LOG_LABEL = "RecordBatchUpload";
+
+    // response to a batch where only some records were created
+    private static final int HTTP_MULTI_STATUS = 207;
+
+    private static final String RESULT_STATUS_FIELD = "status";
+
+    private final RecordUploadOptions options;
+    private final URL batchUrl;
+    private final String token;
+    private final DriverHttpClient httpClient;
+    private final MediaUploader mediaUploader;
+    private final UploadMetrics metrics;
+    private final StoredRecordSource recordSource;
+
+    // set when the server turned away the last request for its compressed body
+    private boolean compressedBodyRejected;
+
+    private final ArrayList<Long> recordIds = new ArrayList<>();
+    private final ArrayList<DriverSchemaUpload> uploads = new ArrayList<>();
+    private final ArrayList<JsonReader> recordReaders = new ArrayList<>();
+    private final ArrayList<List<String>> mediaPaths = new ArrayList<>();
+    private final ArrayList<RecordUploadWriter> uploadWriters = new ArrayList<>();
+
+    /**
+     * Check whether the server has the batch record endpoint. The answer is remembered by the
+     * client, so the server is only asked once per endpoint while the app runs.
+     *
+     * @param batchUrl Batch record endpoint; may be null if there is none
+     * @return True if records may be uploaded in batches
+     */
+    public static boolean isSupported(DriverHttpClient httpClient, URL batchUrl, String token) {
+        return batchUrl != null && httpClient.hasEndpoint(batchUrl, token);
+    }
+
+    /**
+     * @param options Where and how to send the records; must have the batch endpoint set
+     */
+    public RecordBatchUpload(RecordUploadOptions options) {
+        this.options = options;
+        this.batchUrl = options.batchUrl;
+        this.token = options.token;
+        this.httpClient = options.httpClient;
+        this.mediaUploader = options.mediaUploader;
+        this.metrics = options.metrics;
+        this.recordSource = options.recordSource;
+    }
+
+    /**
+     * Add a record to the batch.
+     *
+     * @param recordId Database ID of the record
+     * @param upload Constant fields and metadata for the record
+     * @param recordReader Reader for the stored record, from DriverSchemaSerializer.openRecordReader.
+     *                     Closed when the job is done.
+     * @param recordMediaPaths Paths of the record's media files, from RecordUploadWriter.findMediaPaths;
+     *                         may be null if the batch has no media uploader
+     * @param uploadWriter Writer for the record, for the schema it was entered with
+     */
+    public void add(long recordId, DriverSchemaUpload upload, JsonReader recordReader, List<String> recordMediaPaths,
+                    RecordUploadWriter uploadWriter) {
+        recordIds.add(recordId);
+        uploads.add(upload);
+        recordReaders.add(recordReader);
+        mediaPaths.add(recordMediaPaths);
+        uploadWriters.add(uploadWriter);
+    }
+
+    /**
+     * @return Number of records in the batch
+     */
+    public int size() {
+        return recordIds.size();
+    }
+
+    @Override
+    public long[] getRecordIds() {
+        long[] ids = new long[recordIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = recordIds.get(i);
+        }
+        return ids;
+    }
+
+    @Override
+    public RecordUploadStatus[] upload() {
+        RecordUploadStatus[] statuses = new RecordUploadStatus[recordIds.size()];
+        Arrays.fill(statuses, RecordUploadStatus.FAILED);
+
+        // indexes of the records to send, and references to their media
+        ArrayList<Integer> sent = new ArrayList<>(statuses.length);
+        ArrayList<Map<String, String>> mediaReferences = new ArrayList<>(statuses.length);
+        for (int i = 0; i < statuses.length; i++) {
+            List<String> paths = mediaPaths.get(i);
+            if (mediaUploader == null || paths == null || paths.isEmpty()) {
+                sent.add(i);
+                mediaReferences.add(null);
+                continue;
+            }
+
+            Map<String, String> references = mediaUploader.uploadAll(paths);
+            if (references != null) {
+                sent.add(i);
+                mediaReferences.add(references);
+            } else {
+                Log.e(LOG_LABEL, "Failed to upload media for record " + recordIds.get(i));
+                if (mediaUploader.wasUnauthorized()) {
+                    statuses[i] = RecordUploadStatus.UNAUTHORIZED;
+                    discard();
+                    return statuses;
+                }
+            }
+        }
+
+        if (sent.isEmpty()) {
+            discard();
+            return statuses;
+        }
+
+        // results in the response are for the records sent, in order
+        RecordUploadStatus[] sentStatuses = new RecordUploadStatus[sent.size()];
+        Arrays.fill(sentStatuses, RecordUploadStatus.FAILED);
+        boolean endpointMissing = post(sent, mediaReferences, sentStatuses);
+        if (compressedBodyRejected && reopen(sent)) {
+            // compression is now off in the client, so the batch goes uncompressed this time
+            Log.d(LOG_LABEL, "Sending batch of " + sentStatuses.length + " records again uncompressed");
+            endpointMissing = post(sent, mediaReferences, sentStatuses);
+        }
+        if (endpointMissing && recordSource != null) {
+            uploadSingly(sent, sentStatuses);
+        }
+        for (int i = 0; i < sentStatuses.length; i++) {
+            statuses[sent.get(i)] = sentStatuses[i];
+        }
+
+        return statuses;
+    }
+
+    /**
+     * POST the given records of the batch, then close all of the batch's stored records.
+     *
+     * @param sent Indexes of the records to send
+     * @param mediaReferences References to the uploaded media of each record sent; null for inline media
+     * @param statuses Set to the result of each record sent
+     * @return True if the server turned the batch away as not found or not allowed
+     */
+    private boolean post(ArrayList<Integer> sent, ArrayList<Map<String, String>> mediaReferences,
+                      RecordUploadStatus[] statuses) {
+        HttpURLConnection urlConnection = null;
+        RequestBodyStream body = null;
+        long writeStarted = 0;
+        long writeFinished = 0;
+        boolean measured = false;
+        boolean endpointMissing = false;
+        compressedBodyRejected = false;
+        try {
+            urlConnection = httpClient.openConnection(batchUrl);
+
+            urlConnection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            urlConnection.setRequestProperty("Authorization", "Token " + token);
+            urlConnection.setDoOutput(true);
+            urlConnection.setChunkedStreamingMode(0);
+            body = httpClient.openRequestBody(urlConnection);
+            OutputStream out = new BufferedOutputStream(body);
+
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+
+            writeStarted = System.nanoTime();
+            // each record is written as a complete JSON value; separate them into an array
+            writer.write('[');
+            for (int i = 0; i < sent.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                int index = sent.get(i);
+                uploadWriters.get(index).writeRecord(writer, recordReaders.get(index), uploads.get(index),
+                        mediaReferences.get(i), true);
+            }
+            writer.write(']');
+
+            writer.flush();
+            writer.close();
+            out.close();
+            writeFinished = System.nanoTime();
+
+            // check response
+            int responseCode = urlConnection.getResponseCode();
+            if (metrics != null) {
+                metrics.recordRequest(statuses.length, writeFinished - writeStarted, body.getBytesWritten(),
+                        body.getBytesSent(), System.nanoTime() - writeFinished, responseCode);
+                measured = true;
+            }
+            if (responseCode == HttpURLConnection.HTTP_CREATED) {
+                Log.d(LOG_LABEL, "Batch of " + statuses.length + " records uploaded successfully! Sent " +
+                        body.getBytesSent() + " bytes for " + body.getBytesWritten() + " bytes of records");
+                Arrays.fill(statuses, RecordUploadStatus.UPLOADED);
+                httpClient.release(urlConnection);
+            } else if (responseCode == HTTP_MULTI_STATUS) {
+                readResults(urlConnection, sent, statuses);
+            } else {
+                Log.e(LOG_LABEL, "Failed to upload batch of " + statuses.length + " records. Got response: " +
+                        responseCode + ": " + urlConnection.getResponseMessage());
+                if (responseCode == HttpURLConnection.HTTP_FORBIDDEN) {
+                    Arrays.fill(statuses, RecordUploadStatus.UNAUTHORIZED);
+                } else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND ||
+                        responseCode == HttpURLConnection.HTTP_BAD_METHOD ||
+                        responseCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                    // answered OPTIONS, but has no batch endpoint after all; stop sending batches
+                    httpClient.endpointMissing(batchUrl);
+                    endpointMissing = true;
+                } else if ((responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE ||
+                        responseCode == HttpURLConnection.HTTP_BAD_REQUEST) && body.isCompressed()) {
+                    // Django answers a gzip body as a bad request; records are sent uncompressed from now on
+                    httpClient.compressedRequestRejected();
+                    compressedBodyRejected = true;
+                }
+                httpClient.release(urlConnection);
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // JsonReader throws IllegalStateException and NumberFormatException on unexpected content
+            Log.e(LOG_LABEL, "Error communicating with server to upload batch of " + statuses.length + " records");
+            e.printStackTrace();
+            if (metrics != null && body != null && !measured) {
+                long writeNanos = (writeFinished > 0 ? writeFinished : System.nanoTime()) - writeStarted;
+                metrics.recordRequest(statuses.length, writeNanos, body.getBytesWritten(), body.getBytesSent(), 0,
+                        UploadMetrics.NO_RESPONSE);
+            }
+            if (urlConnection != null) {
+                httpClient.abort(urlConnection);
+            }
+        } finally {
+            discard();
+        }
+        return endpointMissing;
+    }
+
+    /**
+     * Reopen the given records of the batch, to send them again.
+     *
+     * @param sent Indexes of the records to reopen
+     * @return True if every record was reopened
+     */
+    private boolean reopen(ArrayList<Integer> sent) {
+        if (recordSource == null) {
+            return false;
+        }
+
+        for (int index : sent) {
+            JsonReader recordReader = recordSource.reopen(recordIds.get(index));
+            if (recordReader == null) {
+                Log.e(LOG_LABEL, "Could not reopen stored record " + recordIds.get(index));
+                discard();
+                return false;
+            }
+            recordReaders.set(index, recordReader);
+        }
+        return true;
+    }
+
+    /**
+     * Post the given records of the batch one at a time, reopening each stored record.
+     *
+     * @param sent Indexes of the records to send
+     * @param statuses Set to the result of each record sent
+     */
+    private void uploadSingly(ArrayList<Integer> sent, RecordUploadStatus[] statuses) {
+        Log.d(LOG_LABEL, "Posting " + sent.size() + " records of batch one at a time");
+        for (int i = 0; i < sent.size(); i++) {
+            int index = sent.get(i);
+            long recordId = recordIds.get(index);
+            JsonReader recordReader = recordSource.reopen(recordId);
+            if (recordReader == null) {
+                Log.e(LOG_LABEL, "Could not reopen stored record " + recordId);
+                continue;
+            }
+
+            // media already uploaded for the batch are found by digest and not sent again
+            RecordUpload upload = new RecordUpload(options, recordId, uploads.get(index), recordReader,
+                    uploadWriters.get(index), mediaPaths.get(index));
+            statuses[i] = upload.upload()[0];
+            if (statuses[i] == RecordUploadStatus.UNAUTHORIZED) {
+                // the rest would be turned away too
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void discard() {
+        for (int i = 0; i < recordReaders.size(); i++) {
+            try {
+                recordReaders.get(i).close();
+            } catch (IOException e) {
+                Log.e(LOG_LABEL, "Failed to close stored record " + recordIds.get(i));
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Read the result for each record from a partial success response. Statuses of records without
+     * a result are left as they are.
+     */
+    private void readResults(HttpURLConnection urlConnection, ArrayList<Integer> sent,
+                             RecordUploadStatus[] statuses) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(urlConnection.getInputStream(), "UTF-8"));
+        int created = 0;
+        try {
+            reader.beginArray();
+            for (int i = 0; reader.hasNext(); i++) {
+                int status = readResultStatus(reader);
+                if (i >= statuses.length) {
+                    continue;
+                }
+
+                if (status == HttpURLConnection.HTTP_CREATED || status == HttpURLConnection.HTTP_OK) {
+                    statuses[i] = RecordUploadStatus.UPLOADED;
+                    created++;
+                } else {
+                    Log.e(LOG_LABEL, "Failed to upload record " + recordIds.get(sent.get(i)) + " in batch. Got status: " + status);
+                    if (status == HttpURLConnection.HTTP_FORBIDDEN) {
+                        statuses[i] = RecordUploadStatus.UNAUTHORIZED;
+                    }
+                }
+            }
+            reader.endArray();
+        } finally {
+            reader.close();
+        }
+
+        Log.d(LOG_LABEL, "Uploaded " + created + " of batch of " + statuses.length + " records");
+    }
+
+    /**
+     * @return Status field of the next record result, or -1 if missing
+     */
+    private static int readResultStatus(JsonReader reader) throws IOException {
+        int status = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (RESULT_STATUS_FIELD.equals(reader.nextName()) && reader.peek() == JsonToken.NUMBER) {
+                status = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return status;
+    }
+}
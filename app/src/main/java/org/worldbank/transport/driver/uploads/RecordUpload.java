@@ -0,0 +1,212 @@
+package org.worldbank.transport.driver.uploads;
+
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+
+import org.worldbank.transport.driver.datastore.RecordUploadWriter;
+import org.worldbank.transport.driver.metrics.UploadMetrics;
+import org.worldbank.transport.driver.network.DriverHttpClient;
+import org.worldbank.transport.driver.network.RequestBodyStream;
+import org.worldbank.transport.driver.staticmodels.DriverSchemaUpload;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * POST a single stored record to the record endpoint.
+ *
+ * If given a media uploader, the record's media files are sent to the media endpoint first, and
+ * the record refers to them; the record is not sent if any of its files fail to upload.
+ *
+ * The record's upload key is sent in the IDEMPOTENCY_KEY_HEADER, so that a server which has
+ * already created the record, such as when its response was lost, need not create it again.
+ * Such a server may answer 200 instead of 201; either means the record was accepted.
+ *
+ * Request bodies are compressed only if the client has been set to. A server that does not take
+ * compressed bodies answers 400 or 415; compression is then turned off in the client, and if
+ * given a StoredRecordSource, the record is reopened and sent again uncompressed.
+ *
+ * If given UploadMetrics, the request is measured there.
+ */
+public class RecordUpload implements RecordUploadJob {
+
+    private static final String LOG_LABEL = "RecordUpload";
+
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    private final long recordId;
+    private final URL uploadUrl;
+    private final String token;
+    private final DriverSchemaUpload upload;
+    private final JsonReader recordReader;
+    private final RecordUploadWriter uploadWriter;
+    private final DriverHttpClient httpClient;
+    private final MediaUploader mediaUploader;
+    private final List<String> mediaPaths;
+    private final UploadMetrics metrics;
+    private final StoredRecordSource recordSource;
+
+    // set when the server turned away the last request for its compressed body
+    private boolean compressedBodyRejected;
+
+    /**
+     * @param options Where and how to send the record
+     * @param recordId Database ID of the record
+     * @param upload Constant fields and metadata for the record
+     * @param recordReader Reader for the stored record, from DriverSchemaSerializer.openRecordReader.
+     *                     Closed when the job is done.
+     * @param uploadWriter Writer for the request body
+     * @param mediaPaths Paths of the record's media files, from RecordUploadWriter.findMediaPaths;
+     *                   may be null if there is no media uploader
+     */
+    public RecordUpload(RecordUploadOptions options, long recordId, DriverSchemaUpload upload,
+                        JsonReader recordReader, RecordUploadWriter uploadWriter, List<String> mediaPaths) {
+        this.recordId = recordId;
+        this.uploadUrl = options.recordUrl;
+        this.token = options.token;
+        this.upload = upload;
+        this.recordReader = recordReader;
+        this.uploadWriter = uploadWriter;
+        this.httpClient = options.httpClient;
+        this.mediaUploader = options.mediaUploader;
+        this.mediaPaths = mediaPaths;
+        this.metrics = options.metrics;
+        this.recordSource = options.recordSource;
+    }
+
+    @Override
+    public long[] getRecordIds() {
+        return new long[] {recordId};
+    }
+
+    @Override
+    public RecordUploadStatus[] upload() {
+        Map<String, String> mediaReferences = null;
+        if (mediaUploader != null && mediaPaths != null && !mediaPaths.isEmpty()) {
+            mediaReferences = mediaUploader.uploadAll(mediaPaths);
+            if (mediaReferences == null) {
+                Log.e(LOG_LABEL, "Failed to upload media for record " + recordId);
+                discard();
+                return new RecordUploadStatus[] {mediaUploader.wasUnauthorized() ?
+                        RecordUploadStatus.UNAUTHORIZED : RecordUploadStatus.FAILED};
+            }
+        }
+
+        RecordUploadStatus status = post(recordReader, mediaReferences);
+        if (compressedBodyRejected && recordSource != null) {
+            // compression is now off in the client, so the record goes uncompressed this time
+            JsonReader reopened = recordSource.reopen(recordId);
+            if (reopened != null) {
+                Log.d(LOG_LABEL, "Sending record " + recordId + " again uncompressed");
+                status = post(reopened, mediaReferences);
+            } else {
+                Log.e(LOG_LABEL, "Could not reopen stored record " + recordId);
+            }
+        }
+        return new RecordUploadStatus[] {status};
+    }
+
+    /**
+     * POST the record, then close its reader.
+     *
+     * @param reader Reader for the stored record
+     * @param mediaReferences References to the record's uploaded media; null for inline media
+     * @return Result of the upload
+     */
+    private RecordUploadStatus post(JsonReader reader, Map<String, String> mediaReferences) {
+        HttpURLConnection urlConnection = null;
+        RequestBodyStream body = null;
+        long writeStarted = 0;
+        long writeFinished = 0;
+        boolean measured = false;
+        compressedBodyRejected = false;
+        try {
+            urlConnection = httpClient.openConnection(uploadUrl);
+
+            urlConnection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            urlConnection.setRequestProperty("Authorization", "Token " + token);
+            if (upload.idempotencyKey != null) {
+                urlConnection.setRequestProperty(IDEMPOTENCY_KEY_HEADER, upload.idempotencyKey);
+            }
+            urlConnection.setDoOutput(true);
+            urlConnection.setChunkedStreamingMode(0);
+            body = httpClient.openRequestBody(urlConnection);
+            OutputStream out = new BufferedOutputStream(body);
+
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+
+            writeStarted = System.nanoTime();
+            uploadWriter.writeRecord(writer, reader, upload, mediaReferences);
+
+            writer.flush();
+            writer.close();
+            out.close();
+            writeFinished = System.nanoTime();
+
+            // check response
+            int responseCode = urlConnection.getResponseCode();
+            if (metrics != null) {
+                metrics.recordRequest(1, writeFinished - writeStarted, body.getBytesWritten(), body.getBytesSent(),
+                        System.nanoTime() - writeFinished, responseCode);
+                measured = true;
+            }
+            if (responseCode == HttpURLConnection.HTTP_CREATED || responseCode == HttpURLConnection.HTTP_OK) {
+                Log.d(LOG_LABEL, "Record " + recordId + " uploaded successfully! Sent " +
+                        body.getBytesSent() + " bytes for " + body.getBytesWritten() + " bytes of record");
+                httpClient.release(urlConnection);
+                return RecordUploadStatus.UPLOADED;
+            }
+
+            Log.e(LOG_LABEL, "Failed to upload record " + recordId + ". Got response: " +
+                    responseCode + ": " + urlConnection.getResponseMessage());
+            httpClient.release(urlConnection);
+
+            if ((responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE ||
+                    responseCode == HttpURLConnection.HTTP_BAD_REQUEST) && body.isCompressed()) {
+                // Django answers a gzip body as a bad request; records are sent uncompressed from now on
+                httpClient.compressedRequestRejected();
+                compressedBodyRejected = true;
+            } else if (responseCode == 403) {
+                return RecordUploadStatus.UNAUTHORIZED;
+            }
+        } catch (IOException e) {
+            Log.e(LOG_LABEL, "Error communicating with server to upload record " + recordId);
+            e.printStackTrace();
+            if (metrics != null && body != null && !measured) {
+                long writeNanos = (writeFinished > 0 ? writeFinished : System.nanoTime()) - writeStarted;
+                metrics.recordRequest(1, writeNanos, body.getBytesWritten(), body.getBytesSent(), 0,
+                        UploadMetrics.NO_RESPONSE);
+            }
+            if (urlConnection != null) {
+                httpClient.abort(urlConnection);
+            }
+        } finally {
+            close(reader);
+        }
+
+        return RecordUploadStatus.FAILED;
+    }
+
+    @Override
+    public void discard() {
+        close(recordReader);
+    }
+
+    private void close(JsonReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            Log.e(LOG_LABEL, "Failed to close stored record " + recordId);
+            e.printStackTrace();
+        }
+    }
+}
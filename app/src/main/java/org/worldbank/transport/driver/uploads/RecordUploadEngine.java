@@ -0,0 +1,184 @@
+package org.worldbank.transport.driver.uploads;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Uploads records on a fixed pool of worker threads, so that the round trips of several uploads
+ * overlap on high-latency connections. Each job uploads one record, or a batch of them.
+ *
+ * Jobs are submitted from a single thread, which also receives the result for each record, in the
+ * order the jobs were submitted. At most a few jobs per worker are held at once; submit blocks until the oldest
+ * has finished when that many are waiting, so records are not all read into memory ahead of
+ * their upload.
+ *
+ * The first upload rejected for bad credentials stops the engine: jobs not yet started are
+ * discarded and reported as cancelled, and no more are accepted.
+ */
+public class RecordUploadEngine {
+
+    private static final String LOG_LABEL = "RecordUploadEngine";
+
+    public static final int MIN_WORKERS = 1;
+    public static final int MAX_WORKERS = 6;
+    public static final int DEFAULT_WORKERS = 4;
+
+    // jobs to hold per worker, so that workers need not wait for results to be read before starting another
+    private static final int PENDING_JOBS_PER_WORKER = 2;
+
+    public interface UploadResultListener {
+        /**
+         * Called on the submitting thread, once per record, in the order records were submitted.
+         */
+        void recordUploadDone(long recordId, RecordUploadStatus status);
+    }
+
+    private static class PendingUpload {
+        final long[] recordIds;
+        final Future<RecordUploadStatus[]> result;
+
+        PendingUpload(long[] recordIds, Future<RecordUploadStatus[]> result) {
+            this.recordIds = recordIds;
+            this.result = result;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final UploadResultListener listener;
+    private final int maxPending;
+    private final ArrayDeque<PendingUpload> pending;
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+    /**
+     * @param workers Number of uploads to run at once; limited to between MIN_WORKERS and MAX_WORKERS
+     * @param listener Receives the result of each upload
+     */
+    public RecordUploadEngine(int workers, UploadResultListener listener) {
+        workers = Math.max(MIN_WORKERS, Math.min(MAX_WORKERS, workers));
+        this.executor = Executors.newFixedThreadPool(workers);
+        this.listener = listener;
+        this.maxPending = workers * PENDING_JOBS_PER_WORKER;
+        this.pending = new ArrayDeque<>(maxPending);
+    }
+
+    /**
+     * Queue records for upload. Results of finished uploads are reported before returning.
+     *
+     * @param job Upload to run
+     * @return False if the engine has stopped; the job is discarded and not reported
+     */
+    public boolean submit(final RecordUploadJob job) {
+        if (stopped.get()) {
+            job.discard();
+            return false;
+        }
+
+        final long[] recordIds = job.getRecordIds();
+        Future<RecordUploadStatus[]> result = executor.submit(new Callable<RecordUploadStatus[]>() {
+            @Override
+            public RecordUploadStatus[] call() throws Exception {
+                if (stopped.get()) {
+                    job.discard();
+                    return allWithStatus(recordIds, RecordUploadStatus.CANCELLED);
+                }
+
+                RecordUploadStatus[] statuses = job.upload();
+                for (RecordUploadStatus status : statuses) {
+                    if (status == RecordUploadStatus.UNAUTHORIZED) {
+                        stopped.set(true);
+                    }
+                }
+                return statuses;
+            }
+        });
+        pending.add(new PendingUpload(recordIds, result));
+
+        reportResults(pending.size() >= maxPending);
+        return true;
+    }
+
+    /**
+     * Wait for all submitted uploads to finish, report their results, and shut down the workers.
+     */
+    public void finish() {
+        while (!pending.isEmpty()) {
+            reportResults(true);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Stop uploading. Uploads already running are allowed to finish.
+     */
+    public void stop() {
+        stopped.set(true);
+    }
+
+    /**
+     * @return True if the engine was stopped, or an upload was rejected for bad credentials
+     */
+    public boolean isStopped() {
+        return stopped.get();
+    }
+
+    /**
+     * Report the results of the finished uploads at the head of the queue.
+     *
+     * @param waitForOne If set, wait for the oldest upload to finish, if it has not already
+     */
+    private void reportResults(boolean waitForOne) {
+        while (!pending.isEmpty() && (waitForOne || pending.peek().result.isDone())) {
+            waitForOne = false;
+            PendingUpload upload = pending.poll();
+            RecordUploadStatus[] statuses = getResult(upload);
+            for (int i = 0; i < upload.recordIds.length; i++) {
+                // a job that does not report on every record failed to upload the rest
+                RecordUploadStatus status = i < statuses.length ? statuses[i] : RecordUploadStatus.FAILED;
+                listener.recordUploadDone(upload.recordIds[i], status);
+            }
+        }
+    }
+
+    private RecordUploadStatus[] getResult(PendingUpload upload) {
+        try {
+            return upload.result.get();
+        } catch (InterruptedException e) {
+            // submitting thread interrupted; let running uploads finish, but start no more
+            Log.w(LOG_LABEL, "Interrupted waiting for upload of " + upload.recordIds.length + " records");
+            stop();
+            Thread.currentThread().interrupt();
+            return upload.result.isDone() ? getFinishedResult(upload) :
+                    allWithStatus(upload.recordIds, RecordUploadStatus.CANCELLED);
+        } catch (ExecutionException e) {
+            Log.e(LOG_LABEL, "Upload of " + upload.recordIds.length + " records failed unexpectedly");
+            e.printStackTrace();
+            return allWithStatus(upload.recordIds, RecordUploadStatus.FAILED);
+        }
+    }
+
+    private RecordUploadStatus[] getFinishedResult(PendingUpload upload) {
+        try {
+            return upload.result.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return allWithStatus(upload.recordIds, RecordUploadStatus.FAILED);
+        }
+    }
+
+    /**
+     * @return Array with the given status for each record
+     */
+    static RecordUploadStatus[] allWithStatus(long[] recordIds, RecordUploadStatus status) {
+        RecordUploadStatus[] statuses = new RecordUploadStatus[recordIds.length];
+        Arrays.fill(statuses, status);
+        return statuses;
+    }
+}
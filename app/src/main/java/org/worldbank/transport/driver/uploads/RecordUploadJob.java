@@ -0,0 +1,25 @@
+package org.worldbank.transport.driver.uploads;
+
+/**
+ * Records to be uploaded together by the RecordUploadEngine, in a single request.
+ */
+public interface RecordUploadJob {
+
+    /**
+     * @return Database IDs of the records
+     */
+    long[] getRecordIds();
+
+    /**
+     * Upload the records. Called on an upload worker thread.
+     *
+     * @return Outcome of the upload of each record, in the order of getRecordIds
+     */
+    RecordUploadStatus[] upload();
+
+    /**
+     * Release anything held for the upload. Called instead of upload if uploading stopped
+     * before the job was reached.
+     */
+    void discard();
+}
@@ -0,0 +1,67 @@
+package org.worldbank.transport.driver.uploads;
+
+import org.worldbank.transport.driver.metrics.UploadMetrics;
+import org.worldbank.transport.driver.network.DriverHttpClient;
+
+import java.net.URL;
+
+/**
+ * Settings shared by the RecordUpload and RecordBatchUpload jobs of an upload task: where and
+ * how records are sent. Only the record endpoint, token, and client are needed; the rest are
+ * set as the server and task allow.
+ */
+public class RecordUploadOptions {
+
+    final URL recordUrl;
+    final String token;
+    final DriverHttpClient httpClient;
+
+    URL batchUrl;
+    MediaUploader mediaUploader;
+    UploadMetrics metrics;
+    StoredRecordSource recordSource;
+
+    /**
+     * @param recordUrl Record endpoint
+     * @param token User's API token
+     * @param httpClient Client to connect with
+     */
+    public RecordUploadOptions(URL recordUrl, String token, DriverHttpClient httpClient) {
+        this.recordUrl = recordUrl;
+        this.token = token;
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * @param batchUrl Batch record endpoint, for RecordBatchUpload
+     */
+    public RecordUploadOptions setBatchUrl(URL batchUrl) {
+        this.batchUrl = batchUrl;
+        return this;
+    }
+
+    /**
+     * @param mediaUploader Uploader for records' media files; if not set, they are sent inline
+     */
+    public RecordUploadOptions setMediaUploader(MediaUploader mediaUploader) {
+        this.mediaUploader = mediaUploader;
+        return this;
+    }
+
+    /**
+     * @param metrics Sync session to measure requests in; if not set, they are not measured
+     */
+    public RecordUploadOptions setMetrics(UploadMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * @param recordSource Reopens records to send them again in another form; if not set,
+     *                     records turned away for their form fail
+     */
+    public RecordUploadOptions setRecordSource(StoredRecordSource recordSource) {
+        this.recordSource = recordSource;
+        return this;
+    }
+}
@@ -0,0 +1,15 @@
+package org.worldbank.transport.driver.uploads;
+
+/**
+ * Outcome of uploading a single record.
+ */
+public enum RecordUploadStatus {
+    // server accepted the record; it may be deleted locally
+    UPLOADED,
+    // upload failed; the record stays in the database to be uploaded later
+    FAILED,
+    // server rejected the user's credentials; no further records should be sent
+    UNAUTHORIZED,
+    // not sent, because uploading stopped before it was reached
+    CANCELLED
+}
@@ -0,0 +1,21 @@
+package org.worldbank.transport.driver.uploads;
+
+import android.support.annotation.Nullable;
+
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Reopens stored records, so that records already read into a request the server turned away
+ * can be sent again in another form.
+ */
+public interface StoredRecordSource {
+
+    /**
+     * Open a stored record again. Called on an upload worker thread.
+     *
+     * @param recordId Database ID of the record
+     * @return New reader for the stored record, or null if it can no longer be read
+     */
+    @Nullable
+    JsonReader reopen(long recordId);
+}
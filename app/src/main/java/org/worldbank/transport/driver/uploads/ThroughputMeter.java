@@ -0,0 +1,65 @@
+package org.worldbank.transport.driver.uploads;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Estimates recent upload throughput, as a moving average of the throughput of each request,
+ * weighted towards the latest.
+ *
+ * A request's throughput is the bytes it sent over the time from starting to send them to the
+ * first byte of the response, so it includes the server's time to answer. Requests smaller than
+ * MIN_SAMPLE_BYTES are left out, as their time is mostly round trips rather than sending.
+ *
+ * The estimate should be reset when the network link changes, as it says nothing about the new one.
+ * Requests may be recorded from several threads.
+ */
+public class ThroughputMeter {
+
+    // requests sending less than this are not counted
+    public static final long MIN_SAMPLE_BYTES = 4 * 1024;
+
+    // weight of the latest request in the average
+    private static final double SAMPLE_WEIGHT = 0.3;
+
+    private static ThroughputMeter instance;
+
+    // bytes per second, or negative if not measured yet
+    private double estimate = -1;
+
+    public static synchronized ThroughputMeter getInstance() {
+        if (instance == null) {
+            instance = new ThroughputMeter();
+        }
+        return instance;
+    }
+
+    /**
+     * Count a request.
+     *
+     * @param bytes Bytes sent
+     * @param nanos Time from starting to send to the first byte of the response
+     */
+    public synchronized void record(long bytes, long nanos) {
+        if (bytes < MIN_SAMPLE_BYTES || nanos <= 0) {
+            return;
+        }
+
+        double sample = bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        estimate = estimate < 0 ? sample : estimate + SAMPLE_WEIGHT * (sample - estimate);
+    }
+
+    /**
+     * @return Estimated bytes per second, or NetworkConditions.UNKNOWN_THROUGHPUT if not measured yet
+     */
+    public synchronized long getBytesPerSecond() {
+        return estimate < 0 ? NetworkConditions.UNKNOWN_THROUGHPUT : Math.round(estimate);
+    }
+
+    /**
+     * Forget the requests counted so far.
+     */
+    public synchronized void reset() {
+        estimate = -1;
+    }
+}
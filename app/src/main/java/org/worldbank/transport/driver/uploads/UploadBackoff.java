@@ -0,0 +1,71 @@
+package org.worldbank.transport.driver.uploads;
+
+import java.util.Random;
+
+
+/**
+ * Decides when to try uploading a record again after it fails.
+ *
+ * The wait doubles with each failed attempt, from the base delay up to the maximum, and is
+ * then jittered to a random time between half of it and all of it, so that records which failed
+ * together, or devices which lost the same server together, do not all come back at once.
+ */
+public class UploadBackoff {
+
+    public static final long DEFAULT_BASE_DELAY_MS = 30 * 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 6 * 60 * 60 * 1000;
+
+    public static final UploadBackoff DEFAULT = new UploadBackoff(Clock.SYSTEM, DEFAULT_BASE_DELAY_MS,
+            DEFAULT_MAX_DELAY_MS, new Random());
+
+    private final Clock clock;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final Random random;
+
+    /**
+     * @param clock Source of the current time
+     * @param baseDelayMs Wait after the first failed attempt, before jitter
+     * @param maxDelayMs Longest wait, before jitter
+     * @param random Source of jitter
+     */
+    public UploadBackoff(Clock clock, long baseDelayMs, long maxDelayMs, Random random) {
+        if (baseDelayMs <= 0 || maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException("Backoff delays must be positive, with the maximum at least the base");
+        }
+
+        this.clock = clock;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.random = random;
+    }
+
+    /**
+     * @return Current time, from the backoff's clock
+     */
+    public long now() {
+        return clock.now();
+    }
+
+    /**
+     * @param attempts Number of failed attempts so far, at least one
+     * @return Wait before the next attempt, before jitter
+     */
+    public long delay(int attempts) {
+        long delay = baseDelayMs;
+        for (int i = 1; i < attempts && delay < maxDelayMs; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maxDelayMs);
+    }
+
+    /**
+     * @param attempts Number of failed attempts so far, at least one
+     * @return Time to try again, in milliseconds since the epoch
+     */
+    public long nextAttemptTime(int attempts) {
+        long delay = delay(attempts);
+        long jittered = delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+        return clock.now() + jittered;
+    }
+}
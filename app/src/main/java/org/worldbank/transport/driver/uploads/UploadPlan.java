@@ -0,0 +1,49 @@
+package org.worldbank.transport.driver.uploads;
+
+/**
+ * How an upload task sends records, as decided by an UploadPolicy.
+ */
+public class UploadPlan {
+
+    public static final int DEFAULT_BATCH_SIZE = 10;
+
+    /**
+     * Four records at a time, in batches of ten, with their media.
+     */
+    public static final UploadPlan DEFAULT = new UploadPlan(RecordUploadEngine.DEFAULT_WORKERS,
+            DEFAULT_BATCH_SIZE, true);
+
+    /**
+     * Number of requests to make at once.
+     */
+    public final int workers;
+
+    /**
+     * Number of records to send in each request, if the server accepts batches.
+     */
+    public final int batchSize;
+
+    /**
+     * Send records with photos or other media. If not set, they are left for a later upload,
+     * and records without media are still sent.
+     */
+    public final boolean sendMedia;
+
+    public UploadPlan(int workers, int batchSize, boolean sendMedia) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Invalid number of workers: " + workers);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.sendMedia = sendMedia;
+    }
+
+    @Override
+    public String toString() {
+        return workers + " workers, batches of " + batchSize + (sendMedia ? ", with media" : ", deferring media");
+    }
+}
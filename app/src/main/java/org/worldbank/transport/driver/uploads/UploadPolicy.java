@@ -0,0 +1,12 @@
+package org.worldbank.transport.driver.uploads;
+
+/**
+ * Decides how an upload task sends records. Asked once at the start of each task.
+ */
+public interface UploadPolicy {
+
+    /**
+     * @return Plan for the upload starting now
+     */
+    UploadPlan plan();
+}
@@ -0,0 +1,254 @@
+package org.worldbank.transport.driver.uploads;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.util.Log;
+
+import org.worldbank.transport.driver.datastore.RecordDatabaseManager;
+import org.worldbank.transport.driver.tasks.PostRecordsTask;
+
+
+/**
+ * Uploads records in the background, without the user asking, independent of any activity.
+ *
+ * Once started, the records due to be tried are uploaded straight away, whenever connectivity
+ * returns, when asked to, and when the earliest record waiting after a failed upload is due again.
+ * Each upload is a PostRecordsTask that sends only due records, so records that keep failing
+ * are tried less and less often, as decided by its UploadBackoff. Only one upload runs at a time;
+ * asking for another while one runs uploads again once it has finished.
+ * Records a task leaves for later, such as records with photos while on a metered link, are
+ * tried again by the next upload, so switching to Wi-Fi sends them.
+ *
+ * Everything runs on the handler's thread, which should be the main thread, where the task
+ * reports back. The wait for the next attempt is held by the handler, so it does not survive the
+ * process; the outbox it is read from does, and the scheduler picks up from it on the next start.
+ *
+ * The scheduler stops if the server rejects the user's credentials, until started again.
+ */
+public class UploadScheduler implements PostRecordsTask.PostRecordsListener {
+
+    private static final String LOG_LABEL = "UploadScheduler";
+
+    // wait before trying records that were due but were not tried, such as when offline;
+    // connectivity returning will try them sooner
+    private static final long OVERDUE_RETRY_DELAY_MS = 60 * 1000;
+
+    public interface UploadTaskFactory {
+        /**
+         * @param listener Listener to give the task
+         * @return Task to upload the records due to be tried, or null if records cannot be
+         * uploaded now, such as when no user is logged in
+         */
+        PostRecordsTask createUploadTask(PostRecordsTask.PostRecordsListener listener);
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final Clock clock;
+    private final RecordDatabaseManager databaseManager;
+    private final UploadTaskFactory taskFactory;
+
+    // only changed on the handler thread; volatile so they may be checked from others
+    private volatile boolean started = false;
+    private volatile boolean uploading = false;
+    private volatile long scheduledTime = -1;
+
+    // asked to upload while an upload was running
+    private boolean uploadRequested = false;
+
+    private final Runnable uploadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduledTime = -1;
+            upload();
+        }
+    };
+
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // ignore the current state delivered on registering; the scheduler uploads on starting
+            if (isInitialStickyBroadcast() ||
+                    intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                return;
+            }
+
+            Log.d(LOG_LABEL, "Connectivity returned; uploading due records");
+            upload();
+        }
+    };
+
+    /**
+     * @param context Context to listen for connectivity changes on
+     * @param handler Handler to run uploads and timers on, for the main thread
+     * @param clock Source of the current time, the same as the tasks' backoff uses
+     * @param databaseManager Database the tasks upload from, to find when records are due
+     * @param taskFactory Makes the upload tasks
+     */
+    public UploadScheduler(Context context, Handler handler, Clock clock, RecordDatabaseManager databaseManager,
+                           UploadTaskFactory taskFactory) {
+        this.context = context;
+        this.handler = handler;
+        this.clock = clock;
+        this.databaseManager = databaseManager;
+        this.taskFactory = taskFactory;
+    }
+
+    /**
+     * Start uploading in the background, beginning with the records due now.
+     * Does nothing if already started.
+     */
+    public void start() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (started) {
+                    return;
+                }
+
+                Log.d(LOG_LABEL, "Starting background uploads");
+                started = true;
+                context.registerReceiver(connectivityReceiver,
+                        new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION), null, handler);
+                upload();
+            }
+        });
+    }
+
+    /**
+     * Stop uploading in the background. An upload already running is allowed to finish.
+     */
+    public void stop() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopNow();
+            }
+        });
+    }
+
+    /**
+     * Upload the records due now, such as after a record has been saved. Does nothing if not started.
+     */
+    public void requestUpload() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                upload();
+            }
+        });
+    }
+
+    /**
+     * @return True if an upload is running
+     */
+    public boolean isUploading() {
+        return uploading;
+    }
+
+    /**
+     * @return Time of the next upload, in milliseconds since the epoch, or -1 if none is scheduled
+     */
+    public long getScheduledTime() {
+        return scheduledTime;
+    }
+
+    private void stopNow() {
+        if (!started) {
+            return;
+        }
+
+        Log.d(LOG_LABEL, "Stopping background uploads");
+        started = false;
+        uploadRequested = false;
+        context.unregisterReceiver(connectivityReceiver);
+        handler.removeCallbacks(uploadRunnable);
+        scheduledTime = -1;
+    }
+
+    private void upload() {
+        if (!started) {
+            return;
+        }
+        if (uploading) {
+            uploadRequested = true;
+            return;
+        }
+
+        handler.removeCallbacks(uploadRunnable);
+        scheduledTime = -1;
+
+        PostRecordsTask task = taskFactory.createUploadTask(this);
+        if (task == null) {
+            Log.d(LOG_LABEL, "Cannot upload records now");
+            return;
+        }
+
+        uploading = true;
+        task.execute();
+    }
+
+    private void uploadDone() {
+        uploading = false;
+        if (!started) {
+            return;
+        }
+
+        if (uploadRequested) {
+            uploadRequested = false;
+            upload();
+        } else {
+            scheduleNextUpload();
+        }
+    }
+
+    /**
+     * Set a timer for when the earliest record waiting after a failed upload is due again.
+     */
+    private void scheduleNextUpload() {
+        long nextAttemptTime = databaseManager.getNextUploadAttemptTime();
+        if (nextAttemptTime < 0) {
+            Log.d(LOG_LABEL, "No records waiting to be tried again");
+            return;
+        }
+
+        long now = clock.now();
+        long delay = nextAttemptTime - now;
+        if (delay <= 0) {
+            // due already, so this upload did not get to it
+            delay = OVERDUE_RETRY_DELAY_MS;
+        }
+
+        Log.d(LOG_LABEL, "Next upload in " + delay + " ms");
+        scheduledTime = now + delay;
+        handler.postDelayed(uploadRunnable, delay);
+    }
+
+    @Override
+    public void recordUploadFinished(int failed) {
+        Log.d(LOG_LABEL, "Background upload finished with " + failed + " records not uploaded");
+        uploadDone();
+    }
+
+    @Override
+    public void recordUploadCancelled(String errorMessage) {
+        Log.d(LOG_LABEL, "Background upload cancelled: " + errorMessage);
+        uploadDone();
+    }
+
+    @Override
+    public void uploadedOneRecord() {
+        // progress is not shown for background uploads
+    }
+
+    @Override
+    public void haveInvalidCredentials() {
+        // may be called from the task's thread
+        Log.w(LOG_LABEL, "Credentials rejected; stopping background uploads until logged in again");
+        stop();
+    }
+}
@@ -34,11 +34,21 @@ public class DriverUtilities {
     private static final String LOG_LABEL = "DriverUtilities";
 
     /**
-     * Returns the ordered list of field names for the given schema model.
+     * Returns the ordered list of field names for the given schema model, from the schema index.
      * @param model Class built by jsonschema2pojo with the json editor annotations
      * @return Array of the names of the fields on the class, ordered according to the JsonPropertyOrder annotation
      */
     public static String[] getFieldOrder(Class model) {
+        return SchemaIndex.describe(model).fieldOrder;
+    }
+
+    /**
+     * Reads the ordered list of field names for the given schema model from its annotations.
+     * Use getFieldOrder instead, which reads them from the schema index.
+     * @param model Class built by jsonschema2pojo with the json editor annotations
+     * @return Array of the names of the fields on the class, ordered according to the JsonPropertyOrder annotation
+     */
+    public static String[] readFieldOrder(Class model) {
 
         // the annotation lists fields by their SerializedName,
         // except for the constant fields, which are listed by field name
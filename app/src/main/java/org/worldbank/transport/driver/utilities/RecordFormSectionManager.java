@@ -31,6 +31,7 @@ import java.util.ArrayList;
  *
  * Each section is one field on the DriverSchema class.
  * Their order is determined by the JsonPropertyOrder annotation on the DriverSchema class.
+ * Sections are looked up in the schema index, rather than read from the annotations each time.
  *
  * Created by kathrynkillebrew on 1/4/16.
  */
@@ -68,12 +69,17 @@ public class RecordFormSectionManager {
     /**
      * Get the order in which the form sections should appear.
      *
-     * Lazily builds schemaSectionOrder on first reference;
-     * use this method instead of referencing the schemaSectionOrder field directly.
+     * Uses the schema index, if there is one; otherwise, lazily builds schemaSectionOrder
+     * on first reference. Use this method instead of referencing the schemaSectionOrder
+     * field directly.
      *
      * @return Array of ordered field names
      */
     private static String[] getSchemaSectionOrder() {
+        SchemaIndex index = DriverApp.getSchemaIndex();
+        if (index != null) {
+            return index.getSectionOrder();
+        }
         if (schemaSectionOrder == null) {
             schemaSectionOrder = DriverUtilities.getFieldOrder(DriverApp.getSchemaClass());
         }
@@ -126,6 +132,11 @@ public class RecordFormSectionManager {
     @Nullable
     public static Class getSectionClass(String sectionName) {
         try {
+            SchemaIndex.SectionInfo section = getIndexedSection(sectionName);
+            if (section != null) {
+                return DriverApp.getSchemaClassLoader().loadClass(section.className);
+            }
+
             // class names are capitalized; field names of that type may not be
             sectionName = getSanitizedIdentifier(sectionName, "");
             sectionName = StringUtils.capitalize(sectionName);
@@ -158,7 +169,13 @@ public class RecordFormSectionManager {
      */
     public static boolean sectionHasMultiple(int sectionId) {
 
-        Field sectionField = getFieldForSectionName(getSectionName(sectionId));
+        String sectionName = getSectionName(sectionId);
+        SchemaIndex.SectionInfo section = getIndexedSection(sectionName);
+        if (section != null) {
+            return section.multiple;
+        }
+
+        Field sectionField = getFieldForSectionName(sectionName);
 
         if (sectionField != null) {
             Multiple multipleAnnotation = sectionField.getAnnotation(Multiple.class);
@@ -170,6 +187,21 @@ public class RecordFormSectionManager {
         return false;
     }
 
+    /**
+     * Find a section in the schema index.
+     *
+     * @param sectionName Field name of section on DriverSchema class
+     * @return The indexed section, or null if there is no index or no such section in it
+     */
+    @Nullable
+    private static SchemaIndex.SectionInfo getIndexedSection(String sectionName) {
+        SchemaIndex index = DriverApp.getSchemaIndex();
+        if (index == null || sectionName == null) {
+            return null;
+        }
+        return index.getSection(sectionName);
+    }
+
     /**
      * Get the field from the DriverSchema class for a given section field name.
      *
@@ -205,6 +237,15 @@ public class RecordFormSectionManager {
             return defaultTitle;
         }
 
+        SchemaIndex.SectionInfo section = getIndexedSection(sectionField.getName());
+        if (section != null) {
+            if (section.pluralTitle != null) {
+                return section.pluralTitle;
+            }
+            Log.w(LOG_LABEL, "No plural title found for section");
+            return defaultTitle;
+        }
+
         PluralTitle pluralAnnotation = sectionField.getAnnotation(PluralTitle.class);
         if (pluralAnnotation != null) {
             String pluralTitle = pluralAnnotation.value();
@@ -228,6 +269,15 @@ public class RecordFormSectionManager {
      * @return Title annotation value for field, or default if not ofund
      */
     public static String getSingleTitle(Field sectionField, String defaultTitle) {
+        SchemaIndex.SectionInfo section = getIndexedSection(sectionField.getName());
+        if (section != null) {
+            if (section.title != null) {
+                return section.title;
+            }
+            Log.w(LOG_LABEL, "No title found for section");
+            return defaultTitle;
+        }
+
         Title titleAnnotation = sectionField.getAnnotation(Title.class);
         if (titleAnnotation != null) {
             String title = titleAnnotation.value();
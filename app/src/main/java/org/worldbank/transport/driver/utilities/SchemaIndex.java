@@ -0,0 +1,451 @@
+package org.worldbank.transport.driver.utilities;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+
+import org.apache.commons.lang.StringUtils;
+import org.jsonschema2pojo.annotations.FieldFormat;
+import org.jsonschema2pojo.annotations.FieldFormats;
+import org.jsonschema2pojo.annotations.FieldType;
+import org.jsonschema2pojo.annotations.FieldTypes;
+import org.jsonschema2pojo.annotations.IsHidden;
+import org.jsonschema2pojo.annotations.Multiple;
+import org.jsonschema2pojo.annotations.PluralTitle;
+import org.jsonschema2pojo.annotations.Title;
+import org.jsonschema2pojo.annotations.WatchTarget;
+import org.worldbank.transport.driver.annotations.ConstantFieldType;
+import org.worldbank.transport.driver.annotations.ConstantFieldTypes;
+import org.worldbank.transport.driver.staticmodels.DriverApp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import javax.validation.constraints.NotNull;
+
+
+/**
+ * What the forms need to know about the schema model classes: the sections and their order, and
+ * for each class its fields in order, with their types, labels, select list options, and
+ * reference targets.
+ *
+ * Reading this from the annotations on the classes takes a lot of reflection, so the index is
+ * built once for each schema, when its classes are loaded, and written to a file named for the
+ * schema version to read back on later starts. Classes not in the schema, like the constant
+ * fields, are read when first asked for, and only kept in memory.
+ */
+public class SchemaIndex {
+
+    private static final String LOG_LABEL = "SchemaIndex";
+
+    public static final String INDEX_DIRECTORY = "schema-index";
+    private static final String INDEX_SUFFIX = ".json";
+
+    // increment when changing what is indexed, so that index files written before get rebuilt
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * A section: one field on the DriverSchema class.
+     */
+    public static class SectionInfo {
+        public String fieldName;
+        // name of the section class; for sections with multiple items, the class of the items
+        public String className;
+        public boolean multiple;
+        // null if not set in schema
+        public String title;
+        public String pluralTitle;
+    }
+
+    /**
+     * An option for a select list field.
+     */
+    public static class EnumOption {
+        // name of the enum constant
+        public String name;
+        // toString of the enum constant
+        public String value;
+        // from the SerializedName annotation, if any
+        public String label;
+    }
+
+    /**
+     * A field on a model class, from its annotations.
+     */
+    public static class FieldInfo {
+        public String name;
+        // from the SerializedName annotation, if any
+        public String label;
+        // name of the field's class
+        public String typeName;
+        // if field holds a Set or List
+        public boolean collection;
+        public boolean hidden;
+        public boolean required;
+        public FieldTypes fieldType;
+        public FieldFormats format;
+        public ConstantFieldTypes constantFieldType;
+        // name of the section referenced
+        public String watchTarget;
+        // for select lists; null if the enum was not found
+        public String enumClassName;
+        public ArrayList<EnumOption> options;
+    }
+
+    /**
+     * The fields of a model class.
+     */
+    public static class ClassInfo {
+        // in order of declaration
+        public ArrayList<FieldInfo> fields;
+        // names of fields in the order they should appear
+        public String[] fieldOrder;
+    }
+
+    private int formatVersion;
+    private String schemaVersion;
+    private String[] sectionOrder;
+
+    // by section field name
+    private HashMap<String, SectionInfo> sections;
+
+    // by class name
+    private HashMap<String, ClassInfo> classes;
+
+    // classes not in the schema, read when first asked for; not written out
+    private transient HashMap<String, ClassInfo> otherClasses = new HashMap<>();
+
+    private SchemaIndex() {
+        // for Gson
+    }
+
+    private SchemaIndex(String schemaVersion) {
+        this.formatVersion = FORMAT_VERSION;
+        this.schemaVersion = schemaVersion;
+        this.sections = new HashMap<>();
+        this.classes = new HashMap<>();
+    }
+
+    /**
+     * Read the schema from its model classes.
+     *
+     * @param schemaVersion UUID of the schema
+     * @param driverSchema Top-level DriverSchema class
+     * @param classLoader Loader of the schema classes
+     * @return Index of the schema
+     */
+    public static SchemaIndex build(String schemaVersion, Class driverSchema, ClassLoader classLoader) {
+        SchemaIndex index = new SchemaIndex(schemaVersion);
+        index.sectionOrder = DriverUtilities.readFieldOrder(driverSchema);
+        index.classes.put(driverSchema.getName(), readClass(driverSchema, classLoader));
+
+        for (String sectionName : index.sectionOrder) {
+            try {
+                Field sectionField = driverSchema.getField(sectionName);
+                SectionInfo section = new SectionInfo();
+                section.fieldName = sectionName;
+
+                // class names are capitalized; field names of that type may not be
+                section.className = RecordFormSectionManager.MODEL_PACKAGE +
+                        StringUtils.capitalize(RecordFormSectionManager.getSanitizedIdentifier(sectionName, ""));
+
+                Multiple multiple = sectionField.getAnnotation(Multiple.class);
+                section.multiple = multiple != null && multiple.value();
+                Title title = sectionField.getAnnotation(Title.class);
+                if (title != null && title.value().length() > 0) {
+                    section.title = title.value();
+                }
+                PluralTitle pluralTitle = sectionField.getAnnotation(PluralTitle.class);
+                if (pluralTitle != null && pluralTitle.value().length() > 0) {
+                    section.pluralTitle = pluralTitle.value();
+                }
+
+                Class sectionClass = classLoader.loadClass(section.className);
+                index.sections.put(sectionName, section);
+                index.classes.put(sectionClass.getName(), readClass(sectionClass, classLoader));
+            } catch (NoSuchFieldException e) {
+                Log.e(LOG_LABEL, "Could not find section field named " + sectionName);
+                e.printStackTrace();
+            } catch (ClassNotFoundException e) {
+                Log.e(LOG_LABEL, "Could not find class for section " + sectionName);
+                e.printStackTrace();
+            }
+        }
+
+        Log.d(LOG_LABEL, "Indexed " + index.sections.size() + " sections of schema " + schemaVersion);
+        return index;
+    }
+
+    /**
+     * Read the fields of a model class from their annotations.
+     *
+     * @param clazz Model class built by jsonschema2pojo, or the constant fields class
+     * @param classLoader Loader to find select list enums in separate classes with
+     * @return Fields of the class
+     */
+    public static ClassInfo readClass(Class clazz, ClassLoader classLoader) {
+        // find enums for select lists
+        HashMap<String, Class> enums = new HashMap<>();
+        for (Class inner : clazz.getDeclaredClasses()) {
+            if (inner.isEnum()) {
+                enums.put(inner.getSimpleName(), inner);
+            }
+        }
+
+        Field[] fields = clazz.getDeclaredFields();
+        ClassInfo classInfo = new ClassInfo();
+        classInfo.fields = new ArrayList<>(fields.length);
+
+        for (Field field : fields) {
+            FieldInfo fieldInfo = new FieldInfo();
+            fieldInfo.name = field.getName();
+            Class fieldClass = field.getType();
+            fieldInfo.typeName = fieldClass.getName();
+            fieldInfo.collection = fieldClass.equals(Set.class) || fieldClass.equals(List.class);
+
+            for (Annotation annotation : field.getDeclaredAnnotations()) {
+                Class annotationType = annotation.annotationType();
+
+                if (annotationType.equals(IsHidden.class)) {
+                    fieldInfo.hidden = ((IsHidden) annotation).value();
+                    if (!fieldInfo.hidden) {
+                        Log.w(LOG_LABEL, "Have false isHidden annotation, which is inefficient. Better just leave it off.");
+                    }
+                } else if (annotationType.equals(FieldType.class)) {
+                    fieldInfo.fieldType = ((FieldType) annotation).value();
+                } else if (annotationType.equals(FieldFormat.class)) {
+                    fieldInfo.format = ((FieldFormat) annotation).value();
+                } else if (annotationType.equals(SerializedName.class)) {
+                    fieldInfo.label = ((SerializedName) annotation).value();
+                } else if (annotationType.equals(NotNull.class)) {
+                    fieldInfo.required = true;
+                } else if (annotationType.equals(ConstantFieldType.class)) {
+                    fieldInfo.constantFieldType = ((ConstantFieldType) annotation).value();
+                } else if (annotationType.equals(WatchTarget.class)) {
+                    fieldInfo.watchTarget = ((WatchTarget) annotation).value();
+                }
+            }
+
+            if (FieldTypes.selectlist.equals(fieldInfo.fieldType)) {
+                Class enumClass = enums.get(fieldClass.getSimpleName());
+
+                // for checkbox-formatted fields, enum is in a separate class (not inner)
+                if (enumClass == null && fieldInfo.collection) {
+                    String enumName = RecordFormSectionManager.MODEL_PACKAGE +
+                            StringUtils.capitalize(fieldInfo.name) + "Enum";
+                    try {
+                        enumClass = classLoader.loadClass(enumName);
+                    } catch (ClassNotFoundException e) {
+                        Log.e(LOG_LABEL, "selectlist enumeration class " + enumName + " not found for " + fieldClass);
+                        e.printStackTrace();
+                    }
+                }
+
+                if (enumClass != null) {
+                    fieldInfo.enumClassName = enumClass.getName();
+                    fieldInfo.options = readEnumOptions(enumClass);
+                } else {
+                    Log.e(LOG_LABEL, "selectlist enumeration not found for " + fieldClass);
+                }
+            }
+
+            classInfo.fields.add(fieldInfo);
+        }
+
+        classInfo.fieldOrder = DriverUtilities.readFieldOrder(clazz);
+        return classInfo;
+    }
+
+    private static ArrayList<EnumOption> readEnumOptions(Class enumClass) {
+        Object[] constants = enumClass.getEnumConstants();
+        ArrayList<EnumOption> options = new ArrayList<>(constants.length);
+        for (Object constant : constants) {
+            EnumOption option = new EnumOption();
+            option.name = ((Enum) constant).name();
+            option.value = constant.toString();
+
+            // label is on the field of the same name as the enum constant
+            try {
+                SerializedName serializedName = enumClass.getField(option.name).getAnnotation(SerializedName.class);
+                if (serializedName != null) {
+                    option.label = serializedName.value();
+                }
+            } catch (NoSuchFieldException e) {
+                Log.e(LOG_LABEL, "Failed to find enum field to build label for " + option.value);
+                e.printStackTrace();
+            }
+            options.add(option);
+        }
+        return options;
+    }
+
+    /**
+     * Get the fields of a class from the index of the current schema, or read them from the class
+     * if no schema is loaded.
+     */
+    public static ClassInfo describe(Class clazz) {
+        SchemaIndex index = DriverApp.getSchemaIndex();
+        if (index != null) {
+            return index.getClassInfo(clazz);
+        }
+        return readClass(clazz, clazz.getClassLoader());
+    }
+
+    public String getSchemaVersion() {
+        return schemaVersion;
+    }
+
+    /**
+     * @return Field names of the sections on the DriverSchema class, in order
+     */
+    public String[] getSectionOrder() {
+        return sectionOrder;
+    }
+
+    /**
+     * @param sectionName Field name of the section on the DriverSchema class
+     * @return The section, or null if there is no such section
+     */
+    @Nullable
+    public SectionInfo getSection(String sectionName) {
+        return sections.get(sectionName);
+    }
+
+    /**
+     * Get the fields of a class. Classes not in the schema are read when first asked for.
+     */
+    public synchronized ClassInfo getClassInfo(Class clazz) {
+        String className = clazz.getName();
+        ClassInfo classInfo = classes.get(className);
+        if (classInfo == null) {
+            classInfo = otherClasses.get(className);
+            if (classInfo == null) {
+                Log.d(LOG_LABEL, "Indexing class not in schema: " + className);
+                classInfo = readClass(clazz, clazz.getClassLoader());
+                otherClasses.put(className, classInfo);
+            }
+        }
+        return classInfo;
+    }
+
+    /**
+     * @return Names of the fields of the class in the order they should appear
+     */
+    public String[] getFieldOrder(Class clazz) {
+        return getClassInfo(clazz).fieldOrder;
+    }
+
+    private static File getIndexFile(File directory, String schemaVersion) {
+        return new File(directory, schemaVersion.replaceAll("[^A-Za-z0-9-]", "_") + INDEX_SUFFIX);
+    }
+
+    /**
+     * Read back the index written for a schema.
+     *
+     * @param directory Directory indexes are written to
+     * @param schemaVersion UUID of the schema
+     * @return The index, or null if there is none for this schema that can be used
+     */
+    @Nullable
+    public static SchemaIndex load(File directory, String schemaVersion) {
+        File file = getIndexFile(directory, schemaVersion);
+        if (!file.exists()) {
+            Log.d(LOG_LABEL, "No index written for schema " + schemaVersion);
+            return null;
+        }
+
+        Reader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            SchemaIndex index = new Gson().fromJson(reader, SchemaIndex.class);
+            if (index != null && index.formatVersion == FORMAT_VERSION &&
+                    schemaVersion.equals(index.schemaVersion) && index.sectionOrder != null) {
+                return index;
+            }
+            Log.w(LOG_LABEL, "Index written for schema " + schemaVersion + " is out of date");
+        } catch (IOException | JsonParseException e) {
+            Log.e(LOG_LABEL, "Failed to read index for schema " + schemaVersion);
+            e.printStackTrace();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        file.delete();
+        return null;
+    }
+
+    /**
+     * Write out the index, replacing any written for other schemas.
+     *
+     * @param directory Directory to write indexes to
+     * @return True on success
+     */
+    public boolean save(File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(LOG_LABEL, "Could not create directory for schema index");
+            return false;
+        }
+
+        File file = getIndexFile(directory, schemaVersion);
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        Writer writer = null;
+        boolean saved = false;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+            new Gson().toJson(this, writer);
+            writer.close();
+            writer = null;
+            saved = tempFile.renameTo(file);
+        } catch (IOException e) {
+            Log.e(LOG_LABEL, "Failed to write index for schema " + schemaVersion);
+            e.printStackTrace();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        if (!saved) {
+            tempFile.delete();
+            return false;
+        }
+
+        // only the index for the current schema is needed
+        File[] indexFiles = directory.listFiles();
+        if (indexFiles != null) {
+            for (File indexFile : indexFiles) {
+                if (!indexFile.equals(file)) {
+                    indexFile.delete();
+                }
+            }
+        }
+        return true;
+    }
+}
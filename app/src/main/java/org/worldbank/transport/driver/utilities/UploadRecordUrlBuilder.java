@@ -14,10 +14,24 @@ import java.net.URL;
 public class UploadRecordUrlBuilder implements PostRecordsTask.UploadRecordUrl {
     @Override
     public URL recordUrl(String serverUrl) {
+        return buildUrl(serverUrl, RECORD_ENDPOINT);
+    }
+
+    @Override
+    public URL batchRecordUrl(String serverUrl) {
+        return buildUrl(serverUrl, BATCH_RECORD_ENDPOINT);
+    }
+
+    @Override
+    public URL mediaUrl(String serverUrl) {
+        return buildUrl(serverUrl, MEDIA_ENDPOINT);
+    }
+
+    private static URL buildUrl(String serverUrl, String endpoint) {
         try {
             return new URL(Uri.parse(serverUrl)
                     .buildUpon()
-                    .appendEncodedPath(RECORD_ENDPOINT)
+                    .appendEncodedPath(endpoint)
                     .build()
                     .toString());
         } catch (MalformedURLException e) {
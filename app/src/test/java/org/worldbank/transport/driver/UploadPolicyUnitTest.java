@@ -0,0 +1,113 @@
+package org.worldbank.transport.driver;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.worldbank.transport.driver.uploads.AdaptiveUploadPolicy;
+import org.worldbank.transport.driver.uploads.ConnectivityProvider;
+import org.worldbank.transport.driver.uploads.NetworkConditions;
+import org.worldbank.transport.driver.uploads.ThroughputMeter;
+import org.worldbank.transport.driver.uploads.UploadPlan;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test choosing how to upload from the network conditions.
+ */
+public class UploadPolicyUnitTest {
+
+    /**
+     * Reports whatever conditions it is given.
+     */
+    static class FakeConnectivityProvider implements ConnectivityProvider {
+        NetworkConditions conditions;
+
+        void set(NetworkConditions.LinkType linkType, boolean metered, long bytesPerSecond) {
+            conditions = new NetworkConditions(linkType, metered, bytesPerSecond);
+        }
+
+        @Override
+        public NetworkConditions getConditions() {
+            return conditions;
+        }
+    }
+
+    private FakeConnectivityProvider provider;
+    private AdaptiveUploadPolicy deferringPolicy;
+    private AdaptiveUploadPolicy sendingPolicy;
+
+    @Before
+    public void setUp() {
+        provider = new FakeConnectivityProvider();
+        deferringPolicy = new AdaptiveUploadPolicy(provider, true);
+        sendingPolicy = new AdaptiveUploadPolicy(provider, false);
+    }
+
+    @Test
+    public void unmeteredWifiUsesDefaultPlan() {
+        provider.set(NetworkConditions.LinkType.WIFI, false, NetworkConditions.UNKNOWN_THROUGHPUT);
+        UploadPlan plan = deferringPolicy.plan();
+
+        assertEquals(UploadPlan.DEFAULT.workers, plan.workers);
+        assertEquals(UploadPlan.DEFAULT.batchSize, plan.batchSize);
+        assertTrue("Media should be sent on unmetered link", plan.sendMedia);
+    }
+
+    @Test
+    public void meteredLinkDefersMedia() {
+        provider.set(NetworkConditions.LinkType.CELLULAR_FAST, true, NetworkConditions.UNKNOWN_THROUGHPUT);
+
+        UploadPlan plan = deferringPolicy.plan();
+        assertFalse("Media should wait for unmetered link", plan.sendMedia);
+        assertEquals("Fast link should not be slowed down", UploadPlan.DEFAULT.workers, plan.workers);
+
+        assertTrue("Media should be sent if not deferring", sendingPolicy.plan().sendMedia);
+    }
+
+    @Test
+    public void slowCellularSendsOneAtATime() {
+        provider.set(NetworkConditions.LinkType.CELLULAR_SLOW, true, NetworkConditions.UNKNOWN_THROUGHPUT);
+        UploadPlan plan = sendingPolicy.plan();
+
+        assertEquals(AdaptiveUploadPolicy.SLOW_WORKERS, plan.workers);
+        assertEquals(AdaptiveUploadPolicy.SLOW_BATCH_SIZE, plan.batchSize);
+    }
+
+    @Test
+    public void measuredThroughputOverridesLinkType() {
+        // congested Wi-Fi
+        provider.set(NetworkConditions.LinkType.WIFI, false, AdaptiveUploadPolicy.SLOW_BYTES_PER_SECOND / 2);
+        UploadPlan plan = deferringPolicy.plan();
+        assertEquals("Slow Wi-Fi should be treated as slow", AdaptiveUploadPolicy.SLOW_WORKERS, plan.workers);
+        assertTrue("Media should still be sent on unmetered link", plan.sendMedia);
+
+        // 2G link doing better than its type suggests
+        provider.set(NetworkConditions.LinkType.CELLULAR_SLOW, true, AdaptiveUploadPolicy.SLOW_BYTES_PER_SECOND * 4);
+        assertEquals("Fast 2G link should not be slowed down", UploadPlan.DEFAULT.workers, deferringPolicy.plan().workers);
+    }
+
+    @Test
+    public void throughputMeter() {
+        ThroughputMeter meter = new ThroughputMeter();
+        assertEquals(NetworkConditions.UNKNOWN_THROUGHPUT, meter.getBytesPerSecond());
+
+        // small requests are mostly round trips, so not counted
+        meter.record(100, 1000000000L);
+        assertEquals(NetworkConditions.UNKNOWN_THROUGHPUT, meter.getBytesPerSecond());
+
+        meter.record(100000, 1000000000L);
+        assertEquals(100000, meter.getBytesPerSecond());
+
+        // moves towards later requests
+        meter.record(10000, 1000000000L);
+        long estimate = meter.getBytesPerSecond();
+        assertTrue("Estimate should drop: " + estimate, estimate < 100000 && estimate > 10000);
+
+        meter.reset();
+        assertEquals(NetworkConditions.UNKNOWN_THROUGHPUT, meter.getBytesPerSecond());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void planNeedsWorkers() {
+        new UploadPlan(0, 1, true);
+    }
+}